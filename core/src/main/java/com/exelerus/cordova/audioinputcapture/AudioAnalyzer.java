@@ -0,0 +1,325 @@
+package com.exelerus.cordova.audioinputcapture;
+
+/**
+ * Computes compact per-interval features from the captured PCM, so the web
+ * layer can draw level meters and spectra without receiving raw audio.
+ *
+ * For every interval it reports the RMS and peak level, the zero-crossing rate
+ * and the energy of a set of mel or octave spaced frequency bands, averaged over
+ * the FFT frames of the interval. All channels are mixed to mono. Every buffer
+ * is allocated in the constructor, process() does not allocate.
+ */
+public class AudioAnalyzer {
+
+    /**
+     * Called on the capture thread at the end of every interval, the values are
+     * only valid during the call
+     */
+    public interface Listener {
+        void onFeatures(AudioAnalyzer analyzer);
+    }
+
+    public static final String SCALE_MEL = "mel";
+    public static final String SCALE_OCTAVE = "octave";
+
+    private static final double MIN_FREQUENCY = 20.0;
+    private static final float SILENCE_DB = -120f;
+
+    private final int channels;
+    private final int bytesPerSample;
+    private final int fftSize;
+    private final int intervalFrames;
+    private final Listener listener;
+
+    private final RealFft fft;
+    private final float[] window;
+    private final float[] frame;
+    private final float[] spectrum;
+    private int frameFill = 0;
+
+    private final int[] bandStart;
+    private final int[] bandEnd;
+    private final double[] bandSums;
+    private final float[] bands;
+    private int spectraInInterval = 0;
+
+    // Accumulated over the current interval
+    private double sumSquares = 0;
+    private float peak = 0;
+    private int zeroCrossings = 0;
+    private int framesInInterval = 0;
+    private float lastSample = 0;
+
+    // Results of the last completed interval
+    private float rms = 0;
+    private float intervalPeak = 0;
+    private float zeroCrossingRate = 0;
+
+    /**
+     * @param sampleRate
+     *            The sample rate in hertz
+     * @param channels
+     *            The number of interleaved channels
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit PCM, 2 for signed 16-bit little endian PCM,
+     *            4 for 32-bit float little endian
+     * @param fftSize
+     *            The FFT length, a power of two
+     * @param bandCount
+     *            The number of frequency bands to report
+     * @param scale
+     *            SCALE_MEL or SCALE_OCTAVE
+     * @param intervalMs
+     *            How often features are reported
+     * @param listener
+     *            Receives the features
+     */
+    public AudioAnalyzer(int sampleRate, int channels, int bytesPerSample, int fftSize, int bandCount, String scale,
+            int intervalMs, Listener listener) {
+        if (fftSize < 16 || (fftSize & (fftSize - 1)) != 0) {
+            throw new IllegalArgumentException("fftSize must be a power of two: " + fftSize);
+        }
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.fftSize = fftSize;
+        this.intervalFrames = Math.max(1, (int) ((long) sampleRate * intervalMs / 1000));
+        this.listener = listener;
+
+        this.fft = new RealFft(fftSize);
+        this.frame = new float[fftSize];
+        this.spectrum = new float[fftSize / 2 + 1];
+        this.window = new float[fftSize];
+        for (int i = 0; i < fftSize; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / fftSize));
+        }
+
+        this.bandStart = new int[bandCount];
+        this.bandEnd = new int[bandCount];
+        this.bandSums = new double[bandCount];
+        this.bands = new float[bandCount];
+        computeBands(sampleRate, bandCount, SCALE_OCTAVE.equals(scale));
+    }
+
+    /**
+     * Analyzes a chunk of interleaved PCM, calls the listener for every interval
+     * that is completed
+     */
+    public void process(byte[] data, int length) {
+        int frameBytes = channels * bytesPerSample;
+        int frames = length / frameBytes;
+
+        for (int i = 0; i < frames; i++) {
+            float sample = PcmUtils.toMonoFloat(data, i * frameBytes, channels, bytesPerSample);
+
+            sumSquares += sample * sample;
+            float magnitude = Math.abs(sample);
+            if (magnitude > peak) {
+                peak = magnitude;
+            }
+            if ((sample >= 0) != (lastSample >= 0)) {
+                zeroCrossings++;
+            }
+            lastSample = sample;
+
+            frame[frameFill++] = sample;
+            if (frameFill == fftSize) {
+                analyzeFrame();
+                frameFill = 0;
+            }
+
+            if (++framesInInterval == intervalFrames) {
+                completeInterval();
+            }
+        }
+    }
+
+    public float getRms() {
+        return rms;
+    }
+
+    public float getPeak() {
+        return intervalPeak;
+    }
+
+    /**
+     * @return The fraction of consecutive samples that changed sign
+     */
+    public float getZeroCrossingRate() {
+        return zeroCrossingRate;
+    }
+
+    /**
+     * @return The band energies in dB relative to full scale, lowest band first
+     */
+    public float[] getBands() {
+        return bands;
+    }
+
+    private void analyzeFrame() {
+        for (int i = 0; i < fftSize; i++) {
+            frame[i] *= window[i];
+        }
+        fft.powerSpectrum(frame, spectrum);
+
+        for (int b = 0; b < bandSums.length; b++) {
+            double sum = 0;
+            for (int k = bandStart[b]; k < bandEnd[b]; k++) {
+                sum += spectrum[k];
+            }
+            bandSums[b] += sum;
+        }
+        spectraInInterval++;
+    }
+
+    private void completeInterval() {
+        rms = (float) Math.sqrt(sumSquares / framesInInterval);
+        intervalPeak = peak;
+        zeroCrossingRate = (float) zeroCrossings / framesInInterval;
+
+        // Full scale sine in one bin with a Hann window gives (N / 4)^2
+        double reference = (fftSize / 4.0) * (fftSize / 4.0);
+        for (int b = 0; b < bands.length; b++) {
+            if (spectraInInterval == 0 || bandSums[b] <= 0) {
+                bands[b] = SILENCE_DB;
+            } else {
+                double energy = bandSums[b] / spectraInInterval / reference;
+                bands[b] = (float) Math.max(SILENCE_DB, 10 * Math.log10(energy));
+            }
+            bandSums[b] = 0;
+        }
+
+        if (listener != null) {
+            listener.onFeatures(this);
+        }
+
+        sumSquares = 0;
+        peak = 0;
+        zeroCrossings = 0;
+        framesInInterval = 0;
+        spectraInInterval = 0;
+    }
+
+    /**
+     * Maps the bands to FFT bin ranges, each band gets at least one bin
+     */
+    private void computeBands(int sampleRate, int count, boolean octave) {
+        double nyquist = sampleRate / 2.0;
+        double binWidth = (double) sampleRate / fftSize;
+        int maxBin = fftSize / 2;
+
+        int previous = 1;
+        for (int b = 0; b < count; b++) {
+            double upper;
+            if (octave) {
+                upper = nyquist / Math.pow(2, count - 1 - b);
+            } else {
+                double melLow = toMel(MIN_FREQUENCY);
+                double melHigh = toMel(nyquist);
+                upper = fromMel(melLow + (melHigh - melLow) * (b + 1) / count);
+            }
+            int end = (int) Math.round(upper / binWidth);
+            end = Math.max(end, previous + 1);
+            end = Math.min(end, maxBin + 1);
+            bandStart[b] = Math.min(previous, end - 1);
+            bandEnd[b] = end;
+            previous = end;
+        }
+    }
+
+    private static double toMel(double frequency) {
+        return 2595.0 * Math.log10(1 + frequency / 700.0);
+    }
+
+    private static double fromMel(double mel) {
+        return 700.0 * (Math.pow(10, mel / 2595.0) - 1);
+    }
+
+    /**
+     * Radix-2 FFT of a real signal, computed as a complex FFT of half the length
+     * on the even/odd samples followed by a split step. Twiddle factors and the
+     * bit reversal table are precomputed.
+     */
+    static class RealFft {
+        private final int size;
+        private final int half;
+        private final float[] re;
+        private final float[] im;
+        private final float[] cos;
+        private final float[] sin;
+        private final int[] reversed;
+
+        RealFft(int size) {
+            this.size = size;
+            this.half = size / 2;
+            this.re = new float[half];
+            this.im = new float[half];
+            this.cos = new float[half];
+            this.sin = new float[half];
+            for (int i = 0; i < half; i++) {
+                cos[i] = (float) Math.cos(2 * Math.PI * i / size);
+                sin[i] = (float) Math.sin(2 * Math.PI * i / size);
+            }
+            this.reversed = new int[half];
+            int bits = Integer.numberOfTrailingZeros(half);
+            for (int i = 0; i < half; i++) {
+                reversed[i] = bits == 0 ? 0 : Integer.reverse(i) >>> (32 - bits);
+            }
+        }
+
+        /**
+         * @param input
+         *            size real samples
+         * @param power
+         *            Receives |X[k]|^2 for k = 0 .. size / 2
+         */
+        void powerSpectrum(float[] input, float[] power) {
+            for (int i = 0; i < half; i++) {
+                int j = reversed[i];
+                re[j] = input[2 * i];
+                im[j] = input[2 * i + 1];
+            }
+
+            // Iterative butterflies on the half length complex signal, the twiddles of a
+            // stage of length len are every (size / len)th entry of the table
+            for (int len = 2; len <= half; len <<= 1) {
+                int step = size / len;
+                int h = len / 2;
+                for (int start = 0; start < half; start += len) {
+                    for (int k = 0; k < h; k++) {
+                        float wr = cos[k * step];
+                        float wi = -sin[k * step];
+                        int a = start + k;
+                        int b = a + h;
+                        float tr = re[b] * wr - im[b] * wi;
+                        float ti = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - tr;
+                        im[b] = im[a] - ti;
+                        re[a] += tr;
+                        im[a] += ti;
+                    }
+                }
+            }
+
+            // Split into the spectrum of the real signal
+            power[0] = (re[0] + im[0]) * (re[0] + im[0]);
+            power[half] = (re[0] - im[0]) * (re[0] - im[0]);
+            for (int k = 1; k < half; k++) {
+                float zr = re[k];
+                float zi = im[k];
+                float cr = re[half - k];
+                float ci = -im[half - k];
+                // Even part E = (Z[k] + conj(Z[N/2-k])) / 2, odd part O = (Z[k] - conj(Z[N/2-k])) / 2i
+                float er = (zr + cr) * 0.5f;
+                float ei = (zi + ci) * 0.5f;
+                float or = (zi - ci) * 0.5f;
+                float oi = -(zr - cr) * 0.5f;
+                // X[k] = E + W^k * O with W = e^(-2 pi i / size)
+                float wr = cos[k];
+                float wi = -sin[k];
+                float xr = er + or * wr - oi * wi;
+                float xi = ei + or * wi + oi * wr;
+                power[k] = xr * xr + xi * xi;
+            }
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed set of reusable audio chunks that are handed from the capture thread
+ * to a consumer thread. A chunk only becomes available again when the consumer
+ * has released it, so the capture thread never overwrites data that is still
+ * being delivered, and the steady state allocates nothing.
+ *
+ * A chunk can be shared by several consumers without copying: each one
+ * retains it and releases it when done, the chunk goes back to the pool with
+ * the last release.
+ */
+public class AudioBufferPool {
+
+    /**
+     * A byte buffer plus the number of valid bytes in it.
+     */
+    public static class Chunk {
+        public final byte[] data;
+        public int length = 0;
+
+        // System.nanoTime() when the audio was captured
+        public long timestamp = 0;
+
+        // Index of the first frame, counted since capture started
+        public long position = 0;
+
+        private final AudioBufferPool pool;
+        private final AtomicInteger references = new AtomicInteger(0);
+
+        private Chunk(AudioBufferPool pool, int capacity) {
+            this.pool = pool;
+            this.data = new byte[capacity];
+        }
+
+        /**
+         * Adds a reference, every retain() needs its own release()
+         *
+         * @return This chunk
+         */
+        public Chunk retain() {
+            references.incrementAndGet();
+            return this;
+        }
+
+        /**
+         * Drops a reference, the last one hands the chunk back to the pool it was
+         * acquired from
+         */
+        public void release() {
+            if (references.decrementAndGet() == 0) {
+                pool.release(this);
+            }
+        }
+    }
+
+    private final ArrayBlockingQueue<Chunk> free;
+    private final int count;
+    private final int capacity;
+
+    /**
+     * @param count
+     *            The number of chunks in the pool
+     * @param capacity
+     *            The size in bytes of each chunk
+     */
+    public AudioBufferPool(int count, int capacity) {
+        this.count = count;
+        this.capacity = capacity;
+        this.free = new ArrayBlockingQueue<Chunk>(count);
+        for (int i = 0; i < count; i++) {
+            free.offer(new Chunk(this, capacity));
+        }
+    }
+
+    /**
+     * Takes a free chunk from the pool without blocking
+     *
+     * @return A chunk holding one reference, or null if all chunks are currently
+     *         in use
+     */
+    public Chunk acquire() {
+        Chunk chunk = free.poll();
+        if (chunk != null) {
+            chunk.references.set(1);
+        }
+        return chunk;
+    }
+
+    /**
+     * @return The number of chunks in the pool
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return The size in bytes of each chunk
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * @return The number of chunks that are currently free
+     */
+    public int available() {
+        return free.size();
+    }
+
+    private void release(Chunk chunk) {
+        chunk.length = 0;
+        free.offer(chunk);
+    }
+}
@@ -0,0 +1,81 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Turns a stream of PCM chunks into a recording file format. Used by
+ * AudioFileWriter on its writer thread, implementations do not need to be
+ * thread safe.
+ */
+public interface AudioEncoder {
+
+    /**
+     * Creates a fresh encoder for every file of a recording
+     */
+    interface Factory {
+        AudioEncoder createEncoder();
+    }
+
+    /**
+     * Receives the encoded bytes
+     */
+    interface Output {
+        void write(byte[] data, int offset, int length) throws IOException;
+    }
+
+    /**
+     * @return The file header with all size fields left empty, written at the
+     *         start of the file
+     */
+    ByteBuffer createHeader();
+
+    /**
+     * Encodes one chunk of interleaved PCM
+     *
+     * @param data
+     *            The PCM data
+     * @param offset
+     *            The start of the chunk in data, at a frame boundary
+     * @param length
+     *            The number of bytes to encode, a multiple of the frame size
+     * @param out
+     *            Receives the encoded bytes, possibly only once enough data has
+     *            been buffered
+     */
+    void encode(byte[] data, int offset, int length, Output out) throws IOException;
+
+    /**
+     * Encodes whatever is still buffered, no more data follows
+     */
+    void finish(Output out) throws IOException;
+
+    /**
+     * Completes the header once all encoded data has been written
+     *
+     * @param channel
+     *            The channel of the recording file
+     * @param fileSize
+     *            The total size of the file including the header
+     */
+    void updateHeader(FileChannel channel, long fileSize) throws IOException;
+
+    /**
+     * Brings the size fields of the header up to date while the recording goes
+     * on, so a file that is never finished stays readable up to this point.
+     * Only called when all data encoded so far has been written.
+     *
+     * @param channel
+     *            The channel of the recording file
+     * @param fileSize
+     *            The size of the file so far including the header
+     */
+    void updateProgress(FileChannel channel, long fileSize) throws IOException;
+
+    /**
+     * @return true if the format cannot hold any more data, further chunks are
+     *         discarded
+     */
+    boolean isLimitReached();
+}
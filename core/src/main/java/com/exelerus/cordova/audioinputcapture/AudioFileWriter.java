@@ -0,0 +1,635 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Writes a recording on its own thread.
+ *
+ * The capture thread only copies each chunk into a preallocated buffer and puts
+ * it on a bounded queue, it never touches the file. The writer thread passes
+ * the queued chunks through an AudioEncoder, collects the output in one large
+ * buffer and writes it to a FileChannel when the buffer is full or the flush
+ * interval has passed. Long recordings can optionally be split into segment
+ * files of a fixed size. If the writer falls so far behind that the queue is
+ * full, new chunks are dropped and counted rather than blocking the capture
+ * thread.
+ *
+ * Every checkpoint interval the header of the open file is brought up to date
+ * and the file is forced to storage, so a recording cut off by a crash is
+ * readable up to the last checkpoint. With segments a JSON manifest next to
+ * the files lists each segment with its first sample and sample count, it is
+ * replaced atomically whenever a segment is opened or closed and at every
+ * checkpoint.
+ *
+ * Optionally the file is written through memory mapping instead: it is grown
+ * in extents of MAP_EXTENT bytes and the encoded data is copied into a mapped
+ * window of one extent that slides forward as it fills, so there is no write
+ * call per batch and the file grows in a few large steps. The header is
+ * patched in place at checkpoints, the writes go to the same pages as the
+ * mapping. When a file is closed it is truncated to the data actually written;
+ * after a crash the unused rest of the last extent remains as zeros behind the
+ * data the header accounts for.
+ */
+public class AudioFileWriter extends Thread implements AudioEncoder.Output {
+
+    /**
+     * Notified on the writer thread once the file has been closed
+     */
+    public interface Listener {
+        void onRecordingFinished(AudioFileWriter writer, IOException error);
+    }
+
+    public static final int DEFAULT_QUEUE_SIZE = 64;
+    public static final int DEFAULT_FLUSH_INTERVAL_MS = 1000;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL_MS = 5000;
+
+    private static final int BATCH_SIZE = 256 * 1024;
+    private static final int MAP_EXTENT = 16 * 1024 * 1024;
+
+    // Queued by finish() to wake the writer thread, never written or released
+    private static final AudioBufferPool.Chunk WAKE_UP = new AudioBufferPool(1, 0).acquire();
+
+    private final File file;
+    private final AudioEncoder.Factory encoderFactory;
+    private final int frameBytes;
+    private final long segmentBytes;
+    private final int flushIntervalMs;
+    private final Listener listener;
+
+    private final AudioBufferPool pool;
+    private final ArrayBlockingQueue<AudioBufferPool.Chunk> queue;
+    private final List<File> files = new ArrayList<File>();
+    private byte[] preRoll = null;
+    private int checkpointIntervalMs = DEFAULT_CHECKPOINT_INTERVAL_MS;
+    private File manifest = null;
+    private JSONObject manifestInfo = null;
+    private WaveformOverview overview = null;
+    private boolean mapped = false;
+
+    // Only used on the writer thread
+    private AudioEncoder encoder;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private ByteBuffer batch;
+    private MappedByteBuffer window;
+    // The amount of the open file holding data, less than its length while extents are preallocated
+    private long fileSize = 0;
+    private long lastFlush;
+    private long lastCheckpoint;
+    private long segmentData = 0;
+    private long segmentFirstFrame = 0;
+    private final JSONArray segments = new JSONArray();
+
+    private volatile boolean finishing = false;
+    private volatile boolean limitReached = false;
+    private volatile long droppedChunks = 0;
+    private volatile long bytesWritten = 0;
+    private volatile long firstSample = -1;
+    private volatile long lastSample = -1;
+
+    // Time the writer thread spent blocked in file writes
+    private volatile long writeNanos = 0;
+    private volatile long maxWriteNanos = 0;
+
+    /**
+     * @param file
+     *            The file to write, it is created or truncated by the writer
+     *            thread. With segments the files are named after it with a
+     *            running number, e.g. rec_001.wav, rec_002.wav.
+     * @param encoderFactory
+     *            Creates the encoder for the file format, once per file
+     * @param frameBytes
+     *            The size of one PCM frame, segments are only split between frames
+     * @param segmentBytes
+     *            The amount of PCM data after which a new file is started, 0
+     *            writes everything to one file
+     * @param chunkSize
+     *            The largest chunk that will be passed to write()
+     * @param queueSize
+     *            The number of chunks that can be waiting for the writer thread
+     * @param flushIntervalMs
+     *            The longest time data may stay buffered before it is written
+     * @param listener
+     *            Notified when the recording has been finished, may be null
+     */
+    public AudioFileWriter(File file, AudioEncoder.Factory encoderFactory, int frameBytes, long segmentBytes,
+            int chunkSize, int queueSize, int flushIntervalMs, Listener listener) {
+        super("AudioFileWriter");
+        this.file = file;
+        this.encoderFactory = encoderFactory;
+        this.frameBytes = frameBytes;
+        this.segmentBytes = segmentBytes - segmentBytes % frameBytes;
+        this.flushIntervalMs = flushIntervalMs;
+        this.listener = listener;
+        this.pool = new AudioBufferPool(queueSize, chunkSize);
+        this.queue = new ArrayBlockingQueue<AudioBufferPool.Chunk>(queueSize);
+    }
+
+    /**
+     * Queues a chunk of PCM data for writing. Never blocks, called from the
+     * capture thread.
+     *
+     * @return false if the chunk was dropped because the queue is full or the
+     *         recording has been finished
+     */
+    public boolean write(byte[] data, int length) {
+        return writePart(data, 0, length);
+    }
+
+    /**
+     * Queues part of a chunk, e.g. from the frame where a recording starts
+     *
+     * @see #write(byte[], int)
+     */
+    public boolean writePart(byte[] data, int offset, int length) {
+        if (finishing || limitReached) {
+            return false;
+        }
+        AudioBufferPool.Chunk chunk = pool.acquire();
+        if (chunk == null) {
+            droppedChunks++;
+            return false;
+        }
+        System.arraycopy(data, offset, chunk.data, 0, length);
+        chunk.length = length;
+        queue.offer(chunk);
+        return true;
+    }
+
+    /**
+     * Sets audio that was captured before the recording started, it is written
+     * ahead of the first queued chunk. Must be called before start().
+     */
+    public void setPreRoll(byte[] preRoll) {
+        this.preRoll = preRoll;
+    }
+
+    /**
+     * @param intervalMs
+     *            How often the header of the open file is updated and the file
+     *            forced to storage, 0 only completes it at the end. Must be
+     *            called before start().
+     */
+    public void setCheckpointInterval(int intervalMs) {
+        this.checkpointIntervalMs = intervalMs;
+    }
+
+    /**
+     * @param mapped
+     *            true to write through a memory mapped window into preallocated
+     *            extents instead of batched writes. Must be called before
+     *            start().
+     */
+    public void setMapped(boolean mapped) {
+        this.mapped = mapped;
+    }
+
+    /**
+     * Keeps a manifest of the segments, must be called before start()
+     *
+     * @param manifest
+     *            The JSON file to write
+     * @param info
+     *            Describes the audio, e.g. sampleRate and channels, the writer
+     *            adds segments and finished
+     */
+    public void setManifest(File manifest, JSONObject info) {
+        this.manifest = manifest;
+        this.manifestInfo = info;
+    }
+
+    public File getManifest() {
+        return manifest;
+    }
+
+    /**
+     * Builds a waveform overview of the whole recording on the writer thread,
+     * must be called before start()
+     */
+    public void setOverview(WaveformOverview overview) {
+        this.overview = overview;
+    }
+
+    /**
+     * @return The overview sidecar, null if none is written
+     */
+    public File getOverview() {
+        return overview != null ? overview.getFile() : null;
+    }
+
+    /**
+     * Records which part of the capture went into the file, reported when the
+     * recording has been finished
+     *
+     * @param first
+     *            The sample position of the first frame, -1 if none was written
+     * @param last
+     *            The sample position of the last frame
+     */
+    public void setSampleRange(long first, long last) {
+        this.firstSample = first;
+        this.lastSample = last;
+    }
+
+    public long getFirstSample() {
+        return firstSample;
+    }
+
+    public long getLastSample() {
+        return lastSample;
+    }
+
+    /**
+     * Ends the recording. The writer thread writes everything that is still
+     * queued, completes the header and closes the file.
+     */
+    public void finish() {
+        finishing = true;
+        // A full queue keeps the writer busy until it sees the flag anyway
+        queue.offer(WAKE_UP);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The files written so far, more than one when segments are used
+     */
+    public synchronized List<File> getFiles() {
+        return new ArrayList<File>(files);
+    }
+
+    public long getDroppedChunks() {
+        return droppedChunks;
+    }
+
+    public long getBytesWritten() {
+        return bytesWritten;
+    }
+
+    /**
+     * @return The total time in ns spent writing to the file
+     */
+    public long getWriteNanos() {
+        return writeNanos;
+    }
+
+    /**
+     * @return The longest single flush in ns
+     */
+    public long getMaxWriteNanos() {
+        return maxWriteNanos;
+    }
+
+    /**
+     * @return true if the recording was cut off at the maximum size of the format
+     */
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+
+    @Override
+    public void run() {
+        IOException error = null;
+        if (!mapped) {
+            batch = ByteBuffer.allocateDirect(BATCH_SIZE);
+        }
+        lastFlush = System.currentTimeMillis();
+        lastCheckpoint = lastFlush;
+
+        try {
+            openSegment();
+            if (overview != null) {
+                overview.open();
+            }
+            if (preRoll != null) {
+                encodeData(preRoll, preRoll.length);
+                preRoll = null;
+            }
+
+            while (true) {
+                AudioBufferPool.Chunk chunk = finishing ? queue.poll()
+                        : queue.poll(flushIntervalMs, TimeUnit.MILLISECONDS);
+                if (chunk == WAKE_UP) {
+                    chunk = null;
+                } else if (chunk != null) {
+                    try {
+                        encodeData(chunk.data, chunk.length);
+                    } finally {
+                        chunk.release();
+                    }
+                }
+
+                if (System.currentTimeMillis() - lastFlush >= flushIntervalMs) {
+                    flush();
+                }
+
+                if (checkpointIntervalMs > 0 && System.currentTimeMillis() - lastCheckpoint >= checkpointIntervalMs) {
+                    checkpoint();
+                }
+
+                if (chunk == null && finishing && queue.isEmpty()) {
+                    break;
+                }
+            }
+            closeSegment();
+            if (overview != null) {
+                overview.finish();
+            }
+            writeManifest(true);
+        } catch (IOException e) {
+            error = e;
+        } catch (InterruptedException e) {
+            error = new IOException("Recording interrupted");
+        } finally {
+            finishing = true;
+            if (overview != null) {
+                overview.close();
+            }
+            window = null;
+            if (raf != null) {
+                // The segment was not closed, an error cut it short
+                try {
+                    try {
+                        truncateMapped();
+                    } finally {
+                        raf.close();
+                    }
+                } catch (IOException e) {
+                    if (error == null) {
+                        error = e;
+                    }
+                }
+            }
+            // Hand back anything that was queued after an error
+            AudioBufferPool.Chunk chunk;
+            while ((chunk = queue.poll()) != null) {
+                if (chunk != WAKE_UP) {
+                    chunk.release();
+                }
+            }
+        }
+
+        if (listener != null) {
+            listener.onRecordingFinished(this, error);
+        }
+    }
+
+    /**
+     * Passes PCM data to the encoder, splitting it at the exact frame where the
+     * current segment is full
+     */
+    private void encodeData(byte[] data, int dataLength) throws IOException {
+        int offset = 0;
+        while (offset < dataLength && !limitReached) {
+            if (segmentBytes > 0 && segmentData >= segmentBytes) {
+                closeSegment();
+                openSegment();
+            }
+            int length = dataLength - offset;
+            if (segmentBytes > 0) {
+                length = (int) Math.min(length, segmentBytes - segmentData);
+            }
+            encoder.encode(data, offset, length, this);
+            if (overview != null) {
+                overview.process(data, offset, length);
+            }
+            limitReached = encoder.isLimitReached();
+            segmentData += length;
+            offset += length;
+        }
+    }
+
+    private void openSegment() throws IOException {
+        File next = segmentBytes > 0 ? segmentFile(file, files.size() + 1) : file;
+        encoder = encoderFactory.createEncoder();
+        raf = new RandomAccessFile(next, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        writeFully(channel, encoder.createHeader(), 0);
+        fileSize = channel.size();
+        channel.position(fileSize);
+        if (mapped) {
+            mapWindow();
+        }
+        segmentFirstFrame += segmentData / frameBytes;
+        segmentData = 0;
+        synchronized (this) {
+            files.add(next);
+        }
+        writeManifest(false);
+    }
+
+    private void closeSegment() throws IOException {
+        long start;
+        try {
+            encoder.finish(this);
+            flush();
+            start = System.nanoTime();
+            if (window != null) {
+                window.force();
+            }
+            encoder.updateHeader(channel, fileSize);
+        } finally {
+            truncateMapped();
+        }
+        channel.force(false);
+        countWriteTime(System.nanoTime() - start);
+        updateSegment(true);
+        raf.close();
+        raf = null;
+    }
+
+    /**
+     * Cuts a mapped file back to the data written, dropping the unused rest of
+     * the last extent, also when the file could not be completed
+     */
+    private void truncateMapped() throws IOException {
+        window = null;
+        if (mapped && channel.isOpen()) {
+            channel.truncate(fileSize);
+        }
+    }
+
+    /**
+     * Writes the data encoded so far and completes the header up to it, the
+     * encoder may still hold back data it has not encoded yet
+     */
+    private void checkpoint() throws IOException {
+        lastCheckpoint = System.currentTimeMillis();
+        flush();
+        long start = System.nanoTime();
+        if (window != null) {
+            window.force();
+        }
+        encoder.updateProgress(channel, fileSize);
+        channel.force(false);
+        countWriteTime(System.nanoTime() - start);
+        updateSegment(false);
+        writeManifest(false);
+        if (overview != null) {
+            overview.checkpoint();
+        }
+    }
+
+    /**
+     * Records the state of the open segment for the manifest
+     */
+    private void updateSegment(boolean complete) throws IOException {
+        if (manifest == null) {
+            return;
+        }
+        try {
+            JSONObject segment = new JSONObject();
+            File current;
+            synchronized (this) {
+                current = files.get(files.size() - 1);
+            }
+            segment.put("file", current.getName());
+            segment.put("firstSample", segmentFirstFrame);
+            segment.put("samples", segmentData / frameBytes);
+            segment.put("bytes", fileSize);
+            segment.put("complete", complete);
+            segments.put(files.size() - 1, segment);
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * Replaces the manifest atomically: it is written to a temporary file that
+     * is then renamed
+     */
+    private void writeManifest(boolean finished) throws IOException {
+        if (manifest == null) {
+            return;
+        }
+        if (segments.length() < files.size()) {
+            updateSegment(false);
+        }
+        File temp = new File(manifest.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            manifestInfo.put("segments", segments);
+            manifestInfo.put("finished", finished);
+            out.write(manifestInfo.toString().getBytes("UTF-8"));
+            out.getFD().sync();
+        } catch (JSONException e) {
+            throw new IOException(e.toString());
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(manifest)) {
+            throw new IOException("Could not replace " + manifest);
+        }
+    }
+
+    /**
+     * @return The manifest of a segmented recording, e.g. rec.json for rec.wav
+     */
+    static File manifestFile(File file) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return new File(file.getParentFile(), base + ".json");
+    }
+
+    /**
+     * @return The file for the given segment number, e.g. rec_002.wav for rec.wav
+     */
+    static File segmentFile(File file, int number) {
+        String name = file.getName();
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        String extension = dot > 0 ? name.substring(dot) : "";
+        return new File(file.getParentFile(), String.format(Locale.US, "%s_%03d%s", base, number, extension));
+    }
+
+    /**
+     * Collects encoded data, called by the encoder on the writer thread
+     */
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ByteBuffer target = mapped ? window : batch;
+        while (length > 0) {
+            if (!target.hasRemaining()) {
+                if (mapped) {
+                    mapWindow();
+                    target = window;
+                } else {
+                    flush();
+                }
+            }
+            int n = Math.min(length, target.remaining());
+            target.put(data, offset, n);
+            offset += n;
+            length -= n;
+            if (mapped) {
+                fileSize += n;
+                bytesWritten += n;
+            }
+        }
+    }
+
+    /**
+     * Maps the next extent from the end of the data, growing the file by an
+     * extent first when needed
+     */
+    private void mapWindow() throws IOException {
+        long start = System.nanoTime();
+        if (window != null) {
+            window.force();
+        }
+        if (raf.length() < fileSize + MAP_EXTENT) {
+            raf.setLength(fileSize + MAP_EXTENT);
+        }
+        window = channel.map(FileChannel.MapMode.READ_WRITE, fileSize, MAP_EXTENT);
+        countWriteTime(System.nanoTime() - start);
+    }
+
+    private void flush() throws IOException {
+        lastFlush = System.currentTimeMillis();
+        // Mapped data is already in place
+        if (mapped || batch.position() == 0) {
+            return;
+        }
+        long start = System.nanoTime();
+        batch.flip();
+        while (batch.hasRemaining()) {
+            int n = channel.write(batch);
+            bytesWritten += n;
+            fileSize += n;
+        }
+        batch.clear();
+        countWriteTime(System.nanoTime() - start);
+    }
+
+    private void countWriteTime(long nanos) {
+        writeNanos += nanos;
+        if (nanos > maxWriteNanos) {
+            maxWriteNanos = nanos;
+        }
+    }
+
+    static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Publishes every captured block once to any number of sinks.
+ *
+ * Blocks are not copied: each sink retains the block it is handed and
+ * releases it when done, the block goes back to the capture pool with the last
+ * release. A sink registered with a queue runs on its own thread, so a slow
+ * sink only fills its own queue and never holds up the capture thread or the
+ * other sinks. When that queue is full the overflow policy of the sink decides
+ * whether its oldest or the new block is dropped, or whether the capture
+ * thread waits for room. A sink without a queue runs directly on the capture
+ * thread and must never block.
+ *
+ * Gated sinks only receive the blocks the voice activity gate passes on, the
+ * others receive every block.
+ */
+public class AudioPipeline {
+
+    /**
+     * Notified on the thread of a sink that failed, the sink is then closed
+     */
+    public interface Listener {
+        void onSinkError(String name, Exception error);
+    }
+
+    public static final int DEFAULT_QUEUE_SIZE = 16;
+
+    // An array rather than a list, iterating it on the capture thread allocates nothing
+    private Stage[] stages = new Stage[0];
+    private final Listener listener;
+
+    /**
+     * @param listener
+     *            Told about sinks that fail on their own thread
+     */
+    public AudioPipeline(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Registers a sink, must be called before start()
+     *
+     * @param name
+     *            Identifies the sink in the stats
+     * @param sink
+     *            The consumer
+     * @param gated
+     *            true if the sink only receives blocks that pass the voice
+     *            activity gate
+     * @param queueSize
+     *            The number of blocks that can wait for the sink, 0 runs it on
+     *            the capture thread
+     * @param policy
+     *            ChunkBatcher.DROP_OLDEST, DROP_NEWEST or BLOCK
+     * @param idleMs
+     *            How long the sink thread waits for a block before calling
+     *            idle(), 0 never calls it
+     */
+    public void add(String name, AudioSink sink, boolean gated, int queueSize, String policy, int idleMs) {
+        stages = Arrays.copyOf(stages, stages.length + 1);
+        stages[stages.length - 1] = new Stage(name, sink, gated, queueSize, policy, idleMs, listener);
+    }
+
+    /**
+     * @return The most blocks the sinks can hold at the same time, the capture
+     *         pool needs this many plus the ones the capture thread holds
+     */
+    public int getMaxBlocksInUse() {
+        int count = 0;
+        for (Stage stage : stages) {
+            if (stage.queue != null) {
+                // The queued blocks plus the one being processed
+                count += stage.queueSize + 1;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Starts the threads of the queued sinks
+     */
+    public void start() {
+        for (Stage stage : stages) {
+            if (stage.queue != null) {
+                stage.start();
+            }
+        }
+    }
+
+    /**
+     * Hands a block to the sinks, called on the capture thread. The caller keeps
+     * its own reference.
+     *
+     * @param passed
+     *            false if the voice activity gate held the block back, the gated
+     *            sinks then skip it
+     */
+    public void publish(AudioBufferPool.Chunk block, boolean passed) throws InterruptedException {
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = stages[i];
+            if (passed || !stage.gated) {
+                stage.offer(block);
+            }
+        }
+    }
+
+    /**
+     * Hands a block that the gate held back earlier to the gated sinks only, the
+     * others already received it
+     */
+    public void publishHeld(AudioBufferPool.Chunk block) throws InterruptedException {
+        for (int i = 0; i < stages.length; i++) {
+            Stage stage = stages[i];
+            if (stage.gated) {
+                stage.offer(block);
+            }
+        }
+    }
+
+    /**
+     * Lets the queued sinks finish the blocks they hold and closes all sinks,
+     * called on the capture thread after the last publish()
+     */
+    public void close() {
+        for (Stage stage : stages) {
+            if (stage.queue != null) {
+                stage.closing = true;
+                stage.interrupt();
+            } else {
+                stage.sink.close();
+            }
+        }
+    }
+
+    /**
+     * @return The counters of each sink by name: queueSize, queued, maxQueued,
+     *         dropped and processed
+     */
+    public JSONObject getStats() throws JSONException {
+        JSONObject info = new JSONObject();
+        for (Stage stage : stages) {
+            JSONObject counters = new JSONObject();
+            counters.put("queueSize", stage.queueSize);
+            counters.put("queued", stage.queue != null ? stage.queue.size() : 0);
+            counters.put("maxQueued", stage.maxQueued);
+            counters.put("dropped", stage.dropped);
+            counters.put("processed", stage.processed);
+            info.put(stage.name, counters);
+        }
+        return info;
+    }
+
+    /**
+     * One registered sink with its queue and thread
+     */
+    private static class Stage extends Thread {
+        final String name;
+        final AudioSink sink;
+        final boolean gated;
+        final String policy;
+        final int idleMs;
+        final int queueSize;
+        final ArrayBlockingQueue<AudioBufferPool.Chunk> queue;
+        final Listener listener;
+
+        volatile boolean closing = false;
+
+        // Written by the capture thread
+        volatile long dropped = 0;
+        volatile int maxQueued = 0;
+
+        // Written by the thread that processes the blocks
+        volatile long processed = 0;
+
+        Stage(String name, AudioSink sink, boolean gated, int queueSize, String policy, int idleMs,
+                Listener listener) {
+            super("AudioSink-" + name);
+            this.name = name;
+            this.sink = sink;
+            this.gated = gated;
+            this.policy = policy;
+            this.idleMs = idleMs;
+            this.queueSize = Math.max(queueSize, 0);
+            this.queue = queueSize > 0 ? new ArrayBlockingQueue<AudioBufferPool.Chunk>(queueSize) : null;
+            this.listener = listener;
+        }
+
+        /**
+         * Called on the capture thread
+         */
+        void offer(AudioBufferPool.Chunk block) throws InterruptedException {
+            if (queue == null) {
+                sink.process(block);
+                processed++;
+                return;
+            }
+            block.retain();
+            while (!queue.offer(block)) {
+                if (ChunkBatcher.DROP_OLDEST.equals(policy)) {
+                    AudioBufferPool.Chunk oldest = queue.poll();
+                    if (oldest != null) {
+                        dropped++;
+                        oldest.release();
+                    }
+                } else if (ChunkBatcher.BLOCK.equals(policy)) {
+                    // Interrupting the capture thread ends the wait
+                    try {
+                        queue.put(block);
+                    } catch (InterruptedException e) {
+                        block.release();
+                        throw e;
+                    }
+                    break;
+                } else {
+                    dropped++;
+                    block.release();
+                    return;
+                }
+            }
+            int queued = queue.size();
+            if (queued > maxQueued) {
+                maxQueued = queued;
+            }
+        }
+
+        @Override
+        public void run() {
+            try {
+                while (!closing) {
+                    AudioBufferPool.Chunk block;
+                    try {
+                        block = idleMs > 0 ? queue.poll(idleMs, TimeUnit.MILLISECONDS) : queue.take();
+                    } catch (InterruptedException e) {
+                        // Woken up by close(), the remaining blocks are processed below
+                        continue;
+                    }
+                    if (block == null) {
+                        sink.idle();
+                    } else {
+                        process(block);
+                    }
+                }
+                AudioBufferPool.Chunk block;
+                while ((block = queue.poll()) != null) {
+                    process(block);
+                }
+            } catch (InterruptedException e) {
+                // Interrupted while the sink was waiting itself, the rest is dropped
+            } catch (Exception e) {
+                listener.onSinkError(name, e);
+            } finally {
+                AudioBufferPool.Chunk block;
+                while ((block = queue.poll()) != null) {
+                    block.release();
+                }
+                sink.close();
+            }
+        }
+
+        private void process(AudioBufferPool.Chunk block) throws InterruptedException {
+            try {
+                sink.process(block);
+                processed++;
+            } finally {
+                block.release();
+            }
+        }
+    }
+}
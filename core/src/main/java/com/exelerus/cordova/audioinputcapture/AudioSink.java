@@ -0,0 +1,27 @@
+package com.exelerus.cordova.audioinputcapture;
+
+/**
+ * A consumer of the captured audio, registered with an AudioPipeline.
+ *
+ * Every block is shared with the other sinks and goes back to the capture pool
+ * after process() returns: it must not be modified, and whatever is needed
+ * later has to be copied.
+ */
+public interface AudioSink {
+
+    /**
+     * Consumes one block of interleaved PCM, called on the thread of the sink
+     */
+    void process(AudioBufferPool.Chunk block) throws InterruptedException;
+
+    /**
+     * Called on the thread of the sink when no block arrived within its idle
+     * interval, e.g. to flush audio that has waited long enough
+     */
+    void idle() throws InterruptedException;
+
+    /**
+     * Called on the thread of the sink after the last block
+     */
+    void close();
+}
@@ -0,0 +1,498 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Streams the captured audio to a WebSocket client on the same device, so the
+ * audio does not have to pass the Cordova bridge.
+ *
+ * The server only listens on 127.0.0.1, on a port chosen by the system, and
+ * only accepts a client that presents the random token of this session in
+ * the URL. One client is served at a time, a new one replaces the previous
+ * one. The handshake runs on the thread of the new connection, so a client
+ * that connects and then says nothing does not hold up the next one. Client
+ * frames must be masked, an unmasked one closes the connection. Every audio
+ * frame is a binary WebSocket message: a HEADER_SIZE byte little endian
+ * header followed by the PCM, interleaved unless the frame is flagged planar.
+ *
+ * <pre>
+ *  0  uint8   version, 1
+ *  1  uint8   bytes per sample, 1 (unsigned 8-bit), 2 (signed 16-bit) or 4 (float)
+ *  2  uint8   channels
+ *  3  uint8   flags, FLAG_DISCONTINUITY: audio before this frame is missing,
+ *             FLAG_PLANAR: one block per channel instead of interleaved frames
+ *  4  uint32  sample rate
+ *  8  uint32  sequence, counts the frames sent in this capture session
+ * 12  uint32  reserved
+ * 16  uint64  timestamp in microseconds since capture started
+ * 24  uint64  index of the first sample (per channel) since capture started
+ * </pre>
+ *
+ * Sending blocks while the client does not keep up, the caller decides what
+ * to drop. Plain Java, no Android dependencies.
+ */
+public class AudioSocketServer extends Thread {
+
+    /**
+     * Told about connection problems on the thread that ran into them, the
+     * server carries on and the client can connect again
+     */
+    public interface Listener {
+        void onSocketError(String message, IOException error);
+    }
+
+    public static final int HEADER_SIZE = 32;
+    public static final int VERSION = 1;
+    public static final int FLAG_DISCONTINUITY = 1;
+    public static final int FLAG_PLANAR = 2;
+
+    private static final String WEBSOCKET_GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final int HANDSHAKE_TIMEOUT_MS = 2000;
+    private static final int MAX_HANDSHAKE_BYTES = 8192;
+    private static final int MAX_PENDING_HANDSHAKES = 4;
+    private static final int MAX_CONTROL_PAYLOAD = 125;
+    private static final int SEND_BUFFER_SIZE = 65536;
+
+    private static final int OPCODE_BINARY = 0x2;
+    private static final int OPCODE_CLOSE = 0x8;
+    private static final int OPCODE_PING = 0x9;
+    private static final int OPCODE_PONG = 0xA;
+
+    private static final int CLOSE_PROTOCOL_ERROR = 1002;
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    private final ServerSocket serverSocket;
+    private final String token;
+    private final Listener listener;
+    private volatile Connection connection = null;
+    private volatile boolean closed = false;
+    private final AtomicInteger pendingHandshakes = new AtomicInteger(0);
+
+    /**
+     * Binds the server to a free port on 127.0.0.1, start() accepts the clients
+     *
+     * @param listener
+     *            Told about connection problems, may be null
+     */
+    public AudioSocketServer(Listener listener) throws IOException {
+        super("AudioSocketServer");
+        this.listener = listener;
+        this.serverSocket = new ServerSocket(0, 1, InetAddress.getByName("127.0.0.1"));
+
+        byte[] random = new byte[16];
+        new SecureRandom().nextBytes(random);
+        StringBuilder hex = new StringBuilder();
+        for (byte b : random) {
+            hex.append(String.format("%02x", b & 0xFF));
+        }
+        this.token = hex.toString();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return The URL the client has to open, including the token
+     */
+    public String getUrl() {
+        return "ws://127.0.0.1:" + getPort() + "/audio?token=" + token;
+    }
+
+    /**
+     * @return true while a client is connected
+     */
+    public boolean isConnected() {
+        return connection != null;
+    }
+
+    /**
+     * Sends one audio frame to the client, blocking until the socket took it
+     *
+     * @return false if no client is connected or the connection failed
+     */
+    public boolean sendAudio(int bytesPerSample, int channels, int flags, int sampleRate, long sequence,
+            long timestampMicros, long position, byte[] data, int length) {
+        Connection current = connection;
+        if (current == null) {
+            return false;
+        }
+        try {
+            current.sendAudio(bytesPerSample, channels, flags, sampleRate, sequence, timestampMicros, position, data,
+                    length);
+            return true;
+        } catch (IOException e) {
+            report("Client disconnected", e);
+            drop(current);
+            return false;
+        }
+    }
+
+    /**
+     * Stops accepting clients and disconnects the current one
+     */
+    public void close() {
+        closed = true;
+        try {
+            serverSocket.close();
+        } catch (IOException e) {
+            report("Closing the server failed", e);
+        }
+        Connection current = connection;
+        if (current != null) {
+            drop(current);
+        }
+    }
+
+    @Override
+    public void run() {
+        while (!closed) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                if (!closed) {
+                    report("Accepting clients failed", e);
+                }
+                break;
+            }
+            // Clients that connect without finishing their handshake only get a few threads
+            if (pendingHandshakes.incrementAndGet() > MAX_PENDING_HANDSHAKES) {
+                pendingHandshakes.decrementAndGet();
+                closeQuietly(socket);
+                continue;
+            }
+            try {
+                new Connection(socket).start();
+            } catch (IOException e) {
+                pendingHandshakes.decrementAndGet();
+                report("Accepting the client failed", e);
+                closeQuietly(socket);
+            }
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+            // Already broken
+        }
+    }
+
+    private void report(String message, IOException error) {
+        if (listener != null) {
+            listener.onSocketError(message, error);
+        }
+    }
+
+    /**
+     * Makes a connection that finished its handshake the current one
+     *
+     * @return false if the server was closed in the meantime
+     */
+    private synchronized boolean attach(Connection attached) {
+        if (closed) {
+            return false;
+        }
+        Connection previous = connection;
+        connection = attached;
+        if (previous != null) {
+            previous.close();
+        }
+        return true;
+    }
+
+    private synchronized void drop(Connection dropped) {
+        if (connection == dropped) {
+            connection = null;
+        }
+        dropped.close();
+    }
+
+    /**
+     * Answers the HTTP upgrade request, the token must match
+     *
+     * @return true if the socket is now a WebSocket connection
+     */
+    private boolean handshake(Socket socket) throws IOException {
+        socket.setSoTimeout(HANDSHAKE_TIMEOUT_MS);
+        String request = readRequest(socket.getInputStream());
+        OutputStream out = socket.getOutputStream();
+        if (request == null) {
+            return false;
+        }
+
+        String[] lines = request.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        String key = null;
+        boolean upgrade = false;
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            String name = lines[i].substring(0, colon).trim();
+            String value = lines[i].substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Sec-WebSocket-Key")) {
+                key = value;
+            } else if (name.equalsIgnoreCase("Upgrade")) {
+                upgrade = value.equalsIgnoreCase("websocket");
+            }
+        }
+
+        if (requestLine.length < 2 || !"GET".equals(requestLine[0]) || !upgrade || key == null) {
+            out.write("HTTP/1.1 400 Bad Request\r\nConnection: close\r\n\r\n".getBytes(ASCII));
+            return false;
+        }
+        if (!hasToken(requestLine[1])) {
+            out.write("HTTP/1.1 403 Forbidden\r\nConnection: close\r\n\r\n".getBytes(ASCII));
+            return false;
+        }
+
+        String response = "HTTP/1.1 101 Switching Protocols\r\n" + "Upgrade: websocket\r\n"
+                + "Connection: Upgrade\r\n" + "Sec-WebSocket-Accept: " + acceptKey(key) + "\r\n\r\n";
+        out.write(response.getBytes(ASCII));
+        out.flush();
+        socket.setSoTimeout(0);
+        socket.setTcpNoDelay(true);
+        return true;
+    }
+
+    /**
+     * @return The request up to the empty line, or null if it is too long
+     */
+    private static String readRequest(InputStream in) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        int last = 0;
+        while (request.size() < MAX_HANDSHAKE_BYTES) {
+            int b = in.read();
+            if (b < 0) {
+                return null;
+            }
+            request.write(b);
+            // The last four bytes read, "\r\n\r\n" ends the request
+            last = last << 8 | b;
+            if (last == 0x0D0A0D0A) {
+                return new String(request.toByteArray(), ASCII);
+            }
+        }
+        return null;
+    }
+
+    private boolean hasToken(String path) {
+        int query = path.indexOf('?');
+        if (query < 0) {
+            return false;
+        }
+        for (String parameter : path.substring(query + 1).split("&")) {
+            if (parameter.startsWith("token=")) {
+                byte[] given = parameter.substring(6).getBytes(ASCII);
+                return MessageDigest.isEqual(given, token.getBytes(ASCII));
+            }
+        }
+        return false;
+    }
+
+    private static String acceptKey(String key) throws IOException {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key + WEBSOCKET_GUID).getBytes(ASCII));
+            return base64(digest);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IOException(e.toString());
+        }
+    }
+
+    /**
+     * @return The data in standard Base64 with padding, the Android and Java 8
+     *         encoders are not both available on every API level
+     */
+    private static String base64(byte[] data) {
+        StringBuilder out = new StringBuilder((data.length + 2) / 3 * 4);
+        for (int i = 0; i < data.length; i += 3) {
+            int n = data.length - i;
+            int bits = (data[i] & 0xFF) << 16 | (n > 1 ? (data[i + 1] & 0xFF) << 8 : 0)
+                    | (n > 2 ? data[i + 2] & 0xFF : 0);
+            out.append(BASE64[bits >> 18 & 0x3F]);
+            out.append(BASE64[bits >> 12 & 0x3F]);
+            out.append(n > 1 ? BASE64[bits >> 6 & 0x3F] : '=');
+            out.append(n > 2 ? BASE64[bits & 0x3F] : '=');
+        }
+        return out.toString();
+    }
+
+    /**
+     * One connected client. Its thread answers the handshake and then reads the
+     * frames the client sends, only ping and close are answered.
+     */
+    private class Connection extends Thread {
+        private final Socket socket;
+        private final InputStream in;
+        private final OutputStream out;
+        private final byte[] header = new byte[10 + HEADER_SIZE];
+
+        Connection(Socket socket) throws IOException {
+            super("AudioSocketConnection");
+            this.socket = socket;
+            this.in = socket.getInputStream();
+            this.out = new BufferedOutputStream(socket.getOutputStream(), SEND_BUFFER_SIZE);
+        }
+
+        synchronized void sendAudio(int bytesPerSample, int channels, int flags, int sampleRate, long sequence,
+                long timestampMicros, long position, byte[] data, int length) throws IOException {
+            int n = writeFrameHeader(header, OPCODE_BINARY, HEADER_SIZE + length);
+            header[n] = (byte) VERSION;
+            header[n + 1] = (byte) bytesPerSample;
+            header[n + 2] = (byte) channels;
+            header[n + 3] = (byte) flags;
+            putLong(header, n + 4, sampleRate, 4);
+            putLong(header, n + 8, sequence, 4);
+            putLong(header, n + 12, 0, 4);
+            putLong(header, n + 16, timestampMicros, 8);
+            putLong(header, n + 24, position, 8);
+            out.write(header, 0, n + HEADER_SIZE);
+            out.write(data, 0, length);
+            out.flush();
+        }
+
+        synchronized void sendControl(int opcode, byte[] payload, int length) throws IOException {
+            byte[] frame = new byte[2 + length];
+            writeFrameHeader(frame, opcode, length);
+            System.arraycopy(payload, 0, frame, 2, length);
+            out.write(frame);
+            out.flush();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                report("Closing the connection failed", e);
+            }
+        }
+
+        @Override
+        public void run() {
+            boolean accepted = false;
+            try {
+                accepted = handshake(socket);
+            } catch (IOException e) {
+                report("Handshake failed", e);
+            } finally {
+                pendingHandshakes.decrementAndGet();
+            }
+            if (!accepted || !attach(this)) {
+                close();
+                return;
+            }
+
+            byte[] payload = new byte[MAX_CONTROL_PAYLOAD];
+            try {
+                while (true) {
+                    int b0 = readByte();
+                    int b1 = readByte();
+                    int opcode = b0 & 0x0F;
+                    long length = b1 & 0x7F;
+                    if (length == 126) {
+                        length = (long) readByte() << 8 | readByte();
+                    } else if (length == 127) {
+                        length = 0;
+                        for (int i = 0; i < 8; i++) {
+                            length = length << 8 | readByte();
+                        }
+                    }
+                    // Client frames are always masked, anything else is not a browser
+                    if ((b1 & 0x80) == 0) {
+                        payload[0] = (byte) (CLOSE_PROTOCOL_ERROR >> 8);
+                        payload[1] = (byte) CLOSE_PROTOCOL_ERROR;
+                        sendControl(OPCODE_CLOSE, payload, 2);
+                        break;
+                    }
+                    byte[] mask = new byte[4];
+                    for (int i = 0; i < 4; i++) {
+                        mask[i] = (byte) readByte();
+                    }
+
+                    if (opcode == OPCODE_CLOSE || opcode == OPCODE_PING) {
+                        int n = (int) Math.min(length, MAX_CONTROL_PAYLOAD);
+                        for (int i = 0; i < n; i++) {
+                            payload[i] = (byte) (readByte() ^ mask[i % 4]);
+                        }
+                        if (opcode == OPCODE_CLOSE) {
+                            sendControl(OPCODE_CLOSE, payload, Math.min(n, 2));
+                            break;
+                        }
+                        sendControl(OPCODE_PONG, payload, n);
+                    } else {
+                        // Data from the client is not used
+                        for (long i = 0; i < length; i++) {
+                            readByte();
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                // Disconnected
+            } finally {
+                drop(this);
+            }
+        }
+
+        private int readByte() throws IOException {
+            int b = in.read();
+            if (b < 0) {
+                throw new IOException("End of stream");
+            }
+            return b;
+        }
+    }
+
+    /**
+     * Writes an unmasked, final frame header
+     *
+     * @return The size of the header
+     */
+    private static int writeFrameHeader(byte[] frame, int opcode, int length) {
+        frame[0] = (byte) (0x80 | opcode);
+        if (length < 126) {
+            frame[1] = (byte) length;
+            return 2;
+        }
+        if (length < 65536) {
+            frame[1] = 126;
+            frame[2] = (byte) (length >> 8);
+            frame[3] = (byte) length;
+            return 4;
+        }
+        frame[1] = 127;
+        for (int i = 0; i < 8; i++) {
+            frame[2 + i] = (byte) ((long) length >> (56 - 8 * i));
+        }
+        return 10;
+    }
+
+    private static void putLong(byte[] data, int offset, long value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            data[offset + i] = (byte) (value >> (8 * i));
+        }
+    }
+}
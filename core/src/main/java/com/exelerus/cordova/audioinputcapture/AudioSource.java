@@ -0,0 +1,48 @@
+package com.exelerus.cordova.audioinputcapture;
+
+/**
+ * Where the capture thread reads its PCM from. AudioInputReceiver only talks to
+ * this interface, so everything behind it can be exercised without a device by
+ * feeding it from a file or a generated signal.
+ */
+public interface AudioSource {
+
+    /**
+     * Returned by read() when the source is gone for good, same value as
+     * AudioRecord.ERROR_DEAD_OBJECT
+     */
+    int ERROR_DEAD_OBJECT = -6;
+
+    /**
+     * Returned by read() when a source of finite length has delivered all of its
+     * audio, the capture then ends without an error
+     */
+    int END_OF_STREAM = -100;
+
+    /**
+     * @return true if the source can be started
+     */
+    boolean isInitialised();
+
+    void start();
+
+    /**
+     * Reads interleaved PCM, blocking until data is available
+     *
+     * @param buffer
+     *            The destination
+     * @param offset
+     *            The position in buffer to read to
+     * @param length
+     *            The number of bytes wanted, a multiple of the frame size
+     * @return The number of bytes read, or a negative error code
+     */
+    int read(byte[] buffer, int offset, int length);
+
+    void stop();
+
+    /**
+     * Frees the underlying resources, the source cannot be used afterwards
+     */
+    void release();
+}
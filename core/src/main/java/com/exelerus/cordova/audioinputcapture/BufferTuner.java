@@ -0,0 +1,215 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Picks the read size and the delivery batch latency while capturing, aiming
+ * for the lowest latency the device keeps up with.
+ *
+ * For every read it measures how late the read returned, the time since
+ * capture started minus the duration of the audio read so far. The spread of
+ * that lateness within a window is the scheduling jitter. Its floor only
+ * rises by a read or more when audio was lost or the thread fell behind for a
+ * whole window, both count as an overrun. After a window with an overrun, or
+ * with jitter that eats half of what the recording buffer can absorb, the
+ * reads get twice as long, up to half the recording buffer. After CALM_WINDOWS
+ * quiet windows they get shorter again, down to the minimum chunk. Batches
+ * that pile up in the delivery queue raise the batch latency in the same way.
+ * Read duration plus batch latency stay within the latency budget.
+ *
+ * Only used on the capture thread, the values read by toJSON() are volatile.
+ */
+public class BufferTuner {
+
+    public static final int DEFAULT_LATENCY_MS = 100;
+    public static final int DEFAULT_MIN_CHUNK_MS = 10;
+
+    private static final long WINDOW_NANOS = 1000000000L;
+    private static final int CALM_WINDOWS = 3;
+
+    private final int sampleRate;
+    private final int frameBytes;
+    private final int minReadBytes;
+    private final int maxReadBytes;
+    private final long bufferNanos;
+    private final int latencyMs;
+
+    private volatile int readBytes;
+    private volatile int batchLatency;
+    private volatile double jitterMs = 0;
+    private volatile long overruns = 0;
+    private volatile long adjustments = 0;
+
+    private long startNanos = 0;
+    private long frames = 0;
+    private long baseline = Long.MIN_VALUE;
+    private long lastJitter = 0;
+    private long windowStart = 0;
+    private long windowMin = Long.MAX_VALUE;
+    private long windowMax = Long.MIN_VALUE;
+    private int windowQueueDepth = 0;
+    private int calmWindows = 0;
+    private boolean warmedUp = false;
+
+    /**
+     * @param sampleRate
+     *            The capture rate in hertz
+     * @param frameBytes
+     *            The size of one frame
+     * @param maxReadBytes
+     *            The most a read may ask for, the size of the capture blocks
+     * @param bufferBytes
+     *            The size of the recording buffer of the source
+     * @param latencyMs
+     *            The budget for read duration plus batch latency
+     * @param minChunkMs
+     *            The shortest read
+     * @param batchLatency
+     *            The batch latency to start with in ms
+     */
+    public BufferTuner(int sampleRate, int frameBytes, int maxReadBytes, int bufferBytes, int latencyMs,
+            int minChunkMs, int batchLatency) {
+        this.sampleRate = sampleRate;
+        this.frameBytes = frameBytes;
+        this.latencyMs = Math.max(latencyMs, 1);
+        this.bufferNanos = toNanos(bufferBytes);
+        // A read of more than half the buffer would leave it nothing to absorb the jitter with
+        int max = Math.min(Math.min(maxReadBytes, bufferBytes / 2), toBytes(this.latencyMs));
+        this.maxReadBytes = Math.max(max - max % frameBytes, frameBytes);
+        this.minReadBytes = Math.min(Math.max(toBytes(minChunkMs), frameBytes), this.maxReadBytes);
+        // Start safe and come down, the first windows show what the device can do
+        this.readBytes = this.maxReadBytes;
+        this.batchLatency = Math.max(Math.min(batchLatency, this.latencyMs - toMs(this.readBytes)), 0);
+    }
+
+    /**
+     * @return The number of bytes the next read should ask for
+     */
+    public int getReadBytes() {
+        return readBytes;
+    }
+
+    /**
+     * @return The batch latency in ms the delivery should use
+     */
+    public int getBatchLatency() {
+        return batchLatency;
+    }
+
+    public void start(long nanos) {
+        startNanos = nanos;
+        frames = 0;
+        resetWindow(nanos);
+    }
+
+    /**
+     * Accounts for one read
+     *
+     * @param bytes
+     *            The number of bytes read
+     * @param readNanos
+     *            System.nanoTime() when the read returned
+     * @param queueDepth
+     *            The number of batches waiting for delivery
+     * @return true if the read size or the batch latency changed
+     */
+    public boolean onRead(int bytes, long readNanos, int queueDepth) {
+        frames += bytes / frameBytes;
+        long lateness = readNanos - startNanos - frames * 1000000000L / sampleRate;
+        windowMin = Math.min(windowMin, lateness);
+        windowMax = Math.max(windowMax, lateness);
+        windowQueueDepth = Math.max(windowQueueDepth, queueDepth);
+        if (readNanos - windowStart < WINDOW_NANOS) {
+            return false;
+        }
+
+        if (!warmedUp) {
+            // The first reads may return audio buffered before the start
+            warmedUp = true;
+            resetWindow(readNanos);
+            return false;
+        }
+
+        long jitter = windowMax - windowMin;
+        // Only a buffer of less than two frames leaves no headroom, the jitter then says nothing
+        long headroom = bufferNanos - toNanos(readBytes);
+        // Lost audio raises the floor by at least a read, noise by a fraction of the jitter
+        long step = Math.max(toNanos(readBytes) / 2, lastJitter / 2);
+        boolean overrun = baseline != Long.MIN_VALUE && windowMin - baseline > step;
+        boolean troubled = overrun || (headroom > 0 && jitter > headroom / 2);
+        boolean calm = !troubled && jitter < headroom / 4 && ++calmWindows >= CALM_WINDOWS;
+        jitterMs = jitter / 1e6;
+        if (overrun) {
+            overruns++;
+        }
+        baseline = windowMin;
+        lastJitter = jitter;
+
+        int newReadBytes = readBytes;
+        if (troubled) {
+            calmWindows = 0;
+            newReadBytes = Math.min(readBytes * 2, maxReadBytes);
+        } else if (calm) {
+            calmWindows = 0;
+            newReadBytes = Math.max(readBytes * 3 / 4, minReadBytes);
+        }
+        newReadBytes -= newReadBytes % frameBytes;
+
+        // A queue that fills up means the WebView wants fewer, larger batches
+        int chunkMs = toMs(newReadBytes);
+        int newBatchLatency = batchLatency;
+        if (windowQueueDepth >= 2) {
+            newBatchLatency = Math.max(batchLatency * 2, chunkMs);
+        } else if (calm && windowQueueDepth == 0) {
+            newBatchLatency = batchLatency / 2 < chunkMs ? 0 : batchLatency / 2;
+        }
+        newBatchLatency = Math.max(Math.min(newBatchLatency, latencyMs - chunkMs), 0);
+
+        resetWindow(readNanos);
+        if (newReadBytes == readBytes && newBatchLatency == batchLatency) {
+            return false;
+        }
+        readBytes = newReadBytes;
+        batchLatency = newBatchLatency;
+        adjustments++;
+        return true;
+    }
+
+    /**
+     * @return The chosen parameters and what they are based on, safe to call
+     *         from any thread
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject info = new JSONObject();
+        int bytes = readBytes;
+        info.put("readSize", bytes);
+        info.put("chunkDuration", bytes * 1000.0 / frameBytes / sampleRate);
+        info.put("batchLatency", batchLatency);
+        info.put("bufferDuration", bufferNanos / 1e6);
+        info.put("latencyBudget", latencyMs);
+        info.put("jitter", jitterMs);
+        info.put("overruns", overruns);
+        info.put("adjustments", adjustments);
+        return info;
+    }
+
+    private void resetWindow(long nanos) {
+        windowStart = nanos;
+        windowMin = Long.MAX_VALUE;
+        windowMax = Long.MIN_VALUE;
+        windowQueueDepth = 0;
+    }
+
+    private int toMs(int bytes) {
+        return (int) Math.ceil(bytes * 1000.0 / frameBytes / sampleRate);
+    }
+
+    private long toNanos(int bytes) {
+        return bytes / frameBytes * 1000000000L / sampleRate;
+    }
+
+    private int toBytes(int ms) {
+        return (int) ((long) ms * sampleRate / 1000) * frameBytes;
+    }
+}
@@ -0,0 +1,1256 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * The capture thread: reads blocks from an AudioSource and publishes each one
+ * once to the sinks of an AudioPipeline, i.e. the delivery to JS, the
+ * recordings, the analysis and any sink added by the platform. Along the way it
+ * keeps the pre-roll and the capture store, holds back silent blocks while
+ * voice activity gating is on and applies the recording commands at their
+ * sample position.
+ *
+ * Plain Java: the platform supplies the source, its own sinks and a Listener
+ * for what has to reach JS, so the whole loop also runs on a JVM against a
+ * ReplaySource.
+ */
+public class CaptureLoop implements AudioFileWriter.Listener, AudioAnalyzer.Listener,
+        VoiceActivityDetector.Listener, AudioSocketServer.Listener, AudioPipeline.Listener {
+
+    /**
+     * Receives what the capture reports, called on the capture thread or the
+     * thread of a sink
+     */
+    public interface Listener {
+        /**
+         * An event for JS, named by its "event" key
+         */
+        void onEvent(JSONObject info);
+
+        /**
+         * The delivery stage closed batches that wait to be sent, see
+         * ChunkBatcher.requestDrain()
+         */
+        void onDelivery(ChunkBatcher batcher);
+
+        /**
+         * A failure JS is told about
+         */
+        void onError(String message);
+
+        /**
+         * A failure that is only logged, error may be null
+         */
+        void onLog(String message, Exception error);
+    }
+
+    public static final String TRANSPORT_BRIDGE = "bridge";
+    public static final String TRANSPORT_WEBSOCKET = "websocket";
+
+    private static final int DEFAULT_QUEUE_SIZE = 8;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int bytesPerSample;
+    private final int frameBytes;
+    private final int readBufferSize;
+    private final int recordingBufferSize;
+    private final Listener listener;
+
+    // Recording commands from startRecording() and finishRecording(), carried out by the capture thread
+    private final ConcurrentLinkedQueue<RecordingCommand> recordingCommands = new ConcurrentLinkedQueue<RecordingCommand>();
+
+    // Rate of the data delivered to JS
+    private int deliverySampleRate;
+
+    // Seconds of audio kept before startRecording() that are written at the start of a recording
+    private double preRollSeconds = 0;
+    private double captureSeconds = 0;
+    private volatile CaptureStore captureStore = null;
+
+    // Deliver the audio as float with gain, AGC and limiter, see SampleProcessor. Off while null.
+    private JSONObject processingOptions = null;
+
+    // How the audio reaches JS: TRANSPORT_BRIDGE (batches for the Listener) or TRANSPORT_WEBSOCKET (AudioSocketServer)
+    private String transport = TRANSPORT_BRIDGE;
+    private AudioSocketServer socketServer = null;
+
+    // System.nanoTime() when capture started
+    private long captureStartNanos = 0;
+
+    // Deliver the captured chunks at all, can be turned off when only features are needed
+    private boolean rawAudio = true;
+
+    // Feature extraction settings, analysis is off while analysisInterval is 0
+    private int analysisInterval = 0;
+    private int analysisFftSize = 1024;
+    private int analysisBands = 16;
+    private String analysisScale = AudioAnalyzer.SCALE_MEL;
+
+    // Voice activity gating of delivery and recording, off while null
+    private JSONObject vadOptions = null;
+
+    // The channels of the delivered audio: ChannelMixer.PLANAR, MIX or a channel index. Interleaved while null.
+    private Object channelMode = null;
+
+    // Tunes the read size and batch latency while capturing, see BufferTuner. Off while null.
+    private JSONObject adaptiveOptions = null;
+    private BufferTuner tuner = null;
+
+    // Batches chunks for the Listener, see ChunkBatcher
+    private ChunkBatcher batcher;
+    private int batchLatency = 0;
+    private int batchSize = 0;
+    private int queueSize = DEFAULT_QUEUE_SIZE;
+    private String overflowPolicy = ChunkBatcher.DROP_NEWEST;
+
+    // Every captured block is published once to the sinks, see AudioPipeline
+    private final AudioPipeline pipeline = new AudioPipeline(this);
+    private JSONObject pipelineOptions = new JSONObject();
+
+    // The recordings in progress, only used on the capture thread
+    private final List<Recording> recordings = new ArrayList<Recording>();
+
+    // Health counters, optionally pushed to JS every statsInterval ms
+    private CaptureStats stats = new CaptureStats();
+    private int statsInterval = 0;
+
+    /**
+     * @param sampleRate
+     *            The sample rate of the source in hertz
+     * @param channels
+     *            The number of interleaved channels of the source
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit PCM, 2 for signed 16-bit little endian PCM,
+     *            4 for 32-bit float little endian
+     * @param readBufferSize
+     *            The size in bytes of one read, the largest with adaptive
+     *            buffering
+     * @param recordingBufferSize
+     *            The size in bytes of the buffer of the source
+     * @param listener
+     *            Receives the events, batches and failures
+     */
+    public CaptureLoop(int sampleRate, int channels, int bytesPerSample, int readBufferSize, int recordingBufferSize,
+            Listener listener) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameBytes = channels * bytesPerSample;
+        this.readBufferSize = readBufferSize;
+        this.recordingBufferSize = recordingBufferSize;
+        this.listener = listener;
+        this.deliverySampleRate = sampleRate;
+    }
+
+    /**
+     * @param rate
+     *            The sample rate of the delivered audio, at most the capture rate
+     */
+    public void setDeliverySampleRate(int rate) {
+        this.deliverySampleRate = Math.min(rate, sampleRate);
+    }
+
+    /**
+     * Converts the delivered audio natively to 32-bit float in -1 .. 1
+     *
+     * @param options
+     *            gain (linear, default 1), agc (Object with target and maxGain in
+     *            dB, attack and release in ms) and limiter (Object with ceiling
+     *            in dBFS and release in ms), or null to deliver the captured
+     *            format
+     */
+    public void setProcessing(JSONObject options) {
+        this.processingOptions = options;
+    }
+
+    /**
+     * Rearranges the channels of the delivered audio, see ChannelMixer.
+     * Recordings keep all channels unless their own channels option says
+     * otherwise.
+     *
+     * @param mode
+     *            ChannelMixer.PLANAR, ChannelMixer.MIX, the index of the channel to
+     *            deliver, or null for interleaved
+     */
+    public void setChannelMode(Object mode) {
+        this.channelMode = mode;
+    }
+
+    /**
+     * @param transport
+     *            TRANSPORT_BRIDGE or TRANSPORT_WEBSOCKET, which streams the audio
+     *            through a loopback WebSocket, see AudioSocketServer
+     */
+    public void setTransport(String transport) {
+        this.transport = transport;
+    }
+
+    public void setPreRoll(double seconds) {
+        this.preRollSeconds = seconds;
+    }
+
+    /**
+     * @param seconds
+     *            How much of the capture to keep in memory for
+     *            getCaptureStore(), 0 keeps none
+     */
+    public void setCaptureBuffer(double seconds) {
+        this.captureSeconds = seconds;
+    }
+
+    /**
+     * @return The latest audio of the capture, also after it has ended, null
+     *         if none is kept or the capture has not started yet
+     */
+    public CaptureStore getCaptureStore() {
+        return captureStore;
+    }
+
+    public void setRawAudio(boolean rawAudio) {
+        this.rawAudio = rawAudio;
+    }
+
+    /**
+     * Enables feature events, see AudioAnalyzer
+     *
+     * @param options
+     *            interval (ms), fftSize, bands and scale ("mel" or "octave")
+     */
+    public void setAnalysis(JSONObject options) {
+        this.analysisInterval = Math.max(options.optInt("interval", 100), 1);
+        this.analysisFftSize = Integer.highestOneBit(Math.max(options.optInt("fftSize", 1024), 16));
+        this.analysisBands = Math.max(options.optInt("bands", 16), 1);
+        this.analysisScale = options.optString("scale", AudioAnalyzer.SCALE_MEL);
+    }
+
+    /**
+     * Only passes on chunks that contain speech, see VoiceActivityDetector
+     *
+     * @param options
+     *            threshold (dB above the noise floor), flatness (0-1), attack and
+     *            hangover (ms)
+     */
+    public void setVad(JSONObject options) {
+        this.vadOptions = options;
+    }
+
+    /**
+     * Lets the read size and the batch latency follow the measured jitter and
+     * overruns, see BufferTuner. The read buffer size is then the largest read.
+     *
+     * @param options
+     *            latency (the budget for read duration plus batch latency in ms)
+     *            and minChunk (the shortest read in ms), or null for fixed sizes
+     */
+    public void setAdaptive(JSONObject options) {
+        this.adaptiveOptions = options;
+    }
+
+    /**
+     * Configures the queue of each pipeline stage
+     *
+     * @param options
+     *            delivery and analysis, each with queueSize (blocks) and
+     *            overflowPolicy, and recording with queueSize
+     */
+    public void setPipeline(JSONObject options) {
+        this.pipelineOptions = options;
+    }
+
+    /**
+     * Registers an additional consumer of the captured audio, must be called
+     * before run(), see AudioPipeline.add()
+     */
+    public void addSink(String name, AudioSink sink, boolean gated, int queueSize, String policy, int idleMs) {
+        pipeline.add(name, sink, gated, queueSize, policy, idleMs);
+    }
+
+    public void setStats(CaptureStats stats, int intervalMs) {
+        this.stats = stats;
+        this.statsInterval = intervalMs;
+    }
+
+    /**
+     * Configures how chunks are batched for delivery, see ChunkBatcher
+     *
+     * @param latencyMs
+     *            The longest time audio waits to be batched, 0 delivers every
+     *            chunk on its own
+     * @param bytes
+     *            The most audio in one batch, 0 or less than a chunk means one
+     *            chunk
+     * @param queueSize
+     *            The number of batches that can wait for the WebView
+     * @param policy
+     *            What happens when the queue is full: drop-oldest, drop-newest or
+     *            block
+     */
+    public void setDelivery(int latencyMs, int bytes, int queueSize, String policy) {
+        this.batchLatency = Math.max(latencyMs, 0);
+        this.batchSize = Math.max(bytes, 0);
+        this.queueSize = Math.max(queueSize, 1);
+        this.overflowPolicy = policy;
+    }
+
+    /**
+     * @return The number of batches dropped because the WebView fell behind
+     */
+    public long getDroppedChunks() {
+        return batcher != null ? batcher.getDroppedBatches() : 0;
+    }
+
+    public int getDeliverySampleRate() {
+        return deliverySampleRate;
+    }
+
+    /**
+     * @return The size of one delivered sample, 4 when the audio is delivered as
+     *         float
+     */
+    public int getDeliveryBytesPerSample() {
+        return processingOptions != null ? 4 : bytesPerSample;
+    }
+
+    /**
+     * Queues the start of a recording, the capture thread opens the file. Safe
+     * to call from any thread.
+     *
+     * @param options
+     *            The recording settings, atSample or atTime start the recording
+     *            at that exact frame instead of with the next read, see
+     *            RecordingCommand
+     */
+    public void startRecording(String folderPath, String fileName, JSONObject options) {
+        RecordingCommand command = new RecordingCommand(true, options);
+        command.file = new File(folderPath, fileName);
+        command.flushInterval = options.optInt("flushInterval", AudioFileWriter.DEFAULT_FLUSH_INTERVAL_MS);
+        command.format = options.optString("format", "wav");
+        command.rf64 = options.optBoolean("rf64", false);
+        command.checkpointInterval = Math.max(
+                options.optInt("checkpointInterval", AudioFileWriter.DEFAULT_CHECKPOINT_INTERVAL_MS), 0);
+        command.overview = options.optBoolean("overview", false);
+        command.mapped = options.optBoolean("mapped", false);
+        // A file holds interleaved frames, planar does not apply
+        command.mixer = ChannelMixer.create(options.opt("channels"), channels, bytesPerSample);
+        if (command.mixer != null && command.mixer.isPlanar()) {
+            command.mixer = null;
+        }
+
+        // Roll over to a new file after segmentSize bytes or segmentDuration seconds, whichever comes first
+        long bytesPerSecond = (long) sampleRate * getRecordingChannels(command) * bytesPerSample;
+        long bySize = options.optLong("segmentSize", 0);
+        long byDuration = (long) (options.optDouble("segmentDuration", 0) * bytesPerSecond);
+        command.segmentBytes = bySize > 0 && (byDuration <= 0 || bySize < byDuration) ? bySize
+                : Math.max(byDuration, 0);
+        if (command.segmentBytes > 0 && !command.rf64 && !"flac".equals(command.format)) {
+            command.segmentBytes = Math.min(command.segmentBytes, WavEncoder.getMaxDataSize());
+        }
+        try {
+            File dir = new File(folderPath);
+            if (!dir.exists()) {
+                dir.mkdirs();
+            }
+        } catch (Exception e) {
+            listener.onLog("Could not create " + folderPath, e);
+        }
+        recordingCommands.offer(command);
+    }
+
+    /**
+     * Queues the end of the recording, safe to call from any thread
+     *
+     * @param options
+     *            atSample or atTime end the recording right before that frame
+     *            instead of before the next read, see RecordingCommand
+     */
+    public void finishRecording(JSONObject options) {
+        recordingCommands.offer(new RecordingCommand(false, options));
+    }
+
+    /**
+     * Carries out a recording command in the block that starts at blockStart,
+     * before the block is published
+     */
+    private void applyRecordingCommand(RecordingCommand command, long blockStart, PcmRingBuffer preRoll,
+            int writerQueueSize) throws JSONException {
+        // The ring ends right before this block, an earlier start without it begins with the block
+        int preRollFrames = 0;
+        if (command.start && command.position < blockStart && preRoll != null) {
+            preRollFrames = (int) Math.min(blockStart - command.position, preRoll.size() / frameBytes);
+        }
+        long start = Math.max(command.position, blockStart - preRollFrames);
+
+        // A new recording ends the one in progress where it starts
+        for (Recording recording : recordings) {
+            if (recording.end == Long.MAX_VALUE) {
+                recording.end = Math.max(command.start ? start : command.position, recording.start);
+            }
+        }
+        if (!command.start) {
+            return;
+        }
+
+        // The file itself is opened on the writer thread
+        int recordingChannels = getRecordingChannels(command);
+        AudioFileWriter writer = new AudioFileWriter(command.file, createEncoderFactory(command), recordingChannels
+                * bytesPerSample, command.segmentBytes, readBufferSize, writerQueueSize, command.flushInterval,
+                this);
+        writer.setCheckpointInterval(command.checkpointInterval);
+        writer.setMapped(command.mapped);
+        if (command.segmentBytes > 0) {
+            writer.setManifest(AudioFileWriter.manifestFile(writer.getFile()), createManifestInfo(command, start));
+        }
+        if (command.overview) {
+            writer.setOverview(new WaveformOverview(WaveformOverview.overviewFile(command.file), recordingChannels,
+                    bytesPerSample, sampleRate));
+        }
+        Recording recording = new Recording(writer, start, command.mixer, readBufferSize);
+        if (preRollFrames > 0) {
+            byte[] data = new byte[preRollFrames * frameBytes];
+            preRoll.copyLatest(data, 0, data.length);
+            if (command.mixer != null) {
+                byte[] mixed = new byte[command.mixer.getOutputBytes(data.length)];
+                command.mixer.process(data, 0, data.length, mixed, 0);
+                data = mixed;
+            }
+            writer.setPreRoll(data);
+            recording.first = start;
+            recording.last = blockStart - 1;
+            recording.next = blockStart;
+        }
+        recordings.add(recording);
+        stats.addWriter(writer);
+        writer.start();
+
+        JSONObject info = new JSONObject();
+        info.put("event", "recordingStarted");
+        info.put("file", writer.getFile().getAbsolutePath());
+        info.put("firstSample", start);
+        listener.onEvent(info);
+    }
+
+    /**
+     * Finishes the recordings that end before position, or all of them
+     */
+    private void finishRecordings(long position, boolean all) {
+        for (int i = recordings.size() - 1; i >= 0; i--) {
+            Recording recording = recordings.get(i);
+            if (all || recording.end <= position || recording.writer.isLimitReached()) {
+                recording.writer.setSampleRange(recording.first, recording.last);
+                recording.writer.finish();
+                recordings.remove(i);
+            }
+        }
+    }
+
+    /**
+     * @return The conversion to float of the delivered audio, null if the
+     *         captured format is delivered as it is
+     */
+    private SampleProcessor createSampleProcessor(int rate, int processedChannels) {
+        if (processingOptions == null) {
+            return null;
+        }
+        JSONObject agc = processingOptions.optJSONObject("agc");
+        JSONObject limiter = processingOptions.optJSONObject("limiter");
+        SampleProcessor processor = new SampleProcessor(rate, processedChannels, bytesPerSample,
+                (float) processingOptions.optDouble("gain", 1), agc != null,
+                agc != null ? agc.optDouble("target", SampleProcessor.DEFAULT_AGC_TARGET_DB) : 0,
+                agc != null ? agc.optDouble("maxGain", SampleProcessor.DEFAULT_AGC_MAX_GAIN_DB) : 0,
+                agc != null ? agc.optInt("attack", SampleProcessor.DEFAULT_AGC_ATTACK_MS) : 0,
+                agc != null ? agc.optInt("release", SampleProcessor.DEFAULT_AGC_RELEASE_MS) : 0, limiter != null,
+                limiter != null ? limiter.optDouble("ceiling", SampleProcessor.DEFAULT_LIMITER_CEILING_DB) : 0,
+                limiter != null ? limiter.optInt("release", SampleProcessor.DEFAULT_LIMITER_RELEASE_MS) : 0);
+        // Float capture is already in the delivered format
+        if (processor.isNeutral() && bytesPerSample == 4) {
+            return null;
+        }
+        return processor;
+    }
+
+    /**
+     * @return The number of channels written to the file of the recording
+     */
+    private int getRecordingChannels(RecordingCommand command) {
+        return command.mixer != null ? command.mixer.getOutputChannels() : channels;
+    }
+
+    /**
+     * Creates the encoders for the requested recording format, the settings are
+     * copied since the writer thread creates a new encoder for every segment
+     */
+    private AudioEncoder.Factory createEncoderFactory(RecordingCommand command) {
+        // FLAC has no float samples, float capture is recorded as WAV
+        final boolean flac = "flac".equals(command.format) && bytesPerSample <= 2;
+        final boolean rf64 = command.rf64;
+        final int recordingChannels = getRecordingChannels(command);
+        final int rate = sampleRate;
+        final int bitDepth = bytesPerSample * 8;
+
+        return new AudioEncoder.Factory() {
+            @Override
+            public AudioEncoder createEncoder() {
+                if (flac) {
+                    return new FlacEncoder(recordingChannels, rate, bitDepth);
+                }
+                return new WavEncoder(recordingChannels, rate, bitDepth, rf64);
+            }
+        };
+    }
+
+    /**
+     * @param start
+     *            The sample position of the first frame of the recording
+     * @return The description of the audio at the top of a segment manifest
+     */
+    private JSONObject createManifestInfo(RecordingCommand command, long start) throws JSONException {
+        JSONObject info = new JSONObject();
+        info.put("format", "flac".equals(command.format) && bytesPerSample <= 2 ? "flac" : "wav");
+        info.put("sampleRate", sampleRate);
+        info.put("channels", getRecordingChannels(command));
+        info.put("bitDepth", bytesPerSample * 8);
+        info.put("segmentBytes", command.segmentBytes);
+        info.put("firstSample", start);
+        return info;
+    }
+
+    @Override
+    public void onRecordingFinished(AudioFileWriter writer, IOException error) {
+        stats.onRecordingFinished(writer);
+        JSONObject info = new JSONObject();
+        try {
+            info.put("event", "recordingFinished");
+            info.put("file", writer.getFile().getAbsolutePath());
+            JSONArray files = new JSONArray();
+            for (File file : writer.getFiles()) {
+                files.put(file.getAbsolutePath());
+            }
+            info.put("files", files);
+            if (writer.getManifest() != null) {
+                info.put("manifest", writer.getManifest().getAbsolutePath());
+            }
+            if (writer.getOverview() != null) {
+                info.put("overview", writer.getOverview().getAbsolutePath());
+            }
+            info.put("bytesWritten", writer.getBytesWritten());
+            info.put("droppedChunks", writer.getDroppedChunks());
+            info.put("limitReached", writer.isLimitReached());
+            info.put("firstSample", writer.getFirstSample());
+            info.put("lastSample", writer.getLastSample());
+            if (error != null) {
+                listener.onLog(error.getMessage(), error);
+                info.put("error", error.toString());
+            }
+        } catch (JSONException e) {
+            listener.onLog(e.getMessage(), e);
+        }
+        listener.onEvent(info);
+    }
+
+    @Override
+    public void onFeatures(AudioAnalyzer analyzer) {
+        JSONObject info = new JSONObject();
+        try {
+            info.put("event", "features");
+            info.put("rms", analyzer.getRms());
+            info.put("peak", analyzer.getPeak());
+            info.put("zcr", analyzer.getZeroCrossingRate());
+            JSONArray bands = new JSONArray();
+            for (float band : analyzer.getBands()) {
+                bands.put(band);
+            }
+            info.put("bands", bands);
+        } catch (JSONException e) {
+            listener.onLog(e.getMessage(), e);
+        }
+        listener.onEvent(info);
+    }
+
+    @Override
+    public void onSpeechStart(long sample) {
+        sendSpeechEvent("speechStart", sample);
+    }
+
+    @Override
+    public void onSpeechEnd(long sample) {
+        sendSpeechEvent("speechEnd", sample);
+    }
+
+    @Override
+    public void onSocketError(String message, IOException error) {
+        listener.onLog(message, error);
+    }
+
+    @Override
+    public void onSinkError(String name, Exception error) {
+        listener.onLog("Sink " + name + " failed: " + error.getMessage(), error);
+    }
+
+    private void sendSpeechEvent(String name, long sample) {
+        JSONObject info = new JSONObject();
+        try {
+            info.put("event", name);
+            info.put("sample", sample);
+            info.put("time", (double) sample / sampleRate);
+        } catch (JSONException e) {
+            listener.onLog(e.getMessage(), e);
+        }
+        listener.onEvent(info);
+    }
+
+    /**
+     * Hands the closed batches to the Listener, unless such a request is still
+     * pending
+     */
+    private void postDrain() {
+        stats.onChunkQueued(batcher.size());
+        if (batcher.requestDrain()) {
+            listener.onDelivery(batcher);
+        }
+    }
+
+    /**
+     * Tells JS which read size and batch latency the tuner chose
+     */
+    private void postTuning() throws JSONException {
+        JSONObject info = tuner.toJSON();
+        info.put("event", "tuning");
+        listener.onEvent(info);
+    }
+
+    /**
+     * Registers a pipeline stage with the queue size and overflow policy from
+     * the pipeline options
+     */
+    private void addStage(String name, AudioSink sink, boolean gated, String defaultPolicy, int idleMs) {
+        JSONObject options = pipelineOptions.optJSONObject(name);
+        int size = AudioPipeline.DEFAULT_QUEUE_SIZE;
+        String policy = defaultPolicy;
+        if (options != null) {
+            size = options.optInt("queueSize", size);
+            policy = options.optString("overflowPolicy", policy);
+        }
+        pipeline.add(name, sink, gated, Math.max(size, 1), policy, idleMs);
+    }
+
+    /**
+     * Brings the captured audio into the delivered form: the channels are mixed
+     * or one is selected, then the audio is resampled to the delivery rate and
+     * converted to float if asked. Planar output is left to the sinks, since it
+     * only holds for the unit that is sent.
+     */
+    private static class DeliveryConverter {
+        private final ChannelMixer mixer;
+        private final byte[] mixBuffer;
+        private final Resampler resampler;
+        private final byte[] resampleBuffer;
+        private final SampleProcessor processor;
+        private final byte[] floatBuffer;
+        private final int frameBytes;
+        private long nextPosition = -1;
+
+        // The output of the last convert()
+        byte[] data;
+
+        DeliveryConverter(ChannelMixer mixer, Resampler resampler, SampleProcessor processor, int frameBytes,
+                int maxInputBytes) {
+            int bytes = maxInputBytes;
+            this.mixer = mixer;
+            if (mixer != null) {
+                bytes = mixer.getOutputBytes(bytes);
+            }
+            this.mixBuffer = mixer != null ? new byte[bytes] : null;
+            this.resampler = resampler;
+            if (resampler != null) {
+                bytes = resampler.getMaxOutputBytes(bytes);
+            }
+            this.resampleBuffer = resampler != null ? new byte[bytes] : null;
+            this.processor = processor;
+            this.floatBuffer = processor != null ? new byte[processor.getOutputBytes(bytes)] : null;
+            this.frameBytes = frameBytes;
+        }
+
+        /**
+         * @return true if block continues the audio converted last
+         */
+        boolean follows(AudioBufferPool.Chunk block) {
+            return block.position == nextPosition;
+        }
+
+        /**
+         * The next block is treated as a discontinuity
+         */
+        void reset() {
+            nextPosition = -1;
+        }
+
+        /**
+         * @return The number of bytes of the converted audio in data
+         */
+        int convert(AudioBufferPool.Chunk block) {
+            byte[] in = block.data;
+            int length = block.length;
+            if (mixer != null) {
+                length = mixer.process(in, 0, length, mixBuffer, 0);
+                in = mixBuffer;
+            }
+            if (resampler != null) {
+                if (!follows(block)) {
+                    // Start the filter afresh, the audio in between was never delivered
+                    resampler.reset();
+                }
+                length = resampler.process(in, length, resampleBuffer);
+                in = resampleBuffer;
+            }
+            if (processor != null) {
+                length = processor.process(in, length, floatBuffer);
+                in = floatBuffer;
+            }
+            nextPosition = block.position + block.length / frameBytes;
+            data = in;
+            return length;
+        }
+    }
+
+    /**
+     * Converts the audio to the delivered form and batches it for the Listener,
+     * runs on its own thread
+     */
+    private class DeliverySink implements AudioSink {
+        private final DeliveryConverter converter;
+
+        DeliverySink(DeliveryConverter converter) {
+            this.converter = converter;
+        }
+
+        @Override
+        public void process(AudioBufferPool.Chunk block) throws InterruptedException {
+            int length = converter.convert(block);
+            if (batcher.append(converter.data, length, block.timestamp)) {
+                postDrain();
+            }
+            idle();
+            stats.setDroppedChunks(batcher.getDroppedBatches());
+        }
+
+        @Override
+        public void idle() throws InterruptedException {
+            // Audio must not wait longer than batchLatency, even while nothing new arrives
+            if ((batchLatency > 0 || tuner != null) && batcher.closeIfDue(System.nanoTime())) {
+                postDrain();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Converts the audio to the delivered form and streams it to the WebSocket
+     * client, runs on its own thread. A client that does not keep up blocks
+     * this thread, the overflow policy of the stage then drops audio.
+     */
+    private class SocketSink implements AudioSink {
+        private final AudioSocketServer server;
+        private final DeliveryConverter converter;
+        private final ChannelMixer planar;
+        private final byte[] planarBuffer;
+        private final int channels;
+        private final int deliveryRate;
+        private long sequence = 0;
+
+        /**
+         * @param planar
+         *            Splits the channels of every frame sent, or null
+         * @param maxBytes
+         *            The most audio the converter produces for one block
+         */
+        SocketSink(AudioSocketServer server, DeliveryConverter converter, ChannelMixer planar, int maxBytes,
+                int channels, int deliveryRate) {
+            this.server = server;
+            this.converter = converter;
+            this.planar = planar;
+            this.planarBuffer = planar != null ? new byte[maxBytes] : null;
+            this.channels = channels;
+            this.deliveryRate = deliveryRate;
+        }
+
+        @Override
+        public void process(AudioBufferPool.Chunk block) {
+            if (!server.isConnected()) {
+                // Nobody listens, the next client starts with a discontinuity
+                converter.reset();
+                return;
+            }
+            boolean continuous = converter.follows(block);
+            int length = converter.convert(block);
+            byte[] data = converter.data;
+            int flags = continuous ? 0 : AudioSocketServer.FLAG_DISCONTINUITY;
+            if (planar != null) {
+                length = planar.process(data, 0, length, planarBuffer, 0);
+                data = planarBuffer;
+                flags |= AudioSocketServer.FLAG_PLANAR;
+            }
+            long position = block.position * deliveryRate / sampleRate;
+            long timestampMicros = (block.timestamp - captureStartNanos) / 1000;
+            if (server.sendAudio(getDeliveryBytesPerSample(), channels, flags, deliveryRate, sequence, timestampMicros,
+                    position, data, length)) {
+                sequence++;
+                stats.onChunkDelivered(block.timestamp);
+            }
+        }
+
+        @Override
+        public void idle() {
+        }
+
+        @Override
+        public void close() {
+            server.close();
+        }
+    }
+
+    /**
+     * Hands the audio to the writers of the recordings in progress, runs on the
+     * capture thread since each writer has its own queue and thread
+     */
+    private class RecordingSink implements AudioSink {
+
+        @Override
+        public void process(AudioBufferPool.Chunk block) {
+            // Two recordings only overlap in the block where one ends and the next starts
+            for (int i = 0; i < recordings.size(); i++) {
+                recordings.get(i).write(block, frameBytes);
+            }
+        }
+
+        @Override
+        public void idle() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * Computes the features on its own thread, see AudioAnalyzer
+     */
+    private static class AnalysisSink implements AudioSink {
+        private final AudioAnalyzer analyzer;
+
+        AnalysisSink(AudioAnalyzer analyzer) {
+            this.analyzer = analyzer;
+        }
+
+        @Override
+        public void process(AudioBufferPool.Chunk block) {
+            analyzer.process(block.data, block.length);
+        }
+
+        @Override
+        public void idle() {
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+
+    /**
+     * A start or finish of a recording, queued by startRecording() and
+     * finishRecording() for the capture thread. It takes effect at the frame
+     * with the given sample position, counted per channel from the start of
+     * the capture, so recordings start and end inside a block instead of on
+     * its boundaries.
+     */
+    private static class RecordingCommand implements Comparable<RecordingCommand> {
+        final boolean start;
+
+        // The sample position the command takes effect at, -1 until resolve()
+        long position;
+
+        // Counts the commands as the capture thread takes them, orders those for the same frame
+        long order;
+
+        // The System.nanoTime() the command takes effect at, 0 if not requested
+        final long nanos;
+
+        // The recording settings, start only
+        File file;
+        String format = "wav";
+        boolean rf64 = false;
+        long segmentBytes = 0;
+        int flushInterval = AudioFileWriter.DEFAULT_FLUSH_INTERVAL_MS;
+        int checkpointInterval = AudioFileWriter.DEFAULT_CHECKPOINT_INTERVAL_MS;
+        boolean overview = false;
+        boolean mapped = false;
+
+        // Mixes the channels or selects one, null keeps all of them
+        ChannelMixer mixer = null;
+
+        /**
+         * @param options
+         *            atSample is the sample position, atTime a Date.now() in ms
+         *            that is mapped to one, neither means the next read
+         */
+        RecordingCommand(boolean start, JSONObject options) {
+            this.start = start;
+            this.position = options.optLong("atSample", -1);
+            double time = options.optDouble("atTime", 0);
+            // Moved to the clock of the read timestamps while the offset between the clocks is current
+            this.nanos = time > 0 ? System.nanoTime() - (long) ((System.currentTimeMillis() - time) * 1000000) : 0;
+        }
+
+        /**
+         * Works out the sample position when only a time or nothing was given,
+         * called on the capture thread
+         *
+         * @param next
+         *            The position to use without a target
+         * @param position
+         *            The position the last read ended at
+         * @param readNanos
+         *            When the last read returned
+         */
+        void resolve(long next, long position, long readNanos, int sampleRate) {
+            if (this.position >= 0) {
+                return;
+            }
+            if (nanos != 0) {
+                this.position = Math.max(position + (nanos - readNanos) * sampleRate / 1000000000L, 0);
+            } else {
+                this.position = next;
+            }
+        }
+
+        @Override
+        public int compareTo(RecordingCommand other) {
+            if (position != other.position) {
+                return position < other.position ? -1 : 1;
+            }
+            return order < other.order ? -1 : (order == other.order ? 0 : 1);
+        }
+    }
+
+    /**
+     * A recording in progress, only used on the capture thread. It gets the
+     * frames from start up to but excluding end.
+     */
+    private static class Recording {
+        final AudioFileWriter writer;
+        final long start;
+        long end = Long.MAX_VALUE;
+
+        // The first position not handed to the writer yet, skips blocks the pre-roll already covered
+        long next;
+
+        // The positions of the first and last frame handed to the writer, -1 before any
+        long first = -1;
+        long last = -1;
+
+        // Mixes the channels or selects one before the writer gets them, or null
+        private final ChannelMixer mixer;
+        private final byte[] mixBuffer;
+
+        Recording(AudioFileWriter writer, long start, ChannelMixer mixer, int maxBlockBytes) {
+            this.writer = writer;
+            this.start = start;
+            this.next = start;
+            this.mixer = mixer;
+            this.mixBuffer = mixer != null ? new byte[mixer.getOutputBytes(maxBlockBytes)] : null;
+        }
+
+        void write(AudioBufferPool.Chunk block, int frameBytes) {
+            long from = Math.max(block.position, next);
+            long to = Math.min(block.position + block.length / frameBytes, end);
+            if (to <= from) {
+                return;
+            }
+            int offset = (int) (from - block.position) * frameBytes;
+            int length = (int) (to - from) * frameBytes;
+            if (mixer != null) {
+                writer.writePart(mixBuffer, 0, mixer.process(block.data, offset, length, mixBuffer, 0));
+            } else {
+                writer.writePart(block.data, offset, length);
+            }
+            if (first < 0) {
+                first = from;
+            }
+            last = to - 1;
+            next = to;
+        }
+    }
+
+    /**
+     * Captures until the current thread is interrupted or the source ends, then
+     * finishes the recordings and closes the sinks
+     *
+     * @param source
+     *            An initialised source, started here
+     */
+    public void run(AudioSource source) {
+        int numReadBytes = 0;
+
+        if (adaptiveOptions != null) {
+            tuner = new BufferTuner(sampleRate, frameBytes, readBufferSize, recordingBufferSize,
+                    adaptiveOptions.optInt("latency", BufferTuner.DEFAULT_LATENCY_MS),
+                    adaptiveOptions.optInt("minChunk", BufferTuner.DEFAULT_MIN_CHUNK_MS), batchLatency);
+            stats.setTuner(tuner);
+        }
+
+        // Recording first, it only copies the block into the queues of the writers
+        pipeline.add("recording", new RecordingSink(), true, 0, null, 0);
+
+        if (this.rawAudio) {
+            // Mixing or selecting a channel comes first, the later steps then have less to do
+            ChannelMixer mixer = ChannelMixer.create(channelMode, channels, bytesPerSample);
+            ChannelMixer planar = null;
+            if (mixer != null && mixer.isPlanar()) {
+                planar = ChannelMixer.create(ChannelMixer.PLANAR, channels, getDeliveryBytesPerSample());
+                mixer = null;
+            }
+            int deliveryChannels = mixer != null ? mixer.getOutputChannels() : channels;
+            int chunkSize = mixer != null ? mixer.getOutputBytes(readBufferSize) : readBufferSize;
+
+            // Anti-aliased conversion to the delivery rate, only needed when it differs from the capture rate
+            int deliveryRate = deliverySampleRate;
+            Resampler resampler = null;
+            if (deliveryRate != sampleRate) {
+                resampler = new Resampler(sampleRate, deliveryRate, deliveryChannels, bytesPerSample, chunkSize);
+                chunkSize = resampler.getMaxOutputBytes(chunkSize);
+            }
+            SampleProcessor processor = createSampleProcessor(deliveryRate, deliveryChannels);
+            if (processor != null) {
+                chunkSize = processor.getOutputBytes(chunkSize);
+            }
+            DeliveryConverter converter = new DeliveryConverter(mixer, resampler, processor, frameBytes,
+                    readBufferSize);
+            if (TRANSPORT_WEBSOCKET.equals(transport)) {
+                try {
+                    socketServer = new AudioSocketServer(this);
+                    addStage("socket", new SocketSink(socketServer, converter, planar, chunkSize, deliveryChannels,
+                            deliveryRate), true, ChunkBatcher.DROP_OLDEST, 0);
+                } catch (IOException e) {
+                    listener.onLog(e.getMessage(), e);
+                    listener.onError("Could not start the audio socket: " + e.getMessage());
+                }
+            } else {
+                int deliveryFrameBytes = deliveryChannels * getDeliveryBytesPerSample();
+                int maxBatch = Math.max(batchSize - batchSize % deliveryFrameBytes, chunkSize);
+                // With a tuner the batch latency changes, the open batch is then checked at the pace of
+                // the shortest read
+                int idleMs = batchLatency;
+                if (tuner != null) {
+                    idleMs = adaptiveOptions.optInt("minChunk", BufferTuner.DEFAULT_MIN_CHUNK_MS);
+                }
+                batcher = new ChunkBatcher(maxBatch, tuner != null ? tuner.getBatchLatency() : batchLatency, queueSize,
+                        overflowPolicy);
+                if (planar != null) {
+                    batcher.setPlanar(planar);
+                }
+                addStage("delivery", new DeliverySink(converter), true, overflowPolicy, idleMs);
+            }
+        }
+
+        if (analysisInterval > 0) {
+            AudioAnalyzer analyzer = new AudioAnalyzer(sampleRate, channels, bytesPerSample, analysisFftSize,
+                    analysisBands, analysisScale, analysisInterval, this);
+            addStage("analysis", new AnalysisSink(analyzer), false, ChunkBatcher.DROP_OLDEST, 0);
+        }
+        stats.setPipeline(pipeline);
+
+        // The recording stage queues in its writer
+        JSONObject recordingOptions = pipelineOptions.optJSONObject("recording");
+        int writerQueueSize = AudioFileWriter.DEFAULT_QUEUE_SIZE;
+        if (recordingOptions != null) {
+            writerQueueSize = Math.max(recordingOptions.optInt("queueSize", writerQueueSize), 1);
+        }
+
+        // Every block is shared by the sinks, the pool holds what they can keep plus the
+        // block being read and a held one
+        AudioBufferPool blocks = new AudioBufferPool(pipeline.getMaxBlocksInUse() + 2, readBufferSize);
+        long position = 0;
+
+        // Always holds the last preRollSeconds of audio, so a recording can start in the past
+        PcmRingBuffer preRoll = null;
+        if (preRollSeconds > 0) {
+            preRoll = new PcmRingBuffer((int) (preRollSeconds * sampleRate) * frameBytes, frameBytes);
+        }
+        CaptureStore store = null;
+        if (captureSeconds > 0) {
+            store = new CaptureStore(captureSeconds, sampleRate, channels, bytesPerSample, readBufferSize);
+            captureStore = store;
+        }
+
+        // Silent blocks are held back from the gated sinks. When the gate opens the held
+        // block goes out first, since the speech may have started in it.
+        VoiceActivityDetector vad = null;
+        AudioBufferPool.Chunk held = null;
+        if (vadOptions != null) {
+            vad = new VoiceActivityDetector(sampleRate, channels, bytesPerSample,
+                    vadOptions.optDouble("threshold", VoiceActivityDetector.DEFAULT_THRESHOLD_DB),
+                    vadOptions.optDouble("flatness", VoiceActivityDetector.DEFAULT_FLATNESS),
+                    vadOptions.optInt("attack", VoiceActivityDetector.DEFAULT_ATTACK_MS),
+                    vadOptions.optInt("hangover", VoiceActivityDetector.DEFAULT_HANGOVER_MS), this);
+        }
+
+        Thread thread = Thread.currentThread();
+        try {
+            pipeline.start();
+            if (socketServer != null) {
+                socketServer.start();
+                JSONObject info = new JSONObject();
+                info.put("event", "socket");
+                info.put("url", socketServer.getUrl());
+                info.put("port", socketServer.getPort());
+                info.put("token", socketServer.getToken());
+                info.put("headerSize", AudioSocketServer.HEADER_SIZE);
+                listener.onEvent(info);
+            }
+            captureStartNanos = System.nanoTime();
+            long lastReadNanos = captureStartNanos;
+            // By position, so a command far in the future does not hold up the ones due before it
+            PriorityQueue<RecordingCommand> pendingCommands = new PriorityQueue<RecordingCommand>();
+            long commandOrder = 0;
+            source.start();
+            if (tuner != null) {
+                tuner.start(System.nanoTime());
+                postTuning();
+            }
+            long lastStats = System.currentTimeMillis();
+
+            while (!thread.isInterrupted()) {
+                // Without a target a command takes effect with this read, a start then
+                // includes the pre-roll
+                RecordingCommand command;
+                while ((command = recordingCommands.poll()) != null) {
+                    long next = position;
+                    if (command.start && preRoll != null) {
+                        next -= preRoll.size() / frameBytes;
+                    }
+                    command.resolve(next, position, lastReadNanos, sampleRate);
+                    command.order = commandOrder++;
+                    pendingCommands.add(command);
+                }
+
+                AudioBufferPool.Chunk block = blocks.acquire();
+                int readSize = tuner != null ? tuner.getReadBytes() : readBufferSize;
+                numReadBytes = source.read(block.data, 0, readSize);
+                long readNanos = System.nanoTime();
+                if (numReadBytes == AudioSource.END_OF_STREAM) {
+                    // A replay ran out, the recordings end with its last frame
+                    block.release();
+                    JSONObject info = new JSONObject();
+                    info.put("event", "sourceEnded");
+                    info.put("frames", position);
+                    listener.onEvent(info);
+                    break;
+                }
+                stats.onRead(numReadBytes, readSize);
+                if (numReadBytes < 0) {
+                    listener.onLog("AudioSource.read failed: " + numReadBytes, null);
+                    if (numReadBytes == AudioSource.ERROR_DEAD_OBJECT) {
+                        // The source is gone for good, reading again would only spin
+                        block.release();
+                        listener.onError("AudioSource.read failed: " + numReadBytes);
+                        break;
+                    }
+                }
+                block.length = Math.max(numReadBytes, 0);
+                block.timestamp = readNanos;
+                block.position = position;
+                position += block.length / frameBytes;
+                if (numReadBytes > 0) {
+                    lastReadNanos = readNanos;
+                    if (tuner != null && tuner.onRead(numReadBytes, readNanos, batcher != null ? batcher.size() : 0)) {
+                        if (batcher != null) {
+                            batcher.setMaxLatency(tuner.getBatchLatency());
+                        }
+                        postTuning();
+                    }
+                }
+
+                // The commands that fall into this block, by position and those for the same frame in
+                // the order they were issued
+                while (!pendingCommands.isEmpty() && pendingCommands.peek().position < position) {
+                    applyRecordingCommand(pendingCommands.poll(), block.position, preRoll, writerQueueSize);
+                }
+
+                if (preRoll != null && numReadBytes > 0) {
+                    preRoll.write(block.data, 0, numReadBytes);
+                }
+                if (store != null && numReadBytes > 0) {
+                    store.write(block.data, 0, numReadBytes);
+                }
+
+                boolean passOn = true;
+                if (vad != null && numReadBytes > 0) {
+                    passOn = vad.process(block.data, numReadBytes);
+                }
+
+                try {
+                    if (numReadBytes > 0) {
+                        if (passOn && held != null) {
+                            pipeline.publishHeld(held);
+                            held.release();
+                            held = null;
+                        }
+                        pipeline.publish(block, passOn);
+                        if (!passOn) {
+                            if (held != null) {
+                                held.release();
+                            }
+                            held = block.retain();
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    // Stopped while waiting for room in a queue with the block policy
+                    thread.interrupt();
+                } finally {
+                    block.release();
+                }
+                finishRecordings(position, false);
+
+                if (statsInterval > 0 && System.currentTimeMillis() - lastStats >= statsInterval) {
+                    lastStats = System.currentTimeMillis();
+                    JSONObject info = stats.toJSON();
+                    info.put("event", "stats");
+                    listener.onEvent(info);
+                }
+            }
+        } catch (Exception e) {
+            listener.onLog(e.getMessage(), e);
+        } finally {
+            // Also after an error, the source is freed or recycled only here
+            if (held != null) {
+                held.release();
+            }
+            try {
+                source.stop();
+            } catch (RuntimeException e) {
+                // Thrown by a source that never started, it is released all the same
+                listener.onLog(e.getMessage(), e);
+            }
+            source.release();
+            finishRecordings(position, true);
+            // The queued sinks finish what they hold on their own threads
+            pipeline.close();
+            if (socketServer != null) {
+                // A client that stopped reading would otherwise block its stage for good
+                socketServer.close();
+            }
+        }
+    }
+}
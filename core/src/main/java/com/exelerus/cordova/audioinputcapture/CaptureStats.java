@@ -0,0 +1,221 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Health counters of one capture session, cheap enough to stay enabled.
+ *
+ * Every counter has a single writing thread: the read counters are updated by
+ * the capture thread, the queue counters by the delivery stage and the latency
+ * histogram by the handler thread. Other
+ * threads only read them, so plain volatile fields are enough and no locks are
+ * taken on the audio path.
+ */
+public class CaptureStats {
+
+    // Upper bounds in ms of the latency histogram buckets, the last bucket takes everything above
+    private static final long[] LATENCY_BOUNDS_MS = { 1, 2, 5, 10, 20, 50, 100, 200, 500, 1000 };
+
+    private final long startTime = System.currentTimeMillis();
+
+    // Written by the capture thread
+    private volatile long chunksRead = 0;
+    private volatile long shortReads = 0;
+    private volatile long readErrors = 0;
+    private volatile int lastReadError = 0;
+
+    // Written by the delivery stage
+    private volatile long droppedChunks = 0;
+    private volatile int queueDepth = 0;
+    private volatile int maxQueueDepth = 0;
+
+    // Written by the handler thread
+    private final AtomicLongArray latencyBuckets = new AtomicLongArray(LATENCY_BOUNDS_MS.length + 1);
+    private volatile long latencyCount = 0;
+    private volatile long latencySumNanos = 0;
+    private volatile long latencyMaxNanos = 0;
+
+    // Counters of every pipeline stage
+    private volatile AudioPipeline pipeline = null;
+
+    // The parameters chosen by adaptive buffering
+    private volatile BufferTuner tuner = null;
+
+    // Recordings, the totals of finished ones plus the ones in progress, which can
+    // overlap. Guarded by this.
+    private final List<AudioFileWriter> writers = new ArrayList<AudioFileWriter>();
+    private long finishedBytesWritten = 0;
+    private long finishedWriterDrops = 0;
+    private long finishedWriteNanos = 0;
+    private long finishedMaxWriteNanos = 0;
+
+    /**
+     * Counts the result of one AudioSource.read()
+     *
+     * @param result
+     *            The number of bytes read or a negative error code
+     * @param requested
+     *            The number of bytes that were asked for
+     */
+    public void onRead(int result, int requested) {
+        if (result < 0) {
+            readErrors++;
+            lastReadError = result;
+            return;
+        }
+        chunksRead++;
+        if (result < requested) {
+            shortReads++;
+        }
+    }
+
+    /**
+     * Called by the delivery stage when a batch has been queued for the handler
+     *
+     * @param inFlight
+     *            The number of batches waiting to be delivered
+     */
+    public void onChunkQueued(int inFlight) {
+        queueDepth = inFlight;
+        if (inFlight > maxQueueDepth) {
+            maxQueueDepth = inFlight;
+        }
+    }
+
+    /**
+     * Called by the delivery stage with the number of chunks or batches that
+     * could not be delivered so far
+     */
+    public void setDroppedChunks(long dropped) {
+        droppedChunks = dropped;
+    }
+
+    /**
+     * Called by the handler thread once a chunk has been passed to the WebView
+     *
+     * @param readNanos
+     *            System.nanoTime() when the chunk was read
+     */
+    public void onChunkDelivered(long readNanos) {
+        long nanos = System.nanoTime() - readNanos;
+        long ms = nanos / 1000000;
+        int bucket = 0;
+        while (bucket < LATENCY_BOUNDS_MS.length && ms >= LATENCY_BOUNDS_MS[bucket]) {
+            bucket++;
+        }
+        latencyBuckets.incrementAndGet(bucket);
+        latencyCount++;
+        latencySumNanos += nanos;
+        if (nanos > latencyMaxNanos) {
+            latencyMaxNanos = nanos;
+        }
+    }
+
+    /**
+     * Sets the pipeline whose stage counters are included
+     */
+    public void setPipeline(AudioPipeline pipeline) {
+        this.pipeline = pipeline;
+    }
+
+    /**
+     * Sets the tuner whose parameters are included
+     */
+    public void setTuner(BufferTuner tuner) {
+        this.tuner = tuner;
+    }
+
+    /**
+     * Adds the writer of a recording that has been started
+     */
+    public synchronized void addWriter(AudioFileWriter writer) {
+        writers.add(writer);
+    }
+
+    /**
+     * Adds the totals of a recording once its writer has finished
+     */
+    public synchronized void onRecordingFinished(AudioFileWriter finished) {
+        finishedBytesWritten += finished.getBytesWritten();
+        finishedWriterDrops += finished.getDroppedChunks();
+        finishedWriteNanos += finished.getWriteNanos();
+        finishedMaxWriteNanos = Math.max(finishedMaxWriteNanos, finished.getMaxWriteNanos());
+        writers.remove(finished);
+    }
+
+    /**
+     * @return A snapshot of all counters, safe to call from any thread
+     */
+    public JSONObject toJSON() throws JSONException {
+        JSONObject stats = new JSONObject();
+        stats.put("uptime", System.currentTimeMillis() - startTime);
+        stats.put("chunksRead", chunksRead);
+        stats.put("shortReads", shortReads);
+        stats.put("readErrors", readErrors);
+        stats.put("lastReadError", lastReadError);
+        stats.put("droppedChunks", droppedChunks);
+        stats.put("queueDepth", queueDepth);
+        stats.put("maxQueueDepth", maxQueueDepth);
+
+        JSONObject latency = new JSONObject();
+        long count = latencyCount;
+        latency.put("count", count);
+        latency.put("mean", count > 0 ? latencySumNanos / count / 1e6 : 0);
+        latency.put("max", latencyMaxNanos / 1e6);
+        JSONArray bounds = new JSONArray();
+        for (long bound : LATENCY_BOUNDS_MS) {
+            bounds.put(bound);
+        }
+        latency.put("bounds", bounds);
+        JSONArray buckets = new JSONArray();
+        for (int i = 0; i < latencyBuckets.length(); i++) {
+            buckets.put(latencyBuckets.get(i));
+        }
+        latency.put("buckets", buckets);
+        stats.put("latency", latency);
+
+        AudioPipeline stages = pipeline;
+        if (stages != null) {
+            stats.put("sinks", stages.getStats());
+        }
+        BufferTuner adaptive = tuner;
+        if (adaptive != null) {
+            stats.put("tuning", adaptive.toJSON());
+        }
+
+        synchronized (this) {
+            long bytesWritten = finishedBytesWritten;
+            long writerDrops = finishedWriterDrops;
+            long writeNanos = finishedWriteNanos;
+            long maxWriteNanos = finishedMaxWriteNanos;
+            JSONArray recordings = new JSONArray();
+            for (AudioFileWriter current : writers) {
+                bytesWritten += current.getBytesWritten();
+                writerDrops += current.getDroppedChunks();
+                writeNanos += current.getWriteNanos();
+                maxWriteNanos = Math.max(maxWriteNanos, current.getMaxWriteNanos());
+
+                JSONObject recording = new JSONObject();
+                recording.put("file", current.getFile().getAbsolutePath());
+                recording.put("bytesWritten", current.getBytesWritten());
+                recording.put("droppedChunks", current.getDroppedChunks());
+                recording.put("stallTime", current.getWriteNanos() / 1e6);
+                recording.put("maxStall", current.getMaxWriteNanos() / 1e6);
+                recordings.put(recording);
+            }
+            stats.put("recording", !writers.isEmpty());
+            stats.put("recordings", recordings);
+            stats.put("bytesWritten", bytesWritten);
+            stats.put("writerDroppedChunks", writerDrops);
+            stats.put("writerStallTime", writeNanos / 1e6);
+            stats.put("writerMaxStall", maxWriteNanos / 1e6);
+        }
+        return stats;
+    }
+}
@@ -0,0 +1,180 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Keeps the last seconds of the capture in memory, so they can be exported as
+ * a WAV without a recording on disk.
+ *
+ * The buffer is allocated once, for the requested duration plus HEADROOM_MS,
+ * and overwritten in a circle by the capture thread. An export runs on another
+ * thread without a lock: it takes the published end of the data, passes the
+ * header and then the PCM straight from the circular buffer to its output in
+ * pieces, and checks after every piece that the capture thread has not come
+ * round to it in the meantime. The headroom is the time an export has before
+ * that happens, a slower one fails instead of returning mixed up audio. Plain
+ * Java, no Android dependencies.
+ *
+ * The check relies on two orderings. The capture thread publishes the count
+ * with a volatile write and reads it back before its next copy, so audio it
+ * overwrites is never seen before the count of the write before it. An export
+ * makes a volatile write of its own between a piece and the check, so the
+ * reads of the piece cannot move past the check. A volatile read alone would
+ * let them, and Java 8 has no load fence.
+ */
+public class CaptureStore {
+
+    public static final int HEADROOM_MS = 2000;
+
+    // The largest piece passed to the output in one go, also how often an export is checked
+    private static final int PIECE_SIZE = 64 * 1024;
+
+    private final byte[] buffer;
+    private final int sampleRate;
+    private final int channels;
+    private final int bytesPerSample;
+    private final int frameBytes;
+    private final int maxWriteBytes;
+    private final long retainBytes;
+
+    // The total number of bytes written, published after they have been copied
+    private final AtomicLong written = new AtomicLong(0);
+
+    // Only written, by the exports, see the class comment
+    private volatile long exported = 0;
+
+    /**
+     * @param seconds
+     *            The duration that can be exported
+     * @param sampleRate
+     *            The capture rate in hertz
+     * @param channels
+     *            The number of interleaved channels
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit, 2 for signed 16-bit, 4 for 32-bit float
+     * @param maxWriteBytes
+     *            The most a single write() may pass
+     */
+    public CaptureStore(double seconds, int sampleRate, int channels, int bytesPerSample, int maxWriteBytes) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameBytes = channels * bytesPerSample;
+        this.maxWriteBytes = maxWriteBytes;
+        long bytesPerSecond = (long) sampleRate * frameBytes;
+        long capacity = (long) (seconds * bytesPerSecond) + HEADROOM_MS * bytesPerSecond / 1000 + maxWriteBytes;
+        capacity = Math.min(capacity, Integer.MAX_VALUE - 8);
+        capacity -= capacity % frameBytes;
+        this.buffer = new byte[(int) capacity];
+        long retain = Math.min((long) (seconds * bytesPerSecond), capacity - HEADROOM_MS * bytesPerSecond / 1000
+                - maxWriteBytes);
+        this.retainBytes = Math.max(retain - retain % frameBytes, 0);
+    }
+
+    /**
+     * @return The size of the allocated buffer in bytes
+     */
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return The duration in seconds an export can currently return
+     */
+    public double getAvailableSeconds() {
+        return (double) Math.min(written.get(), retainBytes) / frameBytes / sampleRate;
+    }
+
+    /**
+     * Appends captured PCM, capture thread only
+     *
+     * @param length
+     *            Whole frames, at most maxWriteBytes
+     */
+    public void write(byte[] data, int offset, int length) {
+        // Read back before the copy, which then cannot show before the last count
+        long w = written.get();
+        int pos = (int) (w % buffer.length);
+        int first = Math.min(length, buffer.length - pos);
+        System.arraycopy(data, offset, buffer, pos, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+        written.set(w + length);
+    }
+
+    /**
+     * Builds the latest audio as a complete WAV in a single array, the data is
+     * copied into it straight from the circular buffer
+     *
+     * @see #export(double, AudioEncoder.Output)
+     */
+    public byte[] toWav(double seconds) throws IOException {
+        long end = written.get();
+        long size = createHeader(0).remaining() + getExportBytes(seconds, end);
+        final byte[] wav = new byte[(int) size];
+        export(seconds, end, new AudioEncoder.Output() {
+            private int pos = 0;
+
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                System.arraycopy(data, offset, wav, pos, length);
+                pos += length;
+            }
+        });
+        return wav;
+    }
+
+    /**
+     * Passes the latest audio as a complete WAV to out, safe to call from any
+     * thread while the capture thread writes
+     *
+     * @param seconds
+     *            The duration wanted, 0 or less for everything that is held,
+     *            less is returned if not that much has been captured yet
+     * @param out
+     *            Receives the header and then the data, it must have copied or
+     *            consumed every piece when write() returns
+     * @return The number of bytes passed to out
+     * @throws IOException
+     *             If out fails, or the capture overtook the export
+     */
+    public long export(double seconds, AudioEncoder.Output out) throws IOException {
+        return export(seconds, written.get(), out);
+    }
+
+    private long export(double seconds, long end, AudioEncoder.Output out) throws IOException {
+        long length = getExportBytes(seconds, end);
+        ByteBuffer header = createHeader(length);
+        int headerSize = header.remaining();
+        out.write(header.array(), header.arrayOffset(), headerSize);
+
+        long position = end - length;
+        while (position < end) {
+            int pos = (int) (position % buffer.length);
+            int n = (int) Math.min(Math.min(end - position, buffer.length - pos), PIECE_SIZE);
+            out.write(buffer, pos, n);
+            // Keeps the reads of the piece before the check
+            exported = position + n;
+            // A write in progress may already cover maxWriteBytes beyond what is published
+            if (written.get() + maxWriteBytes - buffer.length > position) {
+                throw new IOException("The capture overwrote the audio while it was exported");
+            }
+            position += n;
+        }
+        return headerSize + length;
+    }
+
+    private long getExportBytes(double seconds, long end) {
+        long length = Math.min(end, retainBytes);
+        if (seconds > 0) {
+            length = Math.min(length, (long) (seconds * sampleRate) * frameBytes);
+        }
+        return length;
+    }
+
+    private ByteBuffer createHeader(long dataSize) {
+        WavEncoder encoder = new WavEncoder(channels, sampleRate, bytesPerSample * 8, false);
+        return encoder.completeHeader(encoder.createHeader().remaining() + dataSize);
+    }
+}
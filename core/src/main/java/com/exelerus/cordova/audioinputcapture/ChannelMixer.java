@@ -0,0 +1,169 @@
+package com.exelerus.cordova.audioinputcapture;
+
+/**
+ * Rearranges the channels of interleaved PCM in one pass: into planar blocks
+ * (all samples of the first channel, then the second, ...), into a mono mix
+ * (the average of all channels) or into a single selected channel.
+ *
+ * The output has the sample format of the input. Mixing and selecting reduce
+ * the data, so they run before any other conversion; planar output only stays
+ * planar for the unit it was made for, so it runs last. Plain Java, no Android
+ * dependencies.
+ */
+public class ChannelMixer {
+
+    public static final String INTERLEAVED = "interleaved";
+    public static final String PLANAR = "planar";
+    public static final String MIX = "mix";
+
+    private final int channels;
+    private final int bytesPerSample;
+    private final int frameBytes;
+    private final boolean planar;
+
+    // The channel that is kept, -1 to mix all of them
+    private final int channel;
+
+    /**
+     * @param channels
+     *            The number of interleaved channels, at least 2
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit, 2 for signed 16-bit little endian, 4 for
+     *            32-bit float little endian
+     * @param planar
+     *            true to split the channels into planar blocks
+     * @param channel
+     *            The channel to keep, -1 to mix all of them, ignored when planar
+     */
+    public ChannelMixer(int channels, int bytesPerSample, boolean planar, int channel) {
+        if (bytesPerSample != 1 && bytesPerSample != 2 && bytesPerSample != 4) {
+            throw new IllegalArgumentException("Unsupported sample size: " + bytesPerSample);
+        }
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameBytes = channels * bytesPerSample;
+        this.planar = planar;
+        this.channel = planar ? -1 : Math.min(channel, channels - 1);
+    }
+
+    /**
+     * @param mode
+     *            INTERLEAVED, PLANAR, MIX or the index of the channel to keep, as
+     *            passed from JS
+     * @param channels
+     *            The number of interleaved channels
+     * @param bytesPerSample
+     *            The sample size of the audio the mixer gets
+     * @return The mixer, null if the audio stays as it is
+     */
+    public static ChannelMixer create(Object mode, int channels, int bytesPerSample) {
+        if (mode == null || channels < 2) {
+            return null;
+        }
+        if (mode instanceof Number) {
+            return new ChannelMixer(channels, bytesPerSample, false, Math.max(((Number) mode).intValue(), 0));
+        }
+        if (PLANAR.equals(mode)) {
+            return new ChannelMixer(channels, bytesPerSample, true, -1);
+        }
+        if (MIX.equals(mode)) {
+            return new ChannelMixer(channels, bytesPerSample, false, -1);
+        }
+        return null;
+    }
+
+    /**
+     * @return true if the output is planar, false if it is a single channel
+     */
+    public boolean isPlanar() {
+        return planar;
+    }
+
+    /**
+     * @return The number of channels in the output
+     */
+    public int getOutputChannels() {
+        return planar ? channels : 1;
+    }
+
+    /**
+     * @return The number of bytes process() produces for inputBytes
+     */
+    public int getOutputBytes(int inputBytes) {
+        int frames = inputBytes / frameBytes;
+        return frames * getOutputChannels() * bytesPerSample;
+    }
+
+    /**
+     * @param in
+     *            The interleaved input
+     * @param offset
+     *            The position of the first frame in in
+     * @param length
+     *            The number of bytes, trailing bytes that do not form a full frame
+     *            are ignored
+     * @param out
+     *            Receives the output, at least getOutputBytes(length) bytes, must
+     *            not be in
+     * @param outOffset
+     *            The position in out to write to
+     * @return The number of bytes written to out
+     */
+    public int process(byte[] in, int offset, int length, byte[] out, int outOffset) {
+        int frames = length / frameBytes;
+        if (planar) {
+            for (int ch = 0; ch < channels; ch++) {
+                int pos = offset + ch * bytesPerSample;
+                int outPos = outOffset + ch * frames * bytesPerSample;
+                for (int i = 0; i < frames; i++) {
+                    for (int b = 0; b < bytesPerSample; b++) {
+                        out[outPos + b] = in[pos + b];
+                    }
+                    pos += frameBytes;
+                    outPos += bytesPerSample;
+                }
+            }
+            return frames * frameBytes;
+        }
+
+        int pos = offset;
+        int outPos = outOffset;
+        if (channel >= 0) {
+            pos += channel * bytesPerSample;
+            for (int i = 0; i < frames; i++) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    out[outPos + b] = in[pos + b];
+                }
+                pos += frameBytes;
+                outPos += bytesPerSample;
+            }
+        } else if (bytesPerSample == 2) {
+            for (int i = 0; i < frames; i++) {
+                int sum = 0;
+                for (int ch = 0; ch < channels; ch++) {
+                    sum += (short) ((in[pos + 1] << 8) | (in[pos] & 0xFF));
+                    pos += 2;
+                }
+                int sample = sum / channels;
+                out[outPos] = (byte) sample;
+                out[outPos + 1] = (byte) (sample >> 8);
+                outPos += 2;
+            }
+        } else if (bytesPerSample == 1) {
+            for (int i = 0; i < frames; i++) {
+                int sum = 0;
+                for (int ch = 0; ch < channels; ch++) {
+                    sum += in[pos++] & 0xFF;
+                }
+                out[outPos++] = (byte) (sum / channels);
+            }
+        } else {
+            for (int i = 0; i < frames; i++) {
+                PcmUtils.writeFloat(out, outPos, PcmUtils.toMonoFloat(in, pos, channels, 4));
+                pos += frameBytes;
+                outPos += 4;
+            }
+        }
+        return outPos - outOffset;
+    }
+}
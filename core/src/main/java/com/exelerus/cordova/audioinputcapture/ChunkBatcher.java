@@ -0,0 +1,232 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Merges captured chunks into batches for the WebView and limits how many of
+ * them can be waiting.
+ *
+ * The capture thread appends audio to an open batch, which is closed once it
+ * holds maxBytes or its oldest audio is maxLatencyMs old. Closed batches go
+ * into a bounded queue that the handler thread drains. Only one drain message
+ * is pending on the looper at a time, so a stalled WebView cannot pile up
+ * messages. When the queue is full the overflow policy decides whether the
+ * oldest waiting batch or the newly closed one is dropped, or whether the
+ * capture thread waits for room. Every batch carries a sequence number, a
+ * dropped batch leaves a gap in the numbers.
+ *
+ * Each batch reserves HEADER_SIZE bytes at the start of its data for the
+ * binary transport, the audio follows them. With a planar mixer the audio of a
+ * batch is made planar when it is closed, so each batch holds one block per
+ * channel.
+ */
+public class ChunkBatcher {
+
+    public static final String DROP_OLDEST = "drop-oldest";
+    public static final String DROP_NEWEST = "drop-newest";
+    public static final String BLOCK = "block";
+
+    /**
+     * The sequence number as unsigned 32 bit little endian, ahead of the audio
+     */
+    public static final int HEADER_SIZE = 4;
+
+    private final int maxBytes;
+    private volatile long maxLatencyNanos;
+    private final String policy;
+
+    private final AudioBufferPool pool;
+    private final ArrayBlockingQueue<AudioBufferPool.Chunk> queue;
+    private final AtomicBoolean drainPending = new AtomicBoolean(false);
+
+    // Only used on the capture thread
+    private AudioBufferPool.Chunk open = null;
+    private long nextSequence = 0;
+
+    private volatile long droppedBatches = 0;
+
+    // Splits the channels of a closed batch, with the buffer it splits into
+    private ChannelMixer planar = null;
+    private byte[] planarBuffer = null;
+
+    /**
+     * @param maxBytes
+     *            The most audio in a batch, at least the size of one chunk
+     * @param maxLatencyMs
+     *            The longest time audio may wait in the open batch, 0 sends every
+     *            chunk on its own
+     * @param queueSize
+     *            The number of closed batches that can be waiting
+     * @param policy
+     *            DROP_OLDEST, DROP_NEWEST or BLOCK
+     */
+    public ChunkBatcher(int maxBytes, int maxLatencyMs, int queueSize, String policy) {
+        this.maxBytes = maxBytes;
+        this.maxLatencyNanos = maxLatencyMs * 1000000L;
+        this.policy = policy;
+        // The queued batches, the open one and the one being delivered, so acquiring
+        // never fails
+        this.pool = new AudioBufferPool(queueSize + 2, HEADER_SIZE + maxBytes);
+        this.queue = new ArrayBlockingQueue<AudioBufferPool.Chunk>(queueSize);
+    }
+
+    /**
+     * Adds a chunk of audio, called on the capture thread
+     *
+     * @param data
+     *            The audio
+     * @param length
+     *            The number of bytes, at most maxBytes
+     * @param readNanos
+     *            System.nanoTime() when the chunk was read
+     * @return true if a batch was closed, the caller should then post a drain
+     *         message if requestDrain() allows it
+     */
+    public boolean append(byte[] data, int length, long readNanos) throws InterruptedException {
+        boolean closed = false;
+        if (open != null && open.length + length > HEADER_SIZE + maxBytes) {
+            close();
+            closed = true;
+        }
+        if (open == null) {
+            open = pool.acquire();
+            if (open == null) {
+                droppedBatches++;
+                nextSequence++;
+                return closed;
+            }
+            open.length = HEADER_SIZE;
+            open.timestamp = readNanos;
+        }
+        System.arraycopy(data, 0, open.data, open.length, length);
+        open.length += length;
+
+        if (maxLatencyNanos == 0 || readNanos - open.timestamp >= maxLatencyNanos
+                || open.length == HEADER_SIZE + maxBytes) {
+            close();
+            closed = true;
+        }
+        return closed;
+    }
+
+    /**
+     * Makes the audio of every closed batch planar, must be called before the
+     * first chunk is appended
+     */
+    public void setPlanar(ChannelMixer planar) {
+        this.planar = planar;
+        this.planarBuffer = new byte[maxBytes];
+    }
+
+    /**
+     * Changes the longest time audio may wait in the open batch, takes effect
+     * with the next chunk
+     */
+    public void setMaxLatency(int maxLatencyMs) {
+        this.maxLatencyNanos = maxLatencyMs * 1000000L;
+    }
+
+    /**
+     * Closes the open batch if its oldest audio has waited maxLatencyMs, called
+     * on the capture thread
+     *
+     * @return true if a batch was closed
+     */
+    public boolean closeIfDue(long nowNanos) throws InterruptedException {
+        if (open != null && nowNanos - open.timestamp >= maxLatencyNanos) {
+            close();
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return true if the caller should post a drain message, false if one is
+     *         already pending
+     */
+    public boolean requestDrain() {
+        return drainPending.compareAndSet(false, true);
+    }
+
+    /**
+     * Called by the handler thread before it starts polling, batches closed after
+     * this request a new drain
+     */
+    public void onDrain() {
+        drainPending.set(false);
+    }
+
+    /**
+     * @return The next closed batch or null, called on the handler thread. The
+     *         caller must release the batch.
+     */
+    public AudioBufferPool.Chunk poll() {
+        return queue.poll();
+    }
+
+    /**
+     * @return The number of closed batches waiting for the handler thread
+     */
+    public int size() {
+        return queue.size();
+    }
+
+    /**
+     * @return The number of batches dropped because the queue was full
+     */
+    public long getDroppedBatches() {
+        return droppedBatches;
+    }
+
+    /**
+     * Queues the open batch, applying the overflow policy if the queue is full
+     */
+    private void close() throws InterruptedException {
+        AudioBufferPool.Chunk batch = open;
+        open = null;
+        writeSequence(batch.data, nextSequence++);
+        if (planar != null) {
+            int length = planar.process(batch.data, HEADER_SIZE, batch.length - HEADER_SIZE, planarBuffer, 0);
+            System.arraycopy(planarBuffer, 0, batch.data, HEADER_SIZE, length);
+        }
+
+        while (!queue.offer(batch)) {
+            if (DROP_OLDEST.equals(policy)) {
+                AudioBufferPool.Chunk oldest = queue.poll();
+                if (oldest != null) {
+                    droppedBatches++;
+                    oldest.release();
+                }
+            } else if (BLOCK.equals(policy)) {
+                // Interrupting the capture thread ends the wait
+                try {
+                    queue.put(batch);
+                } catch (InterruptedException e) {
+                    batch.release();
+                    throw e;
+                }
+                return;
+            } else {
+                droppedBatches++;
+                batch.release();
+                return;
+            }
+        }
+    }
+
+    private static void writeSequence(byte[] data, long sequence) {
+        data[0] = (byte) sequence;
+        data[1] = (byte) (sequence >> 8);
+        data[2] = (byte) (sequence >> 16);
+        data[3] = (byte) (sequence >> 24);
+    }
+
+    /**
+     * @return The sequence number written into the header of a batch
+     */
+    public static long getSequence(AudioBufferPool.Chunk batch) {
+        byte[] data = batch.data;
+        return (data[0] & 0xFFL) | (data[1] & 0xFFL) << 8 | (data[2] & 0xFFL) << 16 | (data[3] & 0xFFL) << 24;
+    }
+}
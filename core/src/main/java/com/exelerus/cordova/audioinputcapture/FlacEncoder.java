@@ -0,0 +1,733 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Streaming FLAC encoder for 8 and 16 bit PCM.
+ *
+ * Samples are collected into fixed size blocks, each full block is encoded as
+ * one frame as soon as it is complete. Every channel is coded with whichever of
+ * the fixed polynomial predictors, an LPC predictor or a constant/verbatim
+ * subframe is smallest, and the residual is Rice coded with partitioned
+ * parameters. Stereo input additionally picks the cheapest of independent,
+ * left/side, right/side and mid/side coding per frame. The STREAMINFO block
+ * with the sample count, frame sizes and MD5 is completed in updateHeader().
+ */
+public class FlacEncoder implements AudioEncoder {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int MAX_FIXED_ORDER = 4;
+    private static final int MAX_LPC_ORDER = 8;
+    private static final int LPC_PRECISION = 14;
+    private static final int MAX_PARTITION_ORDER = 6;
+    private static final int MAX_RICE_PARAMETER = 14;
+
+    private static final int STREAMINFO_SIZE = 34;
+    private static final int HEADER_SIZE = 4 + 4 + STREAMINFO_SIZE;
+
+    private static final int SUBFRAME_CONSTANT = 0;
+    private static final int SUBFRAME_VERBATIM = 1;
+    private static final int SUBFRAME_FIXED = 8;
+    private static final int SUBFRAME_LPC = 32;
+
+    private static final int CHANNELS_LEFT_SIDE = 8;
+    private static final int CHANNELS_RIGHT_SIDE = 9;
+    private static final int CHANNELS_MID_SIDE = 10;
+
+    private final int channels;
+    private final int sampleRate;
+    private final int bitDepth;
+    private final int bytesPerSample;
+
+    // Samples of the block that is being collected, per channel
+    private final int[][] block;
+    private int blockFill = 0;
+
+    // Stereo decorrelation
+    private final int[] mid;
+    private final int[] side;
+
+    // Subframe analysis
+    private final int[] residual = new int[BLOCK_SIZE];
+    private final long[] partitionSums = new long[1 << MAX_PARTITION_ORDER];
+    private final int[] riceParameters = new int[1 << MAX_PARTITION_ORDER];
+    private int partitionOrder = 0;
+    private final double[] window = new double[BLOCK_SIZE];
+    private final double[] windowed = new double[BLOCK_SIZE];
+    private final double[] autocorrelation = new double[MAX_LPC_ORDER + 1];
+    private final double[] lpc = new double[MAX_LPC_ORDER + 1];
+    private final double[] lpcScratch = new double[MAX_LPC_ORDER + 1];
+    private final int[] qlp = new int[MAX_LPC_ORDER];
+    private int qlpShift = 0;
+
+    private final BitWriter bits;
+
+    private final MessageDigest md5;
+    private final byte[] md5Buffer;
+
+    private long frameNumber = 0;
+    private long totalSamples = 0;
+    private int minFrameSize = Integer.MAX_VALUE;
+    private int maxFrameSize = 0;
+
+    /**
+     * @param channels
+     *            The number of channels, 1 to 8
+     * @param sampleRate
+     *            The sample rate in hertz
+     * @param bitDepth
+     *            8 for unsigned 8-bit PCM, 16 for signed 16-bit little endian PCM
+     */
+    public FlacEncoder(int channels, int sampleRate, int bitDepth) {
+        if (bitDepth != 8 && bitDepth != 16) {
+            throw new IllegalArgumentException("Unsupported bit depth for FLAC: " + bitDepth);
+        }
+        if (channels < 1 || channels > 8) {
+            throw new IllegalArgumentException("Unsupported channel count for FLAC: " + channels);
+        }
+        this.channels = channels;
+        this.sampleRate = sampleRate;
+        this.bitDepth = bitDepth;
+        this.bytesPerSample = bitDepth / 8;
+
+        this.block = new int[channels][BLOCK_SIZE];
+        this.mid = channels == 2 ? new int[BLOCK_SIZE] : null;
+        this.side = channels == 2 ? new int[BLOCK_SIZE] : null;
+
+        // Worst case is a verbatim frame with a side channel, plus the frame header and footer
+        this.bits = new BitWriter(channels * BLOCK_SIZE * (bitDepth + 1) / 8 + 64);
+
+        // Tukey(0.5) window for the LPC analysis
+        int taper = BLOCK_SIZE / 4;
+        for (int i = 0; i < BLOCK_SIZE; i++) {
+            if (i < taper) {
+                window[i] = 0.5 - 0.5 * Math.cos(Math.PI * i / taper);
+            } else if (i >= BLOCK_SIZE - taper) {
+                window[i] = 0.5 - 0.5 * Math.cos(Math.PI * (BLOCK_SIZE - 1 - i) / taper);
+            } else {
+                window[i] = 1.0;
+            }
+        }
+
+        MessageDigest digest = null;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            // The signature is optional, it is left empty
+        }
+        this.md5 = digest;
+        this.md5Buffer = bytesPerSample == 1 ? new byte[BLOCK_SIZE * channels] : null;
+    }
+
+    @Override
+    public ByteBuffer createHeader() {
+        BitWriter header = new BitWriter(HEADER_SIZE);
+        header.write('f', 8);
+        header.write('L', 8);
+        header.write('a', 8);
+        header.write('C', 8);
+        // Metadata block header: last block, type STREAMINFO
+        header.write(1, 1);
+        header.write(0, 7);
+        header.write(STREAMINFO_SIZE, 24);
+        writeStreamInfo(header, new byte[16]);
+        return ByteBuffer.wrap(header.buffer, 0, header.size());
+    }
+
+    @Override
+    public void encode(byte[] data, int offset, int length, Output out) throws IOException {
+        int frameBytes = channels * bytesPerSample;
+        int frames = length / frameBytes;
+        updateMd5(data, offset, frames * frameBytes);
+
+        int pos = offset;
+        for (int i = 0; i < frames; i++) {
+            for (int ch = 0; ch < channels; ch++) {
+                if (bytesPerSample == 2) {
+                    block[ch][blockFill] = (short) ((data[pos + 1] << 8) | (data[pos] & 0xFF));
+                } else {
+                    block[ch][blockFill] = (data[pos] & 0xFF) - 128;
+                }
+                pos += bytesPerSample;
+            }
+            if (++blockFill == BLOCK_SIZE) {
+                encodeFrame(BLOCK_SIZE, out);
+            }
+        }
+    }
+
+    @Override
+    public void finish(Output out) throws IOException {
+        if (blockFill > 0) {
+            encodeFrame(blockFill, out);
+        }
+    }
+
+    @Override
+    public void updateHeader(FileChannel channel, long fileSize) throws IOException {
+        BitWriter header = new BitWriter(STREAMINFO_SIZE);
+        writeStreamInfo(header, md5 != null ? md5.digest() : new byte[16]);
+        AudioFileWriter.writeFully(channel, ByteBuffer.wrap(header.buffer, 0, header.size()), 8);
+    }
+
+    /**
+     * Writes the STREAMINFO of the frames so far, the MD5 is left empty (unknown)
+     * since digesting would end it
+     */
+    @Override
+    public void updateProgress(FileChannel channel, long fileSize) throws IOException {
+        BitWriter header = new BitWriter(STREAMINFO_SIZE);
+        writeStreamInfo(header, new byte[16]);
+        AudioFileWriter.writeFully(channel, ByteBuffer.wrap(header.buffer, 0, header.size()), 8);
+    }
+
+    @Override
+    public boolean isLimitReached() {
+        return false;
+    }
+
+    private void writeStreamInfo(BitWriter out, byte[] signature) {
+        out.write(BLOCK_SIZE, 16); // min block size
+        out.write(BLOCK_SIZE, 16); // max block size
+        out.write(maxFrameSize > 0 ? minFrameSize : 0, 24);
+        out.write(maxFrameSize, 24);
+        out.write(sampleRate, 20);
+        out.write(channels - 1, 3);
+        out.write(bitDepth - 1, 5);
+        out.write((int) (totalSamples >>> 32), 4);
+        out.write((int) totalSamples, 32);
+        for (byte b : signature) {
+            out.write(b, 8);
+        }
+    }
+
+    private void updateMd5(byte[] data, int offset, int length) {
+        if (md5 == null) {
+            return;
+        }
+        if (bytesPerSample == 2) {
+            // Already signed little endian, as the signature expects
+            md5.update(data, offset, length);
+        } else {
+            // Signature is over signed samples, convert from unsigned 8-bit
+            for (int done = 0; done < length; done += md5Buffer.length) {
+                int n = Math.min(md5Buffer.length, length - done);
+                for (int i = 0; i < n; i++) {
+                    md5Buffer[i] = (byte) (data[offset + done + i] ^ 0x80);
+                }
+                md5.update(md5Buffer, 0, n);
+            }
+        }
+    }
+
+    private void encodeFrame(int n, Output out) throws IOException {
+        bits.reset();
+
+        int assignment = channels - 1;
+        if (channels == 2) {
+            int[] left = block[0];
+            int[] right = block[1];
+            for (int i = 0; i < n; i++) {
+                mid[i] = (left[i] + right[i]) >> 1;
+                side[i] = left[i] - right[i];
+            }
+            long costLeft = estimateFixedCost(left, n);
+            long costRight = estimateFixedCost(right, n);
+            long costMid = estimateFixedCost(mid, n);
+            long costSide = estimateFixedCost(side, n);
+
+            long best = costLeft + costRight;
+            if (costLeft + costSide < best) {
+                best = costLeft + costSide;
+                assignment = CHANNELS_LEFT_SIDE;
+            }
+            if (costSide + costRight < best) {
+                best = costSide + costRight;
+                assignment = CHANNELS_RIGHT_SIDE;
+            }
+            if (costMid + costSide < best) {
+                assignment = CHANNELS_MID_SIDE;
+            }
+        }
+
+        writeFrameHeader(n, assignment);
+
+        switch (assignment) {
+        case CHANNELS_LEFT_SIDE:
+            writeSubframe(block[0], n, bitDepth);
+            writeSubframe(side, n, bitDepth + 1);
+            break;
+        case CHANNELS_RIGHT_SIDE:
+            writeSubframe(side, n, bitDepth + 1);
+            writeSubframe(block[1], n, bitDepth);
+            break;
+        case CHANNELS_MID_SIDE:
+            writeSubframe(mid, n, bitDepth);
+            writeSubframe(side, n, bitDepth + 1);
+            break;
+        default:
+            for (int ch = 0; ch < channels; ch++) {
+                writeSubframe(block[ch], n, bitDepth);
+            }
+            break;
+        }
+
+        bits.alignToByte();
+        bits.write(crc16(bits.buffer, bits.size()), 16);
+
+        int frameSize = bits.size();
+        minFrameSize = Math.min(minFrameSize, frameSize);
+        maxFrameSize = Math.max(maxFrameSize, frameSize);
+        frameNumber++;
+        totalSamples += n;
+        blockFill = 0;
+
+        out.write(bits.buffer, 0, frameSize);
+    }
+
+    private void writeFrameHeader(int n, int assignment) {
+        // Sync code, reserved bit and fixed block size strategy
+        bits.write(0xFFF8, 16);
+        // Block size, sample rate comes from STREAMINFO
+        bits.write(n == BLOCK_SIZE ? 12 : 7, 4);
+        bits.write(0, 4);
+        bits.write(assignment, 4);
+        bits.write(bitDepth == 8 ? 1 : 4, 3);
+        bits.write(0, 1);
+        writeUtf8(frameNumber);
+        if (n != BLOCK_SIZE) {
+            bits.write(n - 1, 16);
+        }
+        bits.write(crc8(bits.buffer, bits.size()), 8);
+    }
+
+    private void writeUtf8(long value) {
+        if (value < 0x80) {
+            bits.write((int) value, 8);
+            return;
+        }
+        int extra = value < 0x800 ? 1 : value < 0x10000 ? 2 : value < 0x200000 ? 3 : value < 0x4000000 ? 4 : 5;
+        int lead = (0xFF00 >> (extra + 1)) & 0xFF;
+        bits.write(lead | (int) (value >>> (6 * extra)), 8);
+        for (int i = extra - 1; i >= 0; i--) {
+            bits.write(0x80 | (int) ((value >>> (6 * i)) & 0x3F), 8);
+        }
+    }
+
+    private void writeSubframe(int[] x, int n, int bps) {
+        boolean constant = true;
+        for (int i = 1; i < n && constant; i++) {
+            constant = x[i] == x[0];
+        }
+        if (constant) {
+            writeSubframeHeader(SUBFRAME_CONSTANT);
+            bits.write(x[0], bps);
+            return;
+        }
+
+        long verbatimBits = (long) n * bps;
+
+        int fixedOrder = bestFixedOrder(x, n);
+        computeFixedResidual(x, n, fixedOrder);
+        long fixedBits = (long) fixedOrder * bps + riceCost(n, fixedOrder);
+
+        int lpcOrder = n == BLOCK_SIZE ? MAX_LPC_ORDER : 0;
+        long lpcBits = Long.MAX_VALUE;
+        if (lpcOrder > 0 && computeLpc(x, n, lpcOrder)) {
+            computeLpcResidual(x, n, lpcOrder);
+            lpcBits = (long) lpcOrder * (bps + LPC_PRECISION) + 9 + riceCost(n, lpcOrder);
+        }
+
+        if (Math.min(fixedBits, lpcBits) >= verbatimBits) {
+            writeSubframeHeader(SUBFRAME_VERBATIM);
+            for (int i = 0; i < n; i++) {
+                bits.write(x[i], bps);
+            }
+        } else if (lpcBits < fixedBits) {
+            // The residual of the LPC predictor is still in place
+            writeSubframeHeader(SUBFRAME_LPC + lpcOrder - 1);
+            for (int i = 0; i < lpcOrder; i++) {
+                bits.write(x[i], bps);
+            }
+            bits.write(LPC_PRECISION - 1, 4);
+            bits.write(qlpShift, 5);
+            for (int i = 0; i < lpcOrder; i++) {
+                bits.write(qlp[i], LPC_PRECISION);
+            }
+            writeResidual(n, lpcOrder);
+        } else {
+            if (lpcBits != Long.MAX_VALUE) {
+                computeFixedResidual(x, n, fixedOrder);
+                riceCost(n, fixedOrder);
+            }
+            writeSubframeHeader(SUBFRAME_FIXED + fixedOrder);
+            for (int i = 0; i < fixedOrder; i++) {
+                bits.write(x[i], bps);
+            }
+            writeResidual(n, fixedOrder);
+        }
+    }
+
+    private void writeSubframeHeader(int type) {
+        // Zero padding bit, type, no wasted bits
+        bits.write(type << 1, 8);
+    }
+
+    /**
+     * Rice codes the residual with the partition order and parameters chosen by
+     * the last call to riceCost()
+     */
+    private void writeResidual(int n, int order) {
+        int partitionOrder = this.partitionOrder;
+        int partitions = 1 << partitionOrder;
+        int partitionSize = n >> partitionOrder;
+
+        bits.write(0, 2); // Rice coding with 4 bit parameters
+        bits.write(partitionOrder, 4);
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            int k = riceParameters[p];
+            bits.write(k, 4);
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                int r = residual[i];
+                int u = (r << 1) ^ (r >> 31);
+                bits.writeUnary(u >>> k);
+                if (k > 0) {
+                    bits.write(u, k);
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the cheapest partition order and Rice parameters for the residual
+     * from index order to n. The estimate is an upper bound of the bits that
+     * writeResidual() will produce.
+     *
+     * @return The size of the residual section in bits
+     */
+    private long riceCost(int n, int order) {
+        int maxOrder = 0;
+        while (maxOrder < MAX_PARTITION_ORDER && (n & ((2 << maxOrder) - 1)) == 0
+                && (n >> (maxOrder + 1)) > order) {
+            maxOrder++;
+        }
+
+        // Sums for the finest partitioning, coarser ones are combined from these
+        int partitions = 1 << maxOrder;
+        int partitionSize = n >> maxOrder;
+        int i = order;
+        for (int p = 0; p < partitions; p++) {
+            long sum = 0;
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                int r = residual[i];
+                sum += ((r << 1) ^ (r >> 31)) & 0xFFFFFFFFL;
+            }
+            partitionSums[p] = sum;
+        }
+
+        long bestBits = Long.MAX_VALUE;
+        int bestOrder = 0;
+        for (int po = maxOrder; po >= 0; po--) {
+            int count = 1 << po;
+            int size = n >> po;
+            long total = 6;
+            for (int p = 0; p < count; p++) {
+                int samples = p == 0 ? size - order : size;
+                total += 4 + riceBits(partitionSums[p], samples, null, 0);
+            }
+            if (total < bestBits) {
+                bestBits = total;
+                bestOrder = po;
+            }
+            // Merge pairs for the next coarser order
+            for (int p = 0; p < count / 2; p++) {
+                partitionSums[p] = partitionSums[2 * p] + partitionSums[2 * p + 1];
+            }
+        }
+
+        // Recompute the sums of the chosen order to store its parameters
+        partitionOrder = bestOrder;
+        partitions = 1 << bestOrder;
+        partitionSize = n >> bestOrder;
+        i = order;
+        for (int p = 0; p < partitions; p++) {
+            long sum = 0;
+            int end = (p + 1) * partitionSize;
+            for (; i < end; i++) {
+                int r = residual[i];
+                sum += ((r << 1) ^ (r >> 31)) & 0xFFFFFFFFL;
+            }
+            riceBits(sum, p == 0 ? partitionSize - order : partitionSize, riceParameters, p);
+        }
+        return bestBits;
+    }
+
+    private static long riceBits(long sum, int count, int[] parameters, int index) {
+        long best = Long.MAX_VALUE;
+        int bestK = 0;
+        for (int k = 0; k <= MAX_RICE_PARAMETER; k++) {
+            long b = (long) count * (k + 1) + (sum >> k);
+            if (b < best) {
+                best = b;
+                bestK = k;
+            }
+        }
+        if (parameters != null) {
+            parameters[index] = bestK;
+        }
+        return best;
+    }
+
+    /**
+     * Picks the fixed predictor order with the smallest sum of absolute residuals
+     */
+    private static int bestFixedOrder(int[] x, int n) {
+        if (n <= MAX_FIXED_ORDER) {
+            return 0;
+        }
+        long e0 = 0, e1 = 0, e2 = 0, e3 = 0, e4 = 0;
+        for (int i = MAX_FIXED_ORDER; i < n; i++) {
+            long r0 = x[i];
+            long r1 = r0 - x[i - 1];
+            long r2 = r1 - (x[i - 1] - x[i - 2]);
+            long r3 = r2 - (x[i - 1] - 2L * x[i - 2] + x[i - 3]);
+            long r4 = r3 - (x[i - 1] - 3L * x[i - 2] + 3L * x[i - 3] - x[i - 4]);
+            e0 += Math.abs(r0);
+            e1 += Math.abs(r1);
+            e2 += Math.abs(r2);
+            e3 += Math.abs(r3);
+            e4 += Math.abs(r4);
+        }
+        int order = 0;
+        long min = e0;
+        if (e1 < min) {
+            min = e1;
+            order = 1;
+        }
+        if (e2 < min) {
+            min = e2;
+            order = 2;
+        }
+        if (e3 < min) {
+            min = e3;
+            order = 3;
+        }
+        if (e4 < min) {
+            order = 4;
+        }
+        return order;
+    }
+
+    private long estimateFixedCost(int[] x, int n) {
+        int order = bestFixedOrder(x, n);
+        computeFixedResidual(x, n, order);
+        long sum = 0;
+        for (int i = order; i < n; i++) {
+            int r = residual[i];
+            sum += ((r << 1) ^ (r >> 31)) & 0xFFFFFFFFL;
+        }
+        return riceBits(sum, n - order, null, 0);
+    }
+
+    private void computeFixedResidual(int[] x, int n, int order) {
+        switch (order) {
+        case 0:
+            System.arraycopy(x, 0, residual, 0, n);
+            break;
+        case 1:
+            for (int i = 1; i < n; i++) {
+                residual[i] = x[i] - x[i - 1];
+            }
+            break;
+        case 2:
+            for (int i = 2; i < n; i++) {
+                residual[i] = x[i] - 2 * x[i - 1] + x[i - 2];
+            }
+            break;
+        case 3:
+            for (int i = 3; i < n; i++) {
+                residual[i] = x[i] - 3 * x[i - 1] + 3 * x[i - 2] - x[i - 3];
+            }
+            break;
+        default:
+            for (int i = 4; i < n; i++) {
+                residual[i] = x[i] - 4 * x[i - 1] + 6 * x[i - 2] - 4 * x[i - 3] + x[i - 4];
+            }
+            break;
+        }
+    }
+
+    /**
+     * Computes quantized LPC coefficients of the given order into qlp/qlpShift
+     *
+     * @return false if the signal does not allow a usable predictor
+     */
+    private boolean computeLpc(int[] x, int n, int order) {
+        for (int i = 0; i < n; i++) {
+            windowed[i] = x[i] * window[i];
+        }
+        for (int lag = 0; lag <= order; lag++) {
+            double sum = 0;
+            for (int i = lag; i < n; i++) {
+                sum += windowed[i] * windowed[i - lag];
+            }
+            autocorrelation[lag] = sum;
+        }
+        if (autocorrelation[0] == 0) {
+            return false;
+        }
+
+        // Levinson-Durbin recursion, lpc[1..order] predicts x[i] from x[i - j]
+        double error = autocorrelation[0] * (1 + 1e-9);
+        for (int i = 1; i <= order; i++) {
+            lpc[i] = 0;
+        }
+        for (int i = 1; i <= order; i++) {
+            double acc = autocorrelation[i];
+            for (int j = 1; j < i; j++) {
+                acc -= lpc[j] * autocorrelation[i - j];
+            }
+            double k = acc / error;
+            for (int j = 1; j < i; j++) {
+                lpcScratch[j] = lpc[j] - k * lpc[i - j];
+            }
+            for (int j = 1; j < i; j++) {
+                lpc[j] = lpcScratch[j];
+            }
+            lpc[i] = k;
+            error *= 1 - k * k;
+            if (error <= 0) {
+                return false;
+            }
+        }
+
+        double maxCoefficient = 0;
+        for (int i = 1; i <= order; i++) {
+            maxCoefficient = Math.max(maxCoefficient, Math.abs(lpc[i]));
+        }
+        if (maxCoefficient == 0) {
+            return false;
+        }
+        int log2 = Math.getExponent(maxCoefficient) + 1;
+        int shift = LPC_PRECISION - 1 - log2;
+        if (shift > 15) {
+            shift = 15;
+        } else if (shift < 0) {
+            return false;
+        }
+
+        // Quantize with error feedback so the rounding errors do not add up
+        int qmax = (1 << (LPC_PRECISION - 1)) - 1;
+        double carry = 0;
+        for (int i = 0; i < order; i++) {
+            carry += lpc[i + 1] * (1 << shift);
+            long q = Math.round(carry);
+            if (q > qmax) {
+                q = qmax;
+            } else if (q < -qmax - 1) {
+                q = -qmax - 1;
+            }
+            carry -= q;
+            qlp[i] = (int) q;
+        }
+        qlpShift = shift;
+        return true;
+    }
+
+    private void computeLpcResidual(int[] x, int n, int order) {
+        for (int i = order; i < n; i++) {
+            long prediction = 0;
+            for (int j = 0; j < order; j++) {
+                prediction += (long) qlp[j] * x[i - j - 1];
+            }
+            residual[i] = x[i] - (int) (prediction >> qlpShift);
+        }
+    }
+
+    private static int crc8(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= data[i] & 0xFF;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1;
+            }
+            crc &= 0xFF;
+        }
+        return crc;
+    }
+
+    private static int crc16(byte[] data, int length) {
+        int crc = 0;
+        for (int i = 0; i < length; i++) {
+            crc ^= (data[i] & 0xFF) << 8;
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & 0x8000) != 0 ? (crc << 1) ^ 0x8005 : crc << 1;
+            }
+            crc &= 0xFFFF;
+        }
+        return crc;
+    }
+
+    /**
+     * MSB first bit packer over a fixed byte array
+     */
+    private static class BitWriter {
+        final byte[] buffer;
+        private int position = 0;
+        private long accumulator = 0;
+        private int pending = 0;
+
+        BitWriter(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void reset() {
+            position = 0;
+            accumulator = 0;
+            pending = 0;
+        }
+
+        /**
+         * Writes the lowest count bits of value, count must be between 1 and 32
+         */
+        void write(int value, int count) {
+            accumulator = (accumulator << count) | (value & (0xFFFFFFFFL >>> (32 - count)));
+            pending += count;
+            while (pending >= 8) {
+                pending -= 8;
+                buffer[position++] = (byte) (accumulator >>> pending);
+            }
+        }
+
+        /**
+         * Writes value zero bits followed by a one bit
+         */
+        void writeUnary(int value) {
+            while (value >= 31) {
+                write(0, 31);
+                value -= 31;
+            }
+            write(1, value + 1);
+        }
+
+        void alignToByte() {
+            if (pending > 0) {
+                write(0, 8 - pending);
+            }
+        }
+
+        /**
+         * @return The number of complete bytes written
+         */
+        int size() {
+            return position;
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.exelerus.cordova.audioinputcapture;
+
+/**
+ * Fixed size circular buffer that always holds the most recent PCM data.
+ *
+ * Writing never allocates and overwrites the oldest data once the buffer is
+ * full. The capacity is a whole number of frames, so the buffer always starts
+ * at a frame boundary. Not thread safe, it is written and read on the capture
+ * thread.
+ */
+public class PcmRingBuffer {
+
+    private final byte[] buffer;
+    private int writePos = 0;
+    private int size = 0;
+
+    /**
+     * @param capacity
+     *            The size in bytes, rounded down to whole frames
+     * @param frameBytes
+     *            The size of one frame in bytes
+     */
+    public PcmRingBuffer(int capacity, int frameBytes) {
+        this.buffer = new byte[capacity - capacity % frameBytes];
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return The number of bytes currently held
+     */
+    public int size() {
+        return size;
+    }
+
+    public void clear() {
+        writePos = 0;
+        size = 0;
+    }
+
+    /**
+     * Appends data, dropping the oldest bytes if it does not fit
+     */
+    public void write(byte[] data, int offset, int length) {
+        int capacity = buffer.length;
+        if (capacity == 0) {
+            return;
+        }
+        if (length >= capacity) {
+            // Only the tail of the data survives
+            System.arraycopy(data, offset + length - capacity, buffer, 0, capacity);
+            writePos = 0;
+            size = capacity;
+            return;
+        }
+        int first = Math.min(length, capacity - writePos);
+        System.arraycopy(data, offset, buffer, writePos, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+        writePos = (writePos + length) % capacity;
+        size = Math.min(size + length, capacity);
+    }
+
+    /**
+     * Copies the most recent bytes, oldest first
+     *
+     * @param out
+     *            The destination
+     * @param offset
+     *            The position in out to copy to
+     * @param length
+     *            The number of bytes, at most size()
+     * @return The number of bytes copied
+     */
+    public int copyLatest(byte[] out, int offset, int length) {
+        length = Math.min(length, size);
+        int capacity = buffer.length;
+        int start = (writePos - length + capacity) % capacity;
+        int first = Math.min(length, capacity - start);
+        System.arraycopy(buffer, start, out, offset, first);
+        System.arraycopy(buffer, 0, out, offset + first, length - first);
+        return length;
+    }
+
+    /**
+     * @return A copy of everything that is held, oldest first
+     */
+    public byte[] toByteArray() {
+        byte[] out = new byte[size];
+        copyLatest(out, 0, size);
+        return out;
+    }
+}
@@ -0,0 +1,96 @@
+package com.exelerus.cordova.audioinputcapture;
+
+/**
+ * Conversions of the interleaved PCM the plugin captures: unsigned 8-bit,
+ * signed 16-bit little endian or 32-bit float little endian samples. Plain
+ * Java, no Android dependencies.
+ */
+public final class PcmUtils {
+
+    private PcmUtils() {
+    }
+
+    /**
+     * @param data
+     *            The PCM data
+     * @param pos
+     *            The byte position of the sample
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit, 2 for signed 16-bit little endian, 4 for
+     *            32-bit float little endian
+     * @return The sample scaled to -1 .. 1
+     */
+    public static float toFloat(byte[] data, int pos, int bytesPerSample) {
+        if (bytesPerSample == 4) {
+            return readFloat(data, pos);
+        }
+        if (bytesPerSample == 2) {
+            return (short) ((data[pos + 1] << 8) | (data[pos] & 0xFF)) / 32768f;
+        }
+        return ((data[pos] & 0xFF) - 128) / 128f;
+    }
+
+    /**
+     * @return The 32-bit float little endian sample at pos
+     */
+    public static float readFloat(byte[] data, int pos) {
+        return Float.intBitsToFloat((data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16
+                | data[pos + 3] << 24);
+    }
+
+    /**
+     * Stores a 32-bit float little endian sample at pos
+     */
+    public static void writeFloat(byte[] data, int pos, float value) {
+        int bits = Float.floatToRawIntBits(value);
+        data[pos] = (byte) bits;
+        data[pos + 1] = (byte) (bits >> 8);
+        data[pos + 2] = (byte) (bits >> 16);
+        data[pos + 3] = (byte) (bits >> 24);
+    }
+
+    /**
+     * @return The average of all channels of the frame at pos, scaled to -1 .. 1
+     */
+    public static float toMonoFloat(byte[] data, int pos, int channels, int bytesPerSample) {
+        float sample = 0;
+        for (int ch = 0; ch < channels; ch++) {
+            sample += toFloat(data, pos, bytesPerSample);
+            pos += bytesPerSample;
+        }
+        return sample / channels;
+    }
+
+    /**
+     * Formats part of the buffer as a JSON array of samples, 16-bit samples are
+     * combined from their two little endian bytes and float samples are written
+     * as decimals
+     *
+     * @param data
+     *            The PCM data
+     * @param offset
+     *            The position of the first sample
+     * @param end
+     *            The position after the last sample
+     * @param bytesPerSample
+     *            1, 2 or 4
+     */
+    public static String toJsonArray(byte[] data, int offset, int end, int bytesPerSample) {
+        StringBuilder sb = new StringBuilder((end - offset) * 4 + 2);
+        sb.append('[');
+        for (int i = offset; i + bytesPerSample <= end; i += bytesPerSample) {
+            if (i > offset) {
+                sb.append(',');
+            }
+            if (bytesPerSample == 4) {
+                sb.append(readFloat(data, i));
+            } else if (bytesPerSample == 2) {
+                sb.append((short) ((data[i + 1] << 8) | (data[i] & 0xFF)));
+            } else {
+                // 8-bit is unsigned, centred on 128
+                sb.append((data[i] & 0xFF) - 128);
+            }
+        }
+        return sb.append(']').toString();
+    }
+}
@@ -0,0 +1,317 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONObject;
+
+/**
+ * AudioSource that replays the PCM of a WAV file or generates a test signal,
+ * so the whole capture path runs without a microphone and with the same audio
+ * every time.
+ *
+ * With real-time pacing read() returns when the audio it delivers would have
+ * been captured, like the blocking read of an AudioRecord. Without pacing it
+ * returns at once, which measures how fast the pipeline can go. The file must
+ * have the sample rate, channels and sample format of the capture. Plain
+ * Java, no Android dependencies.
+ */
+public class ReplaySource implements AudioSource {
+
+    public static final String PACING_REALTIME = "realtime";
+    public static final String PACING_FAST = "fast";
+
+    public static final double DEFAULT_FREQUENCY = 440;
+    public static final double DEFAULT_AMPLITUDE = 0.5;
+
+    private final int sampleRate;
+    private final int channels;
+    private final int bytesPerSample;
+    private final int frameBytes;
+    private final boolean realtime;
+    private final boolean loop;
+
+    // The file and the position of its audio, null for a generated signal
+    private RandomAccessFile file = null;
+    private long dataStart = 0;
+    private long dataEnd = 0;
+
+    // The generated signal
+    private final double frequency;
+    private final double amplitude;
+    private final double noise;
+    private final Random random;
+    private final long totalFrames;
+
+    private String error = null;
+    private long frames = 0;
+    private long startNanos = 0;
+
+    /**
+     * Replays a WAV file, or RF64 as written by the recordings
+     *
+     * @param wav
+     *            The file to read
+     * @param sampleRate
+     *            The sample rate of the capture
+     * @param channels
+     *            The number of channels of the capture
+     * @param bytesPerSample
+     *            The sample size of the capture, 4 for float
+     * @param realtime
+     *            true to deliver the audio at the pace it was captured
+     * @param loop
+     *            true to start over at the end of the file instead of ending
+     */
+    public ReplaySource(File wav, int sampleRate, int channels, int bytesPerSample, boolean realtime, boolean loop) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameBytes = channels * bytesPerSample;
+        this.realtime = realtime;
+        this.loop = loop;
+        this.frequency = 0;
+        this.amplitude = 0;
+        this.noise = 0;
+        this.random = null;
+        this.totalFrames = 0;
+        try {
+            file = new RandomAccessFile(wav, "r");
+            readHeader();
+        } catch (IOException e) {
+            error = wav + ": " + e.getMessage();
+            release();
+        }
+    }
+
+    /**
+     * Generates a sine with white noise on all channels
+     *
+     * @param frequency
+     *            The frequency of the sine in hertz
+     * @param amplitude
+     *            The peak of the sine, 1 is full scale
+     * @param noise
+     *            The peak of the noise, 1 is full scale
+     * @param seed
+     *            Makes the noise the same for every run
+     * @param seconds
+     *            The length of the signal, 0 for no end
+     * @see #ReplaySource(File, int, int, int, boolean, boolean)
+     */
+    public ReplaySource(int sampleRate, int channels, int bytesPerSample, boolean realtime, double frequency,
+            double amplitude, double noise, long seed, double seconds) {
+        this.sampleRate = sampleRate;
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameBytes = channels * bytesPerSample;
+        this.realtime = realtime;
+        this.loop = false;
+        this.frequency = frequency;
+        this.amplitude = amplitude;
+        this.noise = noise;
+        this.random = new Random(seed);
+        this.totalFrames = (long) (seconds * sampleRate);
+    }
+
+    /**
+     * @param options
+     *            file (path of a WAV file) or frequency, amplitude, noise, seed
+     *            and duration (seconds) of a generated signal, plus pacing
+     *            (PACING_REALTIME or PACING_FAST) and loop
+     */
+    public static ReplaySource create(JSONObject options, int sampleRate, int channels, int bytesPerSample) {
+        boolean realtime = !PACING_FAST.equals(options.optString("pacing", PACING_REALTIME));
+        String path = options.optString("file", "");
+        if (path.length() > 0) {
+            if (path.startsWith("file://")) {
+                path = path.substring("file://".length());
+            }
+            return new ReplaySource(new File(path), sampleRate, channels, bytesPerSample, realtime,
+                    options.optBoolean("loop", false));
+        }
+        return new ReplaySource(sampleRate, channels, bytesPerSample, realtime,
+                options.optDouble("frequency", DEFAULT_FREQUENCY), options.optDouble("amplitude", DEFAULT_AMPLITUDE),
+                options.optDouble("noise", 0), options.optLong("seed", 0), options.optDouble("duration", 0));
+    }
+
+    /**
+     * @return Why the source cannot be started, null if it can
+     */
+    public String getError() {
+        return error;
+    }
+
+    @Override
+    public boolean isInitialised() {
+        return error == null;
+    }
+
+    @Override
+    public void start() {
+        startNanos = System.nanoTime();
+        frames = 0;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (error != null) {
+            return ERROR_DEAD_OBJECT;
+        }
+        length -= length % frameBytes;
+        int n;
+        try {
+            n = file != null ? readFile(buffer, offset, length) : generate(buffer, offset, length);
+        } catch (IOException e) {
+            error = e.getMessage();
+            return ERROR_DEAD_OBJECT;
+        }
+        if (n == 0) {
+            return END_OF_STREAM;
+        }
+        frames += n / frameBytes;
+
+        if (realtime) {
+            // The last frame of this read would have been captured now
+            long due = startNanos + frames * 1000000000L / sampleRate;
+            long wait;
+            while ((wait = due - System.nanoTime()) > 0 && !Thread.currentThread().isInterrupted()) {
+                LockSupport.parkNanos(this, wait);
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public void stop() {
+    }
+
+    @Override
+    public void release() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Only read from
+            }
+            file = null;
+        }
+    }
+
+    private int readFile(byte[] buffer, int offset, int length) throws IOException {
+        int n = 0;
+        while (n < length) {
+            long position = file.getFilePointer();
+            if (position >= dataEnd) {
+                if (!loop || dataEnd == dataStart) {
+                    break;
+                }
+                file.seek(dataStart);
+                continue;
+            }
+            int count = (int) Math.min(length - n, dataEnd - position);
+            file.readFully(buffer, offset + n, count);
+            n += count;
+        }
+        return n - n % frameBytes;
+    }
+
+    private int generate(byte[] buffer, int offset, int length) {
+        int count = length / frameBytes;
+        if (totalFrames > 0) {
+            count = (int) Math.min(count, totalFrames - frames);
+        }
+        double step = 2 * Math.PI * frequency / sampleRate;
+        int pos = offset;
+        for (int i = 0; i < count; i++) {
+            float value = (float) (amplitude * Math.sin(step * ((frames + i) % sampleRate)));
+            for (int ch = 0; ch < channels; ch++) {
+                float sample = value;
+                if (noise > 0) {
+                    sample += (float) (noise * (random.nextDouble() * 2 - 1));
+                }
+                writeSample(buffer, pos, Math.max(-1f, Math.min(1f, sample)));
+                pos += bytesPerSample;
+            }
+        }
+        return count * frameBytes;
+    }
+
+    private void writeSample(byte[] out, int pos, float value) {
+        if (bytesPerSample == 4) {
+            PcmUtils.writeFloat(out, pos, value);
+        } else if (bytesPerSample == 2) {
+            int v = Math.round(value * Short.MAX_VALUE);
+            out[pos] = (byte) v;
+            out[pos + 1] = (byte) (v >> 8);
+        } else {
+            out[pos] = (byte) (Math.round(value * 127) + 128);
+        }
+    }
+
+    /**
+     * Finds the fmt and data chunks and checks the format against the capture
+     */
+    private void readHeader() throws IOException {
+        byte[] bytes = new byte[12];
+        file.readFully(bytes);
+        String id = new String(bytes, 0, 4, "US-ASCII");
+        if (!("RIFF".equals(id) || "RF64".equals(id)) || !"WAVE".equals(new String(bytes, 8, 4, "US-ASCII"))) {
+            throw new IOException("Not a WAV file");
+        }
+
+        long rf64DataSize = -1;
+        boolean format = false;
+        byte[] header = new byte[8];
+        while (file.getFilePointer() + 8 <= file.length()) {
+            file.readFully(header);
+            ByteBuffer chunk = ByteBuffer.wrap(header).order(ByteOrder.LITTLE_ENDIAN);
+            String chunkId = new String(header, 0, 4, "US-ASCII");
+            long size = chunk.getInt(4) & 0xFFFFFFFFL;
+            long body = file.getFilePointer();
+
+            if ("ds64".equals(chunkId)) {
+                byte[] ds64 = new byte[24];
+                file.readFully(ds64);
+                rf64DataSize = ByteBuffer.wrap(ds64).order(ByteOrder.LITTLE_ENDIAN).getLong(8);
+            } else if ("fmt ".equals(chunkId)) {
+                byte[] fmt = new byte[16];
+                file.readFully(fmt);
+                ByteBuffer b = ByteBuffer.wrap(fmt).order(ByteOrder.LITTLE_ENDIAN);
+                int tag = b.getShort(0) & 0xFFFF;
+                int fileChannels = b.getShort(2);
+                int fileRate = b.getInt(4);
+                int bits = b.getShort(14);
+                // WAVE_FORMAT_EXTENSIBLE carries the real tag in its sub format
+                if (tag == 0xFFFE && size >= 26) {
+                    file.seek(body + 24);
+                    tag = (file.read() | file.read() << 8);
+                }
+                boolean isFloat = tag == 3;
+                if ((tag != 1 && tag != 3) || fileChannels != channels || fileRate != sampleRate
+                        || bits != bytesPerSample * 8 || isFloat != (bytesPerSample == 4)) {
+                    throw new IOException("The file has " + fileChannels + " channels, " + fileRate + " Hz, " + bits
+                            + (isFloat ? " bit float" : " bit") + ", which does not match the capture");
+                }
+                format = true;
+            } else if ("data".equals(chunkId)) {
+                if (!format) {
+                    throw new IOException("No fmt chunk ahead of the data");
+                }
+                dataStart = body;
+                long dataSize = size == 0xFFFFFFFFL && rf64DataSize >= 0 ? rf64DataSize : size;
+                dataEnd = Math.min(body + dataSize, file.length());
+                file.seek(dataStart);
+                return;
+            }
+            // Chunks are padded to an even size
+            file.seek(body + size + (size & 1));
+        }
+        throw new IOException("No data chunk");
+    }
+}
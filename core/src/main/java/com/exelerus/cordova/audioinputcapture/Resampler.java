@@ -0,0 +1,263 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.Arrays;
+
+/**
+ * Streaming polyphase FIR resampler for interleaved PCM.
+ *
+ * Converts between any two rates with the ratio reduced to L/M (upsample by L,
+ * low-pass, downsample by M), but only evaluates the filter phase that is needed
+ * for each output frame. The filter history is carried between calls, so
+ * consecutive chunks are resampled as one continuous stream. All working
+ * buffers are allocated up front, process() itself does not allocate as long as
+ * the chunk size does not grow.
+ */
+public class Resampler {
+
+    // Filter length in input samples per unit of max(L, M) / L, higher means a steeper
+    // transition band at the cost of more multiply-adds per output sample
+    private static final int TAPS_PER_RATIO = 32;
+
+    // Cutoff relative to the Nyquist frequency of the lower of the two rates
+    private static final double CUTOFF = 0.9;
+
+    private final int inputRate;
+    private final int outputRate;
+    private final int channels;
+    private final int bytesPerSample;
+    private final int frameBytes;
+
+    private final int upFactor;
+    private final int downFactor;
+    private final int taps;
+    private final float[][] coefficients;
+
+    // Per channel: (taps - 1) samples of history followed by the samples of the current chunk
+    private float[][] work;
+    private int maxFrames = 0;
+
+    // Position of the next output frame, as an input frame index relative to the current
+    // chunk and a filter phase
+    private int inputIndex = 0;
+    private int phase = 0;
+
+    /**
+     * @param inputRate
+     *            The sample rate of the data passed to process()
+     * @param outputRate
+     *            The sample rate to produce
+     * @param channels
+     *            The number of interleaved channels
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit PCM, 2 for signed 16-bit little endian PCM,
+     *            4 for 32-bit float little endian
+     * @param maxInputBytes
+     *            The largest chunk that will be passed to process(), used to size
+     *            the working buffers
+     */
+    public Resampler(int inputRate, int outputRate, int channels, int bytesPerSample, int maxInputBytes) {
+        if (inputRate <= 0 || outputRate <= 0) {
+            throw new IllegalArgumentException("Invalid sample rate");
+        }
+        if (bytesPerSample != 1 && bytesPerSample != 2 && bytesPerSample != 4) {
+            throw new IllegalArgumentException("Unsupported sample size: " + bytesPerSample);
+        }
+
+        this.inputRate = inputRate;
+        this.outputRate = outputRate;
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameBytes = channels * bytesPerSample;
+
+        int divisor = gcd(inputRate, outputRate);
+        this.upFactor = outputRate / divisor;
+        this.downFactor = inputRate / divisor;
+
+        int ratio = Math.max(upFactor, downFactor);
+        this.taps = (TAPS_PER_RATIO * ratio + upFactor - 1) / upFactor;
+        this.coefficients = designFilter(upFactor, taps, CUTOFF * 0.5 / ratio);
+
+        ensureCapacity(maxInputBytes / frameBytes);
+    }
+
+    public int getInputRate() {
+        return inputRate;
+    }
+
+    public int getOutputRate() {
+        return outputRate;
+    }
+
+    /**
+     * @param inputBytes
+     *            The size of an input chunk in bytes
+     * @return The largest number of bytes process() can produce for it
+     */
+    public int getMaxOutputBytes(int inputBytes) {
+        long frames = (long) (inputBytes / frameBytes) * upFactor / downFactor + 1;
+        return (int) frames * frameBytes;
+    }
+
+    /**
+     * Clears the filter history, the next chunk is treated as the start of a new
+     * stream
+     */
+    public void reset() {
+        for (float[] channel : work) {
+            Arrays.fill(channel, 0, taps - 1, 0f);
+        }
+        inputIndex = 0;
+        phase = 0;
+    }
+
+    /**
+     * Resamples one chunk of interleaved PCM
+     *
+     * @param in
+     *            The input buffer
+     * @param inLength
+     *            The number of valid bytes in the input buffer, trailing bytes
+     *            that do not form a full frame are ignored
+     * @param out
+     *            The output buffer, must hold at least
+     *            getMaxOutputBytes(inLength) bytes
+     * @return The number of bytes written to out
+     */
+    public int process(byte[] in, int inLength, byte[] out) {
+        int frames = inLength / frameBytes;
+        ensureCapacity(frames);
+
+        int history = taps - 1;
+        for (int ch = 0; ch < channels; ch++) {
+            float[] x = work[ch];
+            int pos = ch * bytesPerSample;
+            for (int i = 0; i < frames; i++, pos += frameBytes) {
+                x[history + i] = readSample(in, pos);
+            }
+        }
+
+        int ip = inputIndex;
+        int ph = phase;
+        int outPos = 0;
+        while (ip < frames) {
+            float[] c = coefficients[ph];
+            int base = history + ip;
+            for (int ch = 0; ch < channels; ch++) {
+                float[] x = work[ch];
+                float acc = 0f;
+                for (int k = 0; k < taps; k++) {
+                    acc += c[k] * x[base - k];
+                }
+                writeSample(out, outPos, acc);
+                outPos += bytesPerSample;
+            }
+
+            ph += downFactor;
+            ip += ph / upFactor;
+            ph %= upFactor;
+        }
+        inputIndex = ip - frames;
+        phase = ph;
+
+        // Keep the tail of this chunk as history for the next one
+        for (int ch = 0; ch < channels; ch++) {
+            System.arraycopy(work[ch], frames, work[ch], 0, history);
+        }
+
+        return outPos;
+    }
+
+    private float readSample(byte[] in, int pos) {
+        if (bytesPerSample == 4) {
+            return PcmUtils.readFloat(in, pos);
+        }
+        if (bytesPerSample == 2) {
+            return (short) ((in[pos + 1] << 8) | (in[pos] & 0xFF));
+        }
+        return (in[pos] & 0xFF) - 128;
+    }
+
+    private void writeSample(byte[] out, int pos, float value) {
+        if (bytesPerSample == 4) {
+            PcmUtils.writeFloat(out, pos, value);
+            return;
+        }
+        int v = (int) (value >= 0f ? value + 0.5f : value - 0.5f);
+        if (bytesPerSample == 2) {
+            if (v > Short.MAX_VALUE) {
+                v = Short.MAX_VALUE;
+            } else if (v < Short.MIN_VALUE) {
+                v = Short.MIN_VALUE;
+            }
+            out[pos] = (byte) v;
+            out[pos + 1] = (byte) (v >> 8);
+        } else {
+            if (v > 127) {
+                v = 127;
+            } else if (v < -128) {
+                v = -128;
+            }
+            out[pos] = (byte) (v + 128);
+        }
+    }
+
+    private void ensureCapacity(int frames) {
+        if (frames <= maxFrames) {
+            return;
+        }
+        float[][] grown = new float[channels][taps - 1 + frames];
+        if (work != null) {
+            for (int ch = 0; ch < channels; ch++) {
+                System.arraycopy(work[ch], 0, grown[ch], 0, taps - 1);
+            }
+        }
+        work = grown;
+        maxFrames = frames;
+    }
+
+    /**
+     * Designs a Blackman windowed-sinc low-pass prototype of length phases * taps
+     * and splits it into its polyphase components
+     *
+     * @param phases
+     *            The interpolation factor L
+     * @param taps
+     *            The number of taps per phase
+     * @param cutoff
+     *            The cutoff frequency in cycles per sample at the upsampled rate
+     * @return coefficients[phase][tap]
+     */
+    private static float[][] designFilter(int phases, int taps, double cutoff) {
+        int length = phases * taps;
+        double center = (length - 1) / 2.0;
+        double[] h = new double[length];
+        double sum = 0;
+        for (int n = 0; n < length; n++) {
+            double t = n - center;
+            double sinc = t == 0 ? 2 * cutoff : Math.sin(2 * Math.PI * cutoff * t) / (Math.PI * t);
+            double window = 0.42 - 0.5 * Math.cos(2 * Math.PI * n / (length - 1))
+                    + 0.08 * Math.cos(4 * Math.PI * n / (length - 1));
+            h[n] = sinc * window;
+            sum += h[n];
+        }
+
+        // Unity DC gain for each output sample, which means a total gain of L for the prototype
+        double scale = phases / sum;
+        float[][] coefficients = new float[phases][taps];
+        for (int p = 0; p < phases; p++) {
+            for (int k = 0; k < taps; k++) {
+                coefficients[p][k] = (float) (h[p + k * phases] * scale);
+            }
+        }
+        return coefficients;
+    }
+
+    private static int gcd(int a, int b) {
+        while (b != 0) {
+            int t = a % b;
+            a = b;
+            b = t;
+        }
+        return a;
+    }
+}
@@ -0,0 +1,215 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+
+/**
+ * Converts interleaved PCM into 32-bit float samples scaled to -1 .. 1, so the
+ * delivered audio needs no further work in JS.
+ *
+ * A fixed gain is applied first. The optional automatic gain control follows
+ * the RMS level of the signal and moves its gain towards the one that brings
+ * the level to the target, quickly down (attack) and slowly up (release),
+ * never beyond the maximum gain. On silence it holds its gain, so a pause
+ * does not turn up the noise floor before the next sound. The optional
+ * limiter keeps the peaks below the ceiling: it reduces the gain at once when
+ * a frame would exceed it and recovers over the release time. All channels of
+ * a frame share the same gain, so the stereo image is kept. process() does not
+ * allocate as long as the output buffer stays the same.
+ */
+public class SampleProcessor {
+
+    public static final double DEFAULT_AGC_TARGET_DB = -20;
+    public static final double DEFAULT_AGC_MAX_GAIN_DB = 30;
+    public static final int DEFAULT_AGC_ATTACK_MS = 10;
+    public static final int DEFAULT_AGC_RELEASE_MS = 1000;
+    public static final double DEFAULT_LIMITER_CEILING_DB = -1;
+    public static final int DEFAULT_LIMITER_RELEASE_MS = 50;
+
+    // Time constant of the level the automatic gain control follows
+    private static final int AGC_LEVEL_MS = 100;
+
+    // Frames below this level are silence, the automatic gain control holds on them
+    private static final double AGC_SILENCE_DB = -60;
+
+    private final int channels;
+    private final int bytesPerSample;
+    private final int frameBytes;
+    private final float gain;
+
+    private final boolean agc;
+    private final float agcTarget;
+    private final float agcMaxGain;
+    private final float agcAttack;
+    private final float agcRelease;
+    private final float agcLevelCoefficient;
+    private final float agcSilence;
+    private float agcLevel = 0f;
+    private float agcGain = 1f;
+
+    private final boolean limiter;
+    private final float limiterCeiling;
+    private final float limiterRelease;
+    private float limiterGain = 1f;
+
+    // Float view of the last output buffer, replaced only when the buffer changes
+    private byte[] outArray = null;
+    private FloatBuffer outFloats = null;
+
+    /**
+     * @param sampleRate
+     *            The sample rate in hertz
+     * @param channels
+     *            The number of interleaved channels
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit PCM, 2 for signed 16-bit little endian PCM,
+     *            4 for 32-bit float
+     * @param gain
+     *            The fixed gain, 1 keeps the level
+     */
+    public SampleProcessor(int sampleRate, int channels, int bytesPerSample, float gain) {
+        this(sampleRate, channels, bytesPerSample, gain, false, 0, 0, 0, 0, false, 0, 0);
+    }
+
+    /**
+     * @param agc
+     *            Enables the automatic gain control
+     * @param agcTargetDb
+     *            The RMS level in dBFS it aims for
+     * @param agcMaxGainDb
+     *            The most it amplifies
+     * @param agcAttackMs
+     *            How fast the gain goes down
+     * @param agcReleaseMs
+     *            How fast the gain goes up
+     * @param limiter
+     *            Enables the limiter
+     * @param ceilingDb
+     *            The highest peak in dBFS the limiter lets through
+     * @param limiterReleaseMs
+     *            How fast the limiter recovers
+     * @see #SampleProcessor(int, int, int, float)
+     */
+    public SampleProcessor(int sampleRate, int channels, int bytesPerSample, float gain, boolean agc,
+            double agcTargetDb, double agcMaxGainDb, int agcAttackMs, int agcReleaseMs, boolean limiter,
+            double ceilingDb, int limiterReleaseMs) {
+        if (bytesPerSample != 1 && bytesPerSample != 2 && bytesPerSample != 4) {
+            throw new IllegalArgumentException("Unsupported sample size: " + bytesPerSample);
+        }
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameBytes = channels * bytesPerSample;
+        this.gain = gain;
+
+        this.agc = agc;
+        this.agcTarget = (float) fromDb(agcTargetDb);
+        this.agcMaxGain = (float) fromDb(agcMaxGainDb);
+        this.agcAttack = coefficient(agcAttackMs, sampleRate);
+        this.agcRelease = coefficient(agcReleaseMs, sampleRate);
+        this.agcLevelCoefficient = coefficient(AGC_LEVEL_MS, sampleRate);
+        // Compared with the power of a frame
+        this.agcSilence = (float) fromDb(2 * AGC_SILENCE_DB);
+
+        this.limiter = limiter;
+        this.limiterCeiling = (float) fromDb(ceilingDb);
+        this.limiterRelease = coefficient(limiterReleaseMs, sampleRate);
+    }
+
+    /**
+     * @return true if process() only converts, e.g. to pass float input through
+     */
+    public boolean isNeutral() {
+        return gain == 1f && !agc && !limiter;
+    }
+
+    /**
+     * @param inputBytes
+     *            The size of an input chunk in bytes
+     * @return The number of bytes process() produces for it
+     */
+    public int getOutputBytes(int inputBytes) {
+        return inputBytes / frameBytes * channels * 4;
+    }
+
+    /**
+     * Converts one chunk of interleaved PCM
+     *
+     * @param in
+     *            The input buffer
+     * @param inLength
+     *            The number of valid bytes in the input buffer, trailing bytes
+     *            that do not form a full frame are ignored
+     * @param out
+     *            The output buffer, receives 32-bit float little endian samples
+     *            and must hold at least getOutputBytes(inLength) bytes
+     * @return The number of bytes written to out
+     */
+    public int process(byte[] in, int inLength, byte[] out) {
+        if (out != outArray) {
+            outArray = out;
+            outFloats = ByteBuffer.wrap(out).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer();
+        }
+        FloatBuffer floats = outFloats;
+        int frames = inLength / frameBytes;
+        int pos = 0;
+        int outIndex = 0;
+        for (int i = 0; i < frames; i++) {
+            float peak = 0f;
+            float power = 0f;
+            for (int ch = 0; ch < channels; ch++) {
+                float sample = PcmUtils.toFloat(in, pos, bytesPerSample) * gain;
+                pos += bytesPerSample;
+                floats.put(outIndex + ch, sample);
+                power += sample * sample;
+                float magnitude = Math.abs(sample);
+                if (magnitude > peak) {
+                    peak = magnitude;
+                }
+            }
+
+            float frameGain = 1f;
+            if (agc) {
+                float framePower = power / channels;
+                if (framePower >= agcSilence) {
+                    agcLevel += (framePower - agcLevel) * agcLevelCoefficient;
+                    float wanted = agcLevel > 0f ? agcTarget / (float) Math.sqrt(agcLevel) : agcMaxGain;
+                    if (wanted > agcMaxGain) {
+                        wanted = agcMaxGain;
+                    }
+                    agcGain += (wanted - agcGain) * (wanted < agcGain ? agcAttack : agcRelease);
+                }
+                frameGain = agcGain;
+            }
+            if (limiter) {
+                limiterGain += (1f - limiterGain) * limiterRelease;
+                if (peak * frameGain * limiterGain > limiterCeiling) {
+                    limiterGain = limiterCeiling / (peak * frameGain);
+                }
+                frameGain *= limiterGain;
+            }
+            if (frameGain != 1f) {
+                for (int ch = 0; ch < channels; ch++) {
+                    floats.put(outIndex + ch, floats.get(outIndex + ch) * frameGain);
+                }
+            }
+            outIndex += channels;
+        }
+        return outIndex * 4;
+    }
+
+    /**
+     * @return The per sample smoothing coefficient of a one pole filter with the
+     *         given time constant
+     */
+    private static float coefficient(int ms, int sampleRate) {
+        if (ms <= 0) {
+            return 1f;
+        }
+        return (float) (1 - Math.exp(-1000.0 / (ms * (double) sampleRate)));
+    }
+
+    private static double fromDb(double db) {
+        return Math.pow(10, db / 20);
+    }
+}
@@ -0,0 +1,87 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free byte ring for exactly one producer and one consumer thread.
+ *
+ * The producer only moves the tail, the consumer only moves the head, each
+ * publishes its position with an ordered store after copying, so neither side
+ * ever waits for the other. The capacity is a power of two so positions wrap
+ * with a mask.
+ */
+public class SpscByteRing {
+
+    private final byte[] buffer;
+    private final int mask;
+    private final AtomicLong head = new AtomicLong(0);
+    private final AtomicLong tail = new AtomicLong(0);
+
+    /**
+     * @param minCapacity
+     *            The smallest capacity in bytes, rounded up to a power of two
+     */
+    public SpscByteRing(int minCapacity) {
+        int capacity = Integer.highestOneBit(Math.max(minCapacity, 2) - 1) << 1;
+        this.buffer = new byte[capacity];
+        this.mask = capacity - 1;
+    }
+
+    public int getCapacity() {
+        return buffer.length;
+    }
+
+    /**
+     * @return The number of bytes that can be read, exact on the consumer thread
+     *         and a lower bound elsewhere
+     */
+    public int size() {
+        return (int) (tail.get() - head.get());
+    }
+
+    /**
+     * Appends the data if it fits as a whole, producer thread only
+     *
+     * @return false if there was not enough room, nothing was written
+     */
+    public boolean offer(byte[] data, int offset, int length) {
+        long t = tail.get();
+        if (length > buffer.length - (t - head.get())) {
+            return false;
+        }
+        int pos = (int) (t & mask);
+        int first = Math.min(length, buffer.length - pos);
+        System.arraycopy(data, offset, buffer, pos, first);
+        System.arraycopy(data, offset + first, buffer, 0, length - first);
+        tail.lazySet(t + length);
+        return true;
+    }
+
+    /**
+     * Reads up to length bytes, consumer thread only
+     *
+     * @return The number of bytes read
+     */
+    public int poll(byte[] out, int offset, int length) {
+        long h = head.get();
+        length = (int) Math.min(length, tail.get() - h);
+        int pos = (int) (h & mask);
+        int first = Math.min(length, buffer.length - pos);
+        System.arraycopy(buffer, pos, out, offset, first);
+        System.arraycopy(buffer, 0, out, offset + first, length - first);
+        head.lazySet(h + length);
+        return length;
+    }
+
+    /**
+     * Discards up to length bytes, consumer thread only
+     *
+     * @return The number of bytes discarded
+     */
+    public int skip(int length) {
+        long h = head.get();
+        length = (int) Math.min(length, tail.get() - h);
+        head.lazySet(h + length);
+        return length;
+    }
+}
@@ -0,0 +1,201 @@
+package com.exelerus.cordova.audioinputcapture;
+
+/**
+ * Decides per chunk whether the captured audio contains speech, so silent
+ * chunks do not have to be delivered or recorded.
+ *
+ * The audio is cut into frames of about 20 ms. A frame counts as speech when
+ * its level is a margin above the tracked noise floor and its spectrum is not
+ * flat (noise has a spectral flatness close to 1, voiced speech a lot lower).
+ * The gate opens after attackMs of consecutive speech frames and closes once
+ * hangoverMs have passed without one. Speech start and end are reported with
+ * the index of the first and last sample, counted in frames since capture
+ * started. Every buffer is allocated in the constructor.
+ */
+public class VoiceActivityDetector {
+
+    /**
+     * Called on the capture thread while a chunk is processed
+     */
+    public interface Listener {
+        void onSpeechStart(long sample);
+
+        void onSpeechEnd(long sample);
+    }
+
+    public static final double DEFAULT_THRESHOLD_DB = 10;
+    public static final double DEFAULT_FLATNESS = 0.4;
+    public static final int DEFAULT_ATTACK_MS = 30;
+    public static final int DEFAULT_HANGOVER_MS = 300;
+
+    // Frames below this level are never speech, whatever the noise floor
+    private static final double MIN_LEVEL_DB = -60;
+    private static final double NOISE_ADAPTATION = 0.05;
+
+    private final int channels;
+    private final int bytesPerSample;
+    private final int frameSize;
+    private final double thresholdDb;
+    private final double maxFlatness;
+    private final int attackFrames;
+    private final int hangoverFrames;
+    private final Listener listener;
+
+    private final AudioAnalyzer.RealFft fft;
+    private final float[] window;
+    private final float[] frame;
+    private final float[] spectrum;
+    private int frameFill = 0;
+
+    private double noiseFloorDb = Double.NaN;
+    private long samplePosition = 0;
+    private boolean speaking = false;
+    private int speechRun = 0;
+    private int silenceRun = 0;
+    private long speechRunStart = 0;
+    private long lastSpeechEnd = 0;
+
+    /**
+     * @param sampleRate
+     *            The sample rate in hertz
+     * @param channels
+     *            The number of interleaved channels
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit PCM, 2 for signed 16-bit little endian PCM,
+     *            4 for 32-bit float little endian
+     * @param thresholdDb
+     *            How far above the noise floor a frame must be to count as speech
+     * @param maxFlatness
+     *            The largest spectral flatness (0-1) of a speech frame
+     * @param attackMs
+     *            How long speech must last before the gate opens
+     * @param hangoverMs
+     *            How long the gate stays open after the last speech frame
+     * @param listener
+     *            Receives speech start and end, may be null
+     */
+    public VoiceActivityDetector(int sampleRate, int channels, int bytesPerSample, double thresholdDb,
+            double maxFlatness, int attackMs, int hangoverMs, Listener listener) {
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.frameSize = Math.max(Integer.highestOneBit(sampleRate / 50), 16);
+        this.thresholdDb = thresholdDb;
+        this.maxFlatness = maxFlatness;
+        this.attackFrames = Math.max(1, (int) Math.ceil((double) attackMs * sampleRate / 1000 / frameSize));
+        this.hangoverFrames = Math.max(1, (int) Math.ceil((double) hangoverMs * sampleRate / 1000 / frameSize));
+        this.listener = listener;
+
+        this.fft = new AudioAnalyzer.RealFft(frameSize);
+        this.frame = new float[frameSize];
+        this.spectrum = new float[frameSize / 2 + 1];
+        this.window = new float[frameSize];
+        for (int i = 0; i < frameSize; i++) {
+            window[i] = (float) (0.5 - 0.5 * Math.cos(2 * Math.PI * i / frameSize));
+        }
+    }
+
+    /**
+     * Analyzes a chunk of interleaved PCM
+     *
+     * @return true if the gate was open at any point during the chunk, i.e. the
+     *         chunk should be passed on
+     */
+    public boolean process(byte[] data, int length) {
+        boolean open = speaking;
+        int frameBytes = channels * bytesPerSample;
+        int frames = length / frameBytes;
+
+        for (int i = 0; i < frames; i++) {
+            frame[frameFill++] = PcmUtils.toMonoFloat(data, i * frameBytes, channels, bytesPerSample);
+            samplePosition++;
+
+            if (frameFill == frameSize) {
+                frameFill = 0;
+                classifyFrame();
+                open |= speaking;
+            }
+        }
+        return open;
+    }
+
+    public boolean isSpeaking() {
+        return speaking;
+    }
+
+    /**
+     * @return The number of samples per channel processed so far
+     */
+    public long getSamplePosition() {
+        return samplePosition;
+    }
+
+    private void classifyFrame() {
+        long frameStart = samplePosition - frameSize;
+        boolean speech = isSpeechFrame();
+
+        if (speech) {
+            if (speechRun == 0) {
+                speechRunStart = frameStart;
+            }
+            speechRun++;
+            silenceRun = 0;
+            lastSpeechEnd = samplePosition;
+            if (!speaking && speechRun >= attackFrames) {
+                speaking = true;
+                if (listener != null) {
+                    listener.onSpeechStart(speechRunStart);
+                }
+            }
+        } else {
+            speechRun = 0;
+            silenceRun++;
+            if (speaking && silenceRun >= hangoverFrames) {
+                speaking = false;
+                if (listener != null) {
+                    listener.onSpeechEnd(lastSpeechEnd - 1);
+                }
+            }
+        }
+    }
+
+    private boolean isSpeechFrame() {
+        double energy = 0;
+        for (int i = 0; i < frameSize; i++) {
+            energy += frame[i] * frame[i];
+            frame[i] *= window[i];
+        }
+        double levelDb = 10 * Math.log10(energy / frameSize + 1e-12);
+
+        if (Double.isNaN(noiseFloorDb)) {
+            noiseFloorDb = levelDb;
+        }
+
+        boolean loud = levelDb > MIN_LEVEL_DB && levelDb > noiseFloorDb + thresholdDb;
+        boolean speech = loud && spectralFlatness() < maxFlatness;
+
+        // The noise floor follows quiet frames slowly and drops immediately
+        if (levelDb < noiseFloorDb) {
+            noiseFloorDb = levelDb;
+        } else if (!speech) {
+            noiseFloorDb += NOISE_ADAPTATION * (levelDb - noiseFloorDb);
+        }
+        return speech;
+    }
+
+    /**
+     * @return The ratio of the geometric to the arithmetic mean of the power
+     *         spectrum, without the DC bin
+     */
+    private double spectralFlatness() {
+        fft.powerSpectrum(frame, spectrum);
+        double logSum = 0;
+        double sum = 0;
+        int bins = spectrum.length - 1;
+        for (int k = 1; k <= bins; k++) {
+            double power = spectrum[k] + 1e-12;
+            logSum += Math.log(power);
+            sum += power;
+        }
+        return Math.exp(logSum / bins) / (sum / bins);
+    }
+}
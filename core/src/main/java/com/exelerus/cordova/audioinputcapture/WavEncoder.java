@@ -0,0 +1,182 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Plain RIFF/WAVE output, the PCM data is written as is.
+ *
+ * 32-bit float is written as WAVE_FORMAT_IEEE_FLOAT, which as a non-PCM format
+ * has the cbSize field in its fmt chunk and a fact chunk with the sample count.
+ *
+ * In RF64 mode the header reserves room for a ds64 chunk in the form of a JUNK
+ * chunk. A recording that stays below 4 GB remains a normal WAV file, a larger
+ * one is turned into RF64 (EBU Tech 3306) when the header is completed, with the
+ * 64 bit sizes in the ds64 chunk.
+ */
+public class WavEncoder implements AudioEncoder {
+
+    private static final int BASE_HEADER_SIZE = 44;
+    private static final int DS64_CHUNK_SIZE = 36;
+    // cbSize plus the fact chunk
+    private static final int FLOAT_EXTRA_SIZE = 2 + 12;
+
+    // WAVs cannot be > 4 GB due to the use of 32 bit unsigned integers.
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+    private final short channels;
+    private final int sampleRate;
+    private final short bitDepth;
+    private final int frameBytes;
+    private final boolean rf64;
+    private final boolean isFloat;
+    private final int headerSize;
+    // Where the fact chunk holds the sample count, float only
+    private final int factPosition;
+
+    private long dataSize = 0;
+    private boolean limitReached = false;
+
+    /**
+     * @param channels
+     *            The number of channels
+     * @param sampleRate
+     *            The sample rate in hertz
+     * @param bitDepth
+     *            The bit depth, 32 for float
+     * @param rf64
+     *            Allow the file to grow beyond 4 GB by switching to RF64
+     */
+    public WavEncoder(int channels, int sampleRate, int bitDepth, boolean rf64) {
+        this.channels = (short) channels;
+        this.sampleRate = sampleRate;
+        this.bitDepth = (short) bitDepth;
+        this.frameBytes = channels * (bitDepth / 8);
+        this.rf64 = rf64;
+        this.isFloat = bitDepth == 32;
+        this.headerSize = BASE_HEADER_SIZE + (isFloat ? FLOAT_EXTRA_SIZE : 0) + (rf64 ? DS64_CHUNK_SIZE : 0);
+        this.factPosition = headerSize - 12;
+    }
+
+    /**
+     * @return The largest amount of PCM data a plain WAV file of any sample
+     *         format can hold
+     */
+    public static long getMaxDataSize() {
+        return MAX_RIFF_SIZE - (BASE_HEADER_SIZE + FLOAT_EXTRA_SIZE - 8);
+    }
+
+    @Override
+    public ByteBuffer createHeader() {
+        ByteBuffer header = ByteBuffer.allocate(headerSize).order(ByteOrder.LITTLE_ENDIAN);
+        // RIFF header
+        header.put(new byte[] { 'R', 'I', 'F', 'F' }); // ChunkID
+        header.putInt(0); // ChunkSize (must be updated later)
+        header.put(new byte[] { 'W', 'A', 'V', 'E' }); // Format
+        if (rf64) {
+            // Placeholder that becomes the ds64 chunk if the file grows beyond 4 GB
+            header.put(new byte[] { 'J', 'U', 'N', 'K' });
+            header.putInt(DS64_CHUNK_SIZE - 8);
+            header.put(new byte[DS64_CHUNK_SIZE - 8]);
+        }
+        // fmt subchunk
+        header.put(new byte[] { 'f', 'm', 't', ' ' }); // Subchunk1ID
+        header.putInt(isFloat ? 18 : 16); // Subchunk1Size
+        header.putShort((short) (isFloat ? 3 : 1)); // AudioFormat, PCM or IEEE float
+        header.putShort(channels); // NumChannels
+        header.putInt(sampleRate); // SampleRate
+        header.putInt(sampleRate * channels * (bitDepth / 8)); // ByteRate
+        header.putShort((short) (channels * (bitDepth / 8))); // BlockAlign
+        header.putShort(bitDepth); // BitsPerSample
+        if (isFloat) {
+            header.putShort((short) 0); // cbSize, no extension
+            // fact subchunk
+            header.put(new byte[] { 'f', 'a', 'c', 't' });
+            header.putInt(4);
+            header.putInt(0); // SampleLength per channel (must be updated later)
+        }
+        // data subchunk
+        header.put(new byte[] { 'd', 'a', 't', 'a' }); // Subchunk2ID
+        header.putInt(0); // Subchunk2Size (must be updated later)
+        header.flip();
+        return header;
+    }
+
+    @Override
+    public void encode(byte[] data, int offset, int length, Output out) throws IOException {
+        if (!rf64) {
+            long room = MAX_RIFF_SIZE - (headerSize - 8) - dataSize;
+            if (length > room) {
+                // Cut off at the last whole frame that still fits
+                length = (int) (room - room % frameBytes);
+                limitReached = true;
+            }
+        }
+        if (length > 0) {
+            out.write(data, offset, length);
+            dataSize += length;
+        }
+    }
+
+    @Override
+    public void finish(Output out) {
+        // Nothing is buffered
+    }
+
+    /**
+     * Updates the header to include the final chunk sizes. The whole header is
+     * rewritten in a single positioned write.
+     */
+    @Override
+    public void updateHeader(FileChannel channel, long fileSize) throws IOException {
+        AudioFileWriter.writeFully(channel, completeHeader(fileSize), 0);
+    }
+
+    /**
+     * @return The header with the chunk sizes of a file of fileSize bytes
+     */
+    public ByteBuffer completeHeader(long fileSize) {
+        long riffSize = fileSize - 8;
+        long dataSize = fileSize - headerSize;
+        ByteBuffer header = createHeader();
+
+        if (riffSize <= MAX_RIFF_SIZE) {
+            // ChunkSize and Subchunk2Size, the casts keep the unsigned 32 bit value
+            header.putInt(4, (int) riffSize);
+            header.putInt(headerSize - 4, (int) dataSize);
+            if (isFloat) {
+                header.putInt(factPosition, (int) (dataSize / frameBytes));
+            }
+        } else {
+            // Beyond 4 GB, only possible in RF64 mode: the 32 bit sizes are set to -1 and
+            // the real ones go into the ds64 chunk that replaces the JUNK placeholder
+            header.put(0, (byte) 'R').put(1, (byte) 'F').put(2, (byte) '6').put(3, (byte) '4');
+            header.putInt(4, -1);
+            header.put(12, (byte) 'd').put(13, (byte) 's').put(14, (byte) '6').put(15, (byte) '4');
+            header.putLong(20, riffSize);
+            header.putLong(28, dataSize);
+            header.putLong(36, dataSize / frameBytes); // sample count, in place of the fact chunk's
+            header.putInt(44, 0); // table length
+            header.putInt(headerSize - 4, -1);
+            if (isFloat) {
+                header.putInt(factPosition, -1);
+            }
+        }
+        return header;
+    }
+
+    /**
+     * The header only holds sizes, so it is completed the same way as at the end
+     */
+    @Override
+    public void updateProgress(FileChannel channel, long fileSize) throws IOException {
+        updateHeader(channel, fileSize);
+    }
+
+    @Override
+    public boolean isLimitReached() {
+        return limitReached;
+    }
+}
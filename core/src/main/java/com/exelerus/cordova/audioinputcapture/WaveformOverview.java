@@ -0,0 +1,395 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Builds the waveform overview of a recording while it is written, and reads
+ * any range of it back.
+ *
+ * The overview has three levels with a min, max and RMS value per bin of 256,
+ * 4096 and 65536 frames. All channels of a frame go into the same bin. The
+ * sidecar file (rec.peaks for rec.wav) starts with a 32 byte little endian
+ * header: "AIWF", uint8 version, uint8 channels, uint8 levels, uint8 reserved,
+ * uint32 sample rate, uint32 frames per bin of the first level, uint32 factor
+ * between the levels, uint64 frames covered and uint32 reserved.
+ *
+ * After the header come pages of 65536 frames each: 256 bins of the first
+ * level, 16 of the second and 1 of the third. Every bin is an int16 min, max
+ * and RMS scaled to full scale. The position of any bin follows from its
+ * index, so a range is read without scanning, and only the page being filled
+ * is kept in memory however long the recording gets.
+ */
+public class WaveformOverview {
+
+    public static final String EXTENSION = ".peaks";
+
+    public static final int HEADER_SIZE = 32;
+    public static final int LEVELS = 3;
+    public static final int BASE_BIN_FRAMES = 256;
+    public static final int LEVEL_FACTOR = 16;
+
+    private static final int VERSION = 1;
+    private static final int BIN_BYTES = 6;
+
+    // Bins of each level in a page and where they start in it
+    private static final int[] PAGE_BINS = { 256, 16, 1 };
+    private static final int[] PAGE_OFFSETS = { 0, 256 * BIN_BYTES, 272 * BIN_BYTES };
+    private static final int PAGE_BYTES = 273 * BIN_BYTES;
+    private static final int PAGE_FRAMES = 65536;
+
+    private final File file;
+    private final int channels;
+    private final int bytesPerSample;
+    private final int sampleRate;
+
+    // Only used on the writer thread
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private final ByteBuffer page = ByteBuffer.allocate(PAGE_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+    private long pageIndex = 0;
+    private long frames = 0;
+
+    // The bin being filled on each level
+    private final float[] min = new float[LEVELS];
+    private final float[] max = new float[LEVELS];
+    private final double[] squares = new double[LEVELS];
+    private final long[] count = new long[LEVELS];
+    private final long[] bins = new long[LEVELS];
+
+    /**
+     * @param file
+     *            The sidecar to write, see overviewFile()
+     * @param channels
+     *            The number of interleaved channels
+     * @param bytesPerSample
+     *            1 for unsigned 8-bit PCM, 2 for signed 16-bit little endian PCM,
+     *            4 for 32-bit float little endian
+     * @param sampleRate
+     *            The sample rate in hertz, only stored in the header
+     */
+    public WaveformOverview(File file, int channels, int bytesPerSample, int sampleRate) {
+        this.file = file;
+        this.channels = channels;
+        this.bytesPerSample = bytesPerSample;
+        this.sampleRate = sampleRate;
+        for (int level = 0; level < LEVELS; level++) {
+            resetBin(level);
+        }
+    }
+
+    /**
+     * @return The sidecar for an audio file, e.g. rec.peaks for rec.wav
+     */
+    public static File overviewFile(File file) {
+        String name = file.getName();
+        if (name.endsWith(EXTENSION)) {
+            return file;
+        }
+        int dot = name.lastIndexOf('.');
+        String base = dot > 0 ? name.substring(0, dot) : name;
+        return new File(file.getParentFile(), base + EXTENSION);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Creates or truncates the file, called on the writer thread
+     */
+    public void open() throws IOException {
+        raf = new RandomAccessFile(file, "rw");
+        raf.setLength(0);
+        channel = raf.getChannel();
+        writeHeader(0);
+    }
+
+    /**
+     * Adds PCM data to the overview, trailing bytes that do not form a full
+     * frame are ignored
+     */
+    public void process(byte[] data, int offset, int length) throws IOException {
+        int frameBytes = channels * bytesPerSample;
+        int end = offset + length - length % frameBytes;
+        for (int pos = offset; pos < end;) {
+            for (int ch = 0; ch < channels; ch++, pos += bytesPerSample) {
+                float sample = PcmUtils.toFloat(data, pos, bytesPerSample);
+                if (sample < min[0]) {
+                    min[0] = sample;
+                }
+                if (sample > max[0]) {
+                    max[0] = sample;
+                }
+                squares[0] += sample * sample;
+            }
+            frames++;
+            if (++count[0] == BASE_BIN_FRAMES) {
+                closeBin(0);
+            }
+        }
+    }
+
+    /**
+     * Writes the complete bins of the first level to the file and what the
+     * coarser levels hold of them, so the overview survives a crash up to this
+     * point
+     */
+    public void checkpoint() throws IOException {
+        if (frames % PAGE_FRAMES >= BASE_BIN_FRAMES) {
+            putOpenBins();
+            writePage();
+        }
+        writeHeader(frames - count[0]);
+        channel.force(false);
+    }
+
+    /**
+     * Writes the partly filled bins and closes the file
+     */
+    public void finish() throws IOException {
+        // Each one feeds the next level, the last one writes the page
+        for (int level = 0; level < LEVELS; level++) {
+            if (count[level] > 0) {
+                closeBin(level);
+            }
+        }
+        writeHeader(frames);
+        close();
+    }
+
+    /**
+     * Releases the file, e.g. after an error
+     */
+    public void close() {
+        if (raf != null) {
+            try {
+                raf.close();
+            } catch (IOException e) {
+                // Nothing more to write
+            }
+            raf = null;
+        }
+    }
+
+    /**
+     * Stores the finished bin of a level in the page and passes it on to the
+     * next level
+     */
+    private void closeBin(int level) throws IOException {
+        putBin(level, bins[level]++, min[level], max[level], squares[level], count[level]);
+
+        if (level + 1 < LEVELS) {
+            int next = level + 1;
+            min[next] = Math.min(min[next], min[level]);
+            max[next] = Math.max(max[next], max[level]);
+            squares[next] += squares[level];
+            count[next] += count[level];
+            resetBin(level);
+            if (count[next] == binFrames(next)) {
+                closeBin(next);
+            }
+        } else {
+            resetBin(level);
+            // The last level has one bin per page
+            writePage();
+            Arrays.fill(page.array(), (byte) 0);
+            pageIndex++;
+        }
+    }
+
+    /**
+     * Stores the bins the coarser levels are still filling in the page, with the
+     * closed bins below them so far. A checkpoint then reads right on every level
+     * up to the frames it covers, closeBin() overwrites them later.
+     */
+    private void putOpenBins() {
+        float binMin = Float.MAX_VALUE;
+        float binMax = -Float.MAX_VALUE;
+        double binSquares = 0;
+        long binCount = 0;
+        for (int level = 1; level < LEVELS; level++) {
+            binMin = Math.min(binMin, min[level]);
+            binMax = Math.max(binMax, max[level]);
+            binSquares += squares[level];
+            binCount += count[level];
+            if (binCount > 0) {
+                putBin(level, bins[level], binMin, binMax, binSquares, binCount);
+            }
+        }
+    }
+
+    private void putBin(int level, long index, float binMin, float binMax, double binSquares, long binCount) {
+        float rms = (float) Math.sqrt(binSquares / (binCount * channels));
+        int position = PAGE_OFFSETS[level] + (int) (index % PAGE_BINS[level]) * BIN_BYTES;
+        page.putShort(position, toShort(binMin));
+        page.putShort(position + 2, toShort(binMax));
+        page.putShort(position + 4, toShort(rms));
+    }
+
+    /**
+     * @return The number of frames in a bin of the level
+     */
+    private static long binFrames(int level) {
+        long frames = BASE_BIN_FRAMES;
+        for (int i = 0; i < level; i++) {
+            frames *= LEVEL_FACTOR;
+        }
+        return frames;
+    }
+
+    private void resetBin(int level) {
+        min[level] = Float.MAX_VALUE;
+        max[level] = -Float.MAX_VALUE;
+        squares[level] = 0;
+        count[level] = 0;
+    }
+
+    /**
+     * Writes the page being filled
+     */
+    private void writePage() throws IOException {
+        page.clear();
+        AudioFileWriter.writeFully(channel, page, HEADER_SIZE + pageIndex * PAGE_BYTES);
+    }
+
+    private void writeHeader(long coveredFrames) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put((byte) 'A').put((byte) 'I').put((byte) 'W').put((byte) 'F');
+        header.put((byte) VERSION).put((byte) channels).put((byte) LEVELS).put((byte) 0);
+        header.putInt(sampleRate);
+        header.putInt(BASE_BIN_FRAMES);
+        header.putInt(LEVEL_FACTOR);
+        header.putLong(coveredFrames);
+        header.putInt(0);
+        header.flip();
+        AudioFileWriter.writeFully(channel, header, 0);
+    }
+
+    private static short toShort(float value) {
+        int v = Math.round(value * Short.MAX_VALUE);
+        return (short) Math.max(Math.min(v, Short.MAX_VALUE), -Short.MAX_VALUE);
+    }
+
+    /**
+     * Reads a range of the overview, taken from the coarsest level that still
+     * has at least the requested number of bins. Works while the recording is
+     * in progress up to its last checkpoint.
+     *
+     * @param file
+     *            The sidecar or the audio file it belongs to
+     * @param start
+     *            The first frame, counted from the start of the recording
+     * @param end
+     *            The frame after the range, -1 or beyond the recording for all
+     *            of it
+     * @param binCount
+     *            The most bins to return
+     * @return sampleRate, channels, frames (of the recording), start, end,
+     *         samplesPerBin and the min, max and rms arrays in -1 .. 1
+     */
+    public static JSONObject read(File file, long start, long end, int binCount) throws IOException, JSONException {
+        RandomAccessFile raf = new RandomAccessFile(overviewFile(file), "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+            readFully(channel, header, 0);
+            if (header.get(0) != 'A' || header.get(1) != 'I' || header.get(2) != 'W' || header.get(3) != 'F'
+                    || header.get(4) != VERSION) {
+                throw new IOException("Not a waveform overview: " + file);
+            }
+            int sampleRate = header.getInt(8);
+            long frames = header.getLong(20);
+
+            start = Math.max(start, 0);
+            end = end < 0 ? frames : Math.min(end, frames);
+            binCount = Math.max(binCount, 1);
+
+            JSONArray mins = new JSONArray();
+            JSONArray maxs = new JSONArray();
+            JSONArray rmss = new JSONArray();
+            double samplesPerBin = 0;
+            if (end > start) {
+                // The coarsest level with bins no larger than the requested ones
+                long wanted = (end - start) / binCount;
+                int level = 0;
+                while (level + 1 < LEVELS && binFrames(level + 1) <= wanted) {
+                    level++;
+                }
+                long levelFrames = binFrames(level);
+                long first = start / levelFrames;
+                long last = (end + levelFrames - 1) / levelFrames;
+                int out = (int) Math.min(binCount, last - first);
+                samplesPerBin = (double) (end - start) / out;
+
+                // Runs of bins are contiguous within a page
+                ByteBuffer run = ByteBuffer.allocate(PAGE_BINS[0] * BIN_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                long index = first;
+                for (int i = 0; i < out; i++) {
+                    long to = first + (last - first) * (i + 1) / out;
+                    float binMin = Float.MAX_VALUE;
+                    float binMax = -Float.MAX_VALUE;
+                    double binSquares = 0;
+                    int n = 0;
+                    while (index < to) {
+                        long pageIndex = index / PAGE_BINS[level];
+                        int slot = (int) (index % PAGE_BINS[level]);
+                        int length = (int) Math.min(to - index, PAGE_BINS[level] - slot);
+                        run.clear();
+                        run.limit(length * BIN_BYTES);
+                        readFully(channel, run,
+                                HEADER_SIZE + pageIndex * PAGE_BYTES + PAGE_OFFSETS[level] + slot * BIN_BYTES);
+                        for (int k = 0; k < length; k++) {
+                            float rms = run.getShort(k * BIN_BYTES + 4) / (float) Short.MAX_VALUE;
+                            binMin = Math.min(binMin, run.getShort(k * BIN_BYTES) / (float) Short.MAX_VALUE);
+                            binMax = Math.max(binMax, run.getShort(k * BIN_BYTES + 2) / (float) Short.MAX_VALUE);
+                            binSquares += rms * rms;
+                            n++;
+                        }
+                        index += length;
+                    }
+                    mins.put((double) binMin);
+                    maxs.put((double) binMax);
+                    rmss.put(Math.sqrt(binSquares / n));
+                }
+            }
+
+            JSONObject result = new JSONObject();
+            result.put("sampleRate", sampleRate);
+            result.put("channels", header.get(5));
+            result.put("frames", frames);
+            result.put("start", start);
+            result.put("end", Math.max(end, start));
+            result.put("samplesPerBin", samplesPerBin);
+            result.put("min", mins);
+            result.put("max", maxs);
+            result.put("rms", rmss);
+            return result;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer, position);
+            if (n < 0) {
+                // Bins of a page that was not written yet read as silence
+                while (buffer.hasRemaining()) {
+                    buffer.put((byte) 0);
+                }
+                return;
+            }
+            position += n;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The FFT path of the analysis mode: one power spectrum on its own, and the
+ * analysis of a 20 ms chunk of 44.1 kHz stereo with the FFTs and mel bands it
+ * completes
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AudioAnalyzerBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+
+    @Param({ "512", "2048" })
+    public int fftSize;
+
+    private AudioAnalyzer.RealFft fft;
+    private float[] input;
+    private float[] power;
+
+    private AudioAnalyzer analyzer;
+    private byte[] chunk;
+
+    @Setup
+    public void setUp() {
+        fft = new AudioAnalyzer.RealFft(fftSize);
+        input = Signals.decode(Signals.noise(0.5, 1, fftSize, 1, 4), 0, fftSize * 4, 1, 0, 4);
+        power = new float[fftSize / 2 + 1];
+
+        analyzer = new AudioAnalyzer(SAMPLE_RATE, 2, 2, fftSize, 24, AudioAnalyzer.SCALE_MEL, 50,
+                new AudioAnalyzer.Listener() {
+                    @Override
+                    public void onFeatures(AudioAnalyzer analyzer) {
+                    }
+                });
+        chunk = Signals.noise(0.5, 2, SAMPLE_RATE / 50, 2, 2);
+    }
+
+    @Benchmark
+    public float[] powerSpectrum() {
+        fft.powerSpectrum(input, power);
+        return power;
+    }
+
+    @Benchmark
+    public float analyzeChunk() {
+        analyzer.process(chunk, chunk.length);
+        return analyzer.getRms();
+    }
+}
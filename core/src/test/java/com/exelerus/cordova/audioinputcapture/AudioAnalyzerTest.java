@@ -0,0 +1,48 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class AudioAnalyzerTest {
+
+    @Test
+    public void fftMatchesADirectDft() {
+        int size = 256;
+        float[] input = Signals.decode(Signals.noise(0.5, 9, size, 1, 4), 0, size * 4, 1, 0, 4);
+        float[] power = new float[size / 2 + 1];
+        new AudioAnalyzer.RealFft(size).powerSpectrum(input, power);
+
+        for (int k = 0; k <= size / 2; k++) {
+            double re = 0;
+            double im = 0;
+            for (int n = 0; n < size; n++) {
+                re += input[n] * Math.cos(2 * Math.PI * k * n / size);
+                im -= input[n] * Math.sin(2 * Math.PI * k * n / size);
+            }
+            double expected = re * re + im * im;
+            assertEquals("bin " + k, expected, power[k], 1e-3 * Math.max(expected, 1));
+        }
+    }
+
+    @Test
+    public void reportsLevelsOfASine() {
+        final float[] features = new float[3];
+        AudioAnalyzer analyzer = new AudioAnalyzer(16000, 1, 2, 512, 16, AudioAnalyzer.SCALE_MEL, 100,
+                new AudioAnalyzer.Listener() {
+                    @Override
+                    public void onFeatures(AudioAnalyzer analyzer) {
+                        features[0] = analyzer.getRms();
+                        features[1] = analyzer.getPeak();
+                        features[2] = analyzer.getZeroCrossingRate();
+                    }
+                });
+        byte[] sine = Signals.sine(1000, 0.5, 16000, 1600, 1, 2);
+        analyzer.process(sine, sine.length);
+
+        assertEquals(0.5 / Math.sqrt(2), features[0], 0.005);
+        assertEquals(0.5, features[1], 0.005);
+        // Two crossings per period
+        assertEquals(2000.0 / 16000, features[2], 0.01);
+    }
+}
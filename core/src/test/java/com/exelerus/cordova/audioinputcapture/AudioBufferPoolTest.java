@@ -0,0 +1,43 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+public class AudioBufferPoolTest {
+
+    @Test
+    public void handsOutEachChunkOnceUntilReleased() {
+        AudioBufferPool pool = new AudioBufferPool(2, 128);
+        AudioBufferPool.Chunk a = pool.acquire();
+        AudioBufferPool.Chunk b = pool.acquire();
+        assertNotNull(a);
+        assertNotNull(b);
+        assertNull(pool.acquire());
+        assertEquals(0, pool.available());
+
+        a.length = 100;
+        a.release();
+        assertEquals(1, pool.available());
+        AudioBufferPool.Chunk again = pool.acquire();
+        assertSame(a, again);
+        assertEquals(0, again.length);
+        assertEquals(128, again.data.length);
+    }
+
+    @Test
+    public void sharedChunksReturnWithTheLastRelease() {
+        AudioBufferPool pool = new AudioBufferPool(1, 16);
+        AudioBufferPool.Chunk chunk = pool.acquire();
+        chunk.retain();
+        chunk.retain();
+        chunk.release();
+        chunk.release();
+        assertEquals(0, pool.available());
+        chunk.release();
+        assertEquals(1, pool.available());
+    }
+}
@@ -0,0 +1,76 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Time to record 32 MB of 16-bit WAV in 16 KB chunks, from the first write to
+ * the closed file, through the memory mapped or the stream writer
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class AudioFileWriterBenchmark {
+
+    private static final int CHUNK_BYTES = 16 * 1024;
+    private static final int CHUNKS = 2048;
+
+    @Param({ "false", "true" })
+    public boolean mapped;
+
+    private byte[] chunk;
+    private AudioEncoder.Factory wav;
+    private File file;
+
+    @Setup
+    public void setUp() throws IOException {
+        chunk = Signals.noise(0.5, 1, CHUNK_BYTES / 2, 1, 2);
+        wav = new AudioEncoder.Factory() {
+            @Override
+            public AudioEncoder createEncoder() {
+                return new WavEncoder(1, 44100, 16, false);
+            }
+        };
+        file = File.createTempFile("benchmark", ".wav");
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Benchmark
+    public long record() throws InterruptedException {
+        AudioFileWriter writer = new AudioFileWriter(file, wav, 2, 0, CHUNK_BYTES, 64,
+                AudioFileWriter.DEFAULT_FLUSH_INTERVAL_MS, null);
+        writer.setMapped(mapped);
+        writer.start();
+        for (int i = 0; i < CHUNKS; i++) {
+            // Wait for the writer instead of counting a dropped chunk
+            while (!writer.write(chunk, CHUNK_BYTES)) {
+                Thread.yield();
+            }
+        }
+        writer.finish();
+        writer.join();
+        return writer.getBytesWritten();
+    }
+}
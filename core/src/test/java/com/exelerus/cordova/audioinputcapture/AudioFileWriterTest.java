@@ -0,0 +1,114 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AudioFileWriterTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int CHUNK_BYTES = 3200;
+    private static final int CHUNKS = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final AtomicReference<IOException> error = new AtomicReference<IOException>();
+
+    @Test
+    public void mappedSegmentsMatchTheStreamedOnes() throws Exception {
+        AudioEncoder.Factory wav = factory(-1, false);
+        List<File> streamed = record(new File(folder.newFolder(), "rec.wav"), wav, false, 50000);
+        List<File> mapped = record(new File(folder.newFolder(), "rec.wav"), wav, true, 50000);
+        assertNull(error.get());
+
+        // 128000 bytes of audio in segments of 50000
+        assertEquals(3, streamed.size());
+        assertEquals(streamed.size(), mapped.size());
+        for (int i = 0; i < streamed.size(); i++) {
+            byte[] expected = Files.readAllBytes(streamed.get(i).toPath());
+            assertEquals(44 + (i < 2 ? 50000 : 28000), expected.length);
+            assertArrayEquals(expected, Files.readAllBytes(mapped.get(i).toPath()));
+        }
+    }
+
+    @Test
+    public void mappedFileIsCutBackWhenItCannotBeCompleted() throws Exception {
+        File file = record(folder.newFile("rec.wav"), factory(-1, true), true, 0).get(0);
+        assertNotNull(error.get());
+        // No zeros of the preallocated extent behind the data
+        assertEquals(44 + CHUNKS * CHUNK_BYTES, file.length());
+    }
+
+    @Test
+    public void mappedFileIsCutBackWhenEncodingFails() throws Exception {
+        File file = record(folder.newFile("rec.wav"), factory(10, false), true, 0).get(0);
+        assertNotNull(error.get());
+        assertEquals(44 + 10 * CHUNK_BYTES, file.length());
+    }
+
+    private List<File> record(File file, AudioEncoder.Factory factory, boolean mapped, long segmentBytes)
+            throws InterruptedException {
+        AudioFileWriter writer = new AudioFileWriter(file, factory, 2, segmentBytes, CHUNK_BYTES, CHUNKS,
+                AudioFileWriter.DEFAULT_FLUSH_INTERVAL_MS, new AudioFileWriter.Listener() {
+                    @Override
+                    public void onRecordingFinished(AudioFileWriter writer, IOException e) {
+                        error.set(e);
+                    }
+                });
+        writer.setMapped(mapped);
+        writer.start();
+        for (int i = 0; i < CHUNKS; i++) {
+            assertTrue(writer.write(Signals.ramp(i * CHUNK_BYTES / 2, CHUNK_BYTES / 2, 1), CHUNK_BYTES));
+        }
+        writer.finish();
+        writer.join();
+        return writer.getFiles();
+    }
+
+    /**
+     * @param failingChunk
+     *            The chunk whose encoding fails, -1 for none
+     * @param failHeader
+     *            true if completing the header fails
+     */
+    private static AudioEncoder.Factory factory(final int failingChunk, final boolean failHeader) {
+        return new AudioEncoder.Factory() {
+            @Override
+            public AudioEncoder createEncoder() {
+                return new WavEncoder(1, SAMPLE_RATE, 16, false) {
+                    private int chunks = 0;
+
+                    @Override
+                    public void encode(byte[] data, int offset, int length, Output out) throws IOException {
+                        if (chunks++ == failingChunk) {
+                            throw new IOException("No space left on device");
+                        }
+                        super.encode(data, offset, length, out);
+                    }
+
+                    @Override
+                    public void updateHeader(FileChannel channel, long fileSize) throws IOException {
+                        if (failHeader) {
+                            throw new IOException("I/O error");
+                        }
+                        super.updateHeader(channel, fileSize);
+                    }
+                };
+            }
+        };
+    }
+}
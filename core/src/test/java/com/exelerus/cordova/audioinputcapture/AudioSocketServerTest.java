@@ -0,0 +1,227 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Streams audio frames to a WebSocket client on the loopback interface and
+ * checks the handshake, the frame header and the throughput
+ */
+public class AudioSocketServerTest {
+
+    // The example of RFC 6455
+    private static final String KEY = "dGhlIHNhbXBsZSBub25jZQ==";
+    private static final String ACCEPT = "s3pPLMBiTxaQ9kYGzzhZRbK+xOo=";
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int CHANNELS = 2;
+    private static final int FRAME_BYTES = 16384;
+    private static final int FRAMES = 2000;
+
+    // 48 kHz stereo float, the largest stream the capture produces
+    private static final double REAL_TIME_BYTES_PER_SECOND = SAMPLE_RATE * CHANNELS * 4;
+
+    private AudioSocketServer server;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new AudioSocketServer(null);
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        server.close();
+        server.join();
+    }
+
+    @Test
+    public void rejectsAClientWithoutTheToken() throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        try {
+            String response = handshake(socket, "/audio?token=0000");
+            assertTrue(response, response.startsWith("HTTP/1.1 403"));
+        } finally {
+            socket.close();
+        }
+        assertFalse(server.isConnected());
+        assertFalse(server.sendAudio(2, 1, 0, SAMPLE_RATE, 0, 0, 0, new byte[4], 4));
+    }
+
+    @Test
+    public void streamsFramesFasterThanRealTime() throws Exception {
+        final Socket socket = new Socket("127.0.0.1", server.getPort());
+        try {
+            String response = handshake(socket, "/audio?token=" + server.getToken());
+            assertTrue(response, response.startsWith("HTTP/1.1 101"));
+            assertTrue(response, response.contains("Sec-WebSocket-Accept: " + ACCEPT + "\r\n"));
+            awaitConnection();
+
+            final byte[] audio = Signals.ramp(0, FRAME_BYTES / 2, 1);
+            final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+            Thread client = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        DataInputStream in = new DataInputStream(socket.getInputStream());
+                        byte[] payload = new byte[AudioSocketServer.HEADER_SIZE + FRAME_BYTES];
+                        for (int i = 0; i < FRAMES; i++) {
+                            assertEquals(0x82, in.readUnsignedByte());
+                            assertEquals(126, in.readUnsignedByte());
+                            assertEquals(payload.length, in.readUnsignedShort());
+                            in.readFully(payload);
+
+                            assertEquals(AudioSocketServer.VERSION, payload[0]);
+                            assertEquals(2, payload[1]);
+                            assertEquals(CHANNELS, payload[2]);
+                            assertEquals(i == 0 ? AudioSocketServer.FLAG_DISCONTINUITY : 0, payload[3]);
+                            assertEquals(SAMPLE_RATE, Signals.readInt(payload, 4));
+                            assertEquals(i, Signals.readInt(payload, 8));
+                            assertEquals(i * 1000, Signals.readInt(payload, 16));
+                            assertEquals(i * FRAME_BYTES / 4, Signals.readInt(payload, 24));
+                            assertEquals(Signals.readShort(audio, FRAME_BYTES - 2),
+                                    Signals.readShort(payload, payload.length - 2));
+                        }
+                    } catch (Throwable e) {
+                        failure.set(e);
+                    }
+                }
+            };
+            client.start();
+
+            long start = System.nanoTime();
+            for (int i = 0; i < FRAMES; i++) {
+                int flags = i == 0 ? AudioSocketServer.FLAG_DISCONTINUITY : 0;
+                assertTrue(server.sendAudio(2, CHANNELS, flags, SAMPLE_RATE, i, i * 1000L, (long) i * FRAME_BYTES / 4,
+                        audio, FRAME_BYTES));
+            }
+            client.join(30000);
+            double seconds = (System.nanoTime() - start) / 1e9;
+            if (failure.get() != null) {
+                throw new AssertionError(failure.get());
+            }
+            assertFalse(client.isAlive());
+
+            double bytesPerSecond = (double) FRAMES * FRAME_BYTES / seconds;
+            assertTrue(bytesPerSecond + " B/s", bytesPerSecond > 20 * REAL_TIME_BYTES_PER_SECOND);
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void answersPingAndClose() throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        try {
+            handshake(socket, "/audio?token=" + server.getToken());
+            awaitConnection();
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            byte[] mask = { 1, 2, 3, 4 };
+            byte[] ping = "hi".getBytes("US-ASCII");
+            out.write(new byte[] { (byte) 0x89, (byte) (0x80 | ping.length) });
+            out.write(mask);
+            for (int i = 0; i < ping.length; i++) {
+                out.write(ping[i] ^ mask[i]);
+            }
+            out.flush();
+            assertEquals(0x8A, in.readUnsignedByte());
+            assertEquals(ping.length, in.readUnsignedByte());
+            byte[] pong = new byte[ping.length];
+            in.readFully(pong);
+            assertArrayEquals(ping, pong);
+
+            out.write(new byte[] { (byte) 0x88, (byte) 0x80 });
+            out.write(mask);
+            out.flush();
+            assertEquals(0x88, in.readUnsignedByte());
+            assertEquals(0, in.readUnsignedByte());
+            assertEquals(-1, in.read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    @Test
+    public void idleClientDoesNotHoldUpTheNext() throws Exception {
+        // Connects and never sends its request
+        Socket idle = new Socket("127.0.0.1", server.getPort());
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        try {
+            long start = System.nanoTime();
+            String response = handshake(socket, "/audio?token=" + server.getToken());
+            assertTrue(response, response.startsWith("HTTP/1.1 101"));
+            awaitConnection();
+            // Well within the two seconds the idle one is given
+            long ms = (System.nanoTime() - start) / 1000000;
+            assertTrue(ms + " ms", ms < 1000);
+        } finally {
+            socket.close();
+            idle.close();
+        }
+    }
+
+    @Test
+    public void closesOnAnUnmaskedFrame() throws Exception {
+        Socket socket = new Socket("127.0.0.1", server.getPort());
+        try {
+            handshake(socket, "/audio?token=" + server.getToken());
+            awaitConnection();
+            OutputStream out = socket.getOutputStream();
+            DataInputStream in = new DataInputStream(socket.getInputStream());
+
+            out.write(new byte[] { (byte) 0x89, 2, 'h', 'i' });
+            out.flush();
+            // Close with 1002, protocol error, instead of a pong
+            assertEquals(0x88, in.readUnsignedByte());
+            assertEquals(2, in.readUnsignedByte());
+            assertEquals(1002, in.readUnsignedShort());
+            assertEquals(-1, in.read());
+        } finally {
+            socket.close();
+        }
+    }
+
+    private static String handshake(Socket socket, String path) throws IOException {
+        OutputStream out = socket.getOutputStream();
+        out.write(("GET " + path + " HTTP/1.1\r\nHost: 127.0.0.1\r\nUpgrade: websocket\r\nConnection: Upgrade\r\n"
+                + "Sec-WebSocket-Key: " + KEY + "\r\nSec-WebSocket-Version: 13\r\n\r\n").getBytes("US-ASCII"));
+        out.flush();
+
+        InputStream in = socket.getInputStream();
+        ByteArrayOutputStream response = new ByteArrayOutputStream();
+        int last = 0;
+        int b;
+        while (last != 0x0D0A0D0A && (b = in.read()) >= 0) {
+            response.write(b);
+            last = last << 8 | b;
+        }
+        return new String(response.toByteArray(), "US-ASCII");
+    }
+
+    /**
+     * The server takes the connection right after it sent the response
+     */
+    private void awaitConnection() throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!server.isConnected() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertTrue(server.isConnected());
+    }
+}
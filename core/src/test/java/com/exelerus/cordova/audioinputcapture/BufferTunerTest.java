@@ -0,0 +1,154 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Feeds the tuner the read timestamps of a simulated device, one window of a
+ * second at a time
+ */
+public class BufferTunerTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int FRAME_BYTES = 2;
+    private static final long WINDOW_NANOS = 1000000000L;
+
+    // 10 ms, the minimum chunk
+    private static final int MIN_READ = 160;
+    // 100 ms, the latency budget
+    private static final int MAX_READ = 1600;
+
+    private final Random random = new Random(3);
+
+    private BufferTuner tuner;
+    private long frames = 0;
+    private long lostNanos = 0;
+    private long windowStart = 0;
+
+    @Test
+    public void steadyReadsShrinkAfterCalmWindows() throws Exception {
+        start(8000);
+        assertEquals(MAX_READ, tuner.getReadBytes());
+        // The first window only warms up
+        window(0, 0);
+        window(0, 0);
+        window(0, 0);
+        assertEquals(MAX_READ, tuner.getReadBytes());
+        window(0, 0);
+        assertEquals(1200, tuner.getReadBytes());
+
+        calmDown();
+        assertEquals(MIN_READ, tuner.getReadBytes());
+        assertEquals(0, tuner.toJSON().getLong("overruns"));
+    }
+
+    @Test
+    public void lostReadIsAnOverrun() throws Exception {
+        start(8000);
+        calmDown();
+        assertEquals(MIN_READ, tuner.getReadBytes());
+
+        // The device drops a read, every later one returns that much later
+        lostNanos += 10000000L;
+        window(0, 0);
+        window(0, 0);
+        assertEquals(1, tuner.toJSON().getLong("overruns"));
+        assertEquals(2 * MIN_READ, tuner.getReadBytes());
+
+        calmDown();
+        assertEquals(1, tuner.toJSON().getLong("overruns"));
+        assertEquals(MIN_READ, tuner.getReadBytes());
+    }
+
+    @Test
+    public void jitterGrowsTheReads() throws Exception {
+        start(8000);
+        calmDown();
+
+        // More than half of the 490 ms the buffer absorbs at the minimum chunk
+        int[] expected = { 320, 640, 1280, MAX_READ, MAX_READ };
+        for (int bytes : expected) {
+            window(300, 0);
+            assertEquals(bytes, tuner.getReadBytes());
+        }
+        assertEquals(0, tuner.toJSON().getLong("overruns"));
+    }
+
+    @Test
+    public void queuedBatchesRaiseTheBatchLatencyWithinTheBudget() throws Exception {
+        start(8000);
+        calmDown();
+        assertEquals(0, tuner.getBatchLatency());
+
+        int[] expected = { 10, 20, 40, 80, 90, 90 };
+        for (int latency : expected) {
+            window(0, 2);
+            assertEquals(latency, tuner.getBatchLatency());
+        }
+
+        // Longer reads leave less of the budget to the batches
+        lostNanos += 10000000L;
+        window(0, 2);
+        window(0, 2);
+        assertEquals(2 * MIN_READ, tuner.getReadBytes());
+        assertEquals(80, tuner.getBatchLatency());
+
+        // An empty queue halves it again once the reads are calm
+        for (int i = 0; i < 3 * 3; i++) {
+            window(0, 0);
+        }
+        assertTrue(tuner.getBatchLatency() < 80);
+    }
+
+    @Test
+    public void bufferOfOneReadDoesNotPinTheReads() throws Exception {
+        // A buffer of a single read at the maximum would leave no headroom at all
+        start(MAX_READ);
+        assertEquals(MAX_READ / 2, tuner.getReadBytes());
+        calmDown();
+        assertEquals(MIN_READ, tuner.getReadBytes());
+    }
+
+    private void start(int bufferBytes) {
+        tuner = new BufferTuner(SAMPLE_RATE, FRAME_BYTES, 2 * MAX_READ, bufferBytes, 100, 10, 0);
+        tuner.start(0);
+    }
+
+    /**
+     * Enough calm windows to get from the largest read to the smallest
+     */
+    private void calmDown() {
+        for (int i = 0; i < 40; i++) {
+            window(0, 0);
+        }
+    }
+
+    /**
+     * Reads until the tuner closes its window, as it does with the first read a
+     * second or more after the last one it closed
+     *
+     * @param jitterMs
+     *            The most a read returns late
+     * @param queueDepth
+     *            The batches waiting for delivery during every read
+     */
+    private void window(int jitterMs, int queueDepth) {
+        while (true) {
+            int bytes = tuner.getReadBytes();
+            frames += bytes / FRAME_BYTES;
+            long nanos = frames * 1000000000L / SAMPLE_RATE + lostNanos;
+            if (jitterMs > 0) {
+                nanos += random.nextInt(jitterMs * 1000) * 1000L;
+            }
+            tuner.onRead(bytes, nanos, queueDepth);
+            if (nanos - windowStart >= WINDOW_NANOS) {
+                windowStart = nanos;
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.lang.management.ManagementFactory;
+
+import org.json.JSONObject;
+import org.junit.Test;
+
+/**
+ * Runs CaptureLoop with a generated source, pre-roll, capture store, voice
+ * activity gate, resampled delivery and analysis, and counts what the capture
+ * thread allocates once it runs in its steady state
+ */
+public class CaptureLoopAllocationTest {
+
+    private static final int SAMPLE_RATE = 48000;
+    private static final int READ_BYTES = 3840;
+
+    private static final int WARM_UP_CHUNKS = 10000;
+    private static final int CHUNKS = 5000;
+
+    // Slack for the counter itself, a single chunk sized array is bigger
+    private static final long TOLERANCE = 1024;
+
+    @Test
+    public void steadyStateAllocatesNothing() throws Exception {
+        java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        assumeTrue(threads instanceof com.sun.management.ThreadMXBean);
+        final com.sun.management.ThreadMXBean counter = (com.sun.management.ThreadMXBean) threads;
+        assumeTrue(counter.isThreadAllocatedMemorySupported());
+        counter.setThreadAllocatedMemoryEnabled(true);
+        final long thread = Thread.currentThread().getId();
+
+        CaptureLoop loop = new CaptureLoop(SAMPLE_RATE, 1, 2, READ_BYTES, 5 * READ_BYTES, new LoopListener());
+        loop.setDeliverySampleRate(16000);
+        loop.setPreRoll(1);
+        loop.setCaptureBuffer(1);
+        loop.setVad(new JSONObject());
+        loop.setAnalysis(new JSONObject());
+
+        // Runs on the capture thread, brackets the measured blocks and then stops the loop
+        final long[] allocated = new long[2];
+        final int[] blocks = { 0 };
+        loop.addSink("probe", new AudioSink() {
+            @Override
+            public void process(AudioBufferPool.Chunk block) {
+                blocks[0]++;
+                if (blocks[0] == WARM_UP_CHUNKS) {
+                    allocated[0] = counter.getThreadAllocatedBytes(thread);
+                } else if (blocks[0] == WARM_UP_CHUNKS + CHUNKS) {
+                    allocated[1] = counter.getThreadAllocatedBytes(thread);
+                    Thread.currentThread().interrupt();
+                }
+            }
+
+            @Override
+            public void idle() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, false, 0, null, 0);
+
+        loop.run(new ReplaySource(SAMPLE_RATE, 1, 2, false, 440, 0.5, 0.1, 1, 0));
+        // Cleared so the rest of the test thread is not affected
+        Thread.interrupted();
+
+        assertEquals(WARM_UP_CHUNKS + CHUNKS, blocks[0]);
+        long bytes = allocated[1] - allocated[0];
+        assertTrue(bytes + " bytes allocated over " + CHUNKS + " chunks", bytes < TOLERANCE);
+    }
+}
@@ -0,0 +1,191 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Runs the capture loop against a replayed ramp, every sample of which tells
+ * its own position
+ */
+public class CaptureLoopTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int FRAME_BYTES = 2;
+    private static final int READ_FRAMES = 160;
+    private static final int FRAMES = 3 * SAMPLE_RATE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final byte[] pcm = Signals.ramp(0, FRAMES, 1);
+    private final LoopListener listener = new LoopListener();
+
+    @Test
+    public void deliversEveryCapturedFrame() throws Exception {
+        CaptureLoop loop = createLoop();
+        loop.run(replay());
+
+        assertEquals(FRAMES, listener.getEvents("sourceEnded").get(0).getLong("frames"));
+        assertArrayEquals(pcm, listener.awaitDelivered(pcm.length));
+        assertTrue(listener.getErrors().isEmpty());
+    }
+
+    @Test
+    public void recordsUntilTheSourceEnds() throws Exception {
+        CaptureLoop loop = createLoop();
+        loop.startRecording(folder.getRoot().getPath(), "rec.wav", new JSONObject());
+        loop.run(replay());
+
+        JSONObject finished = listener.awaitEvents("recordingFinished", 1).get(0);
+        assertEquals(0, finished.getLong("firstSample"));
+        assertEquals(FRAMES - 1, finished.getLong("lastSample"));
+        assertArrayEquals(pcm, readData(new File(finished.getString("file"))));
+    }
+
+    @Test
+    public void startsAndStopsAtTheRequestedSamples() throws Exception {
+        // Both fall in the middle of a read
+        int start = 6 * READ_FRAMES + 40;
+        int stop = 31 * READ_FRAMES + 3;
+        CaptureLoop loop = createLoop();
+        loop.startRecording(folder.getRoot().getPath(), "rec.wav", new JSONObject().put("atSample", start));
+        loop.finishRecording(new JSONObject().put("atSample", stop));
+        loop.run(replay());
+
+        JSONObject finished = listener.awaitEvents("recordingFinished", 1).get(0);
+        assertEquals(start, finished.getLong("firstSample"));
+        // The stop frame itself is the first one left out
+        assertEquals(stop - 1, finished.getLong("lastSample"));
+        assertArrayEquals(Arrays.copyOfRange(pcm, start * FRAME_BYTES, stop * FRAME_BYTES),
+                readData(new File(finished.getString("file"))));
+    }
+
+    @Test
+    public void laterStartDoesNotHoldUpAnImmediateFinish() throws Exception {
+        int later = 2 * SAMPLE_RATE + 50;
+        int trigger = 20 * READ_FRAMES;
+        final CaptureLoop loop = createLoop();
+        loop.startRecording(folder.getRoot().getPath(), "first.wav", new JSONObject());
+        loop.startRecording(folder.getRoot().getPath(), "second.wav", new JSONObject().put("atSample", later));
+        onBlock(loop, trigger, new Runnable() {
+            @Override
+            public void run() {
+                loop.finishRecording(new JSONObject());
+            }
+        });
+        loop.run(replay());
+
+        List<JSONObject> finished = listener.awaitEvents("recordingFinished", 2);
+        JSONObject first = finished.get(0).getString("file").endsWith("first.wav") ? finished.get(0) : finished.get(1);
+        JSONObject second = first == finished.get(0) ? finished.get(1) : finished.get(0);
+        // The finish is applied with the read after the one it was issued in
+        int end = trigger + READ_FRAMES;
+        assertEquals(0, first.getLong("firstSample"));
+        assertEquals(end - 1, first.getLong("lastSample"));
+        assertArrayEquals(Arrays.copyOfRange(pcm, 0, end * FRAME_BYTES), readData(new File(first.getString("file"))));
+        assertEquals(later, second.getLong("firstSample"));
+        assertEquals(FRAMES - 1, second.getLong("lastSample"));
+        assertArrayEquals(Arrays.copyOfRange(pcm, later * FRAME_BYTES, pcm.length),
+                readData(new File(second.getString("file"))));
+    }
+
+    @Test
+    public void releasesTheSourceAfterAnError() throws Exception {
+        final AudioSource replay = replay();
+        final int[] calls = new int[3];
+        AudioSource failing = new AudioSource() {
+            @Override
+            public boolean isInitialised() {
+                return replay.isInitialised();
+            }
+
+            @Override
+            public void start() {
+                replay.start();
+            }
+
+            @Override
+            public int read(byte[] buffer, int offset, int length) {
+                if (++calls[0] == 10) {
+                    throw new IllegalStateException("Gone");
+                }
+                return replay.read(buffer, offset, length);
+            }
+
+            @Override
+            public void stop() {
+                calls[1]++;
+                replay.stop();
+            }
+
+            @Override
+            public void release() {
+                calls[2]++;
+                replay.release();
+            }
+        };
+        CaptureLoop loop = createLoop();
+        loop.startRecording(folder.getRoot().getPath(), "rec.wav", new JSONObject());
+        loop.run(failing);
+
+        assertEquals(1, calls[1]);
+        assertEquals(1, calls[2]);
+        JSONObject finished = listener.awaitEvents("recordingFinished", 1).get(0);
+        assertEquals(9 * READ_FRAMES - 1, finished.getLong("lastSample"));
+    }
+
+    /**
+     * Runs action on the capture thread during the block at position
+     */
+    private static void onBlock(CaptureLoop loop, final long position, final Runnable action) {
+        loop.addSink("trigger", new AudioSink() {
+            @Override
+            public void process(AudioBufferPool.Chunk block) {
+                if (block.position == position) {
+                    action.run();
+                }
+            }
+
+            @Override
+            public void idle() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, false, 0, null, 0);
+    }
+
+    /**
+     * A loop that neither drops delivered nor recorded audio, however fast the
+     * replay runs
+     */
+    private CaptureLoop createLoop() throws Exception {
+        CaptureLoop loop = new CaptureLoop(SAMPLE_RATE, 1, 2, READ_FRAMES * FRAME_BYTES,
+                5 * READ_FRAMES * FRAME_BYTES, listener);
+        loop.setDelivery(0, 0, 8, ChunkBatcher.BLOCK);
+        loop.setPipeline(new JSONObject().put("recording", new JSONObject().put("queueSize", 1024)));
+        return loop;
+    }
+
+    private AudioSource replay() throws Exception {
+        File wav = Signals.writeWav(folder.newFile(), pcm, 1, SAMPLE_RATE, 16);
+        return new ReplaySource(wav, SAMPLE_RATE, 1, 2, false, false);
+    }
+
+    static byte[] readData(File wav) throws Exception {
+        byte[] bytes = Files.readAllBytes(wav.toPath());
+        return Arrays.copyOfRange(bytes, 44, bytes.length);
+    }
+}
@@ -0,0 +1,162 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.locks.LockSupport;
+
+import org.junit.Test;
+
+/**
+ * Fills the store with frames that hold their own index, so an export shows
+ * right away where it starts and whether anything in it was overwritten
+ */
+public class CaptureStoreTest {
+
+    private static final int SAMPLE_RATE = 1000;
+    // Stereo 16-bit, one int per frame
+    private static final int FRAME_BYTES = 4;
+    private static final int WRITE_BYTES = 200;
+
+    private long frames = 0;
+
+    @Test
+    public void exportsTheLatestAudioAfterTheBufferWrapped() throws Exception {
+        CaptureStore store = new CaptureStore(1, SAMPLE_RATE, 2, 2, WRITE_BYTES);
+        // Three and a half times round the buffer
+        write(store, 7 * store.getCapacity() / 2);
+        assertEquals(1.0, store.getAvailableSeconds(), 1e-9);
+
+        byte[] wav = store.toWav(0);
+        assertEquals(44 + SAMPLE_RATE * FRAME_BYTES, wav.length);
+        assertEquals(SAMPLE_RATE * FRAME_BYTES, Signals.readInt(wav, 40));
+        checkFrames(wav, frames - SAMPLE_RATE, frames);
+
+        // A shorter export ends at the same frame
+        checkFrames(store.toWav(0.25), frames - SAMPLE_RATE / 4, frames);
+    }
+
+    @Test
+    public void captureWithinTheHeadroomDoesNotFailTheExport() throws Exception {
+        final CaptureStore store = new CaptureStore(1, SAMPLE_RATE, 2, 2, WRITE_BYTES);
+        write(store, 2 * store.getCapacity());
+        long end = frames;
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        store.export(0, new AudioEncoder.Output() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                out.write(data, offset, length);
+                // A second of capture while the data is passed on
+                if (out.size() > 44) {
+                    CaptureStoreTest.this.write(store, SAMPLE_RATE * FRAME_BYTES);
+                }
+            }
+        });
+        checkFrames(out.toByteArray(), end - SAMPLE_RATE, end);
+    }
+
+    @Test
+    public void captureThatOvertakesTheExportIsDetected() throws Exception {
+        final CaptureStore store = new CaptureStore(1, SAMPLE_RATE, 2, 2, WRITE_BYTES);
+        write(store, 2 * store.getCapacity());
+        try {
+            store.export(0, new AudioEncoder.Output() {
+                private boolean header = true;
+
+                @Override
+                public void write(byte[] data, int offset, int length) {
+                    if (header) {
+                        header = false;
+                    } else {
+                        // Round the whole buffer once, over what was just passed on
+                        CaptureStoreTest.this.write(store, store.getCapacity());
+                    }
+                }
+            });
+            fail("The overwritten export succeeded");
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("overwrote"));
+        }
+    }
+
+    @Test
+    public void exportsWhileAnotherThreadCaptures() throws Exception {
+        // Pieces of 64 KB, so a long export is checked more than once
+        final CaptureStore store = new CaptureStore(20, SAMPLE_RATE, 2, 2, WRITE_BYTES);
+        Thread capture = new Thread() {
+            @Override
+            public void run() {
+                long frame = 0;
+                byte[] data = new byte[WRITE_BYTES];
+                while (!isInterrupted()) {
+                    for (int i = 0; i < data.length; i += FRAME_BYTES, frame++) {
+                        putInt(data, i, (int) frame);
+                    }
+                    store.write(data, 0, data.length);
+                    // Round the buffer about every 40 ms
+                    LockSupport.parkNanos(100000);
+                }
+            }
+        };
+        capture.start();
+        try {
+            int exported = 0;
+            long deadline = System.currentTimeMillis() + 2000;
+            while (System.currentTimeMillis() < deadline) {
+                try {
+                    byte[] wav = store.toWav(0);
+                    // Whatever was exported in full is one unbroken run of frames
+                    if (wav.length > 44) {
+                        int first = Signals.readInt(wav, 44);
+                        checkFrames(wav, first, first + (wav.length - 44) / FRAME_BYTES);
+                        exported++;
+                    }
+                } catch (IOException e) {
+                    // Overtaken, which is what the check is for
+                }
+            }
+            assertTrue(exported > 0);
+        } finally {
+            capture.interrupt();
+            capture.join();
+        }
+    }
+
+    /**
+     * Writes the next frames in writes of WRITE_BYTES
+     */
+    private void write(CaptureStore store, int bytes) {
+        byte[] data = new byte[WRITE_BYTES];
+        for (int written = 0; written < bytes; written += WRITE_BYTES) {
+            for (int i = 0; i < data.length; i += FRAME_BYTES) {
+                putInt(data, i, (int) frames++);
+            }
+            store.write(data, 0, data.length);
+        }
+    }
+
+    /**
+     * Checks that the data of the WAV holds the frames from .. to
+     */
+    private static void checkFrames(byte[] wav, long from, long to) {
+        int[] expected = new int[(int) (to - from)];
+        int[] actual = new int[expected.length];
+        assertEquals(44 + expected.length * FRAME_BYTES, wav.length);
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = (int) (from + i);
+            actual[i] = Signals.readInt(wav, 44 + i * FRAME_BYTES);
+        }
+        assertArrayEquals(expected, actual);
+    }
+
+    private static void putInt(byte[] data, int pos, int value) {
+        data[pos] = (byte) value;
+        data[pos + 1] = (byte) (value >> 8);
+        data[pos + 2] = (byte) (value >> 16);
+        data[pos + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,117 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChannelMixerTest {
+
+    private static final int FRAMES = 100;
+
+    @Test
+    public void mixOfCorrelatedFullScaleChannelsDoesNotClip() {
+        // The same full scale sine on both channels mixes into itself
+        for (int bytesPerSample : new int[] { 1, 2, 4 }) {
+            byte[] stereo = Signals.sine(440, 1, 8000, FRAMES, 2, bytesPerSample);
+            byte[] mono = Signals.sine(440, 1, 8000, FRAMES, 1, bytesPerSample);
+            assertArrayEquals("Sample size " + bytesPerSample, mono, mix(stereo, 2, bytesPerSample));
+        }
+
+        // The extremes of 16-bit, alike and opposite
+        byte[] extremes = new byte[] { (byte) 0xFF, 0x7F, (byte) 0xFF, 0x7F, 0x00, (byte) 0x80, 0x00, (byte) 0x80,
+                (byte) 0xFF, 0x7F, 0x00, (byte) 0x80 };
+        byte[] mixed = mix(extremes, 2, 2);
+        assertEquals(Short.MAX_VALUE, Signals.readShort(mixed, 0));
+        assertEquals(Short.MIN_VALUE, Signals.readShort(mixed, 2));
+        assertEquals(0, Signals.readShort(mixed, 4));
+
+        // 8-bit is unsigned, the mix of silence stays silence
+        assertArrayEquals(new byte[] { (byte) 0xFF, 0x00, (byte) 0x80 },
+                mix(new byte[] { (byte) 0xFF, (byte) 0xFF, 0x00, 0x00, (byte) 0x80, (byte) 0x80 }, 2, 1));
+    }
+
+    @Test
+    public void mixIsTheAverageOfAllChannels() {
+        float[] samples = { 0.5f, -0.25f, 0.25f, 1f, 1f, -1f };
+        byte[] mixed = mix(Signals.encode(samples, 4), 3, 4);
+        assertEquals(0.5f / 3, PcmUtils.readFloat(mixed, 0), 1e-7);
+        assertEquals(1f / 3, PcmUtils.readFloat(mixed, 4), 1e-7);
+    }
+
+    @Test
+    public void selectsOneChannel() {
+        for (int bytesPerSample : new int[] { 1, 2, 4 }) {
+            byte[] in = numbered(3, bytesPerSample);
+            ChannelMixer mixer = ChannelMixer.create(1, 3, bytesPerSample);
+            assertFalse(mixer.isPlanar());
+            assertEquals(1, mixer.getOutputChannels());
+            byte[] out = new byte[mixer.getOutputBytes(in.length)];
+            assertEquals(out.length, mixer.process(in, 0, in.length, out, 0));
+            for (int i = 0; i < FRAMES; i++) {
+                for (int b = 0; b < bytesPerSample; b++) {
+                    assertEquals(in[(i * 3 + 1) * bytesPerSample + b], out[i * bytesPerSample + b]);
+                }
+            }
+        }
+
+        // Beyond the last channel the last one is kept
+        byte[] in = numbered(2, 2);
+        byte[] out = new byte[FRAMES * 2];
+        ChannelMixer.create(5, 2, 2).process(in, 0, in.length, out, 0);
+        assertEquals(in[2], out[0]);
+        assertEquals(in[3], out[1]);
+    }
+
+    @Test
+    public void splitsIntoPlanarBlocks() {
+        for (int bytesPerSample : new int[] { 1, 2, 4 }) {
+            byte[] in = numbered(3, bytesPerSample);
+            ChannelMixer mixer = ChannelMixer.create(ChannelMixer.PLANAR, 3, bytesPerSample);
+            assertTrue(mixer.isPlanar());
+            assertEquals(3, mixer.getOutputChannels());
+            // A trailing partial frame is left out
+            int length = in.length - 1;
+            byte[] out = new byte[mixer.getOutputBytes(length) + 4];
+            int written = mixer.process(in, 0, length, out, 4);
+            assertEquals((FRAMES - 1) * 3 * bytesPerSample, written);
+            for (int ch = 0; ch < 3; ch++) {
+                for (int i = 0; i < FRAMES - 1; i++) {
+                    for (int b = 0; b < bytesPerSample; b++) {
+                        assertEquals(in[(i * 3 + ch) * bytesPerSample + b],
+                                out[4 + (ch * (FRAMES - 1) + i) * bytesPerSample + b]);
+                    }
+                }
+            }
+        }
+    }
+
+    @Test
+    public void createsOnlyWhatChangesTheAudio() {
+        assertNull(ChannelMixer.create(null, 2, 2));
+        assertNull(ChannelMixer.create(ChannelMixer.INTERLEAVED, 2, 2));
+        assertNull(ChannelMixer.create(ChannelMixer.MIX, 1, 2));
+        assertEquals(1, ChannelMixer.create(ChannelMixer.MIX, 2, 2).getOutputChannels());
+    }
+
+    private static byte[] mix(byte[] in, int channels, int bytesPerSample) {
+        ChannelMixer mixer = ChannelMixer.create(ChannelMixer.MIX, channels, bytesPerSample);
+        byte[] out = new byte[mixer.getOutputBytes(in.length)];
+        assertEquals(out.length, mixer.process(in, 0, in.length, out, 0));
+        return out;
+    }
+
+    /**
+     * @return Interleaved frames in which every byte differs from its neighbours
+     */
+    private static byte[] numbered(int channels, int bytesPerSample) {
+        byte[] data = new byte[FRAMES * channels * bytesPerSample];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 7 + 1);
+        }
+        return data;
+    }
+}
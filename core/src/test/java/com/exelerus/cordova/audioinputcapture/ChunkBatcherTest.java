@@ -0,0 +1,95 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+public class ChunkBatcherTest {
+
+    private static final long MS = 1000000L;
+
+    @Test
+    public void sendsEveryChunkOnItsOwnWithoutLatency() throws Exception {
+        ChunkBatcher batcher = new ChunkBatcher(64, 0, 4, ChunkBatcher.DROP_NEWEST);
+        byte[] chunk = Signals.ramp(7, 8, 1);
+        assertTrue(batcher.append(chunk, 16, 0));
+        assertTrue(batcher.append(chunk, 16, 0));
+
+        AudioBufferPool.Chunk first = batcher.poll();
+        assertEquals(0, ChunkBatcher.getSequence(first));
+        assertEquals(ChunkBatcher.HEADER_SIZE + 16, first.length);
+        assertEquals(7, Signals.readShort(first.data, ChunkBatcher.HEADER_SIZE));
+        first.release();
+        AudioBufferPool.Chunk second = batcher.poll();
+        assertEquals(1, ChunkBatcher.getSequence(second));
+        second.release();
+        assertNull(batcher.poll());
+    }
+
+    @Test
+    public void mergesChunksUntilFullOrDue() throws Exception {
+        ChunkBatcher batcher = new ChunkBatcher(48, 100, 4, ChunkBatcher.DROP_NEWEST);
+        byte[] chunk = new byte[16];
+        assertFalse(batcher.append(chunk, 16, 0));
+        assertFalse(batcher.append(chunk, 16, 10 * MS));
+        // The third fills the batch
+        assertTrue(batcher.append(chunk, 16, 20 * MS));
+        assertEquals(1, batcher.size());
+
+        assertFalse(batcher.append(chunk, 16, 30 * MS));
+        assertFalse(batcher.closeIfDue(129 * MS));
+        assertTrue(batcher.closeIfDue(130 * MS));
+        assertEquals(2, batcher.size());
+        assertEquals(ChunkBatcher.HEADER_SIZE + 48, batcher.poll().length);
+        assertEquals(ChunkBatcher.HEADER_SIZE + 16, batcher.poll().length);
+    }
+
+    @Test
+    public void dropsTheNewestOrOldestBatchWhenTheQueueIsFull() throws Exception {
+        byte[] chunk = new byte[4];
+        ChunkBatcher newest = new ChunkBatcher(4, 0, 2, ChunkBatcher.DROP_NEWEST);
+        ChunkBatcher oldest = new ChunkBatcher(4, 0, 2, ChunkBatcher.DROP_OLDEST);
+        for (int i = 0; i < 5; i++) {
+            newest.append(chunk, 4, 0);
+            oldest.append(chunk, 4, 0);
+        }
+        assertEquals(3, newest.getDroppedBatches());
+        assertEquals(3, oldest.getDroppedBatches());
+        // The sequence numbers show which ones were kept
+        assertEquals(0, ChunkBatcher.getSequence(newest.poll()));
+        assertEquals(1, ChunkBatcher.getSequence(newest.poll()));
+        assertEquals(3, ChunkBatcher.getSequence(oldest.poll()));
+        assertEquals(4, ChunkBatcher.getSequence(oldest.poll()));
+    }
+
+    @Test
+    public void onlyOneDrainIsPendingAtATime() {
+        ChunkBatcher batcher = new ChunkBatcher(4, 0, 2, ChunkBatcher.DROP_NEWEST);
+        assertTrue(batcher.requestDrain());
+        assertFalse(batcher.requestDrain());
+        batcher.onDrain();
+        assertTrue(batcher.requestDrain());
+    }
+
+    @Test
+    public void makesClosedBatchesPlanar() throws Exception {
+        ChunkBatcher batcher = new ChunkBatcher(16, 0, 2, ChunkBatcher.DROP_NEWEST);
+        batcher.setPlanar(ChannelMixer.create(ChannelMixer.PLANAR, 2, 2));
+        // Left counts up from 0, right from 100
+        byte[] stereo = new byte[16];
+        for (int i = 0; i < 4; i++) {
+            stereo[i * 4] = (byte) i;
+            stereo[i * 4 + 2] = (byte) (100 + i);
+        }
+        batcher.append(stereo, 16, 0);
+        AudioBufferPool.Chunk batch = batcher.poll();
+        int h = ChunkBatcher.HEADER_SIZE;
+        assertEquals(0, Signals.readShort(batch.data, h));
+        assertEquals(3, Signals.readShort(batch.data, h + 6));
+        assertEquals(100, Signals.readShort(batch.data, h + 8));
+        assertEquals(103, Signals.readShort(batch.data, h + 14));
+    }
+}
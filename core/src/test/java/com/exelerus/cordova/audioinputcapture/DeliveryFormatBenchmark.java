@@ -0,0 +1,80 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONObject;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * What it costs to get a batch of audio ready for the bridge with the two
+ * dataFormats. 'string' formats the samples as a JSON array inside the event
+ * object, 'binary' hands a byte array to PluginResult, which Base64 encodes it.
+ * The audioBytes counter is the audio throughput in bytes per second, bridgeBytes
+ * what crosses the bridge for it, -prof gc adds the allocations of each path.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class DeliveryFormatBenchmark {
+
+    @Param({ "16384" })
+    public int batchBytes;
+
+    private byte[] batch;
+
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    @State(Scope.Thread)
+    public static class Bytes {
+        public long audioBytes;
+        public long bridgeBytes;
+
+        @Setup(Level.Iteration)
+        public void clear() {
+            audioBytes = 0;
+            bridgeBytes = 0;
+        }
+    }
+
+    @Setup
+    public void setUp() {
+        batch = new byte[ChunkBatcher.HEADER_SIZE + batchBytes];
+        byte[] audio = Signals.noise(0.5, 1, batchBytes / 2, 1, 2);
+        System.arraycopy(audio, 0, batch, ChunkBatcher.HEADER_SIZE, audio.length);
+    }
+
+    @Benchmark
+    public String string(Bytes bytes) throws Exception {
+        JSONObject info = new JSONObject();
+        info.put("sequence", 1);
+        info.put("data", PcmUtils.toJsonArray(batch, ChunkBatcher.HEADER_SIZE, batch.length, 2));
+        String message = info.toString();
+        bytes.audioBytes += batchBytes;
+        bytes.bridgeBytes += message.length();
+        return message;
+    }
+
+    @Benchmark
+    public String binary(Bytes bytes) {
+        String message = Base64.getEncoder().encodeToString(Arrays.copyOf(batch, batch.length));
+        bytes.audioBytes += batchBytes;
+        bytes.bridgeBytes += message.length();
+        return message;
+    }
+}
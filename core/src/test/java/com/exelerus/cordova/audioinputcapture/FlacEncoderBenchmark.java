@@ -0,0 +1,69 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * FLAC encoding speed as a real-time factor: every operation encodes one second
+ * of audio, so the score in ops/s is how many times faster than real time the
+ * writer thread keeps up
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FlacEncoderBenchmark {
+
+    private static final int CHUNK_FRAMES = 1024;
+
+    @Param({ "16000", "44100" })
+    public int sampleRate;
+
+    @Param({ "1", "2" })
+    public int channels;
+
+    private byte[] second;
+    private int chunkBytes;
+    private FlacEncoder encoder;
+    private AudioEncoder.Output discard;
+
+    @Setup
+    public void setUp() {
+        // A tone with some noise, so both the predictors and the Rice coder have work
+        byte[] tone = Signals.sine(440, 0.4, sampleRate, sampleRate, channels, 2);
+        byte[] noise = Signals.noise(0.01, 1, sampleRate, channels, 2);
+        second = new byte[tone.length];
+        for (int i = 0; i < tone.length; i += 2) {
+            int value = Signals.readShort(tone, i) + Signals.readShort(noise, i);
+            second[i] = (byte) value;
+            second[i + 1] = (byte) (value >> 8);
+        }
+        chunkBytes = CHUNK_FRAMES * channels * 2;
+        encoder = new FlacEncoder(channels, sampleRate, 16);
+        discard = new AudioEncoder.Output() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+            }
+        };
+    }
+
+    @Benchmark
+    public void encodeOneSecond() throws Exception {
+        for (int pos = 0; pos < second.length; pos += chunkBytes) {
+            encoder.encode(second, pos, Math.min(chunkBytes, second.length - pos), discard);
+        }
+    }
+}
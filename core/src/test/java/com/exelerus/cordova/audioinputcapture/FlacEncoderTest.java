@@ -0,0 +1,460 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.util.Random;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Encodes reference PCM and decodes it again with the minimal FLAC decoder
+ * below, which checks every CRC, the STREAMINFO and the MD5 signature
+ */
+public class FlacEncoderTest {
+
+    private static final int BLOCK_SIZE = 4096;
+    private static final int SAMPLE_RATE = 16000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTripsMono16Bit() throws Exception {
+        roundTrip(1, 16);
+    }
+
+    @Test
+    public void roundTripsStereo16Bit() throws Exception {
+        roundTrip(2, 16);
+    }
+
+    @Test
+    public void roundTripsMono8Bit() throws Exception {
+        roundTrip(1, 8);
+    }
+
+    @Test
+    public void roundTripsStereo8Bit() throws Exception {
+        roundTrip(2, 8);
+    }
+
+    @Test
+    public void roundTripsLessThanABlock() throws Exception {
+        byte[] pcm = Signals.sine(440, 0.5, SAMPLE_RATE, 1000, 2, 2);
+        Decoded decoded = decode(encode(pcm, 2, 16, 400));
+        assertArrayEquals(pcm, decoded.pcm);
+        assertEquals(1, decoded.frames);
+    }
+
+    @Test
+    public void halvesATone() throws Exception {
+        byte[] pcm = Signals.sine(440, 0.5, SAMPLE_RATE, SAMPLE_RATE, 1, 2);
+        byte[] flac = encode(pcm, 1, 16, 4000);
+        assertTrue(flac.length + " of " + pcm.length + " bytes", flac.length < pcm.length / 2);
+    }
+
+    /**
+     * Every kind of block in each format: a tone, a ramp, silence, full scale
+     * noise and a short last block
+     */
+    private void roundTrip(int channels, int bitDepth) throws Exception {
+        int[][] samples = signal(channels, bitDepth, 4 * BLOCK_SIZE + 1000, 7);
+        byte[] pcm = toPcm(samples, bitDepth);
+        byte[] flac = encode(pcm, channels, bitDepth, 1234 * channels * bitDepth / 8);
+
+        Decoded decoded = decode(flac);
+        assertEquals(channels, decoded.channels);
+        assertEquals(bitDepth, decoded.bitDepth);
+        assertEquals(SAMPLE_RATE, decoded.sampleRate);
+        assertEquals(samples[0].length, decoded.totalSamples);
+        assertEquals(5, decoded.frames);
+        assertArrayEquals(pcm, decoded.pcm);
+
+        assertTrue("constant subframe", decoded.subframes[Decoded.CONSTANT] > 0);
+        assertTrue("fixed subframe", decoded.subframes[Decoded.FIXED] > 0);
+        assertTrue("LPC subframe", decoded.subframes[Decoded.LPC] > 0);
+        if (channels == 2) {
+            assertTrue("side channel coding", decoded.decorrelated > 0);
+        }
+    }
+
+    /**
+     * @param frames
+     *            The number of frames, blocks of BLOCK_SIZE cycle through tone,
+     *            ramp, silence and noise
+     */
+    private static int[][] signal(int channels, int bitDepth, int frames, long seed) {
+        Random random = new Random(seed);
+        int max = (1 << (bitDepth - 1)) - 1;
+        int[][] samples = new int[channels][frames];
+        for (int i = 0; i < frames; i++) {
+            int segment = i / BLOCK_SIZE % 4;
+            int value;
+            if (segment == 0) {
+                double t = 2 * Math.PI * i / SAMPLE_RATE;
+                value = (int) Math.round(max * (0.3 * Math.sin(440 * t) + 0.1 * Math.sin(1250 * t))
+                        + random.nextGaussian() * max * 0.005);
+            } else if (segment == 1) {
+                value = -max / 2 + (int) ((long) (i % BLOCK_SIZE) * max / BLOCK_SIZE);
+            } else if (segment == 2) {
+                value = 0;
+            } else {
+                value = random.nextInt(2 * max + 1) - max;
+            }
+            samples[0][i] = value;
+            for (int ch = 1; ch < channels; ch++) {
+                // Correlated with the first channel, but not the same
+                int other = segment == 3 ? random.nextInt(2 * max + 1) - max : (int) (value * 0.8);
+                samples[ch][i] = Math.max(-max, Math.min(max, other + (segment == 0 ? ch : 0)));
+            }
+        }
+        return samples;
+    }
+
+    private static byte[] toPcm(int[][] samples, int bitDepth) {
+        int channels = samples.length;
+        int bytesPerSample = bitDepth / 8;
+        byte[] pcm = new byte[samples[0].length * channels * bytesPerSample];
+        int pos = 0;
+        for (int i = 0; i < samples[0].length; i++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int value = samples[ch][i];
+                if (bytesPerSample == 2) {
+                    pcm[pos++] = (byte) value;
+                    pcm[pos++] = (byte) (value >> 8);
+                } else {
+                    pcm[pos++] = (byte) (value + 128);
+                }
+            }
+        }
+        return pcm;
+    }
+
+    private byte[] encode(byte[] pcm, int channels, int bitDepth, int chunkBytes) throws IOException {
+        File file = folder.newFile();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            final FileChannel channel = raf.getChannel();
+            AudioEncoder.Output output = new AudioEncoder.Output() {
+                @Override
+                public void write(byte[] data, int offset, int length) throws IOException {
+                    AudioFileWriter.writeFully(channel, ByteBuffer.wrap(data, offset, length), channel.size());
+                }
+            };
+            FlacEncoder encoder = new FlacEncoder(channels, SAMPLE_RATE, bitDepth);
+            AudioFileWriter.writeFully(channel, encoder.createHeader(), 0);
+            for (int pos = 0; pos < pcm.length; pos += chunkBytes) {
+                encoder.encode(pcm, pos, Math.min(chunkBytes, pcm.length - pos), output);
+            }
+            encoder.finish(output);
+            encoder.updateHeader(channel, channel.size());
+        } finally {
+            raf.close();
+        }
+        return Files.readAllBytes(file.toPath());
+    }
+
+    private static class Decoded {
+        static final int CONSTANT = 0;
+        static final int VERBATIM = 1;
+        static final int FIXED = 2;
+        static final int LPC = 3;
+
+        int channels;
+        int bitDepth;
+        int sampleRate;
+        long totalSamples;
+        int minFrameSize;
+        int maxFrameSize;
+        byte[] md5;
+
+        int frames = 0;
+        int[] subframes = new int[4];
+        int decorrelated = 0;
+        byte[] pcm;
+    }
+
+    private static Decoded decode(byte[] flac) throws Exception {
+        BitReader in = new BitReader(flac);
+        assertEquals("fLaC", new String(flac, 0, 4, "US-ASCII"));
+        in.read(32);
+
+        Decoded d = new Decoded();
+        boolean last = false;
+        while (!last) {
+            last = in.read(1) == 1;
+            int type = in.read(7);
+            int length = in.read(24);
+            assertEquals("STREAMINFO is the only block", 0, type);
+            assertEquals(34, length);
+            assertEquals(BLOCK_SIZE, in.read(16));
+            assertEquals(BLOCK_SIZE, in.read(16));
+            d.minFrameSize = in.read(24);
+            d.maxFrameSize = in.read(24);
+            d.sampleRate = in.read(20);
+            d.channels = in.read(3) + 1;
+            d.bitDepth = in.read(5) + 1;
+            d.totalSamples = ((long) in.read(4) << 32) | (in.read(32) & 0xFFFFFFFFL);
+            d.md5 = new byte[16];
+            for (int i = 0; i < 16; i++) {
+                d.md5[i] = (byte) in.read(8);
+            }
+        }
+
+        int[][] samples = new int[d.channels][(int) d.totalSamples];
+        int filled = 0;
+        int minFrame = Integer.MAX_VALUE;
+        int maxFrame = 0;
+        while (in.bytePosition() < flac.length) {
+            int start = in.bytePosition();
+            assertEquals("sync code", 0x7FFC, in.read(15));
+            assertEquals("fixed block size", 0, in.read(1));
+            int blockSizeCode = in.read(4);
+            assertEquals("sample rate from STREAMINFO", 0, in.read(4));
+            int assignment = in.read(4);
+            int sizeCode = in.read(3);
+            assertEquals(d.bitDepth == 8 ? 1 : 4, sizeCode);
+            assertEquals(0, in.read(1));
+            assertEquals("frame number", d.frames, in.readUtf8());
+            int n;
+            if (blockSizeCode == 12) {
+                n = BLOCK_SIZE;
+            } else if (blockSizeCode == 6) {
+                n = in.read(8) + 1;
+            } else {
+                assertEquals(7, blockSizeCode);
+                n = in.read(16) + 1;
+            }
+            int crc8 = crc(flac, start, in.bytePosition(), 8, 0x07);
+            assertEquals("header CRC", crc8, in.read(8));
+
+            int[][] block = new int[d.channels][];
+            for (int ch = 0; ch < d.channels; ch++) {
+                boolean side = (assignment == 8 && ch == 1) || (assignment == 9 && ch == 0)
+                        || (assignment == 10 && ch == 1);
+                block[ch] = readSubframe(in, n, d.bitDepth + (side ? 1 : 0), d);
+            }
+            in.alignToByte();
+            int crc16 = crc(flac, start, in.bytePosition(), 16, 0x8005);
+            assertEquals("frame CRC", crc16, in.read(16));
+            int frameSize = in.bytePosition() - start;
+            minFrame = Math.min(minFrame, frameSize);
+            maxFrame = Math.max(maxFrame, frameSize);
+
+            for (int i = 0; i < n; i++) {
+                int a = block[0][i];
+                int b = d.channels > 1 ? block[1][i] : 0;
+                if (assignment == 8) {
+                    b = a - b;
+                } else if (assignment == 9) {
+                    a = a + b;
+                } else if (assignment == 10) {
+                    int mid = (a << 1) | (b & 1);
+                    a = (mid + b) >> 1;
+                    b = (mid - b) >> 1;
+                }
+                samples[0][filled + i] = a;
+                if (d.channels > 1) {
+                    samples[1][filled + i] = b;
+                }
+                for (int ch = 2; ch < d.channels; ch++) {
+                    samples[ch][filled + i] = block[ch][i];
+                }
+            }
+            if (assignment >= 8) {
+                d.decorrelated++;
+            }
+            filled += n;
+            d.frames++;
+        }
+        assertEquals(d.totalSamples, filled);
+        assertEquals(minFrame, d.minFrameSize);
+        assertEquals(maxFrame, d.maxFrameSize);
+
+        d.pcm = toPcm(samples, d.bitDepth);
+        // The signature is over signed samples
+        byte[] signed = d.pcm.clone();
+        if (d.bitDepth == 8) {
+            for (int i = 0; i < signed.length; i++) {
+                signed[i] ^= 0x80;
+            }
+        }
+        assertArrayEquals("MD5", MessageDigest.getInstance("MD5").digest(signed), d.md5);
+        return d;
+    }
+
+    private static int[] readSubframe(BitReader in, int n, int bps, Decoded d) {
+        assertEquals("padding", 0, in.read(1));
+        int type = in.read(6);
+        assertEquals("wasted bits", 0, in.read(1));
+        int[] x = new int[n];
+        if (type == 0) {
+            d.subframes[Decoded.CONSTANT]++;
+            int value = in.readSigned(bps);
+            for (int i = 0; i < n; i++) {
+                x[i] = value;
+            }
+        } else if (type == 1) {
+            d.subframes[Decoded.VERBATIM]++;
+            for (int i = 0; i < n; i++) {
+                x[i] = in.readSigned(bps);
+            }
+        } else if (type >= 8 && type <= 12) {
+            d.subframes[Decoded.FIXED]++;
+            int order = type - 8;
+            for (int i = 0; i < order; i++) {
+                x[i] = in.readSigned(bps);
+            }
+            readResidual(in, x, n, order);
+            for (int i = order; i < n; i++) {
+                switch (order) {
+                case 1:
+                    x[i] += x[i - 1];
+                    break;
+                case 2:
+                    x[i] += 2 * x[i - 1] - x[i - 2];
+                    break;
+                case 3:
+                    x[i] += 3 * x[i - 1] - 3 * x[i - 2] + x[i - 3];
+                    break;
+                case 4:
+                    x[i] += 4 * x[i - 1] - 6 * x[i - 2] + 4 * x[i - 3] - x[i - 4];
+                    break;
+                default:
+                    break;
+                }
+            }
+        } else {
+            assertTrue("subframe type " + type, type >= 32);
+            d.subframes[Decoded.LPC]++;
+            int order = type - 31;
+            for (int i = 0; i < order; i++) {
+                x[i] = in.readSigned(bps);
+            }
+            int precision = in.read(4) + 1;
+            int shift = in.readSigned(5);
+            int[] coefficients = new int[order];
+            for (int i = 0; i < order; i++) {
+                coefficients[i] = in.readSigned(precision);
+            }
+            readResidual(in, x, n, order);
+            for (int i = order; i < n; i++) {
+                long prediction = 0;
+                for (int j = 0; j < order; j++) {
+                    prediction += (long) coefficients[j] * x[i - j - 1];
+                }
+                x[i] += (int) (prediction >> shift);
+            }
+        }
+        return x;
+    }
+
+    private static void readResidual(BitReader in, int[] x, int n, int order) {
+        int method = in.read(2);
+        int parameterBits = method == 0 ? 4 : 5;
+        int escape = (1 << parameterBits) - 1;
+        int partitionOrder = in.read(4);
+        int partitionSize = n >> partitionOrder;
+        int i = order;
+        for (int p = 0; p < 1 << partitionOrder; p++) {
+            int k = in.read(parameterBits);
+            int end = (p + 1) * partitionSize;
+            if (k == escape) {
+                int raw = in.read(5);
+                for (; i < end; i++) {
+                    x[i] = raw == 0 ? 0 : in.readSigned(raw);
+                }
+            } else {
+                for (; i < end; i++) {
+                    int u = (in.readUnary() << k) | (k > 0 ? in.read(k) : 0);
+                    x[i] = (u >>> 1) ^ -(u & 1);
+                }
+            }
+        }
+    }
+
+    private static int crc(byte[] data, int from, int to, int width, int polynomial) {
+        int top = 1 << (width - 1);
+        int mask = (1 << width) - 1;
+        int crc = 0;
+        for (int i = from; i < to; i++) {
+            crc ^= (data[i] & 0xFF) << (width - 8);
+            for (int b = 0; b < 8; b++) {
+                crc = (crc & top) != 0 ? (crc << 1) ^ polynomial : crc << 1;
+            }
+            crc &= mask;
+        }
+        return crc;
+    }
+
+    /**
+     * MSB first bit reader
+     */
+    private static class BitReader {
+        private final byte[] data;
+        private long position = 0;
+
+        BitReader(byte[] data) {
+            this.data = data;
+        }
+
+        int read(int count) {
+            long value = 0;
+            for (int i = 0; i < count; i++) {
+                int bit = (data[(int) (position >> 3)] >> (7 - (int) (position & 7))) & 1;
+                value = (value << 1) | bit;
+                position++;
+            }
+            return (int) value;
+        }
+
+        int readSigned(int count) {
+            return read(count) << (32 - count) >> (32 - count);
+        }
+
+        int readUnary() {
+            int zeros = 0;
+            while (read(1) == 0) {
+                zeros++;
+            }
+            return zeros;
+        }
+
+        long readUtf8() {
+            int first = read(8);
+            int extra = 0;
+            while ((first & (0x80 >> extra)) != 0) {
+                extra++;
+            }
+            if (extra == 0) {
+                return first;
+            }
+            long value = first & (0x7F >> extra);
+            for (int i = 1; i < extra; i++) {
+                int next = read(8);
+                assertEquals(0x80, next & 0xC0);
+                value = (value << 6) | (next & 0x3F);
+            }
+            return value;
+        }
+
+        void alignToByte() {
+            position = (position + 7) & ~7L;
+        }
+
+        int bytePosition() {
+            return (int) (position >> 3);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.json.JSONObject;
+
+/**
+ * Collects what a CaptureLoop reports and drains its batches right away, the
+ * way the handler thread does on Android
+ */
+class LoopListener implements CaptureLoop.Listener {
+
+    private static final long TIMEOUT_MS = 10000;
+
+    private final List<JSONObject> events = new ArrayList<JSONObject>();
+    private final List<String> errors = new ArrayList<String>();
+    private final ByteArrayOutputStream delivered = new ByteArrayOutputStream();
+
+    @Override
+    public synchronized void onEvent(JSONObject info) {
+        events.add(info);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onDelivery(ChunkBatcher batcher) {
+        batcher.onDrain();
+        AudioBufferPool.Chunk batch;
+        while ((batch = batcher.poll()) != null) {
+            delivered.write(batch.data, ChunkBatcher.HEADER_SIZE, batch.length - ChunkBatcher.HEADER_SIZE);
+            batch.release();
+        }
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void onError(String message) {
+        errors.add(message);
+    }
+
+    @Override
+    public void onLog(String message, Exception error) {
+    }
+
+    synchronized List<String> getErrors() {
+        return new ArrayList<String>(errors);
+    }
+
+    /**
+     * @return The events with the given name so far
+     */
+    synchronized List<JSONObject> getEvents(String name) {
+        List<JSONObject> named = new ArrayList<JSONObject>();
+        for (JSONObject event : events) {
+            if (name.equals(event.optString("event"))) {
+                named.add(event);
+            }
+        }
+        return named;
+    }
+
+    /**
+     * Waits until count events with the given name have been reported
+     */
+    synchronized List<JSONObject> awaitEvents(String name, int count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        List<JSONObject> named;
+        while ((named = getEvents(name)).size() < count) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                fail("Only " + named.size() + " of " + count + " " + name + " events");
+            }
+            wait(wait);
+        }
+        return named;
+    }
+
+    /**
+     * Waits until at least the given number of bytes has been delivered
+     *
+     * @return All audio delivered so far
+     */
+    synchronized byte[] awaitDelivered(int bytes) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT_MS;
+        while (delivered.size() < bytes) {
+            long wait = deadline - System.currentTimeMillis();
+            if (wait <= 0) {
+                fail("Only " + delivered.size() + " of " + bytes + " bytes delivered");
+            }
+            wait(wait);
+        }
+        return delivered.toByteArray();
+    }
+}
@@ -0,0 +1,37 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class PcmRingBufferTest {
+
+    @Test
+    public void keepsTheMostRecentBytesAcrossTheWrap() {
+        PcmRingBuffer ring = new PcmRingBuffer(10, 4);
+        assertEquals(8, ring.getCapacity());
+        byte[] data = { 1, 2, 3, 4, 5, 6 };
+        ring.write(data, 0, 6);
+        assertEquals(6, ring.size());
+        ring.write(data, 2, 4);
+        assertEquals(8, ring.size());
+        assertArrayEquals(new byte[] { 3, 4, 5, 6, 3, 4, 5, 6 }, ring.toByteArray());
+
+        byte[] latest = new byte[3];
+        assertEquals(3, ring.copyLatest(latest, 0, 3));
+        assertArrayEquals(new byte[] { 4, 5, 6 }, latest);
+    }
+
+    @Test
+    public void keepsOnlyTheTailOfAnOversizedWrite() {
+        PcmRingBuffer ring = new PcmRingBuffer(4, 2);
+        byte[] data = { 1, 2, 3, 4, 5, 6, 7, 8 };
+        ring.write(data, 0, data.length);
+        assertArrayEquals(Arrays.copyOfRange(data, 4, 8), ring.toByteArray());
+        ring.clear();
+        assertEquals(0, ring.size());
+    }
+}
@@ -0,0 +1,51 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class PcmUtilsTest {
+
+    @Test
+    public void convertsEachSampleFormat() {
+        byte[] pcm16 = { 0x00, (byte) 0x80, (byte) 0xFF, 0x7F, 0x00, 0x00 };
+        assertEquals(-1f, PcmUtils.toFloat(pcm16, 0, 2), 0f);
+        assertEquals(32767 / 32768f, PcmUtils.toFloat(pcm16, 2, 2), 0f);
+        assertEquals(0f, PcmUtils.toFloat(pcm16, 4, 2), 0f);
+
+        byte[] pcm8 = { 0, (byte) 128, (byte) 255 };
+        assertEquals(-1f, PcmUtils.toFloat(pcm8, 0, 1), 0f);
+        assertEquals(0f, PcmUtils.toFloat(pcm8, 1, 1), 0f);
+        assertEquals(127 / 128f, PcmUtils.toFloat(pcm8, 2, 1), 0f);
+
+        byte[] pcmFloat = new byte[8];
+        PcmUtils.writeFloat(pcmFloat, 4, -0.25f);
+        assertEquals(-0.25f, PcmUtils.toFloat(pcmFloat, 4, 4), 0f);
+        assertEquals(-0.25f, PcmUtils.readFloat(pcmFloat, 4), 0f);
+    }
+
+    @Test
+    public void mixesFramesToMono() {
+        byte[] stereo = Signals.encode(new float[] { 0.5f, -0.25f }, 2);
+        assertEquals(0.125f, PcmUtils.toMonoFloat(stereo, 0, 2, 2), 1e-4f);
+    }
+
+    @Test
+    public void formatsJsonArrays() {
+        byte[] pcm16 = { 0x01, 0x00, (byte) 0xFF, (byte) 0xFF, 0x00, (byte) 0x80 };
+        assertEquals("[1,-1,-32768]", PcmUtils.toJsonArray(pcm16, 0, pcm16.length, 2));
+        assertEquals("[-1]", PcmUtils.toJsonArray(pcm16, 2, 4, 2));
+        // A trailing partial sample is left out
+        assertEquals("[1,-1]", PcmUtils.toJsonArray(pcm16, 0, 5, 2));
+
+        byte[] pcmFloat = new byte[4];
+        PcmUtils.writeFloat(pcmFloat, 0, 0.5f);
+        assertEquals("[0.5]", PcmUtils.toJsonArray(pcmFloat, 0, 4, 4));
+
+        // 8-bit silence is 128
+        byte[] pcm8 = { (byte) 0x80, (byte) 0xFF, 0x00 };
+        assertEquals("[0,127,-128]", PcmUtils.toJsonArray(pcm8, 0, pcm8.length, 1));
+
+        assertEquals("[]", PcmUtils.toJsonArray(new byte[0], 0, 0, 2));
+    }
+}
@@ -0,0 +1,137 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Starts recordings with a pre-roll while CaptureLoop replays a file and checks
+ * that each file holds exactly the frames from the first pre-roll sample on,
+ * without a gap or a repeat where the live audio takes over
+ */
+public class PreRollRecordingTest {
+
+    private static final int SAMPLE_RATE = 8000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final LoopListener listener = new LoopListener();
+
+    @Test
+    public void fileStartsAtTheFirstPreRollSample() throws Exception {
+        checkRamp(false);
+    }
+
+    @Test
+    public void mappedFileStartsAtTheFirstPreRollSample() throws Exception {
+        checkRamp(true);
+    }
+
+    @Test
+    public void heldBlockAfterTheStartIsRecorded() throws Exception {
+        // Applied in the last silent block, which the gate holds until the tone opens it
+        checkSpeech(SPEECH_START - 2 * SPEECH_READ_FRAMES, SPEECH_START - SPEECH_READ_FRAMES);
+    }
+
+    @Test
+    public void heldBlockInsideThePreRollIsNotRepeated() throws Exception {
+        // Applied in the first tone block, the held silent block before it is part of the pre-roll
+        checkSpeech(SPEECH_START - SPEECH_READ_FRAMES, SPEECH_START);
+    }
+
+    /**
+     * A stereo ramp of three seconds, the recording starts after two with a
+     * pre-roll of one, so the ring has wrapped
+     */
+    private void checkRamp(boolean mapped) throws Exception {
+        int readFrames = 160;
+        int frames = 3 * SAMPLE_RATE;
+        byte[] pcm = Signals.ramp(0, frames, 2);
+        int trigger = 2 * SAMPLE_RATE - readFrames;
+
+        JSONObject finished = record(pcm, 2, readFrames, trigger, new JSONObject().put("mapped", mapped), null);
+        int first = 2 * SAMPLE_RATE - SAMPLE_RATE;
+        assertEquals(first, finished.getLong("firstSample"));
+        assertEquals(frames - 1, finished.getLong("lastSample"));
+        assertArrayEquals(Arrays.copyOfRange(pcm, first * 4, pcm.length),
+                CaptureLoopTest.readData(new File(finished.getString("file"))));
+    }
+
+    private static final int SPEECH_READ_FRAMES = 512;
+    private static final int SPEECH_START = 32 * SPEECH_READ_FRAMES;
+
+    /**
+     * Faint noise, which the gate holds back, with a tone from SPEECH_START on
+     *
+     * @param trigger
+     *            The position of the block during which the recording is started
+     * @param applied
+     *            The start of the block the start is applied in
+     */
+    private void checkSpeech(int trigger, int applied) throws Exception {
+        int frames = SPEECH_START + 16 * SPEECH_READ_FRAMES;
+        Random random = new Random(7);
+        float[] samples = new float[frames];
+        for (int i = 0; i < frames; i++) {
+            samples[i] = (float) (0.0005 * (random.nextDouble() * 2 - 1));
+            if (i >= SPEECH_START) {
+                samples[i] += (float) (0.5 * Math.sin(2 * Math.PI * 440 * i / SAMPLE_RATE));
+            }
+        }
+        byte[] pcm = Signals.encode(samples, 2);
+
+        JSONObject finished = record(pcm, 1, SPEECH_READ_FRAMES, trigger, new JSONObject(), new JSONObject());
+        int first = applied - SAMPLE_RATE;
+        assertEquals(first, finished.getLong("firstSample"));
+        assertArrayEquals(Arrays.copyOfRange(pcm, first * 2, pcm.length),
+                CaptureLoopTest.readData(new File(finished.getString("file"))));
+    }
+
+    /**
+     * Replays pcm with a pre-roll of one second and starts a recording without a
+     * target during the block at trigger
+     *
+     * @return The recordingFinished event
+     */
+    private JSONObject record(byte[] pcm, int channels, int readFrames, final int trigger,
+            final JSONObject options, JSONObject vad) throws Exception {
+        File wav = Signals.writeWav(folder.newFile(), pcm, channels, SAMPLE_RATE, 16);
+        final CaptureLoop loop = new CaptureLoop(SAMPLE_RATE, channels, 2, readFrames * channels * 2,
+                5 * readFrames * channels * 2, listener);
+        loop.setRawAudio(false);
+        loop.setPreRoll(1);
+        loop.setPipeline(new JSONObject().put("recording", new JSONObject().put("queueSize", 1024)));
+        if (vad != null) {
+            loop.setVad(vad);
+        }
+        final String path = folder.newFolder().getPath();
+        loop.addSink("trigger", new AudioSink() {
+            @Override
+            public void process(AudioBufferPool.Chunk block) {
+                if (block.position == trigger) {
+                    loop.startRecording(path, "rec.wav", options);
+                }
+            }
+
+            @Override
+            public void idle() {
+            }
+
+            @Override
+            public void close() {
+            }
+        }, false, 0, null, 0);
+
+        loop.run(new ReplaySource(wav, SAMPLE_RATE, channels, 2, false, false));
+        return listener.awaitEvents("recordingFinished", 1).get(0);
+    }
+}
@@ -0,0 +1,151 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ReplaySourceTest {
+
+    private static final int SAMPLE_RATE = 16000;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void replaysTheDataOfARecording() throws Exception {
+        for (int bitDepth : new int[] { 8, 16, 32 }) {
+            byte[] pcm = Signals.noise(0.5, bitDepth, 5000, 2, bitDepth / 8);
+            File wav = writeWav(pcm, 2, bitDepth, false);
+            ReplaySource source = new ReplaySource(wav, SAMPLE_RATE, 2, bitDepth / 8, false, false);
+            assertTrue(source.getError(), source.isInitialised());
+            assertArrayEquals(bitDepth + " bit", pcm, readAll(source, 1000 * bitDepth / 8));
+            source.release();
+        }
+    }
+
+    @Test
+    public void replaysRf64() throws Exception {
+        byte[] pcm = Signals.ramp(0, 3000, 1);
+        File wav = writeWav(pcm, 1, 16, true);
+        ReplaySource source = new ReplaySource(wav, SAMPLE_RATE, 1, 2, false, false);
+        assertArrayEquals(pcm, readAll(source, 512));
+    }
+
+    @Test
+    public void loopsBackToTheStartOfTheData() throws Exception {
+        byte[] pcm = Signals.ramp(0, 100, 1);
+        File wav = writeWav(pcm, 1, 16, false);
+        ReplaySource source = new ReplaySource(wav, SAMPLE_RATE, 1, 2, false, true);
+        source.start();
+        byte[] buffer = new byte[500];
+        assertEquals(500, source.read(buffer, 0, 500));
+        assertEquals(99, Signals.readShort(buffer, 198));
+        assertEquals(0, Signals.readShort(buffer, 200));
+        assertEquals(49, Signals.readShort(buffer, 498));
+    }
+
+    @Test
+    public void refusesAFileThatDoesNotMatchTheCapture() throws Exception {
+        File wav = writeWav(Signals.ramp(0, 100, 1), 1, 16, false);
+        ReplaySource rate = new ReplaySource(wav, 48000, 1, 2, false, false);
+        assertFalse(rate.isInitialised());
+        assertTrue(rate.getError(), rate.getError().contains("does not match the capture"));
+        assertEquals(AudioSource.ERROR_DEAD_OBJECT, rate.read(new byte[4], 0, 4));
+
+        assertFalse(new ReplaySource(wav, SAMPLE_RATE, 2, 2, false, false).isInitialised());
+        assertFalse(new ReplaySource(wav, SAMPLE_RATE, 1, 4, false, false).isInitialised());
+
+        File text = folder.newFile("text.wav");
+        FileOutputStream out = new FileOutputStream(text);
+        out.write("no audio in here".getBytes("US-ASCII"));
+        out.close();
+        ReplaySource notWav = new ReplaySource(text, SAMPLE_RATE, 1, 2, false, false);
+        assertTrue(notWav.getError(), notWav.getError().contains("Not a WAV file"));
+
+        assertFalse(new ReplaySource(new File(folder.getRoot(), "missing.wav"), SAMPLE_RATE, 1, 2, false, false)
+                .isInitialised());
+    }
+
+    @Test
+    public void generatesTheSameSignalForASeed() {
+        byte[] first = readAll(new ReplaySource(SAMPLE_RATE, 2, 2, false, 440, 0.5, 0.1, 42, 0.5), 640);
+        byte[] second = readAll(new ReplaySource(SAMPLE_RATE, 2, 2, false, 440, 0.5, 0.1, 42, 0.5), 1000);
+        byte[] other = readAll(new ReplaySource(SAMPLE_RATE, 2, 2, false, 440, 0.5, 0.1, 43, 0.5), 640);
+        assertEquals(SAMPLE_RATE / 2 * 4, first.length);
+        assertArrayEquals(first, second);
+        assertFalse(Arrays.equals(first, other));
+    }
+
+    @Test
+    public void generatesTheRequestedTone() {
+        byte[] tone = readAll(new ReplaySource(SAMPLE_RATE, 1, 2, false, 1000, 0.5, 0, 0, 1), 640);
+        float[] samples = Signals.decode(tone, 0, tone.length, 1, 0, 2);
+        assertEquals(0.5 / Math.sqrt(2), Signals.rms(samples, 0, samples.length), 0.001);
+        // 16 samples per period
+        assertEquals(samples[3], samples[3 + 16], 1e-4);
+    }
+
+    @Test
+    public void pacesReadsInRealTime() {
+        ReplaySource source = new ReplaySource(SAMPLE_RATE, 1, 2, true, 440, 0.5, 0, 0, 0.2);
+        long start = System.nanoTime();
+        readAll(source, 640);
+        long ms = (System.nanoTime() - start) / 1000000;
+        assertTrue(ms + " ms", ms >= 190);
+    }
+
+    @Test
+    public void createsASourceFromTheOptions() throws Exception {
+        File wav = writeWav(Signals.ramp(0, 100, 1), 1, 16, false);
+        JSONObject options = new JSONObject().put("file", "file://" + wav.getAbsolutePath()).put("pacing",
+                ReplaySource.PACING_FAST);
+        assertArrayEquals(Signals.ramp(0, 100, 1), readAll(ReplaySource.create(options, SAMPLE_RATE, 1, 2), 64));
+
+        options = new JSONObject().put("frequency", 1000).put("seed", 1).put("duration", 0.1).put("pacing",
+                ReplaySource.PACING_FAST);
+        assertEquals(SAMPLE_RATE / 10 * 2, readAll(ReplaySource.create(options, SAMPLE_RATE, 1, 2), 64).length);
+    }
+
+    /**
+     * Reads until END_OF_STREAM
+     */
+    private static byte[] readAll(AudioSource source, int readBytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buffer = new byte[readBytes];
+        source.start();
+        int n;
+        while ((n = source.read(buffer, 0, readBytes)) != AudioSource.END_OF_STREAM) {
+            assertTrue("read " + n, n > 0);
+            out.write(buffer, 0, n);
+        }
+        source.stop();
+        return out.toByteArray();
+    }
+
+    private File writeWav(byte[] pcm, int channels, int bitDepth, boolean rf64) throws IOException {
+        WavEncoder encoder = new WavEncoder(channels, SAMPLE_RATE, bitDepth, rf64);
+        ByteBuffer header = encoder.completeHeader(encoder.createHeader().remaining() + pcm.length);
+        File file = folder.newFile();
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(header.array(), 0, header.remaining());
+            out.write(pcm);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
@@ -0,0 +1,50 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of resampling one 20 ms chunk of mono 16-bit capture audio to the rate
+ * of a speech model
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ResamplerBenchmark {
+
+    @Param({ "44100", "48000" })
+    public int inputRate;
+
+    @Param({ "16000" })
+    public int outputRate;
+
+    private byte[] chunk;
+    private byte[] out;
+    private Resampler resampler;
+
+    @Setup
+    public void setUp() {
+        chunk = Signals.noise(0.5, 1, inputRate / 50, 1, 2);
+        resampler = new Resampler(inputRate, outputRate, 1, 2, chunk.length);
+        out = new byte[resampler.getMaxOutputBytes(chunk.length)];
+    }
+
+    @Benchmark
+    public int resampleChunk() {
+        return resampler.process(chunk, chunk.length, out);
+    }
+}
@@ -0,0 +1,94 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+
+import org.junit.Test;
+
+public class ResamplerTest {
+
+    private static final int CHUNK_FRAMES = 441;
+
+    @Test
+    public void producesTheOutputRate() {
+        byte[] in = Signals.sine(1000, 0.5, 48000, 48000, 2, 2);
+        byte[] out = resample(in, 48000, 16000, 2, 2, CHUNK_FRAMES * 4);
+        assertEquals(16000, out.length / 4, 1);
+
+        out = resample(Signals.sine(1000, 0.5, 44100, 44100, 1, 2), 44100, 16000, 1, 2, CHUNK_FRAMES * 2);
+        assertEquals(16000, out.length / 2, 1);
+    }
+
+    @Test
+    public void keepsThePassband() {
+        for (int bytesPerSample : new int[] { 1, 2, 4 }) {
+            byte[] in = Signals.sine(1000, 0.5, 48000, 48000, 1, bytesPerSample);
+            float[] out = Signals.decode(resample(in, 48000, 16000, 1, bytesPerSample, 960 * bytesPerSample), 0,
+                    16000 * bytesPerSample, 1, 0, bytesPerSample);
+            // Past the start up of the filter
+            double gain = Signals.rms(out, 1000, 16000) / (0.5 / Math.sqrt(2));
+            assertEquals("gain at " + bytesPerSample + " bytes per sample", 1, gain, 0.03);
+        }
+    }
+
+    @Test
+    public void removesWhatWouldAlias() {
+        // 12 kHz folds back to 4 kHz at 16 kHz unless the filter removes it
+        byte[] in = Signals.sine(12000, 0.5, 48000, 48000, 1, 4);
+        float[] out = Signals.decode(resample(in, 48000, 16000, 1, 4, 960 * 4), 0, 16000 * 4, 1, 0, 4);
+        double attenuationDb = 20 * Math.log10(Signals.rms(out, 1000, 16000) / (0.5 / Math.sqrt(2)));
+        assertTrue(attenuationDb + " dB", attenuationDb < -40);
+    }
+
+    @Test
+    public void chunksResampleAsOneStream() {
+        byte[] in = Signals.noise(0.5, 3, 20000, 2, 2);
+        byte[] whole = resample(in, 44100, 16000, 2, 2, in.length);
+        // Odd chunk sizes, so phase and history carry across every boundary
+        byte[] chunked = resample(in, 44100, 16000, 2, 2, 1236);
+        assertArrayEquals(whole, chunked);
+    }
+
+    @Test
+    public void keepsTheChannelsApart() {
+        int frames = 4800;
+        byte[] left = Signals.sine(1000, 0.5, 48000, frames, 1, 2);
+        byte[] in = new byte[frames * 4];
+        for (int i = 0; i < frames; i++) {
+            in[i * 4] = left[i * 2];
+            in[i * 4 + 1] = left[i * 2 + 1];
+        }
+        byte[] out = resample(in, 48000, 16000, 2, 2, in.length);
+        assertTrue(Signals.rms(Signals.decode(out, 0, out.length, 2, 0, 2), 100, 1600) > 0.3);
+        assertEquals(0, Signals.rms(Signals.decode(out, 0, out.length, 2, 1, 2), 0, 1600), 0);
+    }
+
+    @Test
+    public void resetStartsANewStream() {
+        byte[] in = Signals.noise(0.5, 4, 4800, 1, 2);
+        Resampler resampler = new Resampler(48000, 16000, 1, 2, in.length);
+        byte[] first = new byte[resampler.getMaxOutputBytes(in.length)];
+        byte[] second = new byte[first.length];
+        int length = resampler.process(in, in.length, first);
+        resampler.reset();
+        assertEquals(length, resampler.process(in, in.length, second));
+        assertArrayEquals(first, second);
+    }
+
+    private static byte[] resample(byte[] in, int inputRate, int outputRate, int channels, int bytesPerSample,
+            int chunkBytes) {
+        Resampler resampler = new Resampler(inputRate, outputRate, channels, bytesPerSample, chunkBytes);
+        byte[] chunk = new byte[chunkBytes];
+        byte[] out = new byte[resampler.getMaxOutputBytes(chunkBytes)];
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (int pos = 0; pos < in.length; pos += chunkBytes) {
+            int length = Math.min(chunkBytes, in.length - pos);
+            System.arraycopy(in, pos, chunk, 0, length);
+            result.write(out, 0, resampler.process(chunk, length, out));
+        }
+        return result.toByteArray();
+    }
+}
@@ -0,0 +1,121 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Test;
+
+/**
+ * Runs the automatic gain control and the limiter over sines and noise and
+ * measures the levels that come out
+ */
+public class SampleProcessorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int CHUNK_FRAMES = 320;
+
+    private static final double TARGET_DB = SampleProcessor.DEFAULT_AGC_TARGET_DB;
+
+    @Test
+    public void limiterNeverExceedsItsCeiling() {
+        // Twice over full scale, on both channels
+        SampleProcessor processor = new SampleProcessor(SAMPLE_RATE, 2, 2, 2f, false, 0, 0, 0, 0, true,
+                SampleProcessor.DEFAULT_LIMITER_CEILING_DB, SampleProcessor.DEFAULT_LIMITER_RELEASE_MS);
+        float ceiling = (float) Math.pow(10, SampleProcessor.DEFAULT_LIMITER_CEILING_DB / 20);
+        float[] sine = process(processor, Signals.sine(1000, 1, SAMPLE_RATE, SAMPLE_RATE, 2, 2), 2);
+        float[] noise = process(processor, Signals.noise(1, 5, SAMPLE_RATE, 2, 2), 2);
+        assertEquals(ceiling, peak(sine, 0, sine.length), 1e-3);
+        assertTrue(peak(sine, 0, sine.length) <= ceiling + 1e-6);
+        assertTrue(peak(noise, 0, noise.length) <= ceiling + 1e-6);
+
+        // Well below the ceiling the gain comes back within a few release times
+        float[] quiet = process(processor, Signals.sine(1000, 0.1, SAMPLE_RATE, SAMPLE_RATE / 2, 2, 2), 2);
+        assertEquals(0.2, peak(quiet, quiet.length / 2, quiet.length), 1e-3);
+    }
+
+    @Test
+    public void limiterKeepsTheAutomaticGainBelowTheCeiling() {
+        SampleProcessor processor = createAgc(true);
+        float ceiling = (float) Math.pow(10, SampleProcessor.DEFAULT_LIMITER_CEILING_DB / 20);
+        // The gain control turns a quiet start up to its maximum, the loud part then hits it
+        process(processor, Signals.sine(440, 0.001, SAMPLE_RATE, 2 * SAMPLE_RATE, 1, 2), 1);
+        float[] loud = process(processor, Signals.sine(440, 1, SAMPLE_RATE, SAMPLE_RATE, 1, 2), 1);
+        assertTrue(peak(loud, 0, loud.length) <= ceiling + 1e-6);
+    }
+
+    @Test
+    public void gainRisesToTheTargetWithinTheRelease() {
+        SampleProcessor processor = createAgc(false);
+        // -43 dBFS, which needs 23 dB of the 30 the gain control may add
+        float[] out = process(processor, Signals.sine(440, 0.01, SAMPLE_RATE, 6 * SAMPLE_RATE, 1, 2), 1);
+        int release = SAMPLE_RATE * SampleProcessor.DEFAULT_AGC_RELEASE_MS / 1000;
+        // Slowly, not at once
+        assertTrue(toDb(Signals.rms(out, 0, SAMPLE_RATE / 20)) < TARGET_DB - 12);
+        assertEquals(TARGET_DB, toDb(Signals.rms(out, 5 * release, 6 * release)), 1);
+    }
+
+    @Test
+    public void gainFallsToTheTargetWithinTheAttack() {
+        SampleProcessor processor = createAgc(false);
+        process(processor, Signals.sine(440, 0.01, SAMPLE_RATE, 6 * SAMPLE_RATE, 1, 2), 1);
+
+        // 34 dB louder, the level the gain follows takes AGC_LEVEL_MS to catch up
+        float[] out = process(processor, Signals.sine(440, 0.5, SAMPLE_RATE, SAMPLE_RATE, 1, 2), 1);
+        int settled = SAMPLE_RATE / 2;
+        assertEquals(TARGET_DB, toDb(Signals.rms(out, settled, out.length)), 1);
+    }
+
+    @Test
+    public void gainHoldsOnSilence() {
+        SampleProcessor processor = createAgc(false);
+        process(processor, Signals.sine(440, 0.01, SAMPLE_RATE, 6 * SAMPLE_RATE, 1, 2), 1);
+        float[] silence = process(processor, new byte[3 * SAMPLE_RATE * 2], 1);
+        assertEquals(0, peak(silence, 0, silence.length), 0);
+
+        // Without the hold the quiet sine would come back at the maximum gain
+        float[] out = process(processor, Signals.sine(440, 0.01, SAMPLE_RATE, SAMPLE_RATE / 20, 1, 2), 1);
+        assertEquals(TARGET_DB, toDb(Signals.rms(out, 0, out.length)), 1);
+    }
+
+    private static SampleProcessor createAgc(boolean limiter) {
+        return new SampleProcessor(SAMPLE_RATE, 1, 2, 1f, true, TARGET_DB, SampleProcessor.DEFAULT_AGC_MAX_GAIN_DB,
+                SampleProcessor.DEFAULT_AGC_ATTACK_MS, SampleProcessor.DEFAULT_AGC_RELEASE_MS, limiter,
+                SampleProcessor.DEFAULT_LIMITER_CEILING_DB, SampleProcessor.DEFAULT_LIMITER_RELEASE_MS);
+    }
+
+    /**
+     * Processes pcm in chunks, as the capture thread does
+     *
+     * @return The interleaved output samples
+     */
+    private static float[] process(SampleProcessor processor, byte[] pcm, int channels) {
+        int chunkBytes = CHUNK_FRAMES * channels * 2;
+        byte[] out = new byte[processor.getOutputBytes(chunkBytes)];
+        float[] samples = new float[pcm.length / 2];
+        int index = 0;
+        for (int offset = 0; offset < pcm.length; offset += chunkBytes) {
+            int length = Math.min(chunkBytes, pcm.length - offset);
+            byte[] chunk = new byte[length];
+            System.arraycopy(pcm, offset, chunk, 0, length);
+            int n = processor.process(chunk, length, out);
+            ByteBuffer.wrap(out, 0, n).order(ByteOrder.LITTLE_ENDIAN).asFloatBuffer().get(samples, index, n / 4);
+            index += n / 4;
+        }
+        return samples;
+    }
+
+    private static float peak(float[] samples, int from, int to) {
+        float peak = 0;
+        for (int i = from; i < to; i++) {
+            peak = Math.max(peak, Math.abs(samples[i]));
+        }
+        return peak;
+    }
+
+    private static double toDb(double level) {
+        return 20 * Math.log10(level);
+    }
+}
@@ -0,0 +1,129 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * Interleaved test signals in the sample formats of the plugin
+ */
+final class Signals {
+
+    private Signals() {
+    }
+
+    /**
+     * @return A sine of the given amplitude (0 .. 1) on every channel
+     */
+    static byte[] sine(double frequency, double amplitude, int sampleRate, int frames, int channels,
+            int bytesPerSample) {
+        float[] samples = new float[frames * channels];
+        for (int i = 0; i < frames; i++) {
+            float value = (float) (amplitude * Math.sin(2 * Math.PI * frequency * i / sampleRate));
+            for (int ch = 0; ch < channels; ch++) {
+                samples[i * channels + ch] = value;
+            }
+        }
+        return encode(samples, bytesPerSample);
+    }
+
+    /**
+     * @return Uniform white noise of the given peak amplitude, the same for a seed
+     */
+    static byte[] noise(double amplitude, long seed, int frames, int channels, int bytesPerSample) {
+        Random random = new Random(seed);
+        float[] samples = new float[frames * channels];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = (float) (amplitude * (random.nextDouble() * 2 - 1));
+        }
+        return encode(samples, bytesPerSample);
+    }
+
+    /**
+     * @return 16-bit frames whose samples count up from first, wrapping at 16 bits,
+     *         so every sample tells its own position
+     */
+    static byte[] ramp(int first, int frames, int channels) {
+        byte[] data = new byte[frames * channels * 2];
+        for (int i = 0; i < frames; i++) {
+            for (int ch = 0; ch < channels; ch++) {
+                int pos = (i * channels + ch) * 2;
+                short value = (short) (first + i);
+                data[pos] = (byte) value;
+                data[pos + 1] = (byte) (value >> 8);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * @return Samples in -1 .. 1 as 8-bit unsigned, 16-bit signed or 32-bit float
+     *         little endian PCM
+     */
+    static byte[] encode(float[] samples, int bytesPerSample) {
+        byte[] data = new byte[samples.length * bytesPerSample];
+        for (int i = 0; i < samples.length; i++) {
+            float s = Math.max(-1f, Math.min(1f, samples[i]));
+            int pos = i * bytesPerSample;
+            if (bytesPerSample == 4) {
+                PcmUtils.writeFloat(data, pos, s);
+            } else if (bytesPerSample == 2) {
+                short value = (short) Math.round(s * 32767);
+                data[pos] = (byte) value;
+                data[pos + 1] = (byte) (value >> 8);
+            } else {
+                data[pos] = (byte) (Math.round(s * 127) + 128);
+            }
+        }
+        return data;
+    }
+
+    /**
+     * @return The samples of one channel scaled to -1 .. 1
+     */
+    static float[] decode(byte[] data, int offset, int length, int channels, int channel, int bytesPerSample) {
+        int frameBytes = channels * bytesPerSample;
+        float[] samples = new float[length / frameBytes];
+        for (int i = 0; i < samples.length; i++) {
+            samples[i] = PcmUtils.toFloat(data, offset + i * frameBytes + channel * bytesPerSample, bytesPerSample);
+        }
+        return samples;
+    }
+
+    /**
+     * @return The RMS of samples[from .. to)
+     */
+    static double rms(float[] samples, int from, int to) {
+        double sum = 0;
+        for (int i = from; i < to; i++) {
+            sum += samples[i] * samples[i];
+        }
+        return Math.sqrt(sum / Math.max(to - from, 1));
+    }
+
+    static short readShort(byte[] data, int pos) {
+        return (short) ((data[pos + 1] << 8) | (data[pos] & 0xFF));
+    }
+
+    static int readInt(byte[] data, int pos) {
+        return (data[pos] & 0xFF) | (data[pos + 1] & 0xFF) << 8 | (data[pos + 2] & 0xFF) << 16 | data[pos + 3] << 24;
+    }
+
+    /**
+     * Writes PCM as a WAV file, e.g. for a ReplaySource
+     */
+    static File writeWav(File file, byte[] pcm, int channels, int sampleRate, int bitDepth) throws IOException {
+        WavEncoder encoder = new WavEncoder(channels, sampleRate, bitDepth, false);
+        ByteBuffer header = encoder.completeHeader(encoder.createHeader().remaining() + pcm.length);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(header.array(), 0, header.remaining());
+            out.write(pcm);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+}
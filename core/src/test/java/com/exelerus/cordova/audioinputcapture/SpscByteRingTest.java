@@ -0,0 +1,72 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Test;
+
+public class SpscByteRingTest {
+
+    @Test
+    public void rejectsWhatDoesNotFitAsAWhole() {
+        SpscByteRing ring = new SpscByteRing(6);
+        assertEquals(8, ring.getCapacity());
+        assertTrue(ring.offer(new byte[] { 1, 2, 3, 4, 5, 6 }, 0, 6));
+        assertFalse(ring.offer(new byte[3], 0, 3));
+        assertEquals(6, ring.size());
+
+        byte[] out = new byte[4];
+        assertEquals(4, ring.poll(out, 0, 4));
+        assertArrayEquals(new byte[] { 1, 2, 3, 4 }, out);
+        assertTrue(ring.offer(new byte[] { 7, 8, 9, 10 }, 0, 4));
+        assertEquals(1, ring.skip(1));
+        assertEquals(5, ring.poll(new byte[8], 0, 8));
+        assertEquals(0, ring.size());
+    }
+
+    @Test
+    public void carriesAStreamBetweenTwoThreadsIntact() throws Exception {
+        final SpscByteRing ring = new SpscByteRing(1024);
+        final int total = 1000 * 1000;
+        final AtomicReference<String> failure = new AtomicReference<String>();
+        Thread consumer = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[300];
+                int expected = 0;
+                while (expected < total) {
+                    int n = ring.poll(buffer, 0, buffer.length);
+                    if (n == 0) {
+                        Thread.yield();
+                    }
+                    for (int i = 0; i < n; i++, expected++) {
+                        if (buffer[i] != (byte) expected) {
+                            failure.set("Byte " + expected + " was " + buffer[i]);
+                            return;
+                        }
+                    }
+                }
+            }
+        };
+        consumer.start();
+        byte[] chunk = new byte[100];
+        int produced = 0;
+        while (produced < total && consumer.isAlive()) {
+            for (int i = 0; i < chunk.length; i++) {
+                chunk[i] = (byte) (produced + i);
+            }
+            if (ring.offer(chunk, 0, chunk.length)) {
+                produced += chunk.length;
+            } else {
+                Thread.yield();
+            }
+        }
+        consumer.join(10000);
+        assertEquals(null, failure.get());
+        assertFalse(consumer.isAlive());
+    }
+}
@@ -0,0 +1,110 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of one chunk of 44.1 kHz stereo 16-bit audio in each stage the capture
+ * thread passes it through. Run with -prof gc, as the benchmark profile does,
+ * to see the allocation rate of every stage, all of them should show none.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class StageBenchmark {
+
+    private static final int SAMPLE_RATE = 44100;
+    private static final int CHANNELS = 2;
+
+    @Param({ "4096", "16384" })
+    public int chunkBytes;
+
+    private byte[] chunk;
+    private byte[] out;
+    private ChunkBatcher batcher;
+    private ChannelMixer mixer;
+    private SampleProcessor processor;
+    private PcmRingBuffer preRoll;
+    private SpscByteRing ring;
+    private WavEncoder wav;
+    private AudioEncoder.Output discard;
+
+    @Setup
+    public void setUp() {
+        chunk = Signals.noise(0.5, 1, chunkBytes / 4, CHANNELS, 2);
+        out = new byte[chunkBytes * 2];
+        batcher = new ChunkBatcher(chunkBytes, 0, 8, ChunkBatcher.DROP_OLDEST);
+        mixer = ChannelMixer.create(ChannelMixer.MIX, CHANNELS, 2);
+        processor = new SampleProcessor(SAMPLE_RATE, CHANNELS, 2, 1f, true,
+                SampleProcessor.DEFAULT_AGC_TARGET_DB, SampleProcessor.DEFAULT_AGC_MAX_GAIN_DB,
+                SampleProcessor.DEFAULT_AGC_ATTACK_MS, SampleProcessor.DEFAULT_AGC_RELEASE_MS, true,
+                SampleProcessor.DEFAULT_LIMITER_CEILING_DB, SampleProcessor.DEFAULT_LIMITER_RELEASE_MS);
+        preRoll = new PcmRingBuffer(2 * SAMPLE_RATE * CHANNELS * 2, CHANNELS * 2);
+        ring = new SpscByteRing(chunkBytes * 4);
+        wav = new WavEncoder(CHANNELS, SAMPLE_RATE, 16, true);
+        discard = new AudioEncoder.Output() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+            }
+        };
+    }
+
+    /**
+     * Batching for the bridge, including the hand over to the delivery thread
+     */
+    @Benchmark
+    public long batch() throws InterruptedException {
+        batcher.append(chunk, chunk.length, System.nanoTime());
+        AudioBufferPool.Chunk batch = batcher.poll();
+        long sequence = ChunkBatcher.getSequence(batch);
+        batch.release();
+        return sequence;
+    }
+
+    @Benchmark
+    public int mixToMono() {
+        return mixer.process(chunk, 0, chunk.length, out, 0);
+    }
+
+    /**
+     * Conversion to float with gain control and limiter
+     */
+    @Benchmark
+    public int process() {
+        return processor.process(chunk, chunk.length, out);
+    }
+
+    @Benchmark
+    public int preRoll() {
+        preRoll.write(chunk, 0, chunk.length);
+        return preRoll.size();
+    }
+
+    /**
+     * Hand over to the monitor output thread
+     */
+    @Benchmark
+    public int monitorRing() {
+        ring.offer(chunk, 0, chunk.length);
+        return ring.poll(out, 0, chunk.length);
+    }
+
+    @Benchmark
+    public void encodeWav() throws Exception {
+        wav.encode(chunk, 0, chunk.length, discard);
+    }
+}
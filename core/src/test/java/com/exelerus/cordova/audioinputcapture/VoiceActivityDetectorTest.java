@@ -0,0 +1,146 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Feeds synthetic speech (a voiced tone with harmonics), silence and noise
+ * through the detector. At 16 kHz its frames are 256 samples, so the default
+ * attack is 2 frames and the hangover 19.
+ */
+public class VoiceActivityDetectorTest {
+
+    private static final int SAMPLE_RATE = 16000;
+    private static final int FRAME = 256;
+    private static final int HANGOVER_FRAMES = 19;
+    private static final int CHUNK_BYTES = 640;
+
+    private final List<Long> starts = new ArrayList<Long>();
+    private final List<Long> ends = new ArrayList<Long>();
+
+    private final VoiceActivityDetector.Listener listener = new VoiceActivityDetector.Listener() {
+        @Override
+        public void onSpeechStart(long sample) {
+            starts.add(sample);
+        }
+
+        @Override
+        public void onSpeechEnd(long sample) {
+            ends.add(sample);
+        }
+    };
+
+    @Test
+    public void reportsSpeechWithSampleAccurateBounds() {
+        VoiceActivityDetector vad = create(VoiceActivityDetector.DEFAULT_THRESHOLD_DB);
+        feed(vad, concat(silence(64), voiced(64, 0.3), silence(64)));
+
+        assertEquals(1, starts.size());
+        assertEquals(64 * FRAME, (long) starts.get(0));
+        assertEquals(1, ends.size());
+        assertEquals(128 * FRAME - 1, (long) ends.get(0));
+        assertFalse(vad.isSpeaking());
+        assertEquals(192 * FRAME, vad.getSamplePosition());
+    }
+
+    @Test
+    public void gatesChunksUntilTheHangoverHasPassed() {
+        VoiceActivityDetector vad = create(VoiceActivityDetector.DEFAULT_THRESHOLD_DB);
+        byte[] speech = concat(silence(8), voiced(8, 0.3));
+        assertTrue(vad.process(speech, speech.length));
+
+        // The gate stays open for the hangover and closes with its last frame
+        byte[] frame = silence(1);
+        for (int i = 1; i < HANGOVER_FRAMES; i++) {
+            assertTrue("silent frame " + i, vad.process(frame, frame.length));
+        }
+        assertTrue(vad.process(frame, frame.length));
+        assertFalse(vad.isSpeaking());
+        assertFalse(vad.process(frame, frame.length));
+    }
+
+    @Test
+    public void bridgesPausesShorterThanTheHangover() {
+        VoiceActivityDetector vad = create(VoiceActivityDetector.DEFAULT_THRESHOLD_DB);
+        feed(vad, concat(silence(16), voiced(16, 0.3), silence(HANGOVER_FRAMES - 1), voiced(16, 0.3), silence(32)));
+        assertEquals(1, starts.size());
+        assertEquals(1, ends.size());
+        assertEquals((16 + 16 + HANGOVER_FRAMES - 1 + 16) * FRAME - 1, (long) ends.get(0));
+    }
+
+    @Test
+    public void ignoresBurstsShorterThanTheAttack() {
+        VoiceActivityDetector vad = create(VoiceActivityDetector.DEFAULT_THRESHOLD_DB);
+        feed(vad, concat(silence(16), voiced(1, 0.3), silence(16)));
+        assertTrue(starts.isEmpty());
+    }
+
+    @Test
+    public void ignoresLoudNoise() {
+        VoiceActivityDetector vad = create(VoiceActivityDetector.DEFAULT_THRESHOLD_DB);
+        feed(vad, concat(silence(16), Signals.noise(0.5, 1, 64 * FRAME, 1, 2), silence(16)));
+        assertTrue(starts.isEmpty());
+    }
+
+    @Test
+    public void needsTheThresholdAboveTheNoiseFloor() {
+        // A -49 dB background, then speech at -41 dB, only 8 dB above it
+        byte[] signal = concat(Signals.noise(0.0062, 2, 32 * FRAME, 1, 2), voiced(32, 0.0112), silence(32));
+
+        feed(create(VoiceActivityDetector.DEFAULT_THRESHOLD_DB), signal);
+        assertTrue(starts.isEmpty());
+
+        feed(create(3), signal);
+        assertEquals(1, starts.size());
+        assertEquals(32 * FRAME, (long) starts.get(0));
+    }
+
+    private VoiceActivityDetector create(double thresholdDb) {
+        return new VoiceActivityDetector(SAMPLE_RATE, 1, 2, thresholdDb, VoiceActivityDetector.DEFAULT_FLATNESS,
+                VoiceActivityDetector.DEFAULT_ATTACK_MS, VoiceActivityDetector.DEFAULT_HANGOVER_MS, listener);
+    }
+
+    /**
+     * Processes the signal in chunks that do not line up with the frames
+     */
+    private static void feed(VoiceActivityDetector vad, byte[] signal) {
+        byte[] chunk = new byte[CHUNK_BYTES];
+        for (int pos = 0; pos < signal.length; pos += CHUNK_BYTES) {
+            int length = Math.min(CHUNK_BYTES, signal.length - pos);
+            System.arraycopy(signal, pos, chunk, 0, length);
+            vad.process(chunk, length);
+        }
+    }
+
+    private static byte[] silence(int frames) {
+        return new byte[frames * FRAME * 2];
+    }
+
+    /**
+     * A 150 Hz tone with falling harmonics, the peak of the fundamental is
+     * amplitude
+     */
+    private static byte[] voiced(int frames, double amplitude) {
+        float[] samples = new float[frames * FRAME];
+        for (int i = 0; i < samples.length; i++) {
+            double t = 2 * Math.PI * 150 * i / SAMPLE_RATE;
+            samples[i] = (float) (amplitude * (Math.sin(t) + 0.5 * Math.sin(2 * t) + 0.25 * Math.sin(3 * t)));
+        }
+        return Signals.encode(samples, 2);
+    }
+
+    private static byte[] concat(byte[]... parts) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (byte[] part : parts) {
+            out.write(part, 0, part.length);
+        }
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,120 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+public class WavEncoderTest {
+
+    private static String tag(byte[] header, int pos) {
+        return new String(header, pos, 4);
+    }
+
+    private static byte[] bytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    @Test
+    public void writesPcmHeader() {
+        WavEncoder encoder = new WavEncoder(2, 44100, 16, false);
+        byte[] header = bytes(encoder.completeHeader(44 + 1000));
+        assertEquals(44, header.length);
+        assertEquals("RIFF", tag(header, 0));
+        assertEquals(1036, Signals.readInt(header, 4));
+        assertEquals("WAVE", tag(header, 8));
+        assertEquals("fmt ", tag(header, 12));
+        assertEquals(16, Signals.readInt(header, 16));
+        assertEquals(1, Signals.readShort(header, 20));
+        assertEquals(2, Signals.readShort(header, 22));
+        assertEquals(44100, Signals.readInt(header, 24));
+        assertEquals(44100 * 4, Signals.readInt(header, 28));
+        assertEquals(4, Signals.readShort(header, 32));
+        assertEquals(16, Signals.readShort(header, 34));
+        assertEquals("data", tag(header, 36));
+        assertEquals(1000, Signals.readInt(header, 40));
+    }
+
+    @Test
+    public void writesFloatAsIeeeFloatWithAFactChunk() {
+        WavEncoder encoder = new WavEncoder(2, 48000, 32, false);
+        byte[] header = bytes(encoder.completeHeader(58 + 8000));
+        assertEquals(58, header.length);
+        assertEquals(8050, Signals.readInt(header, 4));
+        assertEquals("fmt ", tag(header, 12));
+        assertEquals(18, Signals.readInt(header, 16));
+        assertEquals(3, Signals.readShort(header, 20));
+        assertEquals(8, Signals.readShort(header, 32));
+        assertEquals(32, Signals.readShort(header, 34));
+        assertEquals(0, Signals.readShort(header, 36));
+        assertEquals("fact", tag(header, 38));
+        assertEquals(4, Signals.readInt(header, 42));
+        assertEquals(1000, Signals.readInt(header, 46));
+        assertEquals("data", tag(header, 50));
+        assertEquals(8000, Signals.readInt(header, 54));
+    }
+
+    @Test
+    public void movesTheFloatSampleCountToDs64() {
+        WavEncoder encoder = new WavEncoder(1, 48000, 32, true);
+        assertEquals(94, encoder.createHeader().remaining());
+        byte[] small = bytes(encoder.completeHeader(94 + 400));
+        assertEquals("fact", tag(small, 74));
+        assertEquals(100, Signals.readInt(small, 82));
+        assertEquals(400, Signals.readInt(small, 90));
+
+        long dataSize = 5L * 1024 * 1024 * 1024;
+        ByteBuffer large = encoder.completeHeader(94 + dataSize).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        byte[] header = bytes(large);
+        assertEquals("RF64", tag(header, 0));
+        assertEquals(dataSize / 4, large.getLong(36));
+        assertEquals(-1, Signals.readInt(header, 82));
+        assertEquals(-1, Signals.readInt(header, 90));
+    }
+
+    @Test
+    public void reservesAndFillsTheDs64ChunkForRf64() {
+        WavEncoder encoder = new WavEncoder(1, 48000, 16, true);
+        byte[] small = bytes(encoder.completeHeader(80 + 100));
+        assertEquals(80, small.length);
+        assertEquals("RIFF", tag(small, 0));
+        assertEquals("JUNK", tag(small, 12));
+        assertEquals(100, Signals.readInt(small, 76));
+
+        long dataSize = 5L * 1024 * 1024 * 1024;
+        ByteBuffer large = encoder.completeHeader(80 + dataSize).order(java.nio.ByteOrder.LITTLE_ENDIAN);
+        byte[] header = bytes(large);
+        assertEquals("RF64", tag(header, 0));
+        assertEquals(-1, Signals.readInt(header, 4));
+        assertEquals("ds64", tag(header, 12));
+        assertEquals(80 + dataSize - 8, large.getLong(20));
+        assertEquals(dataSize, large.getLong(28));
+        assertEquals(dataSize / 2, large.getLong(36));
+        assertEquals(-1, Signals.readInt(header, 76));
+    }
+
+    @Test
+    public void passesPcmThroughFromTheOffset() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        AudioEncoder.Output output = new AudioEncoder.Output() {
+            @Override
+            public void write(byte[] data, int offset, int length) {
+                out.write(data, offset, length);
+            }
+        };
+        WavEncoder encoder = new WavEncoder(1, 16000, 16, false);
+        byte[] pcm = Signals.ramp(0, 100, 1);
+        encoder.encode(pcm, 20, 80, output);
+        encoder.finish(output);
+        assertFalse(encoder.isLimitReached());
+        byte[] written = out.toByteArray();
+        assertEquals(80, written.length);
+        assertEquals(10, Signals.readShort(written, 0));
+        assertEquals(49, Signals.readShort(written, 78));
+    }
+}
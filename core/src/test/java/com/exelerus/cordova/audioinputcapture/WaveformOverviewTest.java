@@ -0,0 +1,156 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.File;
+
+import org.json.JSONObject;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+/**
+ * Writes a rising ramp over a full page of the overview, part of a second one
+ * and part of a first level bin, and compares what read() returns with the
+ * min, max and RMS of the samples themselves
+ */
+public class WaveformOverviewTest {
+
+    private static final int SAMPLE_RATE = 8000;
+    private static final int PAGE_FRAMES = 65536;
+    private static final int LEVEL1_FRAMES = 4096;
+    private static final int FRAMES = PAGE_FRAMES + 5000 + 100;
+
+    // Stored as int16, the RMS of a read bin is also summed from those
+    private static final double TOLERANCE = 2.0 / Short.MAX_VALUE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final float[] samples = createRamp();
+    private final byte[] pcm = Signals.encode(samples, 2);
+    private final float[] decoded = Signals.decode(pcm, 0, pcm.length, 1, 0, 2);
+
+    @Test
+    public void finishedOverviewMatchesTheSamples() throws Exception {
+        File file = folder.newFile("rec.wav");
+        process(file).finish();
+
+        // Small bins are read from the first level, one per stored bin
+        JSONObject base = WaveformOverview.read(file, 0, -1, 1000);
+        assertEquals(FRAMES, base.getLong("frames"));
+        int baseBins = (FRAMES + 255) / 256;
+        assertEquals(baseBins, base.getJSONArray("min").length());
+        assertEquals((double) FRAMES / baseBins, base.getDouble("samplesPerBin"), 1e-9);
+        for (int i = 0; i < baseBins; i++) {
+            checkBin(base, i, i * 256, Math.min((i + 1) * 256, FRAMES));
+        }
+
+        // One bin of the second level each, across the first page and into the second
+        JSONObject level1 = WaveformOverview.read(file, 0, PAGE_FRAMES, 16);
+        assertEquals(16, level1.getJSONArray("min").length());
+        for (int i = 0; i < 16; i++) {
+            checkBin(level1, i, i * LEVEL1_FRAMES, (i + 1) * LEVEL1_FRAMES);
+        }
+        checkBin(WaveformOverview.read(file, PAGE_FRAMES, PAGE_FRAMES + LEVEL1_FRAMES, 1), 0, PAGE_FRAMES,
+                PAGE_FRAMES + LEVEL1_FRAMES);
+
+        // The third level, the full page and the partial one averaged into one bin
+        checkBin(WaveformOverview.read(file, 0, PAGE_FRAMES, 1), 0, 0, PAGE_FRAMES);
+        JSONObject all = WaveformOverview.read(file, 0, -1, 1);
+        assertEquals(decoded[0], all.getJSONArray("min").getDouble(0), TOLERANCE);
+        assertEquals(decoded[FRAMES - 1], all.getJSONArray("max").getDouble(0), TOLERANCE);
+        double first = Signals.rms(decoded, 0, PAGE_FRAMES);
+        double second = Signals.rms(decoded, PAGE_FRAMES, FRAMES);
+        assertEquals(Math.sqrt((first * first + second * second) / 2), all.getJSONArray("rms").getDouble(0),
+                TOLERANCE);
+    }
+
+    @Test
+    public void readsFromTheCoarsestLevelThatGivesEnoughBins() throws Exception {
+        File file = folder.newFile("rec.wav");
+        process(file).finish();
+
+        // Two bins of 4096 frames wanted, the first second level bin starts before the range
+        JSONObject overview = WaveformOverview.read(file, 100, 100 + 2 * LEVEL1_FRAMES, 2);
+        assertEquals(2, overview.getJSONArray("min").length());
+        assertEquals(LEVEL1_FRAMES, overview.getDouble("samplesPerBin"), 1e-9);
+        assertEquals(decoded[0], overview.getJSONArray("min").getDouble(0), TOLERANCE);
+        assertEquals(decoded[3 * LEVEL1_FRAMES - 1], overview.getJSONArray("max").getDouble(1), TOLERANCE);
+
+        // Never more bins than the range has on the first level
+        JSONObject brief = WaveformOverview.read(file, 0, 1000, 100);
+        assertEquals(4, brief.getJSONArray("min").length());
+        assertEquals(250, brief.getDouble("samplesPerBin"), 1e-9);
+
+        // Beyond the recording is cut to it, an empty range has no bins
+        assertEquals(FRAMES, WaveformOverview.read(file, 0, 10 * FRAMES, 1).getLong("end"));
+        assertEquals(0, WaveformOverview.read(file, FRAMES, -1, 10).getJSONArray("min").length());
+    }
+
+    @Test
+    public void checkpointCoversTheClosedBinsOnEveryLevel() throws Exception {
+        File audio = folder.newFile("rec.wav");
+        WaveformOverview overview = process(audio);
+        overview.checkpoint();
+
+        // Only the complete bins of the first level are covered
+        int covered = FRAMES - FRAMES % 256;
+        JSONObject all = WaveformOverview.read(audio, 0, -1, 1);
+        assertEquals(covered, all.getLong("frames"));
+        assertEquals(decoded[0], all.getJSONArray("min").getDouble(0), TOLERANCE);
+        assertEquals(decoded[covered - 1], all.getJSONArray("max").getDouble(0), TOLERANCE);
+
+        // The second level bin that is still filling holds the frames covered so far
+        JSONObject level1 = WaveformOverview.read(audio, PAGE_FRAMES, covered, 1);
+        assertEquals(decoded[PAGE_FRAMES], level1.getJSONArray("min").getDouble(0), TOLERANCE);
+        assertEquals(decoded[covered - 1], level1.getJSONArray("max").getDouble(0), TOLERANCE);
+        double closed = Signals.rms(decoded, PAGE_FRAMES, PAGE_FRAMES + LEVEL1_FRAMES);
+        double open = Signals.rms(decoded, PAGE_FRAMES + LEVEL1_FRAMES, covered);
+        assertEquals(Math.sqrt((closed * closed + open * open) / 2), level1.getJSONArray("rms").getDouble(0),
+                TOLERANCE);
+
+        overview.finish();
+        assertEquals(FRAMES, WaveformOverview.read(audio, 0, -1, 1).getLong("frames"));
+        checkBin(WaveformOverview.read(audio, PAGE_FRAMES, PAGE_FRAMES + LEVEL1_FRAMES, 1), 0, PAGE_FRAMES,
+                PAGE_FRAMES + LEVEL1_FRAMES);
+    }
+
+    private static float[] createRamp() {
+        float[] ramp = new float[FRAMES];
+        for (int i = 0; i < FRAMES; i++) {
+            ramp[i] = -0.9f + 1.8f * i / FRAMES;
+        }
+        return ramp;
+    }
+
+    /**
+     * Adds the ramp to the overview of audio in chunks that do not line up with
+     * the bins
+     */
+    private WaveformOverview process(File audio) throws Exception {
+        WaveformOverview overview = new WaveformOverview(WaveformOverview.overviewFile(audio), 1, 2, SAMPLE_RATE);
+        overview.open();
+        int chunk = 1000;
+        for (int offset = 0; offset < pcm.length; offset += chunk) {
+            overview.process(pcm, offset, Math.min(chunk, pcm.length - offset));
+        }
+        return overview;
+    }
+
+    /**
+     * Compares bin i of a read with the samples from .. to
+     */
+    private void checkBin(JSONObject overview, int i, int from, int to) throws Exception {
+        float min = Float.MAX_VALUE;
+        float max = -Float.MAX_VALUE;
+        for (int k = from; k < to; k++) {
+            min = Math.min(min, decoded[k]);
+            max = Math.max(max, decoded[k]);
+        }
+        assertEquals("min " + i, min, overview.getJSONArray("min").getDouble(i), TOLERANCE);
+        assertEquals("max " + i, max, overview.getJSONArray("max").getDouble(i), TOLERANCE);
+        assertEquals("rms " + i, Signals.rms(decoded, from, to), overview.getJSONArray("rms").getDouble(i),
+                TOLERANCE);
+    }
+}
@@ -8,10 +8,14 @@ import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.Arrays;
 
 import android.os.Handler;
 import android.os.Message;
+import android.util.Base64;
 import android.util.Log;
 import android.content.pm.PackageManager;
 import android.content.Context;
@@ -21,8 +25,13 @@ import android.Manifest;
 public class AudioInputCapture extends CordovaPlugin {
     private static final String LOG_TAG = "AudioInputCapture";
 
+    // Captured audio is sent as Base64 in pieces of this many bytes, a multiple of 3
+    // so that the strings can simply be joined
+    private static final int BASE64_CHUNK_SIZE = 3 * 16384;
+
     private CallbackContext callbackContext = null;
     private AudioInputReceiver receiver;
+    private AudioSessionManager sessions = null;
     private final AudioInputCaptureHandler handler = new AudioInputCaptureHandler(this);
 
     public static String[] permissions = { Manifest.permission.RECORD_AUDIO };
@@ -36,6 +45,28 @@ public class AudioInputCapture extends CordovaPlugin {
     private int audioSource = 0;
     private boolean monitoring = false;
     private int monitorSampleRate = 1;
+    private String dataFormat = "string";
+    private int outputSampleRate = 0;
+    private double preRoll = 0;
+    private JSONObject analysis = null;
+    private boolean rawAudio = true;
+    private JSONObject vad = null;
+    private int statsInterval = 0;
+    private int monitorLatency = AudioInputReceiver.DEFAULT_MONITOR_LATENCY;
+    private int batchLatency = 0;
+    private int batchSize = 0;
+    private int queueSize = 8;
+    private String overflowPolicy = ChunkBatcher.DROP_NEWEST;
+    private JSONObject pipeline = null;
+    private String transport = AudioInputReceiver.TRANSPORT_BRIDGE;
+    private JSONObject processing = null;
+    private JSONObject replay = null;
+    private JSONObject adaptive = null;
+    private Object channelMode = null;
+    private double captureBuffer = 0;
+
+    // Counters of the current or last capture session
+    private CaptureStats stats = null;
 
     @Override
     public boolean execute(String action, JSONArray args, CallbackContext callbackContext) throws JSONException {
@@ -48,6 +79,8 @@ public class AudioInputCapture extends CordovaPlugin {
             }
 
             this.callbackContext = callbackContext;
+            // The receiver of the last session is done, a new one is only set once permitted
+            receiver = null;
 
             try {
                 this.sampleRate = args.getInt(0);
@@ -57,14 +90,41 @@ public class AudioInputCapture extends CordovaPlugin {
                 this.audioSource = args.getInt(4);
                 this.monitoring = args.getBoolean(5);
                 this.monitorSampleRate = args.getInt(6);
+                this.dataFormat = args.optString(7, "string");
+                this.outputSampleRate = args.optInt(8, 0);
+                this.preRoll = args.optDouble(9, 0);
+                this.analysis = args.optJSONObject(10);
+                this.rawAudio = args.optBoolean(11, true);
+                this.vad = args.optJSONObject(12);
+                this.statsInterval = args.optInt(13, 0);
+                this.batchLatency = args.optInt(14, 0);
+                this.batchSize = args.optInt(15, 0);
+                this.queueSize = args.optInt(16, 8);
+                this.overflowPolicy = args.optString(17, ChunkBatcher.DROP_NEWEST);
+                this.monitorLatency = args.optInt(18, AudioInputReceiver.DEFAULT_MONITOR_LATENCY);
+                this.pipeline = args.optJSONObject(19);
+                this.transport = args.optString(20, AudioInputReceiver.TRANSPORT_BRIDGE);
+                this.processing = args.optJSONObject(21);
+                this.replay = args.optJSONObject(22);
+                this.adaptive = args.optJSONObject(23);
+                this.channelMode = args.opt(24);
+                this.captureBuffer = args.optDouble(25, 0);
 
-                promptForRecord();
-                if (!receiver.isInitialised()) {
+                // Without a receiver the permission is being asked for, see onRequestPermissionResult()
+                if (promptForRecord() && !receiver.isInitialised()) {
+                    receiver.releaseSource();
                     callbackContext.error("AudioInputCapture listener could not be initialised.");
                     return true;
                 }
             } catch (Exception e) {
-                receiver.interrupt();
+                if (receiver != null) {
+                    if (receiver.getState() == Thread.State.NEW) {
+                        // Never started, so the capture loop does not free its source
+                        receiver.releaseSource();
+                    } else {
+                        receiver.interrupt();
+                    }
+                }
 
                 this.callbackContext
                         .sendPluginResult(new PluginResult(PluginResult.Status.ERROR, PERMISSION_DENIED_ERROR));
@@ -89,8 +149,11 @@ public class AudioInputCapture extends CordovaPlugin {
                 Context context = this.cordova.getActivity().getApplicationContext();
                 String filePath = args.getString(0);
                 String fileName = args.getString(1);
+                JSONObject options = args.optJSONObject(2);
+                if (options == null)
+                    options = new JSONObject();
                 if (receiver != null)
-                    receiver.startRecording(filePath, fileName, context);
+                    receiver.startRecording(filePath, fileName, options, context);
             } catch (Exception e) {
                 Log.e(LOG_TAG, e.getMessage(), e);
                 return false;
@@ -98,8 +161,11 @@ public class AudioInputCapture extends CordovaPlugin {
             callbackContext.success();
             return true;
         } else if (action.equals("finishRecording")) {
+            JSONObject options = args.optJSONObject(0);
+            if (options == null)
+                options = new JSONObject();
             if (receiver != null)
-                receiver.finishRecording();
+                receiver.finishRecording(options);
             PluginResult pluginResult = new PluginResult(PluginResult.Status.OK);
             pluginResult.setKeepCallback(true);
             callbackContext.sendPluginResult(pluginResult);
@@ -117,30 +183,141 @@ public class AudioInputCapture extends CordovaPlugin {
             }
             callbackContext.success();
             return true;
+        } else if (action.equals("getMonitorLatency")) {
+            JSONObject latency = receiver != null ? receiver.getMonitorLatency() : null;
+            if (latency == null) {
+                callbackContext.error("AudioInputCapture is not monitoring.");
+                return true;
+            }
+            callbackContext.success(latency);
+            return true;
+        } else if (action.equals("getStats")) {
+            if (this.stats == null) {
+                callbackContext.error("AudioInputCapture has not been started.");
+                return true;
+            }
+            callbackContext.success(this.stats.toJSON());
+            return true;
+        } else if (action.equals("getWaveform")) {
+            final File file = new File(args.getString(0));
+            final long start = args.optLong(1, 0);
+            final long end = args.optLong(2, -1);
+            final int bins = args.optInt(3, 1000);
+            final CallbackContext context = callbackContext;
+            // Only a few pages are read, but still not on the WebView thread
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        context.success(WaveformOverview.read(file, start, end, bins));
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, e.getMessage(), e);
+                        context.error("Could not read the waveform overview: " + e.getMessage());
+                    }
+                }
+            });
+            return true;
+        } else if (action.equals("getCapturedAudio")) {
+            final CaptureStore store = receiver != null ? receiver.getCaptureStore() : null;
+            if (store == null) {
+                callbackContext.error("AudioInputCapture keeps no captured audio, set captureBuffer.");
+                return true;
+            }
+            final double seconds = args.optDouble(0, 0);
+            final boolean base64 = "base64".equals(args.optString(1, "arraybuffer"));
+            final CallbackContext context = callbackContext;
+            // Copied and encoded off the WebView thread, the capture keeps writing meanwhile
+            cordova.getThreadPool().execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (base64) {
+                            sendCapturedAudio(store, seconds, context);
+                        } else {
+                            context.sendPluginResult(new PluginResult(PluginResult.Status.OK, store.toWav(seconds)));
+                        }
+                    } catch (Exception e) {
+                        Log.e(LOG_TAG, e.getMessage(), e);
+                        context.error("Could not export the captured audio: " + e.getMessage());
+                    }
+                }
+            });
+            return true;
         } else if (action.equals("listSources")) {
-            Context context = this.cordova.getActivity().getApplicationContext();
-            AudioInputReceiver receiver = new AudioInputReceiver();
-            JSONArray sources = receiver.getSourcesList(context);
-
+            JSONArray sources = getSessions().getDevices();
             callbackContext.success(sources.toString());
-            callbackContext.error("listSources called");
             return true;
         }
         return false;
     }
 
     public void onDestroy() {
-        if (!receiver.isInterrupted()) {
+        if (receiver != null && !receiver.isInterrupted()) {
             receiver.interrupt();
         }
+        if (sessions != null) {
+            sessions.release();
+            sessions = null;
+        }
     }
 
     public void onReset() {
-        if (!receiver.isInterrupted()) {
+        if (receiver != null && !receiver.isInterrupted()) {
             receiver.interrupt();
         }
     }
 
+    /**
+     * @return The session manager that keeps the microphone warm between
+     *         captures and caches the device list
+     */
+    private AudioSessionManager getSessions() {
+        if (sessions == null) {
+            sessions = new AudioSessionManager(this.cordova.getActivity().getApplicationContext());
+        }
+        return sessions;
+    }
+
+    /**
+     * Streams the latest captured audio as a WAV in Base64 pieces, each sent as
+     * { data, last } while it is exported
+     */
+    private void sendCapturedAudio(CaptureStore store, double seconds, final CallbackContext context)
+            throws IOException {
+        final byte[] chunk = new byte[BASE64_CHUNK_SIZE];
+        final int[] fill = { 0 };
+        store.export(seconds, new AudioEncoder.Output() {
+            @Override
+            public void write(byte[] data, int offset, int length) throws IOException {
+                while (length > 0) {
+                    int n = Math.min(length, chunk.length - fill[0]);
+                    System.arraycopy(data, offset, chunk, fill[0], n);
+                    fill[0] += n;
+                    offset += n;
+                    length -= n;
+                    if (fill[0] == chunk.length) {
+                        sendBase64(context, chunk, chunk.length, false);
+                        fill[0] = 0;
+                    }
+                }
+            }
+        });
+        sendBase64(context, chunk, fill[0], true);
+    }
+
+    private static void sendBase64(CallbackContext context, byte[] data, int length, boolean last) {
+        JSONObject info = new JSONObject();
+        try {
+            info.put("data", Base64.encodeToString(data, 0, length, Base64.NO_WRAP));
+            info.put("last", last);
+        } catch (JSONException e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        }
+        PluginResult result = new PluginResult(PluginResult.Status.OK, info);
+        result.setKeepCallback(!last);
+        context.sendPluginResult(result);
+    }
+
     /**
      * Create a new plugin result and send it back to JavaScript
      */
@@ -152,6 +329,36 @@ public class AudioInputCapture extends CordovaPlugin {
         }
     }
 
+    /**
+     * Send a chunk of raw audio data back to JavaScript as an ArrayBuffer
+     */
+    private void sendBinaryUpdate(byte[] data, boolean keepCallback) {
+        if (this.callbackContext != null) {
+            PluginResult result = new PluginResult(PluginResult.Status.OK, data);
+            result.setKeepCallback(keepCallback);
+            this.callbackContext.sendPluginResult(result);
+        }
+    }
+
+    /**
+     * Sends a batch of audio to JavaScript. The binary form keeps the sequence
+     * number header, the JSON form has it in a separate key.
+     */
+    private void sendBatch(AudioBufferPool.Chunk batch, boolean binary, int bytesPerSample) throws JSONException {
+        if (binary) {
+            byte[] bytes = batch.length == batch.data.length ? batch.data : Arrays.copyOf(batch.data, batch.length);
+            sendBinaryUpdate(bytes, true);
+        } else {
+            JSONObject info = new JSONObject();
+            info.put("sequence", ChunkBatcher.getSequence(batch));
+            info.put("data", PcmUtils.toJsonArray(batch.data, ChunkBatcher.HEADER_SIZE, batch.length, bytesPerSample));
+            sendUpdate(info, true);
+        }
+        if (this.stats != null) {
+            this.stats.onChunkDelivered(batch.timestamp);
+        }
+    }
+
     private static class AudioInputCaptureHandler extends Handler {
         private final WeakReference<AudioInputCapture> mActivity;
 
@@ -162,10 +369,30 @@ public class AudioInputCapture extends CordovaPlugin {
         @Override
         public void handleMessage(Message msg) {
             AudioInputCapture activity = mActivity.get();
-            if (activity != null) {
+
+            if (msg.what == AudioInputReceiver.MSG_DATA) {
+                // Delivers every batch that is waiting, batches closed from now on post a new message
+                ChunkBatcher batcher = (ChunkBatcher) msg.obj;
+                batcher.onDrain();
+                AudioBufferPool.Chunk batch;
+                while ((batch = batcher.poll()) != null) {
+                    try {
+                        if (activity != null) {
+                            activity.sendBatch(batch, msg.arg1 == 1, msg.arg2);
+                        }
+                    } catch (JSONException e) {
+                        Log.e(LOG_TAG, e.getMessage(), e);
+                    } finally {
+                        // PluginResult has already encoded the data, so the batch can be reused
+                        batch.release();
+                    }
+                }
+            } else if (msg.what == AudioInputReceiver.MSG_EVENT && activity != null) {
+                activity.sendUpdate((JSONObject) msg.obj, true);
+            } else if (msg.what == AudioInputReceiver.MSG_ERROR && activity != null) {
                 JSONObject info = new JSONObject();
                 try {
-                    info.put("data", msg.getData().getString("data"));
+                    info.put("error", msg.obj);
                 } catch (JSONException e) {
                     Log.e(LOG_TAG, e.getMessage(), e);
                 }
@@ -182,17 +409,53 @@ public class AudioInputCapture extends CordovaPlugin {
     }
 
     /**
-     * Ensure that we have gotten record audio permission
+     * Ensure that we have gotten record audio permission, a replay does not need
+     * it
+     *
+     * @return false if the permission is being asked for, there is then no
+     *         receiver yet
      */
-    private void promptForRecord() {
-        if (PermissionHelper.hasPermission(this, permissions[RECORD_AUDIO])) {
+    private boolean promptForRecord() {
+        if (this.replay != null || PermissionHelper.hasPermission(this, permissions[RECORD_AUDIO])) {
             receiver = new AudioInputReceiver(this.sampleRate, this.bufferSize, this.channels, this.format,
                     this.audioSource, this.monitoring, this.monitorSampleRate);
+            if (this.replay != null) {
+                receiver.setReplay(this.replay);
+            } else {
+                receiver.setSessionManager(getSessions());
+            }
             receiver.setHandler(handler);
-            receiver.start();
-        } else {
-            getMicPermission(RECORD_AUDIO);
+            this.stats = new CaptureStats();
+            receiver.setStats(this.stats, this.statsInterval);
+            receiver.setDelivery(this.batchLatency, this.batchSize, this.queueSize, this.overflowPolicy);
+            receiver.setMonitorLatency(this.monitorLatency);
+            receiver.setAdaptive(this.adaptive);
+            receiver.setBinaryData("binary".equals(this.dataFormat));
+            receiver.setTransport(this.transport);
+            receiver.setChannelMode(this.channelMode);
+            receiver.setProcessing(this.processing);
+            receiver.setOutputSampleRate(this.outputSampleRate);
+            receiver.setPreRoll(this.preRoll);
+            receiver.setCaptureBuffer(this.captureBuffer);
+            receiver.setRawAudio(this.rawAudio);
+            if (this.analysis != null) {
+                receiver.setAnalysis(this.analysis);
+            }
+            if (this.vad != null) {
+                receiver.setVad(this.vad);
+            }
+            if (this.pipeline != null) {
+                receiver.setPipeline(this.pipeline);
+            }
+            // Opened here rather than on the capture thread, so a source that cannot
+            // capture is released before the thread ever sees it
+            if (receiver.openSource()) {
+                receiver.start();
+            }
+            return true;
         }
+        getMicPermission(RECORD_AUDIO);
+        return false;
     }
 
     /**
@@ -209,6 +472,9 @@ public class AudioInputCapture extends CordovaPlugin {
             }
         }
 
-        promptForRecord();
+        if (promptForRecord() && !receiver.isInitialised()) {
+            receiver.releaseSource();
+            this.callbackContext.error("AudioInputCapture listener could not be initialised.");
+        }
     }
 }
\ No newline at end of file
@@ -1,57 +1,53 @@
 package com.exelerus.cordova.audioinputcapture;
 
-import android.Manifest;
-import android.content.pm.PackageManager;
-
-import android.os.Bundle;
+import android.os.Build;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 import android.media.AudioFormat;
 import android.media.AudioRecord;
-import android.media.AudioTrack;
-import android.media.MediaRecorder;
-import android.media.AudioDeviceInfo;
-import android.media.AudioManager;
 import android.content.Context;
 
-import java.util.Arrays;
 import java.util.Map;
 import java.util.HashMap;
 
-import org.json.JSONArray;
+import org.json.JSONException;
 import org.json.JSONObject;
 
-import android.util.Base64;
+/**
+ * The capture thread on Android. The capture itself is a CaptureLoop, this
+ * class opens the AudioRecord for it, plays the audio back while monitoring
+ * and passes what the loop reports on to the Handler and the log.
+ */
+public class AudioInputReceiver extends Thread implements CaptureLoop.Listener {
+    private static final String LOG_TAG = "AudioInputReceiver";
 
-import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.OutputStream;
-import java.io.RandomAccessFile;
-import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-import java.util.Locale;
+    public static final int MSG_DATA = 1;
+    public static final int MSG_ERROR = 2;
+    public static final int MSG_EVENT = 3;
 
-public class AudioInputReceiver extends Thread {
-    private static final String LOG_TAG = "AudioInputReceiver";
+    public static final int DEFAULT_MONITOR_LATENCY = 40;
+
+    public static final String TRANSPORT_BRIDGE = CaptureLoop.TRANSPORT_BRIDGE;
+    public static final String TRANSPORT_WEBSOCKET = CaptureLoop.TRANSPORT_WEBSOCKET;
 
     private final int RECORDING_BUFFER_FACTOR = 5;
     private int inputChannelConfig = AudioFormat.CHANNEL_IN_MONO;
-    private int outputChannelConfig = AudioFormat.CHANNEL_OUT_DEFAULT;
     private int audioFormat = AudioFormat.ENCODING_PCM_16BIT;
     private int sampleRateInHz = 44100;
     private int audioSource = 0;
 
-    private boolean startRecording = false;
-    private boolean recording = false;
-    private boolean finishRecording = false;
+    private volatile boolean monitoring = false;
+    private int monitorSampleRate = 1;
+
+    // Most audio in ms that may wait for the monitor output, see AudioMonitor
+    private int monitorLatency = DEFAULT_MONITOR_LATENCY;
+    private volatile AudioMonitor monitor = null;
 
-    private String folderPath = "";
-    private String fileName = "";
+    // Rate of the data delivered to JS, 0 derives it from monitorSampleRate
+    private int outputSampleRate = 0;
 
-    private boolean monitoring = false;
-    private int monitorSampleRate = 1;
+    // Deliver chunks as raw bytes (ArrayBuffer in JS) instead of a JSON array string
+    private boolean binaryData = false;
 
     private static final Map<String, String> sourceType2String;
     static {
@@ -67,18 +63,12 @@ public class AudioInputReceiver extends Thread {
     // Used for reading from the AudioRecord buffer
     private int readBufferSize = minBufferSize;
 
-    private AudioRecord recorder;
-    private AudioTrack audioTrack;
+    private AudioSource source = null;
+    private AudioSessionManager sessions = null;
     private Handler handler;
-    private Message message;
-    private Bundle messageBundle = new Bundle();
 
-    public AudioInputReceiver() {
-        recorder = new AudioRecord(MediaRecorder.AudioSource.DEFAULT, sampleRateInHz, inputChannelConfig, audioFormat,
-                minBufferSize * RECORDING_BUFFER_FACTOR);
-        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRateInHz, outputChannelConfig, audioFormat,
-                recordingBufferSize, AudioTrack.MODE_STREAM);
-    }
+    // Does the actual capture on this thread
+    private final CaptureLoop loop;
 
     public AudioInputReceiver(int sampleRate, int bufferSizeInBytes, int channels, String format, int audioSource,
             boolean monitoring, int monitorSampleRate) {
@@ -96,8 +86,11 @@ public class AudioInputReceiver extends Thread {
             inputChannelConfig = AudioFormat.CHANNEL_IN_MONO;
             break;
         }
-        if (format == "PCM_8BIT") {
+        if ("PCM_8BIT".equals(format)) {
             audioFormat = AudioFormat.ENCODING_PCM_8BIT;
+        } else if ("PCM_FLOAT".equals(format) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            // AudioRecord captures float from Android 6 on
+            audioFormat = AudioFormat.ENCODING_PCM_FLOAT;
         } else {
             audioFormat = AudioFormat.ENCODING_PCM_16BIT;
         }
@@ -120,311 +113,324 @@ public class AudioInputReceiver extends Thread {
         Log.e(LOG_TAG, "minBufferSize: " + minBufferSize + " - readBufferSize: " + readBufferSize
                 + " - recordingBufferSize: " + recordingBufferSize);
 
-        recorder = new AudioRecord(audioSource, sampleRateInHz, inputChannelConfig, audioFormat, recordingBufferSize);
-        audioTrack = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRateInHz, outputChannelConfig, audioFormat,
-                recordingBufferSize, AudioTrack.MODE_STREAM);
+        this.audioSource = audioSource;
+        this.loop = new CaptureLoop(sampleRateInHz, getChannelCount(), getBytesPerSample(), readBufferSize,
+                recordingBufferSize, this);
+        loop.setDeliverySampleRate(getDeliverySampleRate());
+    }
+
+    /**
+     * Replaces the microphone with another source of the same format, must be
+     * called before start()
+     */
+    public void setSource(AudioSource source) {
+        if (this.source != null) {
+            this.source.release();
+        }
+        this.source = source;
+    }
+
+    /**
+     * Captures from a WAV file or a generated signal instead of the microphone,
+     * must be called before start()
+     *
+     * @param options
+     *            See ReplaySource.create()
+     * @return false if the replay cannot be used, isInitialised() then says the
+     *         same
+     */
+    public boolean setReplay(JSONObject options) {
+        ReplaySource replay = ReplaySource.create(options, sampleRateInHz, getChannelCount(), getBytesPerSample());
+        if (!replay.isInitialised()) {
+            Log.e(LOG_TAG, "Replay: " + replay.getError());
+        }
+        setSource(replay);
+        return replay.isInitialised();
+    }
+
+    /**
+     * Takes the microphone from the session manager, which may hand over the
+     * source of the previous session, must be called before start()
+     */
+    public void setSessionManager(AudioSessionManager sessions) {
+        this.sessions = sessions;
+    }
+
+    /**
+     * Frees the source of a receiver that will not be started
+     */
+    public void releaseSource() {
+        setSource(null);
+    }
+
+    /**
+     * Opens the microphone, unless another source has been set. Must be called
+     * on the thread that calls start() and before it, so the capture thread never
+     * creates the source. Once started, the capture loop stops and frees it when
+     * it ends, also after an error.
+     *
+     * @return false if the source cannot capture, the receiver must then not be
+     *         started and releaseSource() frees it
+     */
+    public boolean openSource() {
+        if (source == null) {
+            if (sessions != null) {
+                source = sessions.acquire(audioSource, sampleRateInHz, inputChannelConfig, audioFormat,
+                        recordingBufferSize);
+            } else {
+                source = new AudioRecordSource(audioSource, sampleRateInHz, inputChannelConfig, audioFormat,
+                        recordingBufferSize);
+            }
+        }
+        return source.isInitialised();
     }
 
     public void setHandler(Handler handler) {
         this.handler = handler;
     }
 
+    public void setBinaryData(boolean binaryData) {
+        this.binaryData = binaryData;
+    }
+
+    /**
+     * @see CaptureLoop#setProcessing(JSONObject)
+     */
+    public void setProcessing(JSONObject options) {
+        loop.setProcessing(options);
+    }
+
+    /**
+     * @see CaptureLoop#setChannelMode(Object)
+     */
+    public void setChannelMode(Object mode) {
+        loop.setChannelMode(mode);
+    }
+
+    /**
+     * @see CaptureLoop#setTransport(String)
+     */
+    public void setTransport(String transport) {
+        loop.setTransport(transport);
+    }
+
+    public void setOutputSampleRate(int outputSampleRate) {
+        this.outputSampleRate = outputSampleRate;
+        loop.setDeliverySampleRate(getDeliverySampleRate());
+    }
+
+    public void setPreRoll(double seconds) {
+        loop.setPreRoll(seconds);
+    }
+
+    /**
+     * @see CaptureLoop#setCaptureBuffer(double)
+     */
+    public void setCaptureBuffer(double seconds) {
+        loop.setCaptureBuffer(seconds);
+    }
+
+    /**
+     * @see CaptureLoop#getCaptureStore()
+     */
+    public CaptureStore getCaptureStore() {
+        return loop.getCaptureStore();
+    }
+
+    public void setRawAudio(boolean rawAudio) {
+        loop.setRawAudio(rawAudio);
+    }
+
+    /**
+     * @see CaptureLoop#setAnalysis(JSONObject)
+     */
+    public void setAnalysis(JSONObject options) {
+        loop.setAnalysis(options);
+    }
+
+    /**
+     * @see CaptureLoop#setVad(JSONObject)
+     */
+    public void setVad(JSONObject options) {
+        loop.setVad(options);
+    }
+
+    /**
+     * @see CaptureLoop#setAdaptive(JSONObject)
+     */
+    public void setAdaptive(JSONObject options) {
+        loop.setAdaptive(options);
+    }
+
+    /**
+     * @see CaptureLoop#setPipeline(JSONObject)
+     */
+    public void setPipeline(JSONObject options) {
+        loop.setPipeline(options);
+    }
+
+    /**
+     * Registers an additional consumer of the captured audio, must be called
+     * before start(), see AudioPipeline.add()
+     */
+    public void addSink(String name, AudioSink sink, boolean gated, int queueSize, String policy, int idleMs) {
+        loop.addSink(name, sink, gated, queueSize, policy, idleMs);
+    }
+
+    public void setStats(CaptureStats stats, int intervalMs) {
+        loop.setStats(stats, intervalMs);
+    }
+
     public void setMonitoring(boolean monitoring) {
         this.monitoring = monitoring;
     }
 
-    public void startRecording(String folderPath, String fileName, Context context) {
-        this.folderPath = folderPath;
-        try {
-            File dir = new File(this.folderPath);
-            if (!dir.exists()) {
-                dir.mkdirs();
-            }
-        } catch (Exception e) {
-            Log.w("creating file error", e.toString());
-        }
-        // this.folderPath = context.getExternalStorageDirectory();
-        this.fileName = fileName;
-        this.startRecording = true;
+    public void setMonitorLatency(int latencyMs) {
+        this.monitorLatency = latencyMs;
     }
 
-    public void finishRecording() {
-        this.finishRecording = true;
+    /**
+     * @return The estimated monitor latency, see AudioMonitor.estimateLatency(),
+     *         or null while not monitoring
+     */
+    public JSONObject getMonitorLatency() throws JSONException {
+        AudioMonitor current = monitor;
+        return current != null ? current.estimateLatency() : null;
     }
 
-    public boolean isInitialised() {
-        return recorder.getState() == AudioRecord.STATE_INITIALIZED;
-    }
-
-    public JSONArray getSourcesList(Context context) {
-        JSONArray results = new JSONArray();
-
-        AudioManager audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
-
-        if (android.os.Build.VERSION.SDK_INT >= android.os.Build.VERSION_CODES.M) {
-            try {
-                AudioDeviceInfo[] adi = audioManager.getDevices(AudioManager.GET_DEVICES_INPUTS);
-                for (int i = 0; i < adi.length; i++) {
-                    // make sure it's a input not an output (should be the case because we asked for
-                    // them...) and add the device info to the results
-                    if (adi[i].isSource()) {
-                        JSONObject curDevice = new JSONObject();
-                        curDevice.put("id", adi[i].getId());
-                        curDevice.put("type", adi[i].getType());
-                        results.put(curDevice);
-                    }
-                }
-            } catch (Exception e) {
-                // some exception handler code.
-            }
-        }
-        return results;
+    /**
+     * @see CaptureLoop#startRecording(String, String, JSONObject)
+     */
+    public void startRecording(String folderPath, String fileName, JSONObject options, Context context) {
+        loop.startRecording(folderPath, fileName, options);
     }
 
-    @Override
-    public void run() {
-        File outputFile = null;
-        FileOutputStream wavOut = null;
+    public void finishRecording() {
+        finishRecording(new JSONObject());
+    }
 
-        int numReadBytes = 0;
-        long total = 0;
-        byte audioBuffer[] = new byte[readBufferSize];
+    /**
+     * @see CaptureLoop#finishRecording(JSONObject)
+     */
+    public void finishRecording(JSONObject options) {
+        loop.finishRecording(options);
+    }
 
-        synchronized (this) {
-            try {
-                recorder.startRecording();
-                audioTrack.play();
-
-                while (!isInterrupted()) {
-                    if (this.startRecording) {
-                        this.startRecording = false;
-                        this.recording = true;
-                        outputFile = new File(folderPath, fileName);
-                        if (!outputFile.exists()) {
-                            try {
-                                outputFile.createNewFile();
-                            } catch (IOException e) {
-                                e.printStackTrace();
-                            }
-                        }
-
-                        try {
-                            wavOut = new FileOutputStream(outputFile);
-                            writeWavHeader(wavOut, inputChannelConfig, sampleRateInHz, audioFormat);
-                        } catch (IOException e) {
-                            Log.e(LOG_TAG, e.getMessage(), e);
-                            this.recording = false;
-                        }
-                    }
-
-                    numReadBytes = recorder.read(audioBuffer, 0, readBufferSize);
-
-                    if (this.monitoring)
-                        audioTrack.write(audioBuffer, 0, audioBuffer.length);
-
-                    if (this.finishRecording) {
-                        this.recording = false;
-                        this.finishRecording = false;
-                        total = 0;
-                        if (wavOut != null) {
-                            try {
-                                wavOut.close();
-                            } catch (IOException e) {
-                                Log.e(LOG_TAG, e.getMessage(), e);
-                            }
-                        }
-
-                        try {
-                            updateWavHeader(outputFile);
-                        } catch (IOException e) {
-                            Log.e(LOG_TAG, e.getMessage(), e);
-                        }
-                    }
-
-                    if (this.recording) {
-                        try {
-                            // WAVs cannot be > 4 GB due to the use of 32 bit unsigned integers.
-                            if (total + numReadBytes > 4294967295L) {
-                                // Write as many bytes as we can before hitting the max size
-                                for (int i = 0; i < numReadBytes && total <= 4294967295L; i++, total++) {
-                                    wavOut.write(audioBuffer[i]);
-                                }
-                                this.finishRecording = true;
-                                this.recording = false;
-                            } else {
-                                // Write out the entire read buffer
-                                wavOut.write(audioBuffer, 0, numReadBytes);
-                                total += numReadBytes;
-                            }
-                        } catch (IOException e) {
-                            Log.e(LOG_TAG, e.getMessage(), e);
-                            this.recording = false;
-                        }
-                    }
-                    if (numReadBytes > 0) {
-                        try {
-
-                            byte monitorBuffer[] = new byte[(int) (audioBuffer.length / monitorSampleRate)];
-                            for (int i = 0; i < monitorBuffer.length; i++) {
-                                if (audioBuffer.length > i * monitorSampleRate)
-                                    monitorBuffer[i] = audioBuffer[i * monitorSampleRate];
-                                else
-                                    monitorBuffer[i] = 0;
-                            }
-                            String decoded = Arrays.toString(monitorBuffer);
-
-                            message = handler.obtainMessage();
-                            messageBundle.putString("data", decoded);
-                            message.setData(messageBundle);
-                            handler.sendMessage(message);
-                        } catch (Exception ex) {
-                            message = handler.obtainMessage();
-                            messageBundle.putString("error", ex.toString());
-                            message.setData(messageBundle);
-                            handler.sendMessage(message);
-                        }
-                    }
-                }
-                audioTrack.pause();
-                audioTrack.flush();
-                audioTrack.stop();
-                audioTrack.release();
-                recorder.stop();
-                recorder.release();
-                recorder = null;
-            } catch (Exception e) {
-                Log.e(LOG_TAG, e.getMessage(), e);
-            }
-        }
+    /**
+     * @see CaptureLoop#setDelivery(int, int, int, String)
+     */
+    public void setDelivery(int latencyMs, int bytes, int queueSize, String policy) {
+        loop.setDelivery(latencyMs, bytes, queueSize, policy);
     }
 
     /**
-     * Writes the proper 44-byte RIFF/WAVE header to/for the given stream Two size
-     * fields are left empty/null since we do not yet know the final stream size
-     *
-     * @param out
-     *            The stream to write the header to
-     * @param channelMask
-     *            An AudioFormat.CHANNEL_* mask
-     * @param sampleRate
-     *            The sample rate in hertz
-     * @param encoding
-     *            An AudioFormat.ENCODING_PCM_* value
-     * @throws IOException
+     * @return The number of batches dropped because the WebView fell behind
      */
-    private static void writeWavHeader(OutputStream out, int channelMask, int sampleRate, int encoding)
-            throws IOException {
-        short channels;
-        switch (channelMask) {
-        case AudioFormat.CHANNEL_IN_MONO:
-            channels = 1;
-            break;
-        case AudioFormat.CHANNEL_IN_STEREO:
-            channels = 2;
-            break;
-        default:
-            throw new IllegalArgumentException("Unacceptable channel mask");
-        }
+    public long getDroppedChunks() {
+        return loop.getDroppedChunks();
+    }
 
-        short bitDepth;
-        switch (encoding) {
-        case AudioFormat.ENCODING_PCM_8BIT:
-            bitDepth = 8;
-            break;
-        case AudioFormat.ENCODING_PCM_16BIT:
-            bitDepth = 16;
-            break;
-        case AudioFormat.ENCODING_PCM_FLOAT:
-            bitDepth = 32;
-            break;
-        default:
-            throw new IllegalArgumentException("Unacceptable encoding");
-        }
+    /**
+     * @return The sample rate of the data delivered to the handler
+     */
+    public int getDeliverySampleRate() {
+        int rate = outputSampleRate > 0 ? outputSampleRate : sampleRateInHz / Math.max(monitorSampleRate, 1);
+        return Math.min(rate, sampleRateInHz);
+    }
 
-        writeWavHeader(out, channels, sampleRate, bitDepth);
+    public int getChannelCount() {
+        return inputChannelConfig == AudioFormat.CHANNEL_IN_STEREO ? 2 : 1;
+    }
+
+    public int getBytesPerSample() {
+        return getBytesPerSample(audioFormat);
     }
 
     /**
-     * Writes the proper 44-byte RIFF/WAVE header to/for the given stream Two size
-     * fields are left empty/null since we do not yet know the final stream size
-     *
-     * @param out
-     *            The stream to write the header to
-     * @param channels
-     *            The number of channels
-     * @param sampleRate
-     *            The sample rate in hertz
-     * @param bitDepth
-     *            The bit depth
-     * @throws IOException
+     * @param audioFormat
+     *            One of the AudioFormat.ENCODING_PCM_* constants
+     * @return The size of one sample
      */
-    private static void writeWavHeader(OutputStream out, short channels, int sampleRate, short bitDepth)
-            throws IOException {
-        // Convert the multi-byte integers to raw bytes in little endian format as
-        // required by the spec
-        byte[] littleBytes = ByteBuffer.allocate(14).order(ByteOrder.LITTLE_ENDIAN).putShort(channels)
-                .putInt(sampleRate).putInt(sampleRate * channels * (bitDepth / 8))
-                .putShort((short) (channels * (bitDepth / 8))).putShort(bitDepth).array();
-
-        // Not necessarily the best, but it's very easy to visualize this way
-        out.write(new byte[] {
-                // RIFF header
-                'R', 'I', 'F', 'F', // ChunkID
-                0, 0, 0, 0, // ChunkSize (must be updated later)
-                'W', 'A', 'V', 'E', // Format
-                // fmt subchunk
-                'f', 'm', 't', ' ', // Subchunk1ID
-                16, 0, 0, 0, // Subchunk1Size
-                1, 0, // AudioFormat
-                littleBytes[0], littleBytes[1], // NumChannels
-                littleBytes[2], littleBytes[3], littleBytes[4], littleBytes[5], // SampleRate
-                littleBytes[6], littleBytes[7], littleBytes[8], littleBytes[9], // ByteRate
-                littleBytes[10], littleBytes[11], // BlockAlign
-                littleBytes[12], littleBytes[13], // BitsPerSample
-                // data subchunk
-                'd', 'a', 't', 'a', // Subchunk2ID
-                0, 0, 0, 0, // Subchunk2Size (must be updated later)
-        });
+    public static int getBytesPerSample(int audioFormat) {
+        if (audioFormat == AudioFormat.ENCODING_PCM_FLOAT) {
+            return 4;
+        }
+        return audioFormat == AudioFormat.ENCODING_PCM_8BIT ? 1 : 2;
     }
 
     /**
-     * Updates the given wav file's header to include the final chunk sizes
-     *
-     * @param wav
-     *            The wav file to update
-     * @throws IOException
+     * @return The size of one delivered sample, 4 when the audio is delivered as
+     *         float
      */
-    private static void updateWavHeader(File wav) throws IOException {
-        byte[] sizes = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN)
-                // There are probably a bunch of different/better ways to calculate
-                // these two given your circumstances. Cast should be safe since if the WAV is
-                // > 4 GB we've already made a terrible mistake.
-                .putInt((int) (wav.length() - 8)) // ChunkSize
-                .putInt((int) (wav.length() - 44)) // Subchunk2Size
-                .array();
-
-        RandomAccessFile accessWave = null;
-        // noinspection CaughtExceptionImmediatelyRethrown
-        try {
-            accessWave = new RandomAccessFile(wav, "rw");
-            // ChunkSize
-            accessWave.seek(4);
-            accessWave.write(sizes, 0, 4);
-
-            // Subchunk2Size
-            accessWave.seek(40);
-            accessWave.write(sizes, 4, 4);
-        } catch (IOException ex) {
-            // Rethrow but we still close accessWave in our finally
-            throw ex;
-        } finally {
-            if (accessWave != null) {
-                try {
-                    accessWave.close();
-                } catch (IOException ex) {
-                    //
-                }
+    public int getDeliveryBytesPerSample() {
+        return loop.getDeliveryBytesPerSample();
+    }
+
+    public boolean isInitialised() {
+        return source != null && source.isInitialised();
+    }
+
+    @Override
+    public void onEvent(JSONObject info) {
+        handler.obtainMessage(MSG_EVENT, info).sendToTarget();
+    }
+
+    @Override
+    public void onDelivery(ChunkBatcher batcher) {
+        handler.obtainMessage(MSG_DATA, this.binaryData ? 1 : 0, getDeliveryBytesPerSample(), batcher).sendToTarget();
+    }
+
+    @Override
+    public void onError(String message) {
+        handler.obtainMessage(MSG_ERROR, message).sendToTarget();
+    }
+
+    @Override
+    public void onLog(String message, Exception error) {
+        Log.e(LOG_TAG, message, error);
+    }
+
+    /**
+     * Plays the audio back while monitoring is on, runs on the capture thread
+     * since the monitor has its own ring and thread
+     */
+    private class MonitorSink implements AudioSink {
+        @Override
+        public void process(AudioBufferPool.Chunk block) {
+            // The monitor is created and released as monitoring is toggled
+            if (monitoring && monitor == null) {
+                monitor = new AudioMonitor(sampleRateInHz, getChannelCount(), audioFormat, readBufferSize,
+                        monitorLatency);
+                monitor.start();
+            } else if (!monitoring && monitor != null) {
+                monitor.release();
+                monitor = null;
+            }
+            if (monitor != null) {
+                monitor.write(block.data, block.length);
+            }
+        }
+
+        @Override
+        public void idle() {
+        }
+
+        @Override
+        public void close() {
+            if (monitor != null) {
+                monitor.release();
+                monitor = null;
             }
         }
     }
-}
\ No newline at end of file
+
+    @Override
+    public void run() {
+        // Only copies the block into the ring of the monitor
+        loop.addSink("monitor", new MonitorSink(), false, 0, null, 0);
+        synchronized (this) {
+            loop.run(source);
+        }
+    }
+
+}
@@ -0,0 +1,228 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import android.media.AudioAttributes;
+import android.media.AudioFormat;
+import android.media.AudioManager;
+import android.media.AudioTimestamp;
+import android.media.AudioTrack;
+import android.os.Build;
+import android.os.Process;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Plays the captured audio back on its own thread with as little delay as the
+ * device allows.
+ *
+ * The capture thread only copies each chunk into a lock-free ring and never
+ * waits for the output. The monitor thread moves the ring into a low latency
+ * AudioTrack in small bursts. Whenever the ring holds more than the latency
+ * target, the oldest audio is skipped so the delay cannot build up. A chunk
+ * that does not fit into the ring is dropped.
+ */
+public class AudioMonitor extends Thread {
+    private static final String LOG_TAG = "AudioMonitor";
+
+    // Size of one write to the track
+    private static final int BURST_MS = 5;
+    private static final int MIN_BURST_FRAMES = 64;
+
+    private final int sampleRate;
+    private final int frameBytes;
+
+    // AudioTrack only takes float samples through a ByteBuffer or a float array
+    private final boolean floatOutput;
+    private final int targetLatencyMs;
+    private final int chunkBytes;
+
+    private final SpscByteRing ring;
+    private final AudioTrack track;
+    private final int burstBytes;
+
+    // Guards the track against its release while another thread asks it for the latency
+    private final Object trackLock = new Object();
+    private boolean trackReleased = false;
+
+    private volatile boolean stopped = false;
+
+    // Updated by the capture thread
+    private volatile long overruns = 0;
+
+    // Updated by the monitor thread
+    private volatile long skippedBytes = 0;
+    private volatile long framesWritten = 0;
+    private volatile int ringDelayFrames = 0;
+
+    /**
+     * @param sampleRate
+     *            The sample rate in hertz
+     * @param channels
+     *            1 or 2
+     * @param audioFormat
+     *            AudioFormat.ENCODING_PCM_8BIT, ENCODING_PCM_16BIT or
+     *            ENCODING_PCM_FLOAT
+     * @param chunkBytes
+     *            The largest chunk that will be passed to write()
+     * @param targetLatencyMs
+     *            The most audio that may wait in the ring, never less than one
+     *            chunk
+     */
+    public AudioMonitor(int sampleRate, int channels, int audioFormat, int chunkBytes, int targetLatencyMs) {
+        super("AudioMonitor");
+        this.sampleRate = sampleRate;
+        this.frameBytes = channels * AudioInputReceiver.getBytesPerSample(audioFormat);
+        this.floatOutput = audioFormat == AudioFormat.ENCODING_PCM_FLOAT;
+        this.targetLatencyMs = targetLatencyMs;
+        this.chunkBytes = chunkBytes;
+
+        int burstFrames = Math.max(sampleRate * BURST_MS / 1000, MIN_BURST_FRAMES);
+        this.burstBytes = burstFrames * frameBytes;
+        this.ring = new SpscByteRing(Math.max(getTargetBytes(), chunkBytes) * 2);
+
+        int channelConfig = channels == 2 ? AudioFormat.CHANNEL_OUT_STEREO : AudioFormat.CHANNEL_OUT_MONO;
+        int minBufferSize = AudioTrack.getMinBufferSize(sampleRate, channelConfig, audioFormat);
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O) {
+            track = new AudioTrack.Builder()
+                    .setAudioAttributes(new AudioAttributes.Builder().setUsage(AudioAttributes.USAGE_MEDIA)
+                            .setContentType(AudioAttributes.CONTENT_TYPE_SPEECH).build())
+                    .setAudioFormat(new AudioFormat.Builder().setSampleRate(sampleRate).setEncoding(audioFormat)
+                            .setChannelMask(channelConfig).build())
+                    .setBufferSizeInBytes(minBufferSize).setTransferMode(AudioTrack.MODE_STREAM)
+                    .setPerformanceMode(AudioTrack.PERFORMANCE_MODE_LOW_LATENCY).build();
+        } else {
+            track = new AudioTrack(AudioManager.STREAM_MUSIC, sampleRate, channelConfig, audioFormat, minBufferSize,
+                    AudioTrack.MODE_STREAM);
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+            // Two bursts are enough to keep the track fed, the rest of the buffer only adds delay
+            track.setBufferSizeInFrames(2 * burstFrames);
+        }
+    }
+
+    /**
+     * Queues a chunk for playback, never blocks. Called on the capture thread.
+     */
+    public void write(byte[] data, int length) {
+        if (!ring.offer(data, 0, length)) {
+            overruns++;
+        }
+        LockSupport.unpark(this);
+    }
+
+    /**
+     * Stops playback and releases the track
+     */
+    public void release() {
+        stopped = true;
+        interrupt();
+    }
+
+    /**
+     * Estimates the delay from capture until playback, no frame is followed
+     * through. Only the output part is measured, from the presentation
+     * timestamp of the track where the device provides one. The chunk part is
+     * the nominal read duration, the ring part what the ring held after the
+     * last burst, and the input latency of the device is not included.
+     *
+     * @return The estimate in ms as latency, and its parts chunkDuration,
+     *         bufferLatency and outputLatency
+     */
+    public JSONObject estimateLatency() throws JSONException {
+        double chunk = (double) chunkBytes / frameBytes * 1000 / sampleRate;
+        double ring = ringDelayFrames * 1000.0 / sampleRate;
+        double output = 0;
+        JSONObject info = new JSONObject();
+        synchronized (trackLock) {
+            if (!trackReleased) {
+                if (!stopped) {
+                    output = getOutputDelayFrames() * 1000.0 / sampleRate;
+                }
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
+                    info.put("underruns", track.getUnderrunCount());
+                }
+            }
+        }
+        info.put("latency", chunk + ring + output);
+        info.put("chunkDuration", chunk);
+        info.put("bufferLatency", ring);
+        info.put("outputLatency", output);
+        info.put("targetLatency", targetLatencyMs);
+        info.put("overruns", overruns);
+        info.put("skipped", skippedBytes / frameBytes * 1000.0 / sampleRate);
+        return info;
+    }
+
+    @Override
+    public void run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_URGENT_AUDIO);
+        byte[] burst = new byte[burstBytes];
+        ByteBuffer burstBuffer = ByteBuffer.wrap(burst);
+        long burstNanos = BURST_MS * 1000000L;
+        int targetBytes = Math.max(getTargetBytes(), chunkBytes);
+
+        try {
+            track.play();
+            while (!stopped) {
+                int available = ring.size();
+                if (available > targetBytes) {
+                    int excess = available - targetBytes;
+                    skippedBytes += ring.skip(excess - excess % frameBytes);
+                }
+
+                int n = ring.poll(burst, 0, burst.length);
+                if (n == 0) {
+                    // Woken up by the next write
+                    LockSupport.parkNanos(this, burstNanos);
+                    continue;
+                }
+                ringDelayFrames = ring.size() / frameBytes;
+                // Blocks until the track has room, which paces this thread
+                int written;
+                if (floatOutput) {
+                    burstBuffer.clear();
+                    written = track.write(burstBuffer, n, AudioTrack.WRITE_BLOCKING);
+                } else {
+                    written = track.write(burst, 0, n);
+                }
+                if (written > 0) {
+                    framesWritten += written / frameBytes;
+                }
+            }
+            track.pause();
+            track.flush();
+            track.stop();
+        } catch (Exception e) {
+            Log.e(LOG_TAG, e.getMessage(), e);
+        } finally {
+            synchronized (trackLock) {
+                track.release();
+                trackReleased = true;
+            }
+        }
+    }
+
+    private int getTargetBytes() {
+        return (int) ((long) sampleRate * targetLatencyMs / 1000) * frameBytes;
+    }
+
+    /**
+     * @return The frames written to the track that have not been played yet,
+     *         from the last presentation timestamp if the device provides one
+     */
+    private long getOutputDelayFrames() {
+        AudioTimestamp timestamp = new AudioTimestamp();
+        long played;
+        if (track.getTimestamp(timestamp)) {
+            long elapsed = System.nanoTime() - timestamp.nanoTime;
+            played = timestamp.framePosition + elapsed * sampleRate / 1000000000L;
+        } else {
+            played = track.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        }
+        return Math.max(framesWritten - played, 0);
+    }
+}
@@ -0,0 +1,71 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+
+import java.nio.ByteBuffer;
+
+/**
+ * AudioSource backed by the microphone through an AudioRecord
+ */
+public class AudioRecordSource implements AudioSource {
+
+    private final AudioRecord recorder;
+
+    // AudioRecord only reads float samples into a direct ByteBuffer or a float array
+    private final boolean floatInput;
+    private ByteBuffer floatBuffer = null;
+
+    /**
+     * @param audioSource
+     *            One of the MediaRecorder.AudioSource constants
+     * @param sampleRate
+     *            The sample rate in hertz
+     * @param channelConfig
+     *            AudioFormat.CHANNEL_IN_MONO or CHANNEL_IN_STEREO
+     * @param audioFormat
+     *            One of the AudioFormat.ENCODING_PCM_* constants
+     * @param bufferSize
+     *            The size in bytes of the AudioRecord buffer
+     */
+    public AudioRecordSource(int audioSource, int sampleRate, int channelConfig, int audioFormat, int bufferSize) {
+        recorder = new AudioRecord(audioSource, sampleRate, channelConfig, audioFormat, bufferSize);
+        floatInput = audioFormat == AudioFormat.ENCODING_PCM_FLOAT;
+    }
+
+    @Override
+    public boolean isInitialised() {
+        return recorder.getState() == AudioRecord.STATE_INITIALIZED;
+    }
+
+    @Override
+    public void start() {
+        recorder.startRecording();
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) {
+        if (!floatInput) {
+            return recorder.read(buffer, offset, length);
+        }
+        if (floatBuffer == null || floatBuffer.capacity() < length) {
+            floatBuffer = ByteBuffer.allocateDirect(length);
+        }
+        floatBuffer.clear();
+        int result = recorder.read(floatBuffer, length);
+        if (result > 0) {
+            floatBuffer.get(buffer, offset, result);
+        }
+        return result;
+    }
+
+    @Override
+    public void stop() {
+        recorder.stop();
+    }
+
+    @Override
+    public void release() {
+        recorder.release();
+    }
+}
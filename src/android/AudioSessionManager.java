@@ -0,0 +1,232 @@
+package com.exelerus.cordova.audioinputcapture;
+
+import android.content.Context;
+import android.media.AudioDeviceCallback;
+import android.media.AudioDeviceInfo;
+import android.media.AudioManager;
+import android.os.Build;
+import android.util.Log;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Keeps capture resources alive between capture sessions and caches the list
+ * of input devices.
+ *
+ * Creating an AudioRecord is the slow part of starting a capture. When a
+ * session stops, its source is stopped but kept initialized, and the next
+ * session with the same configuration takes it over instead of creating a new
+ * one. A source with a different configuration replaces it. At most one source
+ * is kept, and release() frees it.
+ *
+ * The device list is read once and refreshed whenever an AudioDeviceCallback
+ * reports that input devices were added or removed.
+ */
+public class AudioSessionManager {
+    private static final String LOG_TAG = "AudioSessionManager";
+
+    private final AudioManager audioManager;
+
+    // The stopped source kept for the next session, and its configuration
+    private AudioRecordSource warmSource = null;
+    private String warmKey = null;
+
+    private boolean closed = false;
+
+    private JSONArray devices = null;
+    private Object deviceCallback = null;
+
+    public AudioSessionManager(Context context) {
+        this.audioManager = (AudioManager) context.getSystemService(Context.AUDIO_SERVICE);
+    }
+
+    /**
+     * Hands out a source for a capture session, the kept one if its
+     * configuration matches. Releasing the returned source hands it back.
+     *
+     * @param audioSource
+     *            One of the MediaRecorder.AudioSource constants
+     * @param sampleRate
+     *            The sample rate in hertz
+     * @param channelConfig
+     *            AudioFormat.CHANNEL_IN_MONO or CHANNEL_IN_STEREO
+     * @param audioFormat
+     *            One of the AudioFormat.ENCODING_PCM_* constants
+     * @param bufferSize
+     *            The size in bytes of the AudioRecord buffer
+     */
+    public synchronized AudioSource acquire(int audioSource, int sampleRate, int channelConfig, int audioFormat,
+            int bufferSize) {
+        String key = audioSource + "/" + sampleRate + "/" + channelConfig + "/" + audioFormat + "/" + bufferSize;
+        AudioRecordSource source = null;
+        if (warmSource != null && key.equals(warmKey) && warmSource.isInitialised()) {
+            source = warmSource;
+            warmSource = null;
+        } else {
+            releaseWarmSource();
+            source = new AudioRecordSource(audioSource, sampleRate, channelConfig, audioFormat, bufferSize);
+        }
+        return new SessionSource(source, key);
+    }
+
+    /**
+     * @return true if a source is kept for the next session
+     */
+    public synchronized boolean isWarm() {
+        return warmSource != null;
+    }
+
+    /**
+     * Keeps a stopped source for the next session, the previously kept one is
+     * released
+     */
+    private synchronized void recycle(AudioRecordSource source, String key) {
+        releaseWarmSource();
+        if (closed) {
+            // The session outlived the manager
+            source.release();
+            return;
+        }
+        warmSource = source;
+        warmKey = key;
+    }
+
+    private void releaseWarmSource() {
+        if (warmSource != null) {
+            warmSource.release();
+            warmSource = null;
+            warmKey = null;
+        }
+    }
+
+    /**
+     * @return The input devices with id and type, from the cache if it is still
+     *         valid
+     */
+    public synchronized JSONArray getDevices() {
+        if (devices == null) {
+            devices = readDevices();
+            registerDeviceCallback();
+        }
+        return devices;
+    }
+
+    /**
+     * Frees the kept source and stops listening for device changes, sources
+     * handed back later are freed right away
+     */
+    public synchronized void release() {
+        closed = true;
+        releaseWarmSource();
+        if (deviceCallback != null && Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            audioManager.unregisterAudioDeviceCallback((AudioDeviceCallback) deviceCallback);
+            deviceCallback = null;
+        }
+        devices = null;
+    }
+
+    private synchronized void invalidateDevices() {
+        devices = null;
+    }
+
+    private JSONArray readDevices() {
+        JSONArray results = new JSONArray();
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.M) {
+            try {
+                AudioDeviceInfo[] adi = audioManager.getDevices(AudioManager.GET_DEVICES_INPUTS);
+                for (int i = 0; i < adi.length; i++) {
+                    // make sure it's a input not an output (should be the case because we asked for
+                    // them...) and add the device info to the results
+                    if (adi[i].isSource()) {
+                        JSONObject curDevice = new JSONObject();
+                        curDevice.put("id", adi[i].getId());
+                        curDevice.put("type", adi[i].getType());
+                        results.put(curDevice);
+                    }
+                }
+            } catch (JSONException e) {
+                Log.e(LOG_TAG, e.getMessage(), e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Drops the cached device list whenever devices come or go, the next
+     * getDevices() reads it again
+     */
+    private void registerDeviceCallback() {
+        if (deviceCallback != null || Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            return;
+        }
+        AudioDeviceCallback callback = new AudioDeviceCallback() {
+            @Override
+            public void onAudioDevicesAdded(AudioDeviceInfo[] addedDevices) {
+                invalidateDevices();
+            }
+
+            @Override
+            public void onAudioDevicesRemoved(AudioDeviceInfo[] removedDevices) {
+                invalidateDevices();
+            }
+        };
+        // Callbacks arrive on the main looper
+        audioManager.registerAudioDeviceCallback(callback, null);
+        deviceCallback = callback;
+    }
+
+    /**
+     * The source as seen by one session: release() hands the AudioRecord back
+     * to the manager instead of freeing it, unless it failed
+     */
+    private class SessionSource implements AudioSource {
+        private final AudioRecordSource source;
+        private final String key;
+        private boolean dead = false;
+        private boolean released = false;
+
+        SessionSource(AudioRecordSource source, String key) {
+            this.source = source;
+            this.key = key;
+        }
+
+        @Override
+        public boolean isInitialised() {
+            return source.isInitialised();
+        }
+
+        @Override
+        public void start() {
+            source.start();
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            int result = source.read(buffer, offset, length);
+            if (result == ERROR_DEAD_OBJECT) {
+                dead = true;
+            }
+            return result;
+        }
+
+        @Override
+        public void stop() {
+            source.stop();
+        }
+
+        @Override
+        public void release() {
+            if (released) {
+                return;
+            }
+            released = true;
+            if (dead || !source.isInitialised()) {
+                source.release();
+            } else {
+                recycle(source, key);
+            }
+        }
+    }
+}
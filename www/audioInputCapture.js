@@ -6,7 +6,15 @@ var recording = false;
 // Supported audio formats
 audioinput.FORMAT = {
 	PCM_16BIT : 'PCM_16BIT',
-	PCM_8BIT : 'PCM_8BIT'
+	PCM_8BIT : 'PCM_8BIT',
+	// 32-bit float, Android 6.0 and later only
+	PCM_FLOAT : 'PCM_FLOAT'
+};
+
+// Transport formats for the audio data sent from the native layer
+audioinput.DATA_FORMAT = {
+	STRING : 'string',
+	BINARY : 'binary'
 };
 
 audioinput.CHANNELS = {
@@ -36,6 +44,39 @@ audioinput.AUDIOSOURCE_TYPE = {
 	VOICE_RECOGNITION : 6
 };
 
+// File formats for audioinput.startRecording
+audioinput.RECORDING_FORMAT = {
+	WAV : 'wav',
+	FLAC : 'flac'
+};
+
+// What happens when the WebView falls behind and the delivery queue is full
+audioinput.OVERFLOW_POLICY = {
+	DROP_OLDEST : 'drop-oldest',
+	DROP_NEWEST : 'drop-newest',
+	BLOCK : 'block'
+};
+
+// How the audio data gets from the native layer to JS (Android only)
+audioinput.TRANSPORT = {
+	BRIDGE : 'bridge',
+	WEBSOCKET : 'websocket'
+};
+
+// How the channels of a stereo capture are delivered (Android only), a number
+// delivers only that channel, 0 is the first
+audioinput.CHANNEL_MODE = {
+	INTERLEAVED : 'interleaved',
+	PLANAR : 'planar',
+	MIX : 'mix'
+};
+
+// How audioinput.getCapturedAudio returns the WAV (Android only)
+audioinput.CAPTURED_AUDIO_FORMAT = {
+	ARRAYBUFFER : 'arraybuffer',
+	BASE64 : 'base64'
+};
+
 // Default values
 audioinput.DEFAULT = {
 	SAMPLERATE : audioinput.SAMPLERATE.CD_AUDIO_44100Hz,
@@ -48,7 +89,28 @@ audioinput.DEFAULT = {
 	CONCATENATE_MAX_CHUNKS : 10,
 	AUDIOSOURCE_TYPE : audioinput.AUDIOSOURCE_TYPE.DEFAULT,
 	MONITORING : false,
-	MONITORSAMPLERATE : 1
+	MONITORSAMPLERATE : 1,
+	MONITOR_LATENCY : 40,
+	OUTPUT_SAMPLERATE : 0,
+	PRE_ROLL : 0,
+	ANALYSIS : null,
+	RAW_AUDIO : true,
+	VAD : null,
+	STATS_INTERVAL : 0,
+	BATCH_LATENCY : 0,
+	BATCH_SIZE : 0,
+	QUEUE_SIZE : 8,
+	OVERFLOW_POLICY : audioinput.OVERFLOW_POLICY.DROP_NEWEST,
+	PIPELINE : null,
+	TRANSPORT : audioinput.TRANSPORT.BRIDGE,
+	GAIN : 1,
+	AGC : null,
+	LIMITER : null,
+	REPLAY : null,
+	ADAPTIVE : null,
+	CHANNEL_MODE : audioinput.CHANNEL_MODE.INTERLEAVED,
+	CAPTURE_BUFFER : 0,
+	DATA_FORMAT : audioinput.DATA_FORMAT.STRING
 };
 
 /**
@@ -56,14 +118,67 @@ audioinput.DEFAULT = {
  * 
  * @param {Object}
  *            cfg keys: sampleRateInHz (44100), bufferSize (16384), channels (1
- *            (mono) or 2 (stereo)), format ('PCM_8BIT' or 'PCM_16BIT'),
- *            normalize (true || false), normalizationFactor (create float data
- *            by dividing the audio data with this factor; default: 32767.0)
+ *            (mono) or 2 (stereo)), format ('PCM_8BIT', 'PCM_16BIT' or
+ *            'PCM_FLOAT', which is Android only), normalize (true || false,
+ *            on Android the native layer delivers float data in -1 .. 1),
+ *            normalizationFactor (create float data by dividing the audio data
+ *            with this factor, not used on Android; default: 32767.0)
  *            streamToWebAudio (The plugin will handle all the conversion of raw
  *            data to audio) audioContext (If no audioContext is given, one will
  *            be created) concatenateMaxChunks (How many packets will be merged
  *            each time, low = low latency but can require more resources)
- *            audioSourceType (Use audioinput.AUDIOSOURCE_TYPE.)
+ *            audioSourceType (Use audioinput.AUDIOSOURCE_TYPE.) dataFormat
+ *            ('string' or 'binary', binary sends raw ArrayBuffers from the
+ *            native layer, Android only) outputSampleRate (Sample rate of the
+ *            delivered data, the native layer resamples to it. Default 0 means
+ *            sampleRate / monitorSampleRate) preRoll (Seconds of audio kept
+ *            in memory that startRecording writes ahead of the live audio,
+ *            Android only) analysis (Object with interval (ms, default 100),
+ *            fftSize (1024), bands (16) and scale ('mel' or 'octave'), fires
+ *            audioinputfeatures events with rms, peak, zcr and bands in dB,
+ *            Android only) rawAudio (false stops the delivery of audio data,
+ *            e.g. when only the features are needed, Android only) vad (Object
+ *            with threshold (dB above the noise floor, default 10), flatness
+ *            (0-1, default 0.4), attack (ms, 30) and hangover (ms, 300), only
+ *            speech is delivered and recorded, fires audioinputspeechstart and
+ *            audioinputspeechend events, Android only) statsInterval (Fire an
+ *            audioinputstats event with the getStats counters every statsInterval
+ *            ms, 0 disables it, Android only) batchLatency (ms that chunks
+ *            are merged natively before delivery, 0 delivers every chunk,
+ *            Android only) batchSize (Most bytes per delivered batch, Android
+ *            only) queueSize (Batches that can wait for delivery, Android only)
+ *            overflowPolicy (audioinput.OVERFLOW_POLICY, what to do when the
+ *            queue is full, Android only) monitorLatency (Most ms of audio
+ *            waiting for the monitor output, older audio is skipped. Monitor
+ *            latency is at least one bufferSize, Android only) pipeline
+ *            (Object with the native stages delivery and analysis, each with
+ *            queueSize (chunks, default 16) and overflowPolicy, and recording
+ *            with queueSize. Each stage runs on its own thread, a full queue
+ *            only affects that stage, Android only) transport
+ *            (audioinput.TRANSPORT, WEBSOCKET streams the audio through a
+ *            WebSocket on 127.0.0.1 instead of the Cordova bridge, the
+ *            pipeline stage is called socket, Android only) gain (Linear gain
+ *            applied to the normalized data, default 1, Android only) agc
+ *            (Object with target (dBFS, default -20), maxGain (dB, 30), attack
+ *            (ms, 10) and release (ms, 1000), automatic gain control of the
+ *            normalized data, Android only) limiter (Object with ceiling (dBFS,
+ *            default -1) and release (ms, 50), keeps the peaks of the
+ *            normalized data below the ceiling, Android only) replay (Object
+ *            with file (WAV with the format of the capture) and loop, or
+ *            frequency, amplitude, noise, seed and duration (s) of a generated
+ *            signal, plus pacing ('realtime' or 'fast'). Captures from it instead
+ *            of the microphone and fires audioinputsourceended at its end,
+ *            Android only) adaptive (Object with latency (ms budget for read
+ *            duration plus batch latency, default 100) and minChunk (shortest
+ *            read in ms, 10). Read size and batchLatency follow the measured
+ *            jitter and overruns, bufferSize is the largest read, fires
+ *            audioinputtuning when they change, Android only) channelMode
+ *            (audioinput.CHANNEL_MODE or a channel index, how the channels of
+ *            a stereo capture are delivered: interleaved, planar (evt.data is
+ *            an array with one array per channel), mixed to mono or only the
+ *            given channel, Android only) captureBuffer (Seconds of the
+ *            capture kept in memory for audioinput.getCapturedAudio, 0 keeps
+ *            none, Android only)
  */
 audioinput.start = function(cfg) {
 	if (!audioinput._capturing) {
@@ -93,6 +208,41 @@ audioinput.start = function(cfg) {
 				: audioinput.DEFAULT.MONITORING;
 		audioinput._cfg.monitorSampleRate = cfg.monitorSampleRate
 				|| audioinput.DEFAULT.MONITORSAMPLERATE;
+		audioinput._cfg.dataFormat = cfg.dataFormat
+				|| audioinput.DEFAULT.DATA_FORMAT;
+		audioinput._cfg.outputSampleRate = cfg.outputSampleRate
+				|| audioinput.DEFAULT.OUTPUT_SAMPLERATE;
+		audioinput._cfg.preRoll = cfg.preRoll || audioinput.DEFAULT.PRE_ROLL;
+		audioinput._cfg.analysis = cfg.analysis || audioinput.DEFAULT.ANALYSIS;
+		audioinput._cfg.rawAudio = typeof cfg.rawAudio == 'boolean' ? cfg.rawAudio
+				: audioinput.DEFAULT.RAW_AUDIO;
+		audioinput._cfg.vad = cfg.vad || audioinput.DEFAULT.VAD;
+		audioinput._cfg.statsInterval = cfg.statsInterval
+				|| audioinput.DEFAULT.STATS_INTERVAL;
+		audioinput._cfg.monitorLatency = cfg.monitorLatency
+				|| audioinput.DEFAULT.MONITOR_LATENCY;
+		audioinput._cfg.batchLatency = cfg.batchLatency
+				|| audioinput.DEFAULT.BATCH_LATENCY;
+		audioinput._cfg.batchSize = cfg.batchSize
+				|| audioinput.DEFAULT.BATCH_SIZE;
+		audioinput._cfg.queueSize = cfg.queueSize
+				|| audioinput.DEFAULT.QUEUE_SIZE;
+		audioinput._cfg.overflowPolicy = cfg.overflowPolicy
+				|| audioinput.DEFAULT.OVERFLOW_POLICY;
+		audioinput._cfg.pipeline = cfg.pipeline || audioinput.DEFAULT.PIPELINE;
+		audioinput._cfg.transport = cfg.transport
+				|| audioinput.DEFAULT.TRANSPORT;
+		audioinput._cfg.gain = typeof cfg.gain == 'number' ? cfg.gain
+				: audioinput.DEFAULT.GAIN;
+		audioinput._cfg.agc = cfg.agc || audioinput.DEFAULT.AGC;
+		audioinput._cfg.limiter = cfg.limiter || audioinput.DEFAULT.LIMITER;
+		audioinput._cfg.replay = cfg.replay || audioinput.DEFAULT.REPLAY;
+		audioinput._cfg.adaptive = cfg.adaptive || audioinput.DEFAULT.ADAPTIVE;
+		audioinput._cfg.channelMode = cfg.channelMode !== undefined
+				&& cfg.channelMode !== null ? cfg.channelMode
+				: audioinput.DEFAULT.CHANNEL_MODE;
+		audioinput._cfg.captureBuffer = cfg.captureBuffer
+				|| audioinput.DEFAULT.CAPTURE_BUFFER;
 
 		typeof cfg.streamToWebAudio == 'boolean' ? cfg.streamToWebAudio
 				: audioinput.DEFAULT.STREAM_TO_WEBAUDIO;
@@ -101,9 +251,15 @@ audioinput.start = function(cfg) {
 			throw "Invalid number of channels (" + audioinput._cfg.channels
 					+ "). Only mono (1) and stereo (2) is" + " supported.";
 		} else if (audioinput._cfg.format != "PCM_16BIT"
-				&& audioinput._cfg.format != "PCM_8BIT") {
+				&& audioinput._cfg.format != "PCM_8BIT"
+				&& audioinput._cfg.format != "PCM_FLOAT") {
 			throw "Invalid format (" + audioinput._cfg.format
-					+ "). Only 'PCM_8BIT' and 'PCM_16BIT' is" + " supported.";
+					+ "). Only 'PCM_8BIT', 'PCM_16BIT' and 'PCM_FLOAT' is"
+					+ " supported.";
+		} else if (audioinput._cfg.dataFormat != audioinput.DATA_FORMAT.STRING
+				&& audioinput._cfg.dataFormat != audioinput.DATA_FORMAT.BINARY) {
+			throw "Invalid dataFormat (" + audioinput._cfg.dataFormat
+					+ "). Only 'string' and 'binary' is supported.";
 		}
 
 		if (audioinput._cfg.bufferSize <= 0) {
@@ -111,6 +267,34 @@ audioinput.start = function(cfg) {
 					+ "). Must be greater than zero.";
 		}
 
+		if (audioinput._cfg.outputSampleRate < 0
+				|| audioinput._cfg.outputSampleRate > audioinput._cfg.sampleRate) {
+			throw "Invalid outputSampleRate (" + audioinput._cfg.outputSampleRate
+					+ "). Must be between zero and sampleRate.";
+		}
+
+		if (audioinput._cfg.overflowPolicy != audioinput.OVERFLOW_POLICY.DROP_OLDEST
+				&& audioinput._cfg.overflowPolicy != audioinput.OVERFLOW_POLICY.DROP_NEWEST
+				&& audioinput._cfg.overflowPolicy != audioinput.OVERFLOW_POLICY.BLOCK) {
+			throw "Invalid overflowPolicy (" + audioinput._cfg.overflowPolicy
+					+ "). Only 'drop-oldest', 'drop-newest' and 'block' is supported.";
+		}
+
+		if (audioinput._cfg.transport != audioinput.TRANSPORT.BRIDGE
+				&& audioinput._cfg.transport != audioinput.TRANSPORT.WEBSOCKET) {
+			throw "Invalid transport (" + audioinput._cfg.transport
+					+ "). Only 'bridge' and 'websocket' is supported.";
+		}
+
+		if (typeof audioinput._cfg.channelMode == 'number' ? (audioinput._cfg.channelMode % 1 !== 0
+				|| audioinput._cfg.channelMode < 0 || audioinput._cfg.channelMode >= audioinput._cfg.channels)
+				: audioinput._cfg.channelMode != audioinput.CHANNEL_MODE.INTERLEAVED
+						&& audioinput._cfg.channelMode != audioinput.CHANNEL_MODE.PLANAR
+						&& audioinput._cfg.channelMode != audioinput.CHANNEL_MODE.MIX) {
+			throw "Invalid channelMode (" + audioinput._cfg.channelMode
+					+ "). Only 'interleaved', 'planar', 'mix' and a channel index is supported.";
+		}
+
 		if (audioinput._cfg.concatenateMaxChunks <= 0) {
 			throw "Invalid concatenateMaxChunks ("
 					+ audioinput._cfg.concatenateMaxChunks
@@ -123,7 +307,41 @@ audioinput.start = function(cfg) {
 						audioinput._cfg.format,
 						audioinput._cfg.audioSourceType,
 						audioinput._cfg.monitoring,
-						audioinput._cfg.monitorSampleRate ]);
+						audioinput._cfg.monitorSampleRate,
+						audioinput._cfg.dataFormat,
+						audioinput._cfg.outputSampleRate,
+						audioinput._cfg.preRoll,
+						audioinput._cfg.analysis,
+						audioinput._cfg.rawAudio,
+						audioinput._cfg.vad,
+						audioinput._cfg.statsInterval,
+						audioinput._cfg.batchLatency,
+						audioinput._cfg.batchSize,
+						audioinput._cfg.queueSize,
+						audioinput._cfg.overflowPolicy,
+						audioinput._cfg.monitorLatency,
+						audioinput._cfg.pipeline,
+						audioinput._cfg.transport,
+						audioinput._getProcessing(),
+						audioinput._cfg.replay,
+						audioinput._cfg.adaptive,
+						audioinput._cfg.channelMode,
+						audioinput._cfg.captureBuffer ]);
+
+		audioinput._lastSequence = -1;
+		audioinput._nativeFloat = cordova.platformId === 'android'
+				&& (audioinput._getProcessing() !== null
+						|| audioinput._cfg.format === audioinput.FORMAT.PCM_FLOAT);
+
+		// Stereo is only rearranged natively
+		var rearranged = cordova.platformId === 'android'
+				&& audioinput._cfg.channels > 1;
+		audioinput._planar = rearranged
+				&& audioinput._cfg.channelMode === audioinput.CHANNEL_MODE.PLANAR;
+		audioinput._deliveredChannels = rearranged
+				&& (audioinput._cfg.channelMode === audioinput.CHANNEL_MODE.MIX
+						|| typeof audioinput._cfg.channelMode == 'number') ? 1
+				: audioinput._cfg.channels;
 
 		audioinput._capturing = true;
 
@@ -150,6 +368,11 @@ audioinput.stop = function() {
 		audioinput._capturing = false;
 	}
 
+	if (audioinput._socket) {
+		audioinput._socket.close();
+		audioinput._socket = null;
+	}
+
 	if (audioinput._cfg && audioinput._cfg.streamToWebAudio) {
 		if (audioinput._timerGetNextAudio) {
 			clearTimeout(audioinput._timerGetNextAudio);
@@ -171,6 +394,22 @@ audioinput.toggleMonitoring = function() {
 	}
 };
 
+/**
+ * Get an estimate of the monitoring latency while monitoring (Android only).
+ * Only outputLatency is measured, chunkDuration is the nominal read duration
+ * and bufferLatency what the playback buffer held last.
+ * 
+ * @param success
+ *            Called with an object containing latency (estimated total ms from
+ *            capture to playback, without the input latency of the device),
+ *            chunkDuration, bufferLatency, outputLatency, targetLatency,
+ *            overruns, underruns and skipped (ms)
+ * @param error
+ */
+audioinput.getMonitorLatency = function(success, error) {
+	exec(success, error, "AudioInputCapture", "getMonitorLatency", []);
+};
+
 audioinput.isMonitoring = function() {
 	if (audioinput._cfg)
 		return audioinput._cfg.monitoring;
@@ -179,16 +418,43 @@ audioinput.isMonitoring = function() {
 };
 
 /**
- * Toggle if sound is monitored directly. Caution: this will end the current
- * audio capturing and start a new one.
+ * Start recording the captured audio to a file. An 'audioinputrecordingstarted'
+ * event is fired with the sample index of the first frame, and when the
+ * recording is finished an 'audioinputrecordingfinished' event is fired with
+ * the file path, the number of bytes written, the number of dropped chunks and
+ * the sample indices of the first and last frame written.
+ * 
+ * @param filePath
+ *            The folder to write the file to
+ * @param fileName
+ *            The name of the file
+ * @param {Object}
+ *            options keys: format ('wav' or 'flac', use
+ *            audioinput.RECORDING_FORMAT, default 'wav'), flushInterval
+ *            (Longest time in ms that recorded data is buffered before it is
+ *            written to disk, default 1000), rf64 (Let WAV recordings grow
+ *            beyond 4 GB by switching to RF64), segmentSize / segmentDuration
+ *            (Roll over to numbered files, e.g. rec_001.wav, after this many
+ *            bytes / seconds of audio, rec.json lists the segments with their
+ *            first sample), checkpointInterval (ms between header updates of
+ *            the open file, so it survives a crash, default 5000, 0 disables),
+ *            atSample (Sample index, per channel since capture started, of
+ *            the first frame, default the next read), atTime (Date.now() in
+ *            ms to start at instead of atSample), overview (Build a waveform
+ *            overview in rec.peaks next to rec.wav while recording, see
+ *            audioinput.getWaveform), channels (audioinput.CHANNEL_MODE.MIX
+ *            or a channel index to record only a mono mix or that channel of a
+ *            stereo capture, default all channels), mapped (Write through
+ *            memory mapping into a file grown in large extents instead of
+ *            batched writes, for long recordings at high rates, default false)
  */
-audioinput.startRecording = function(filePath, fileName) {
+audioinput.startRecording = function(filePath, fileName, options) {
 	if (!recording) {
 		recording = true;
 
 		if (audioinput._capturing) {
 			exec(null, audioinput._audioInputErrorEvent, "AudioInputCapture",
-					"startRecording", [ filePath, fileName ]);
+					"startRecording", [ filePath, fileName, options || {} ]);
 		}
 	}
 
@@ -199,15 +465,19 @@ audioinput.isRecording = function() {
 };
 
 /**
- * Toggle if sound is monitored directly. Caution: this will end the current
- * audio capturing and start a new one.
+ * Finish the recording started with audioinput.startRecording.
+ * 
+ * @param {Object}
+ *            options keys: atSample (Sample index of the first frame that is
+ *            no longer recorded, default the next read), atTime (Date.now() in
+ *            ms to end at instead of atSample)
  */
-audioinput.finishRecording = function() {
+audioinput.finishRecording = function(options) {
 	if (recording) {
 		recording = false;
 		if (audioinput._capturing) {
 			exec(null, audioinput._audioInputErrorEvent, "AudioInputCapture",
-					"finishRecording", []);
+					"finishRecording", [ options || {} ]);
 		}
 	}
 };
@@ -219,6 +489,74 @@ audioinput.listSources = function(success, error) {
 	exec(success, error, "AudioInputCapture", "listSources", []);
 };
 
+/**
+ * Get the health counters of the capture pipeline (Android only)
+ * 
+ * @param success
+ *            Called with an object containing chunksRead, shortReads,
+ *            readErrors, droppedChunks, queueDepth, latency, bytesWritten,
+ *            writerStallTime and more
+ * @param error
+ */
+audioinput.getStats = function(success, error) {
+	exec(success, error, "AudioInputCapture", "getStats", []);
+};
+
+/**
+ * Get the waveform overview of a recording started with the overview option,
+ * also while it is in progress up to its last checkpoint
+ * 
+ * @param file
+ *            The recorded file or its .peaks sidecar
+ * @param {Object}
+ *            options keys: start (First sample, default 0), end (Sample after
+ *            the range, default the end of the recording), bins (Most values
+ *            to return, default 1000)
+ * @param success
+ *            Called with sampleRate, frames, start, end, samplesPerBin and the
+ *            min, max and rms arrays in -1 .. 1
+ */
+audioinput.getWaveform = function(file, options, success, error) {
+	options = options || {};
+	exec(success, error, "AudioInputCapture", "getWaveform", [ file,
+			options.start || 0,
+			typeof options.end == 'number' ? options.end : -1,
+			options.bins || 1000 ]);
+};
+
+/**
+ * Get the latest captured audio as a WAV file built natively from the memory
+ * kept with the captureBuffer option (Android only), also after the capture has
+ * been stopped until the next start
+ * 
+ * @param {Object}
+ *            options keys: seconds (Duration to return, default everything
+ *            that is kept), format (audioinput.CAPTURED_AUDIO_FORMAT, default
+ *            'arraybuffer')
+ * @param success
+ *            Called with an ArrayBuffer holding the WAV, or for 'base64' once
+ *            per piece with the Base64 string and a flag that is true for the
+ *            last piece, the strings joined are the Base64 of the WAV
+ * @param error
+ */
+audioinput.getCapturedAudio = function(options, success, error) {
+	options = options || {};
+	var format = options.format || audioinput.CAPTURED_AUDIO_FORMAT.ARRAYBUFFER;
+	if (format != audioinput.CAPTURED_AUDIO_FORMAT.ARRAYBUFFER
+			&& format != audioinput.CAPTURED_AUDIO_FORMAT.BASE64) {
+		throw "Invalid format (" + format
+				+ "). Only 'arraybuffer' and 'base64' is supported.";
+	}
+	exec(function(result) {
+		if (format == audioinput.CAPTURED_AUDIO_FORMAT.BASE64) {
+			success(result.data, result.last);
+		} else {
+			success(result);
+		}
+	}, error, "AudioInputCapture", "getCapturedAudio", [ options.seconds || 0,
+			format ]);
+};
+
 /**
  * Connect the audio node
  * 
@@ -275,6 +613,15 @@ audioinput._timerGetNextAudio = null;
 audioinput._audioContext = null;
 audioinput._micGainNode = null;
 audioinput._webAudioAPISupported = false;
+audioinput._lastSequence = -1;
+audioinput._BATCH_HEADER_SIZE = 4;
+audioinput._SOCKET_HEADER_SIZE = 32;
+audioinput._socket = null;
+// True while the native layer delivers float data in -1 .. 1
+audioinput._nativeFloat = false;
+// The channels in the delivered data and whether they come as one block each
+audioinput._deliveredChannels = 1;
+audioinput._planar = false;
 
 /**
  * Callback for audio input
@@ -284,18 +631,40 @@ audioinput._webAudioAPISupported = false;
  */
 audioinput._audioInputEvent = function(audioInputData) {
 	try {
-		if (audioInputData && audioInputData.data
+		var audioData = null;
+		var sequence = -1;
+
+		if (audioInputData instanceof ArrayBuffer) {
+			// A 4 byte little endian sequence number precedes the audio
+			if (audioInputData.byteLength > audioinput._BATCH_HEADER_SIZE) {
+				sequence = new DataView(audioInputData).getUint32(0, true);
+				audioData = audioinput._decodeBinaryAudio(audioInputData,
+						audioinput._BATCH_HEADER_SIZE);
+			}
+		} else if (audioInputData && audioInputData.data
 				&& audioInputData.data.length > 0) {
-			var audioData = JSON.parse(audioInputData.data);
-			audioData = audioinput._normalizeAudio(audioData);
+			sequence = audioInputData.sequence;
+			audioData = JSON.parse(audioInputData.data);
+		}
 
-			if (audioinput._cfg.streamToWebAudio && audioinput._capturing) {
-				audioinput._enqueueAudioData(audioData);
-			} else {
-				cordova.fireWindowEvent("audioinput", {
-					data : audioData
-				});
+		if (audioData) {
+			// Batches dropped natively because the WebView fell behind leave a gap
+			var lost = 0;
+			if (sequence >= 0 && audioinput._lastSequence >= 0) {
+				lost = Math.max(sequence - audioinput._lastSequence - 1, 0);
+			}
+			if (sequence >= 0) {
+				audioinput._lastSequence = sequence;
 			}
+			audioinput._deliverAudio(audioData, sequence, lost);
+		} else if (audioInputData && audioInputData.event) {
+			if (audioInputData.event === 'socket'
+					&& audioinput._cfg.transport === audioinput.TRANSPORT.WEBSOCKET) {
+				audioinput._openSocket(audioInputData.url);
+			}
+			// Native status events, e.g. 'recordingFinished' is fired as 'audioinputrecordingfinished'
+			cordova.fireWindowEvent("audioinput"
+					+ audioInputData.event.toLowerCase(), audioInputData);
 		} else if (audioInputData && audioInputData.error) {
 			audioinput._audioInputErrorEvent(audioInputData.error);
 		}
@@ -305,6 +674,155 @@ audioinput._audioInputEvent = function(audioInputData) {
 	}
 };
 
+/**
+ * Normalizes a chunk of audio data and passes it on to Web Audio or the
+ * audioinput event
+ * 
+ * @private
+ */
+audioinput._deliverAudio = function(audioData, sequence, lost) {
+	audioData = audioinput._normalizeAudio(audioData);
+	if (audioinput._planar) {
+		audioData = audioinput._splitChannels(audioData,
+				audioinput._deliveredChannels);
+	}
+
+	if (audioinput._cfg.streamToWebAudio && audioinput._capturing) {
+		audioinput._enqueueAudioData(audioData);
+	} else {
+		cordova.fireWindowEvent("audioinput", {
+			data : audioData,
+			sequence : sequence,
+			lost : lost
+		});
+	}
+};
+
+/**
+ * Splits planar audio into one array per channel, typed arrays share the
+ * memory of the chunk
+ * 
+ * @param data
+ *            All samples of the first channel, then the second, ...
+ * @param {Number}
+ *            channels
+ * @returns {Array}
+ * @private
+ */
+audioinput._splitChannels = function(data, channels) {
+	var length = Math.floor(data.length / channels), planes = [];
+	for (var ch = 0; ch < channels; ch++) {
+		planes.push(Array.isArray(data) ? data.slice(ch * length, (ch + 1)
+				* length) : data.subarray(ch * length, (ch + 1) * length));
+	}
+
+	return planes;
+};
+
+/**
+ * Connects to the native WebSocket that streams the audio when the transport
+ * is audioinput.TRANSPORT.WEBSOCKET
+ * 
+ * @param {String}
+ *            url Including the token of the capture session
+ * @private
+ */
+audioinput._openSocket = function(url) {
+	var socket = new WebSocket(url);
+	socket.binaryType = 'arraybuffer';
+	socket.onmessage = function(e) {
+		try {
+			audioinput._socketMessage(e.data);
+		} catch (ex) {
+			audioinput._audioInputErrorEvent("audioinput._socketMessage ex: "
+					+ ex);
+		}
+	};
+	socket.onerror = function() {
+		audioinput._audioInputErrorEvent("The audio socket failed");
+	};
+	audioinput._socket = socket;
+};
+
+/**
+ * Decodes one frame from the audio socket: a 32 byte little endian header
+ * (version, bytes per sample, channels, flags, sample rate, sequence, reserved,
+ * timestamp in microseconds and sample index) followed by the audio
+ * 
+ * @param {ArrayBuffer}
+ *            buffer
+ * @private
+ */
+audioinput._socketMessage = function(buffer) {
+	if (!audioinput._capturing
+			|| buffer.byteLength <= audioinput._SOCKET_HEADER_SIZE) {
+		return;
+	}
+	var header = new DataView(buffer);
+	// Flag 1: audio before this frame was dropped or held back
+	var discontinuity = (header.getUint8(3) & 1) !== 0;
+	var sequence = header.getUint32(8, true);
+	var audioData = audioinput._decodeBinaryAudio(buffer,
+			audioinput._SOCKET_HEADER_SIZE, header.getUint8(1));
+	audioinput._deliverAudio(audioData, sequence, discontinuity
+			&& sequence > 0 ? 1 : 0);
+};
+
+/**
+ * Wraps a raw ArrayBuffer chunk in a typed array matching the delivered
+ * format, 8-bit samples are copied and centred on 0
+ * 
+ * @param {ArrayBuffer}
+ *            buffer
+ * @param {Number}
+ *            offset The size of the header ahead of the audio
+ * @param {Number}
+ *            bytesPerSample Optional, taken from the configuration if missing
+ * @returns {Int8Array|Int16Array|Float32Array}
+ * @private
+ */
+audioinput._decodeBinaryAudio = function(buffer, offset, bytesPerSample) {
+	if (!bytesPerSample) {
+		bytesPerSample = audioinput._nativeFloat ? 4
+				: audioinput._cfg.format === audioinput.FORMAT.PCM_8BIT ? 1 : 2;
+	}
+	if (bytesPerSample === 4) {
+		return new Float32Array(buffer, offset,
+				(buffer.byteLength - offset) >> 2);
+	}
+	if (bytesPerSample === 1) {
+		// 8-bit PCM is unsigned, centred on 128 as in the string data
+		var unsigned = new Uint8Array(buffer, offset);
+		var signed = new Int8Array(unsigned.length);
+		for (var i = 0; i < unsigned.length; i++) {
+			signed[i] = unsigned[i] - 128;
+		}
+		return signed;
+	}
+
+	return new Int16Array(buffer, offset, (buffer.byteLength - offset) >> 1);
+};
+
+/**
+ * The native conversion of the delivered audio to float, see
+ * SampleProcessor.java
+ * 
+ * @returns {Object} gain, agc and limiter, null when the data is normalized in
+ *          JS
+ * @private
+ */
+audioinput._getProcessing = function() {
+	if (!audioinput._cfg.normalize || cordova.platformId !== 'android') {
+		return null;
+	}
+
+	return {
+		gain : audioinput._cfg.gain,
+		agc : audioinput._cfg.agc,
+		limiter : audioinput._cfg.limiter
+	};
+};
+
 /**
  * Callback for list sources
  * 
@@ -337,7 +855,17 @@ audioinput._audioInputErrorEvent = function(e) {
  */
 audioinput._normalizeAudio = function(pcmData) {
 
-	if (audioinput._cfg.normalize) {
+	// Float data from the native layer is already in -1 .. 1
+	if (audioinput._cfg.normalize && !audioinput._nativeFloat) {
+		// Typed arrays from the binary transport are converted in one pass
+		if (!Array.isArray(pcmData)) {
+			var floatData = new Float32Array(pcmData.length);
+			for (var j = 0; j < pcmData.length; j++) {
+				floatData[j] = pcmData[j] / audioinput._cfg.normalizationFactor;
+			}
+			return floatData;
+		}
+
 		for (var i = 0; i < pcmData.length; i++) {
 			// if (Math.abs(pcmData[i]) > audioinput._cfg.normalizationFactor)
 			// pcmData[i] = audioinput._cfg.normalizationFactor;
@@ -364,16 +892,16 @@ audioinput._getNextToPlay = function() {
 		var duration = 100;
 
 		if (audioinput._audioDataQueue.length > 0) {
-			var concatenatedData = [];
+			var chunks = [];
 			for (var i = 0; i < audioinput._cfg.concatenateMaxChunks; i++) {
 				if (audioinput._audioDataQueue.length === 0) {
 					break;
 				}
-				concatenatedData = concatenatedData.concat(audioinput
-						._dequeueAudioData());
+				chunks.push(audioinput._dequeueAudioData());
 			}
 
-			duration = audioinput._playAudio(concatenatedData) * 1000;
+			duration = audioinput._playAudio(audioinput
+					._concatenateAudioData(chunks)) * 1000;
 		}
 
 		if (audioinput._capturing) {
@@ -385,6 +913,67 @@ audioinput._getNextToPlay = function() {
 	}
 };
 
+/**
+ * The sample rate of the data delivered by the native layer
+ * 
+ * @returns {Number}
+ * @private
+ */
+audioinput._getOutputSampleRate = function() {
+	if (audioinput._cfg.outputSampleRate > 0) {
+		return audioinput._cfg.outputSampleRate;
+	}
+
+	return Math.floor(audioinput._cfg.sampleRate
+			/ Math.max(audioinput._cfg.monitorSampleRate, 1));
+};
+
+/**
+ * Merges a list of audio chunks (arrays or typed arrays) into one Float32Array,
+ * or into one per channel if the chunks are planar
+ * 
+ * @param chunks
+ * @returns {Float32Array|Array}
+ * @private
+ */
+audioinput._concatenateAudioData = function(chunks) {
+	var i;
+	if (audioinput._planar) {
+		var planes = [];
+		for (var ch = 0; ch < audioinput._deliveredChannels; ch++) {
+			var plane = [];
+			for (i = 0; i < chunks.length; i++) {
+				plane.push(chunks[i][ch]);
+			}
+			planes.push(audioinput._concatenateSamples(plane));
+		}
+		return planes;
+	}
+
+	return audioinput._concatenateSamples(chunks);
+};
+
+/**
+ * @param chunks
+ *            Arrays or typed arrays of samples
+ * @returns {Float32Array} All samples in one array
+ * @private
+ */
+audioinput._concatenateSamples = function(chunks) {
+	var length = 0, offset = 0, i;
+	for (i = 0; i < chunks.length; i++) {
+		length += chunks[i].length;
+	}
+
+	var data = new Float32Array(length);
+	for (i = 0; i < chunks.length; i++) {
+		data.set(chunks[i], offset);
+		offset += chunks[i].length;
+	}
+
+	return data;
+};
+
 /**
  * Play audio using the Web Audio API
  * 
@@ -394,23 +983,25 @@ audioinput._getNextToPlay = function() {
  */
 audioinput._playAudio = function(data) {
 	try {
-		if (data && data.length > 0) {
-			var audioBuffer = audioinput._audioContext.createBuffer(
-					audioinput._cfg.channels,
-					(data.length / audioinput._cfg.channels),
-					audioinput._cfg.sampleRate), chdata = [], index = 0;
-
-			if (audioinput._cfg.channels > 1) {
-				for (var i = 0; i < audioinput._cfg.channels; i++) {
-					while (index < data.length) {
-						chdata.push(data[index + i]);
-						index += parseInt(audioinput._cfg.channels);
-					}
+		var channels = audioinput._deliveredChannels;
+		var frames = audioinput._planar ? (data && data.length > 0 ? data[0].length
+				: 0)
+				: (data ? Math.floor(data.length / channels) : 0);
+		if (frames > 0) {
+			var audioBuffer = audioinput._audioContext.createBuffer(channels,
+					frames, audioinput._getOutputSampleRate());
 
-					audioBuffer.getChannelData(i).set(new Float32Array(chdata));
+			for (var ch = 0; ch < channels; ch++) {
+				if (audioinput._planar) {
+					audioBuffer.getChannelData(ch).set(data[ch]);
+				} else if (channels === 1) {
+					audioBuffer.getChannelData(0).set(data);
+				} else {
+					var chdata = audioBuffer.getChannelData(ch);
+					for (var i = 0; i < frames; i++) {
+						chdata[i] = data[i * channels + ch];
+					}
 				}
-			} else {
-				audioBuffer.getChannelData(0).set(data);
 			}
 
 			var source = audioinput._audioContext.createBufferSource();